@@ -0,0 +1,136 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import com.rapid7.client.dcerpc.io.PacketInput;
+import com.rapid7.client.dcerpc.io.PacketOutput;
+import com.rapid7.client.dcerpc.messages.RequestCall;
+import com.rapid7.client.dcerpc.messages.RequestResponse;
+import com.rapid7.client.dcerpc.transport.RPCTransport;
+import com.rapid7.client.dcerpc.transport.RPCTransportConfig;
+
+/**
+ * A call through {@link RPCTransport} whose response spans many fragments, served from memory, so that only the
+ * request marshalling and the reassembly of the response stub are measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FragmentReassemblyBenchmark {
+    /**
+     * The length of the response stub: a large registry value, and a large enumeration.
+     */
+    @Param({"65536", "1048576"})
+    public int stubLength;
+
+    private InMemoryTransport transport;
+    private byte[] stub;
+
+    @Setup
+    public void setUp() throws IOException {
+        transport = new InMemoryTransport(
+                Stubs.responseFragments(stubLength, RPCTransportConfig.DEFAULT.getMaxRecvFrag()));
+        // Less the return value
+        stub = new byte[stubLength - 4];
+    }
+
+    @Benchmark
+    public BlobResponse call() throws IOException {
+        return transport.call(new BlobCall(stub));
+    }
+
+    private static class InMemoryTransport extends RPCTransport {
+        private final byte[][] fragments;
+        private int next;
+
+        InMemoryTransport(final byte[][] fragments) {
+            this.fragments = fragments;
+        }
+
+        @Override
+        public int transact(final byte[] packetOut, final byte[] packetIn) {
+            return transact(packetOut, 0, packetOut.length, packetIn);
+        }
+
+        @Override
+        public int transact(final byte[] packetOut, final int offset, final int length, final byte[] packetIn) {
+            next = 0;
+            return read(packetIn);
+        }
+
+        @Override
+        public void write(final byte[] packetOut) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(final byte[] packetIn) {
+            final byte[] fragment = fragments[next++];
+            System.arraycopy(fragment, 0, packetIn, 0, fragment.length);
+            return fragment.length;
+        }
+    }
+
+    private static class BlobCall extends RequestCall<BlobResponse> {
+        private final byte[] stub;
+
+        BlobCall(final byte[] stub) {
+            super((short) 0);
+            this.stub = stub;
+        }
+
+        @Override
+        public BlobResponse getResponseObject() {
+            return new BlobResponse(stub);
+        }
+
+        @Override
+        public void marshal(final PacketOutput packetOut) {
+        }
+    }
+
+    public static class BlobResponse extends RequestResponse {
+        private final byte[] stub;
+
+        BlobResponse(final byte[] stub) {
+            this.stub = stub;
+        }
+
+        @Override
+        public void unmarshalResponse(final PacketInput packetIn) throws IOException {
+            packetIn.readFully(stub);
+        }
+    }
+}
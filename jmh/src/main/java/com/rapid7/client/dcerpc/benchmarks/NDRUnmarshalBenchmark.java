@@ -0,0 +1,128 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import com.rapid7.client.dcerpc.io.ByteBufferPacketInput;
+import com.rapid7.client.dcerpc.io.PacketInput;
+import com.rapid7.client.dcerpc.mslsad.objects.LSAPRTranslatedNames;
+import com.rapid7.client.dcerpc.mssamr.objects.SAMPRUserAllInformation;
+import com.rapid7.client.dcerpc.mssrvs.objects.ShareInfoContainer;
+import com.rapid7.client.dcerpc.msrrp.messages.BaseRegEnumValueResponse;
+
+/**
+ * Unmarshalling of the largest structures returned by enumeration calls, from a {@link ByteBufferPacketInput} and, as
+ * a baseline, from a stream-based {@link PacketInput}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NDRUnmarshalBenchmark {
+    @State(Scope.Benchmark)
+    public static class Input {
+        /**
+         * The implementation of {@link PacketInput} read from.
+         */
+        @Param({"buffer", "stream"})
+        public String input;
+
+        PacketInput of(final byte[] stub) {
+            if ("stream".equals(input)) {
+                return new PacketInput(new ByteArrayInputStream(stub));
+            }
+            return new ByteBufferPacketInput(stub, 0, stub.length);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Entries {
+        /**
+         * The number of shares, or of translated names.
+         */
+        @Param({"16", "256"})
+        public int entries;
+
+        private byte[] shareInfo2Container;
+        private byte[] shareInfo502Container;
+        private byte[] translatedNames;
+
+        @Setup
+        public void setUp() throws IOException {
+            shareInfo2Container = Stubs.shareInfoContainer(2, entries);
+            shareInfo502Container = Stubs.shareInfoContainer(502, entries);
+            translatedNames = Stubs.translatedNames(entries);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Records {
+        private byte[] userAllInformation;
+
+        @Setup
+        public void setUp() throws IOException {
+            userAllInformation = Stubs.userAllInformation();
+        }
+    }
+
+    @Benchmark
+    public SAMPRUserAllInformation samprUserAllInformation(final Input input, final Records records)
+            throws IOException {
+        return input.of(records.userAllInformation).readUnmarshallable(new SAMPRUserAllInformation());
+    }
+
+    @Benchmark
+    public ShareInfoContainer.ShareInfo2Container shareInfo2Container(final Input input, final Entries entries)
+            throws IOException {
+        return input.of(entries.shareInfo2Container).readUnmarshallable(new ShareInfoContainer.ShareInfo2Container());
+    }
+
+    @Benchmark
+    public ShareInfoContainer.ShareInfo502Container shareInfo502Container(final Input input, final Entries entries)
+            throws IOException {
+        return input.of(entries.shareInfo502Container)
+                .readUnmarshallable(new ShareInfoContainer.ShareInfo502Container());
+    }
+
+    @Benchmark
+    public LSAPRTranslatedNames lsaprTranslatedNames(final Input input, final Entries entries) throws IOException {
+        return input.of(entries.translatedNames).readUnmarshallable(new LSAPRTranslatedNames());
+    }
+
+    @Benchmark
+    public BaseRegEnumValueResponse baseRegEnumValueResponse(final Input input) throws IOException {
+        final BaseRegEnumValueResponse response = new BaseRegEnumValueResponse();
+        response.unmarshal(input.of(Stubs.BASE_REG_ENUM_VALUE_RESPONSE));
+        return response;
+    }
+}
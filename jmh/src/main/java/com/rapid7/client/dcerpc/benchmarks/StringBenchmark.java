@@ -0,0 +1,101 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import com.rapid7.client.dcerpc.io.ByteBufferPacketInput;
+import com.rapid7.client.dcerpc.io.ByteBufferPacketOutput;
+import com.rapid7.client.dcerpc.objects.RPCUnicodeString;
+import com.rapid7.client.dcerpc.objects.WChar;
+
+/**
+ * Marshalling and unmarshalling of strings, which dominate most stubs. The value is a typical registry key path.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StringBenchmark {
+    private final static String VALUE = "SOFTWARE\\Microsoft\\Windows NT\\CurrentVersion\\Winlogon";
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(1024);
+    private byte[] wChar;
+    private byte[] rpcUnicodeString;
+
+    @Setup
+    public void setUp() throws IOException {
+        wChar = toBytes(marshal(WChar.NullTerminated.of(VALUE)));
+        rpcUnicodeString = toBytes(marshal(RPCUnicodeString.NullTerminated.of(VALUE)));
+    }
+
+    @Benchmark
+    public WChar unmarshalWChar() throws IOException {
+        return new ByteBufferPacketInput(wChar, 0, wChar.length).readUnmarshallable(new WChar.NullTerminated());
+    }
+
+    @Benchmark
+    public RPCUnicodeString unmarshalRPCUnicodeString() throws IOException {
+        return new ByteBufferPacketInput(rpcUnicodeString, 0, rpcUnicodeString.length)
+                .readUnmarshallable(new RPCUnicodeString.NullTerminated());
+    }
+
+    @Benchmark
+    public ByteBuffer marshalWChar() throws IOException {
+        return marshal(WChar.NullTerminated.of(VALUE));
+    }
+
+    @Benchmark
+    public ByteBuffer marshalRPCUnicodeString() throws IOException {
+        return marshal(RPCUnicodeString.NullTerminated.of(VALUE));
+    }
+
+    private ByteBuffer marshal(final WChar value) throws IOException {
+        buffer.clear();
+        final ByteBufferPacketOutput out = new ByteBufferPacketOutput(buffer);
+        out.writeMarshallable(value);
+        return out.getBuffer();
+    }
+
+    private ByteBuffer marshal(final RPCUnicodeString value) throws IOException {
+        buffer.clear();
+        final ByteBufferPacketOutput out = new ByteBufferPacketOutput(buffer);
+        out.writeMarshallable(value);
+        return out.getBuffer();
+    }
+
+    private static byte[] toBytes(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.position()];
+        System.arraycopy(buffer.array(), 0, bytes, 0, bytes.length);
+        return bytes;
+    }
+}
@@ -0,0 +1,258 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import com.google.common.io.BaseEncoding;
+import com.rapid7.client.dcerpc.PFCFlag;
+import com.rapid7.client.dcerpc.io.ByteBufferPacketOutput;
+import com.rapid7.client.dcerpc.io.PacketOutput;
+import com.rapid7.client.dcerpc.io.ndr.Alignment;
+import com.rapid7.client.dcerpc.messages.Response;
+import com.rapid7.client.dcerpc.objects.RPCUnicodeString;
+import com.rapid7.client.dcerpc.objects.WChar;
+
+/**
+ * NDR stubs for the benchmarks. They are marshalled by hand, field by field, in the layout of responses captured from
+ * a Windows Server 2016 domain controller, with the same kinds of strings and sizes.
+ */
+final class Stubs {
+    private final static int STYPE_DISKTREE = 0;
+    private final static int STYPE_IPC = 3;
+    private final static int STYPE_SPECIAL = 0x80000000;
+    private final static int SID_TYPE_USER = 1;
+
+    /**
+     * A BaseRegEnumValue response for the SystemRoot value of HKLM\SOFTWARE\Microsoft\Windows NT\CurrentVersion, as
+     * captured.
+     */
+    final static byte[] BASE_REG_ENUM_VALUE_RESPONSE = BaseEncoding.base16().lowerCase().decode(
+            "1600feff00000200ff7f0000000000000b000000530079007300740065006d0052006f006f0074000000000004000200010000000800020016000000000000001600000043003a005c00570069006e0064006f0077007300000000000c00020016000000100002001600000000000000");
+
+    private Stubs() {
+    }
+
+    /**
+     * @param level 2 or 502.
+     * @param count The number of shares. The first five are those of a domain controller.
+     * @return A SHARE_INFO_2_CONTAINER or SHARE_INFO_502_CONTAINER.
+     */
+    static byte[] shareInfoContainer(final int level, final int count) throws IOException {
+        final List<String[]> shares = new ArrayList<>(count);
+        final String[][] defaultShares = {
+                {"ADMIN$", "Remote Admin", "C:\\Windows"},
+                {"C$", "Default share", "C:\\"},
+                {"IPC$", "Remote IPC", ""},
+                {"NETLOGON", "Logon server share ", "C:\\Windows\\SYSVOL\\sysvol\\corp.example.com\\SCRIPTS"},
+                {"SYSVOL", "Logon server share ", "C:\\Windows\\SYSVOL\\sysvol"}};
+        for (int i = 0; i < count; i++) {
+            shares.add(i < defaultShares.length ? defaultShares[i] : new String[]{String.format("Dept%03d", i),
+                    String.format("Department %d file share", i), String.format("D:\\Shares\\Departments\\Dept%03d", i)});
+        }
+        final byte[] securityDescriptor = securityDescriptor();
+
+        final PacketOutput out = newOutput();
+        // EntriesRead, Buffer
+        out.writeInt(count);
+        out.writeReferentID();
+        // Buffer: MaximumCount
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            // shi2_netname, shi2_type, shi2_remark, shi2_permissions, shi2_max_uses, shi2_current_uses, shi2_path,
+            // shi2_passwd
+            out.writeReferentID();
+            out.writeInt(i < 2 ? STYPE_DISKTREE | STYPE_SPECIAL : i == 2 ? STYPE_IPC | STYPE_SPECIAL : STYPE_DISKTREE);
+            out.writeReferentID();
+            out.writeInt(0);
+            out.writeInt(-1);
+            out.writeInt(i % 4);
+            out.writeReferentID();
+            out.writeNull();
+            if (level == 502) {
+                // shi502_reserved, shi502_security_descriptor
+                out.writeInt(securityDescriptor.length);
+                out.writeReferentID();
+            }
+        }
+        for (final String[] share : shares) {
+            out.writeMarshallable(WChar.NullTerminated.of(share[0]));
+            out.writeMarshallable(WChar.NullTerminated.of(share[1]));
+            out.writeMarshallable(WChar.NullTerminated.of(share[2]));
+            if (level == 502) {
+                out.align(Alignment.FOUR);
+                out.writeInt(securityDescriptor.length);
+                out.write(securityDescriptor);
+            }
+        }
+        return toBytes(out);
+    }
+
+    /**
+     * @return A SAMPR_USER_ALL_INFORMATION for a typical domain user, with logon hours.
+     */
+    static byte[] userAllInformation() throws IOException {
+        final RPCUnicodeString[] strings = {
+                // UserName, FullName, HomeDirectory, HomeDirectoryDrive, ScriptPath, ProfilePath, AdminComment,
+                // WorkStations, UserComment, Parameters
+                RPCUnicodeString.NonNullTerminated.of("jsmith"),
+                RPCUnicodeString.NonNullTerminated.of("John Smith"),
+                RPCUnicodeString.NonNullTerminated.of("\\\\fs01.corp.example.com\\home$\\jsmith"),
+                RPCUnicodeString.NonNullTerminated.of("H:"),
+                RPCUnicodeString.NonNullTerminated.of("logon.cmd"),
+                RPCUnicodeString.NonNullTerminated.of("\\\\fs01.corp.example.com\\profiles$\\jsmith"),
+                RPCUnicodeString.NonNullTerminated.of("Engineering, Building 2"),
+                RPCUnicodeString.NonNullTerminated.of(""),
+                RPCUnicodeString.NonNullTerminated.of(""),
+                RPCUnicodeString.NonNullTerminated.of("")};
+        final RPCUnicodeString privateData = RPCUnicodeString.NonNullTerminated.of(null);
+
+        final PacketOutput out = newOutput();
+        // LastLogon, LastLogoff, PasswordLastSet, AccountExpires, PasswordCanChange, PasswordMustChange
+        out.writeLong(131876543210000000L);
+        out.writeLong(0L);
+        out.writeLong(131800000000000000L);
+        out.writeLong(Long.MAX_VALUE);
+        out.writeLong(131800864000000000L);
+        out.writeLong(Long.MAX_VALUE);
+        for (final RPCUnicodeString string : strings) {
+            string.marshalEntity(out);
+        }
+        // LmOwfPassword, NtOwfPassword: not returned
+        for (int i = 0; i < 2; i++) {
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeNull();
+        }
+        privateData.marshalEntity(out);
+        // SecurityDescriptor: not requested
+        out.writeInt(0);
+        out.writeNull();
+        // UserId, PrimaryGroupId, UserAccountControl, WhichFields
+        out.writeInt(1104);
+        out.writeInt(513);
+        out.writeInt(0x00000210);
+        out.writeInt(0x00FFFFFF);
+        // LogonHours: UnitsPerWeek, LogonHours
+        out.writeShort(168);
+        out.writeShort(0);
+        out.writeReferentID();
+        // BadPasswordCount, LogonCount, CountryCode, CodePage
+        out.writeShort(0);
+        out.writeShort(1342);
+        out.writeShort(0);
+        out.writeShort(0);
+        // LmPasswordPresent, NtPasswordPresent, PasswordExpired, PrivateDataSensitive
+        out.writeByte(0);
+        out.writeByte(0);
+        out.writeByte(0);
+        out.writeByte(1);
+
+        for (final RPCUnicodeString string : strings) {
+            string.marshalDeferrals(out);
+        }
+        privateData.marshalDeferrals(out);
+        // LogonHours: MaximumCount, Offset, ActualCount, all hours allowed
+        out.align(Alignment.FOUR);
+        out.writeInt(1260);
+        out.writeInt(0);
+        out.writeInt(21);
+        final byte[] logonHours = new byte[21];
+        Arrays.fill(logonHours, (byte) 0xFF);
+        out.write(logonHours);
+        return toBytes(out);
+    }
+
+    /**
+     * @param count The number of names.
+     * @return An LSAPR_TRANSLATED_NAMES resolving the SIDs of count users of one domain.
+     */
+    static byte[] translatedNames(final int count) throws IOException {
+        final RPCUnicodeString[] names = new RPCUnicodeString[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = RPCUnicodeString.NonNullTerminated.of(i == 0 ? "Administrator" : i == 1 ? "Guest"
+                    : String.format("svc_account%04d", i));
+        }
+        final PacketOutput out = newOutput();
+        // Entries, Names
+        out.writeInt(count);
+        out.writeReferentID();
+        // Names: MaximumCount
+        out.writeInt(count);
+        for (final RPCUnicodeString name : names) {
+            // Use, Name, DomainIndex
+            out.align(Alignment.FOUR);
+            out.writeShort(SID_TYPE_USER);
+            name.marshalEntity(out);
+            out.writeInt(0);
+        }
+        for (final RPCUnicodeString name : names) {
+            name.marshalDeferrals(out);
+        }
+        return toBytes(out);
+    }
+
+    /**
+     * @param stubLength The length of the response stub, including the 4 byte return value.
+     * @param maxRecvFrag The negotiated maximum fragment size.
+     * @return The response PDUs of a call, each at most maxRecvFrag long.
+     */
+    static byte[][] responseFragments(final int stubLength, final int maxRecvFrag) throws IOException {
+        // 24 bytes of response header
+        final int fragStubLength = maxRecvFrag - 24;
+        final int count = (stubLength + fragStubLength - 1) / fragStubLength;
+        final byte[][] fragments = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            final Response response = new Response();
+            final EnumSet<PFCFlag> flags = EnumSet.noneOf(PFCFlag.class);
+            if (i == 0) {
+                flags.add(PFCFlag.FIRST_FRAGMENT);
+            }
+            if (i == count - 1) {
+                flags.add(PFCFlag.LAST_FRAGMENT);
+            }
+            response.setPFCFlags(flags);
+            response.setStub(new byte[Math.min(fragStubLength, stubLength - i * fragStubLength)]);
+            final PacketOutput out = newOutput();
+            response.marshal(out);
+            fragments[i] = toBytes(out);
+        }
+        return fragments;
+    }
+
+    private static byte[] securityDescriptor() {
+        // Self-relative, DACL present: Everyone full control, as returned for a default share.
+        return BaseEncoding.base16().lowerCase().decode(
+                "0100048014000000200000000000000030000000010100000000000512000000010100000000000512000000"
+                        + "02001c000100000000001400ff011f00010100000000000100000000");
+    }
+
+    private static PacketOutput newOutput() {
+        return new ByteBufferPacketOutput(ByteBuffer.allocate(4096));
+    }
+
+    private static byte[] toBytes(final PacketOutput out) {
+        final ByteBuffer buffer = ((ByteBufferPacketOutput) out).getBuffer();
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+}
@@ -73,11 +73,13 @@ public class Header extends HexifyImpl implements Packet, Hexify {
     }
 
     public int getFragLength() {
-        return fragLength;
+        // u_int16 on the wire
+        return fragLength & 0xFFFF;
     }
 
     public int getAuthLength() {
-        return authLength;
+        // u_int16 on the wire
+        return authLength & 0xFFFF;
     }
 
     public int getCallID() {
@@ -24,6 +24,7 @@ public enum Interface {
     LSASVC_V0_0("lsarpc interface", "12345778-1234-ABCD-EF00-0123456789AB:v0.0"),
     SAMSVC_V1_0("samr interface", "12345778-1234-ABCD-EF00-0123456789AC:v1.0"),
     SVCCTL_V2_0("svcctl_interface", "367abb81-9844-35f1-ad32-98f038001003:v2.0"),
+    EPMAPPER_V3_0("epmapper interface", "e1af8308-5d1f-11c9-91a4-08002b14a0fa:v3.0"),
     NDR_32BIT_V2("NDR transfer syntax identifier", "8a885d04-1ceb-11c9-9fe8-08002b104860:v2.0");
 
     private final String name;
@@ -0,0 +1,196 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.epm;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import com.rapid7.client.dcerpc.Interface;
+
+/**
+ * A per-host cache of the TCP endpoints resolved through the endpoint mapper, so repeated connections to the same
+ * host do not each pay the ept_map round trip. Failed and empty lookups are cached as well, for a separate (typically
+ * shorter) time, so unreachable mappers and unregistered interfaces are not asked again on every connection.
+ * <br>
+ * Endpoints are cached by host and abstract syntax. Expired entries are swept from the whole cache at most once per
+ * TTL, as endpoints are cached, so a long-running scan over many hosts does not grow the cache without limit. This
+ * class is thread safe; concurrent misses for the same entry may each resolve it.
+ */
+public class EndpointCache {
+    private final static int DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+    private final static int UNKNOWN = -1;
+
+    /**
+     * Resolves the TCP port of an interface on a host.
+     */
+    @FunctionalInterface
+    public interface Resolver {
+        /**
+         * @return The TCP port, or -1 if the interface has no registered TCP endpoint.
+         * @throws IOException If the lookup failed.
+         */
+        int resolve(String host, Interface abstractSyntax, Interface transferSyntax) throws IOException;
+    }
+
+    private final Map<String, Map<Interface, Entry>> hosts = new ConcurrentHashMap<>();
+    private final long ttlNanos;
+    private final long negativeTTLNanos;
+    private final Resolver resolver;
+    private final LongSupplier clock;
+    private final long sweepIntervalNanos;
+    private final AtomicLong nextSweep;
+
+    /**
+     * Create a cache which resolves endpoints through the endpoint mapper on TCP port 135.
+     *
+     * @param ttl How long a resolved endpoint is cached.
+     * @param negativeTTL How long a failed or empty lookup is cached.
+     * @param unit The unit of both durations.
+     */
+    public EndpointCache(final long ttl, final long negativeTTL, final TimeUnit unit) {
+        this(ttl, negativeTTL, unit, (host, abstractSyntax, transferSyntax) -> EndpointMapperService
+                .lookupTCPPort(host, DEFAULT_CONNECT_TIMEOUT_MS, abstractSyntax, transferSyntax));
+    }
+
+    public EndpointCache(final long ttl, final long negativeTTL, final TimeUnit unit, final Resolver resolver) {
+        this(ttl, negativeTTL, unit, resolver, System::nanoTime);
+    }
+
+    EndpointCache(final long ttl, final long negativeTTL, final TimeUnit unit, final Resolver resolver,
+            final LongSupplier clock) {
+        if (ttl < 0 || negativeTTL < 0) {
+            throw new IllegalArgumentException(String.format("Invalid TTL: %d, %d", ttl, negativeTTL));
+        }
+        if (resolver == null) {
+            throw new IllegalArgumentException("Invalid Resolver: null");
+        }
+        this.ttlNanos = unit.toNanos(ttl);
+        this.negativeTTLNanos = unit.toNanos(negativeTTL);
+        this.resolver = resolver;
+        this.clock = clock;
+        this.sweepIntervalNanos = Math.max(1, Math.max(ttlNanos, negativeTTLNanos));
+        this.nextSweep = new AtomicLong(clock.getAsLong() + sweepIntervalNanos);
+    }
+
+    /**
+     * @param host The host.
+     * @param abstractSyntax The interface.
+     * @param transferSyntax The transfer syntax.
+     * @return The cached or freshly resolved TCP port, or -1 if no endpoint is known. Lookup failures are not
+     * propagated, they are cached as unknown endpoints.
+     */
+    public int getTCPPort(final String host, final Interface abstractSyntax, final Interface transferSyntax) {
+        final Map<Interface, Entry> endpoints = hosts.computeIfAbsent(normalize(host), key -> new ConcurrentHashMap<>());
+        final long now = clock.getAsLong();
+        final Entry cached = endpoints.get(abstractSyntax);
+        if (cached != null && now - cached.expires < 0) {
+            return cached.port;
+        }
+
+        int port;
+        try {
+            port = resolver.resolve(host, abstractSyntax, transferSyntax);
+        } catch (final IOException exception) {
+            port = UNKNOWN;
+        }
+        put(endpoints, abstractSyntax, port > 0 ? port : UNKNOWN, now);
+        return port > 0 ? port : UNKNOWN;
+    }
+
+    /**
+     * Record that the endpoint of an interface on a host is not usable, e.g. because connecting or binding to it
+     * failed. It will be treated as unknown until the negative TTL expires.
+     *
+     * @param host The host.
+     * @param abstractSyntax The interface.
+     */
+    public void reject(final String host, final Interface abstractSyntax) {
+        final Map<Interface, Entry> endpoints = hosts.computeIfAbsent(normalize(host), key -> new ConcurrentHashMap<>());
+        put(endpoints, abstractSyntax, UNKNOWN, clock.getAsLong());
+    }
+
+    /**
+     * Forget all endpoints of a host.
+     *
+     * @param host The host.
+     */
+    public void invalidate(final String host) {
+        hosts.remove(normalize(host));
+    }
+
+    /**
+     * Forget all endpoints.
+     */
+    public void clear() {
+        hosts.clear();
+    }
+
+    /**
+     * @return The number of cached endpoints, expired ones included.
+     */
+    int size() {
+        int size = 0;
+        for (final Map<Interface, Entry> endpoints : hosts.values()) {
+            size += endpoints.size();
+        }
+        return size;
+    }
+
+    private void put(final Map<Interface, Entry> endpoints, final Interface abstractSyntax, final int port,
+            final long now) {
+        endpoints.put(abstractSyntax, new Entry(port, now + (port == UNKNOWN ? negativeTTLNanos : ttlNanos)));
+        sweep(now);
+    }
+
+    /**
+     * Remove expired entries, and hosts left without entries, once the sweep interval has passed. Only one caller
+     * sweeps per interval.
+     */
+    private void sweep(final long now) {
+        final long sweep = nextSweep.get();
+        if (now - sweep < 0 || !nextSweep.compareAndSet(sweep, now + sweepIntervalNanos)) {
+            return;
+        }
+        for (final Map.Entry<String, Map<Interface, Entry>> host : hosts.entrySet()) {
+            final Map<Interface, Entry> endpoints = host.getValue();
+            endpoints.values().removeIf(entry -> now - entry.expires >= 0);
+            if (endpoints.isEmpty()) {
+                hosts.remove(host.getKey(), endpoints);
+            }
+        }
+    }
+
+    private static String normalize(final String host) {
+        return host.toLowerCase(Locale.ROOT);
+    }
+
+    private static class Entry {
+        private final int port;
+        private final long expires;
+
+        Entry(final int port, final long expires) {
+            this.port = port;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.epm;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.util.concurrent.TimeUnit;
+import com.rapid7.client.dcerpc.Interface;
+import com.rapid7.client.dcerpc.RPCException;
+import com.rapid7.client.dcerpc.epm.messages.EptMapRequest;
+import com.rapid7.client.dcerpc.epm.messages.EptMapResponse;
+import com.rapid7.client.dcerpc.epm.objects.ProtocolTower;
+import com.rapid7.client.dcerpc.service.Service;
+import com.rapid7.client.dcerpc.transport.RPCTransport;
+import com.rapid7.client.dcerpc.transport.RPCTransportConfig;
+import com.rapid7.client.dcerpc.transport.TCPTransport;
+
+/**
+ * A client of the endpoint mapper (epmapper), which resolves interfaces to the dynamic endpoints they listen on.
+ */
+public class EndpointMapperService extends Service {
+    public final static int EPM_PORT = 135;
+    /**
+     * The time a lookup may take, unless given.
+     */
+    public final static int DEFAULT_LOOKUP_TIMEOUT_MS = 5000;
+    private final static int MAX_TOWERS = 4;
+
+    public EndpointMapperService(final RPCTransport transport) {
+        super(transport);
+    }
+
+    /**
+     * @param abstractSyntax The interface.
+     * @param transferSyntax The transfer syntax.
+     * @return The TCP port the interface listens on, or -1 if it has no registered ncacn_ip_tcp endpoint.
+     * @throws IOException On failure of the ept_map call.
+     */
+    public int getTCPPort(final Interface abstractSyntax, final Interface transferSyntax) throws IOException {
+        final EptMapRequest request =
+                new EptMapRequest(ProtocolTower.forTCP(abstractSyntax, transferSyntax).toBytes(), new byte[20], MAX_TOWERS);
+        final EptMapResponse response = call(request);
+        if (response.getReturnValue() == EptMapResponse.EPT_S_NOT_REGISTERED) {
+            return -1;
+        }
+        if (response.getReturnValue() != 0) {
+            throw new RPCException("ept_map", response.getReturnValue());
+        }
+        for (final byte[] tower : response.getTowers()) {
+            final int port = ProtocolTower.fromBytes(tower).getTCPPort();
+            if (port > 0) {
+                return port;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Ask the endpoint mapper of the given host, on TCP port {@value #EPM_PORT}, giving up after
+     * {@value #DEFAULT_LOOKUP_TIMEOUT_MS} milliseconds.
+     *
+     * @param host The host.
+     * @param connectTimeoutMs The connect timeout in milliseconds.
+     * @param abstractSyntax The interface.
+     * @param transferSyntax The transfer syntax.
+     * @return The TCP port the interface listens on, or -1 if it has no registered ncacn_ip_tcp endpoint.
+     * @throws IOException If the endpoint mapper could not be reached or the call failed.
+     */
+    public static int lookupTCPPort(final String host, final int connectTimeoutMs, final Interface abstractSyntax,
+            final Interface transferSyntax) throws IOException {
+        return lookupTCPPort(host, connectTimeoutMs, DEFAULT_LOOKUP_TIMEOUT_MS, abstractSyntax, transferSyntax);
+    }
+
+    /**
+     * Ask the endpoint mapper of the given host, on TCP port {@value #EPM_PORT}.
+     *
+     * @param host The host.
+     * @param connectTimeoutMs The connect timeout in milliseconds.
+     * @param timeoutMs The time in milliseconds the whole lookup may take: the connect, the bind and the ept_map call.
+     * @param abstractSyntax The interface.
+     * @param transferSyntax The transfer syntax.
+     * @return The TCP port the interface listens on, or -1 if it has no registered ncacn_ip_tcp endpoint.
+     * @throws InterruptedByTimeoutException If the endpoint mapper did not answer in time.
+     * @throws IOException If the endpoint mapper could not be reached or the call failed.
+     */
+    public static int lookupTCPPort(final String host, final int connectTimeoutMs, final int timeoutMs,
+            final Interface abstractSyntax, final Interface transferSyntax) throws IOException {
+        return lookupTCPPort(new InetSocketAddress(host, EPM_PORT), connectTimeoutMs, timeoutMs, abstractSyntax,
+                transferSyntax);
+    }
+
+    static int lookupTCPPort(final InetSocketAddress address, final int connectTimeoutMs, final int timeoutMs,
+            final Interface abstractSyntax, final Interface transferSyntax) throws IOException {
+        if (timeoutMs <= 0) {
+            throw new IllegalArgumentException("Invalid timeout: " + timeoutMs);
+        }
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        final int boundedConnectTimeoutMs = connectTimeoutMs > 0 ? Math.min(connectTimeoutMs, timeoutMs) : timeoutMs;
+        try (final TCPTransport transport = TCPTransport.connect(address, boundedConnectTimeoutMs, timeoutMs,
+                Interface.EPMAPPER_V3_0, Interface.NDR_32BIT_V2, RPCTransportConfig.DEFAULT)) {
+            final long remainingNanos = deadline - System.nanoTime();
+            if (remainingNanos <= 0) {
+                throw new InterruptedByTimeoutException();
+            }
+            final EndpointMapperService service = new EndpointMapperService(transport);
+            service.setCallTimeout(remainingNanos, TimeUnit.NANOSECONDS);
+            return service.getTCPPort(abstractSyntax, transferSyntax);
+        }
+    }
+}
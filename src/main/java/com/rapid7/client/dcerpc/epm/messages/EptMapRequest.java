@@ -0,0 +1,91 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.epm.messages;
+
+import java.io.IOException;
+import com.rapid7.client.dcerpc.io.PacketOutput;
+import com.rapid7.client.dcerpc.io.ndr.Alignment;
+import com.rapid7.client.dcerpc.messages.RequestCall;
+
+/**
+ * The ept_map method looks up the endpoints registered for an interface, given as a protocol tower.<br>
+ *
+ * <pre>
+ * void ept_map(
+ *     [in] handle_t hEpMapper,
+ *     [in, ptr] UUID* obj,
+ *     [in, ptr] twr_p_t map_tower,
+ *     [in, out] ept_lookup_handle_t* entry_handle,
+ *     [in, range(0,500)] unsigned long max_towers,
+ *     [out] unsigned long* num_towers,
+ *     [out, ptr, size_is(max_towers), length_is(*num_towers)] twr_p_t* ITowers,
+ *     [out] error_status_t* status
+ * );
+ * </pre>
+ *
+ * @see <a href="https://msdn.microsoft.com/en-us/library/cc243816.aspx">ept_map</a>
+ */
+public class EptMapRequest extends RequestCall<EptMapResponse> {
+    public final static short OP_NUM = 3;
+    // <NDR: fixed array> [in] UUID* obj
+    private final byte[] obj = new byte[16];
+    // <NDR: pointer[struct]> [in, ptr] twr_p_t map_tower
+    private final byte[] mapTower;
+    // <NDR: fixed array> [in, out] ept_lookup_handle_t* entry_handle
+    private final byte[] entryHandle;
+    // <NDR: unsigned long> [in, range(0,500)] unsigned long max_towers
+    private final int maxTowers;
+
+    /**
+     * @param mapTower The tower octet string to look up.
+     * @param entryHandle The lookup handle returned by a previous call, or 20 zero octets.
+     * @param maxTowers The maximum number of towers to return.
+     */
+    public EptMapRequest(final byte[] mapTower, final byte[] entryHandle, final int maxTowers) {
+        super(OP_NUM);
+        this.mapTower = mapTower;
+        this.entryHandle = entryHandle;
+        this.maxTowers = maxTowers;
+    }
+
+    @Override
+    public EptMapResponse getResponseObject() {
+        return new EptMapResponse();
+    }
+
+    @Override
+    public void marshal(final PacketOutput packetOut) throws IOException {
+        // <NDR: pointer[fixed array]> [in, ptr] UUID* obj
+        packetOut.writeReferentID();
+        packetOut.write(obj);
+        // <NDR: pointer[struct]> [in, ptr] twr_p_t map_tower
+        packetOut.writeReferentID();
+        // Conformant structure: MaximumCount, then twr_t
+        packetOut.writeInt(mapTower.length);
+        // unsigned long tower_length
+        packetOut.writeInt(mapTower.length);
+        // [size_is(tower_length)] byte tower_octet_string[]
+        packetOut.write(mapTower);
+        packetOut.align(Alignment.FOUR);
+        // <NDR: fixed array> [in, out] ept_lookup_handle_t* entry_handle
+        packetOut.write(entryHandle);
+        // <NDR: unsigned long> [in, range(0,500)] unsigned long max_towers
+        packetOut.writeInt(maxTowers);
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.epm.messages;
+
+import java.io.IOException;
+import java.rmi.UnmarshalException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import com.rapid7.client.dcerpc.io.PacketInput;
+import com.rapid7.client.dcerpc.io.ndr.Alignment;
+import com.rapid7.client.dcerpc.messages.RequestResponse;
+
+/**
+ * The response to {@link EptMapRequest}. The trailing error_status_t status is available as the return value, and is
+ * {@link #EPT_S_NOT_REGISTERED} when no endpoint matches the tower.
+ */
+public class EptMapResponse extends RequestResponse {
+    public final static int EPT_S_NOT_REGISTERED = 0x16C9A0D6;
+    // <NDR: fixed array> [in, out] ept_lookup_handle_t* entry_handle
+    private byte[] entryHandle;
+    // <NDR: conformant varying array> [out, ptr, size_is(max_towers), length_is(*num_towers)] twr_p_t* ITowers
+    private List<byte[]> towers;
+
+    public byte[] getEntryHandle() {
+        return entryHandle;
+    }
+
+    /**
+     * @return The tower octet strings of the matching endpoints.
+     */
+    public List<byte[]> getTowers() {
+        return towers;
+    }
+
+    @Override
+    public void unmarshalResponse(final PacketInput packetIn) throws IOException {
+        // <NDR: fixed array> [in, out] ept_lookup_handle_t* entry_handle
+        entryHandle = new byte[20];
+        packetIn.readFully(entryHandle);
+        // <NDR: unsigned long> [out] unsigned long* num_towers
+        final int numTowers = packetIn.readIndex("num_towers");
+        // MaximumCount, Offset, ActualCount
+        packetIn.readIndex("MaximumCount");
+        // Elements before the offset are not sent, and the server always returns the towers from the start.
+        final int offset = packetIn.readIndex("Offset");
+        if (offset != 0) {
+            throw new UnmarshalException(String.format("Unexpected Offset of ITowers: %d", offset));
+        }
+        final int actualCount = packetIn.readIndex("ActualCount");
+        if (actualCount > numTowers) {
+            throw new UnmarshalException(String.format("ActualCount %d exceeds num_towers %d", actualCount, numTowers));
+        }
+        final boolean[] present = new boolean[actualCount];
+        for (int i = 0; i < actualCount; i++) {
+            present[i] = packetIn.readReferentID() != 0;
+        }
+        final List<byte[]> towers = new ArrayList<>(actualCount);
+        for (int i = 0; i < actualCount; i++) {
+            if (present[i]) {
+                packetIn.align(Alignment.FOUR);
+                // Conformant structure: MaximumCount, then twr_t
+                packetIn.readIndex("MaximumCount");
+                final byte[] tower = new byte[packetIn.readIndex("tower_length")];
+                packetIn.readFully(tower);
+                towers.add(tower);
+            }
+        }
+        this.towers = Collections.unmodifiableList(towers);
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.epm.objects;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.rmi.UnmarshalException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import com.rapid7.client.dcerpc.Interface;
+import com.rapid7.client.dcerpc.io.ByteBufferPacketInput;
+import com.rapid7.client.dcerpc.io.ByteBufferPacketOutput;
+import com.rapid7.client.dcerpc.io.PacketInput;
+import com.rapid7.client.dcerpc.io.PacketOutput;
+
+/**
+ * The octet string of a protocol tower, as carried by a <code>twr_t</code>. A tower is a sequence of floors, each a
+ * left hand side identifying a protocol and a right hand side holding its address data:<br>
+ *
+ * <pre>
+ * u_int16 floor_count;
+ * // repeated floor_count times
+ * u_int16 lhs_length;
+ * byte    lhs[lhs_length];  // protocol identifier, then protocol specific data
+ * u_int16 rhs_length;
+ * byte    rhs[rhs_length];  // related or addressing information
+ * </pre>
+ *
+ * Tower counts and lengths are little-endian, while TCP ports and IP addresses in the right hand sides are in network
+ * byte order. An ncacn_ip_tcp tower has five floors: the interface, the transfer syntax, connection-oriented RPC, TCP
+ * and IP.
+ *
+ * @see <a href="http://pubs.opengroup.org/onlinepubs/9629399/apdxl.htm">CDE 1.1: Protocol Tower Encoding</a>
+ */
+public class ProtocolTower {
+    public final static byte PROTOCOL_UUID = 0x0D;
+    public final static byte PROTOCOL_RPC_CO = 0x0B;
+    public final static byte PROTOCOL_TCP = 0x07;
+    public final static byte PROTOCOL_IP = 0x09;
+
+    private final List<Floor> floors;
+
+    public ProtocolTower(final List<Floor> floors) {
+        this.floors = Collections.unmodifiableList(new ArrayList<>(floors));
+    }
+
+    /**
+     * @param abstractSyntax The interface.
+     * @param transferSyntax The transfer syntax.
+     * @return An ncacn_ip_tcp tower for the given interface, with unspecified port and address, as used for lookups.
+     */
+    public static ProtocolTower forTCP(final Interface abstractSyntax, final Interface transferSyntax) {
+        final List<Floor> floors = new ArrayList<>(5);
+        floors.add(syntaxFloor(abstractSyntax));
+        floors.add(syntaxFloor(transferSyntax));
+        floors.add(new Floor(new byte[]{PROTOCOL_RPC_CO}, new byte[2]));
+        floors.add(new Floor(new byte[]{PROTOCOL_TCP}, new byte[2]));
+        floors.add(new Floor(new byte[]{PROTOCOL_IP}, new byte[4]));
+        return new ProtocolTower(floors);
+    }
+
+    public List<Floor> getFloors() {
+        return floors;
+    }
+
+    /**
+     * @return The TCP port of the tower, or -1 if the tower has no TCP floor.
+     */
+    public int getTCPPort() {
+        for (final Floor floor : floors) {
+            if (floor.getProtocol() == PROTOCOL_TCP && floor.getRHS().length == 2) {
+                return (floor.getRHS()[0] & 0xFF) << 8 | floor.getRHS()[1] & 0xFF;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The tower octet string.
+     */
+    public byte[] toBytes() {
+        int length = 2;
+        for (final Floor floor : floors) {
+            length += 4 + floor.getLHS().length + floor.getRHS().length;
+        }
+        final ByteBufferPacketOutput packetOut = new ByteBufferPacketOutput(ByteBuffer.allocate(length));
+        try {
+            marshal(packetOut);
+        } catch (final IOException exception) {
+            // The buffer has been sized exactly.
+            throw new IllegalStateException(exception);
+        }
+        return packetOut.getBuffer().array();
+    }
+
+    /**
+     * @param tower The tower octet string.
+     * @return The parsed tower.
+     * @throws IOException If the octet string is not a well formed tower.
+     */
+    public static ProtocolTower fromBytes(final byte[] tower) throws IOException {
+        final PacketInput packetIn = new ByteBufferPacketInput(tower, 0, tower.length);
+        final int floorCount = packetIn.readUnsignedShort();
+        final List<Floor> floors = new ArrayList<>(floorCount);
+        for (int i = 0; i < floorCount; i++) {
+            final byte[] lhs = packetIn.readRawBytes(packetIn.readUnsignedShort());
+            if (lhs.length == 0) {
+                throw new UnmarshalException(String.format("Empty left hand side in floor %d", i + 1));
+            }
+            final byte[] rhs = packetIn.readRawBytes(packetIn.readUnsignedShort());
+            floors.add(new Floor(lhs, rhs));
+        }
+        return new ProtocolTower(floors);
+    }
+
+    private void marshal(final PacketOutput packetOut) throws IOException {
+        packetOut.writeShort(floors.size());
+        for (final Floor floor : floors) {
+            packetOut.writeShort(floor.getLHS().length);
+            packetOut.write(floor.getLHS());
+            packetOut.writeShort(floor.getRHS().length);
+            packetOut.write(floor.getRHS());
+        }
+    }
+
+    private static Floor syntaxFloor(final Interface syntax) {
+        // LHS: protocol identifier, UUID, major version. RHS: minor version.
+        final byte[] lhs = new byte[19];
+        lhs[0] = PROTOCOL_UUID;
+        System.arraycopy(syntax.getUUID(), 0, lhs, 1, 16);
+        lhs[17] = (byte) syntax.getMajorVersion();
+        lhs[18] = (byte) (syntax.getMajorVersion() >> 8);
+        final byte[] rhs = {(byte) syntax.getMinorVersion(), (byte) (syntax.getMinorVersion() >> 8)};
+        return new Floor(lhs, rhs);
+    }
+
+    public static class Floor {
+        private final byte[] lhs;
+        private final byte[] rhs;
+
+        public Floor(final byte[] lhs, final byte[] rhs) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        /**
+         * @return The protocol identifier, the first octet of the left hand side.
+         */
+        public byte getProtocol() {
+            return lhs[0];
+        }
+
+        public byte[] getLHS() {
+            return lhs;
+        }
+
+        public byte[] getRHS() {
+            return rhs;
+        }
+    }
+}
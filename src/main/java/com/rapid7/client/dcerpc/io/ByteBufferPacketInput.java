@@ -0,0 +1,164 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import com.rapid7.client.dcerpc.io.ndr.Alignment;
+
+/**
+ * A {@link PacketInput} which decodes directly from a {@link ByteBuffer} (heap or direct) instead of an
+ * {@link java.io.InputStream}. Primitives are read with little-endian buffer accessors, and alignment, skips and bulk
+ * reads are constant time, so no intermediate streams or per-byte calls are involved.<br>
+ * <br>
+ * Reads start at the buffer's position at construction time and stop at its limit; {@link #getCount()} is relative to
+ * that position. The given buffer's position and byte order are not modified.
+ */
+public class ByteBufferPacketInput extends PacketInput {
+    private final ByteBuffer buffer;
+
+    public ByteBufferPacketInput(final ByteBuffer buffer) {
+        if (buffer == null) {
+            throw new IllegalArgumentException("Invalid ByteBuffer: null");
+        }
+        this.buffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public ByteBufferPacketInput(final byte[] buffer, final int offset, final int length) {
+        this(ByteBuffer.wrap(buffer, offset, length));
+    }
+
+    @Override
+    public void align(final Alignment alignment) throws IOException {
+        if (alignment == Alignment.ONE)
+            return;
+        final int count = buffer.position();
+        fullySkipBytes(((alignment.getOffByOneAlignment() + count) & ~alignment.getOffByOneAlignment()) - count);
+    }
+
+    @Override
+    public long getCount() {
+        return buffer.position();
+    }
+
+    @Override
+    public void readFully(final byte[] b) throws IOException {
+        readFully(b, 0, b.length);
+    }
+
+    @Override
+    public void readFully(final byte[] b, final int off, final int len) throws IOException {
+        try {
+            buffer.get(b, off, len);
+        } catch (final BufferUnderflowException exception) {
+            throw eof(exception);
+        }
+    }
+
+    @Override
+    public void fullySkipBytes(final int n) throws IOException {
+        // Lengths are often read off the wire, and must never move the position backwards.
+        if (n < 0) {
+            throw new EOFException(String.format("Invalid skip length: %d", n));
+        }
+        if (n > buffer.remaining()) {
+            throw new EOFException();
+        }
+        buffer.position(buffer.position() + n);
+    }
+
+    @Override
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    @Override
+    public byte readByte() throws IOException {
+        try {
+            return buffer.get();
+        } catch (final BufferUnderflowException exception) {
+            throw eof(exception);
+        }
+    }
+
+    @Override
+    public char readUnsignedByte() throws IOException {
+        return (char) (readByte() & 0xFF);
+    }
+
+    @Override
+    public short readShort() throws IOException {
+        try {
+            return buffer.getShort();
+        } catch (final BufferUnderflowException exception) {
+            throw eof(exception);
+        }
+    }
+
+    @Override
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xFFFF;
+    }
+
+    @Override
+    public char readChar() throws IOException {
+        try {
+            return buffer.getChar();
+        } catch (final BufferUnderflowException exception) {
+            throw eof(exception);
+        }
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        try {
+            return buffer.getInt();
+        } catch (final BufferUnderflowException exception) {
+            throw eof(exception);
+        }
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        try {
+            return buffer.getLong();
+        } catch (final BufferUnderflowException exception) {
+            throw eof(exception);
+        }
+    }
+
+    @Override
+    public float readFloat() throws IOException {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    @Override
+    public double readDouble() throws IOException {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    private static EOFException eof(final BufferUnderflowException cause) {
+        final EOFException exception = new EOFException();
+        exception.initCause(cause);
+        return exception;
+    }
+}
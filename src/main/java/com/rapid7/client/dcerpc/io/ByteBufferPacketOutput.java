@@ -0,0 +1,214 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import com.rapid7.client.dcerpc.io.ndr.Alignment;
+
+/**
+ * A {@link PacketOutput} which encodes directly into a little-endian {@link ByteBuffer} instead of an
+ * {@link java.io.OutputStream}. Writing starts at the buffer's position at construction time, so space in front of it
+ * can be reserved for a header which is patched in once the body has been written.<br>
+ * <br>
+ * When the buffer is full, {@link #overflow()} is invoked. By default the buffer is replaced with one twice the size;
+ * subclasses may instead consume the written bytes and {@link #discard()} them, for example to emit fragments.
+ * {@link #getCount()} keeps counting across discards, so alignment is unaffected.
+ */
+public class ByteBufferPacketOutput extends PacketOutput {
+    private ByteBuffer buffer;
+    private final int start;
+    private long discarded;
+
+    /**
+     * @param buffer The buffer to write into, starting at its position. Its byte order is set to little-endian.
+     */
+    public ByteBufferPacketOutput(final ByteBuffer buffer) {
+        if (buffer == null) {
+            throw new IllegalArgumentException("Invalid ByteBuffer: null");
+        }
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        this.start = buffer.position();
+    }
+
+    /**
+     * @return The buffer written to, which may have been replaced if it grew. Its position is the end of the written
+     * data.
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Called when the buffer has no space remaining. Grows the buffer by default.
+     *
+     * @throws IOException If the written bytes could not be consumed.
+     */
+    protected void overflow() throws IOException {
+        final ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() << 1, 16)).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+
+    /**
+     * Drop the bytes written since the start position, keeping them in {@link #getCount()}. Subclasses call this after
+     * consuming the buffer contents.
+     */
+    protected void discard() {
+        discarded += buffer.position() - start;
+        buffer.position(start);
+    }
+
+    @Override
+    public void align(final Alignment alignment) throws IOException {
+        if (alignment == Alignment.ONE)
+            return;
+        final long alignmentOffset = (alignment.getOffByOneAlignment() + getCount()) & ~alignment.getOffByOneAlignment();
+        pad(alignmentOffset - getCount());
+    }
+
+    @Override
+    public long getCount() {
+        return discarded + buffer.position() - start;
+    }
+
+    @Override
+    public void pad(long n) throws IOException {
+        while (n > 0) {
+            ensure();
+            final int length = (int) Math.min(n, buffer.remaining());
+            final int position = buffer.position();
+            if (buffer.hasArray()) {
+                Arrays.fill(buffer.array(), buffer.arrayOffset() + position, buffer.arrayOffset() + position + length, (byte) 0);
+            } else {
+                for (int i = 0; i < length; i++) {
+                    buffer.put(position + i, (byte) 0);
+                }
+            }
+            buffer.position(position + length);
+            n -= length;
+        }
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        writeByte(b);
+    }
+
+    @Override
+    public void write(final byte[] b) throws IOException {
+        write(b, 0, b.length);
+    }
+
+    @Override
+    public void write(final byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            ensure();
+            final int length = Math.min(len, buffer.remaining());
+            buffer.put(b, off, length);
+            off += length;
+            len -= length;
+        }
+    }
+
+    @Override
+    public void writeBoolean(final boolean v) throws IOException {
+        writeByte(v ? 1 : 0);
+    }
+
+    @Override
+    public void writeByte(final int v) throws IOException {
+        ensure();
+        buffer.put((byte) v);
+    }
+
+    @Override
+    public void writeShort(final int v) throws IOException {
+        if (buffer.remaining() >= 2) {
+            buffer.putShort((short) v);
+        } else {
+            writeSplit(v, 2);
+        }
+    }
+
+    @Override
+    public void writeChar(final int v) throws IOException {
+        writeShort(v);
+    }
+
+    @Override
+    public void writeInt(final int v) throws IOException {
+        if (buffer.remaining() >= 4) {
+            buffer.putInt(v);
+        } else {
+            writeSplit(v, 4);
+        }
+    }
+
+    @Override
+    public void writeLong(final long v) throws IOException {
+        if (buffer.remaining() >= 8) {
+            buffer.putLong(v);
+        } else {
+            writeSplit(v, 8);
+        }
+    }
+
+    @Override
+    public void writeFloat(final float v) throws IOException {
+        writeInt(Float.floatToIntBits(v));
+    }
+
+    @Override
+    public void writeDouble(final double v) throws IOException {
+        writeLong(Double.doubleToLongBits(v));
+    }
+
+    @Override
+    public void writeBytes(final String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            writeByte(s.charAt(i));
+        }
+    }
+
+    @Override
+    public void writeChars(final String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            writeShort(s.charAt(i));
+        }
+    }
+
+    private void ensure() throws IOException {
+        if (!buffer.hasRemaining()) {
+            overflow();
+        }
+    }
+
+    /**
+     * Write a little-endian primitive one byte at a time, for when it does not fit in the space remaining.
+     */
+    private void writeSplit(final long v, final int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            writeByte((int) (v >>> (i << 3)));
+        }
+    }
+}
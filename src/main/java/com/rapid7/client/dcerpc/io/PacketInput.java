@@ -29,6 +29,10 @@ public class PacketInput extends PrimitiveInput {
         super(inputStream);
     }
 
+    PacketInput() {
+        super();
+    }
+
     /**
      * Read a non-null object which implements {@link Unmarshallable}.
      * This object *must* be considered a top level object; if it is not, consider calling
@@ -29,6 +29,10 @@ public class PacketOutput extends PrimitiveOutput {
         super(outputStream);
     }
 
+    PacketOutput() {
+        super();
+    }
+
     /**
      * Write a non-null object which implements {@link Marshallable}.
      * This object *must* be considered a top level object; if it is not, consider calling
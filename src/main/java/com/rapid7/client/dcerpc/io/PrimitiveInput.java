@@ -38,6 +38,14 @@ class PrimitiveInput {
         dataIn = new LittleEndianDataInputStream(dataInStream);
     }
 
+    /**
+     * For subclasses which read from something other than an {@link InputStream}; they must override every read.
+     */
+    PrimitiveInput() {
+        dataInStream = null;
+        dataIn = null;
+    }
+
     public void align(Alignment alignment) throws IOException {
         if (alignment == Alignment.ONE)
             return;
@@ -37,6 +37,14 @@ public class PrimitiveOutput {
         dataOut = new LittleEndianDataOutputStream(dataOutStream);
     }
 
+    /**
+     * For subclasses which write to something other than an {@link OutputStream}; they must override every write.
+     */
+    PrimitiveOutput() {
+        dataOutStream = null;
+        dataOut = null;
+    }
+
     public void align(Alignment alignment) throws IOException {
         if (alignment == Alignment.ONE)
             return;
@@ -19,6 +19,7 @@
 package com.rapid7.client.dcerpc.io;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 public interface Transport {
     int transact(final byte[] packetOut, final byte[] packetIn) throws IOException;
@@ -26,4 +27,19 @@ public interface Transport {
     void write(final byte[] packetOut) throws IOException;
 
     int read(final byte[] packetIn) throws IOException;
+
+    /**
+     * Transact the given region of packetOut. Implementations should override this to avoid the copy made here.
+     */
+    default int transact(final byte[] packetOut, final int offset, final int length, final byte[] packetIn)
+            throws IOException {
+        return transact(Arrays.copyOfRange(packetOut, offset, offset + length), packetIn);
+    }
+
+    /**
+     * Write the given region of packetOut. Implementations should override this to avoid the copy made here.
+     */
+    default void write(final byte[] packetOut, final int offset, final int length) throws IOException {
+        write(Arrays.copyOfRange(packetOut, offset, offset + length));
+    }
 }
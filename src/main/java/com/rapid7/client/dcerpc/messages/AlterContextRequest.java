@@ -0,0 +1,37 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.messages;
+
+import java.util.List;
+import com.rapid7.client.dcerpc.PDUType;
+
+/**
+ * The alter_context PDU is used to negotiate additional presentation contexts on an existing association. Its format is
+ * identical to that of the bind PDU, see {@link BindRequest}; the server answers with an alter_context_resp PDU, whose
+ * format is identical to that of the bind_ack PDU, see {@link BindResponse}.<br>
+ * <br>
+ * The fragment sizes have already been negotiated by the bind and are ignored by the server.
+ *
+ * @see <a href=http://pubs.opengroup.org/onlinepubs/009629399/chap12.htm>CDE 1.1: Remote Procedure Call</a>
+ */
+public class AlterContextRequest extends BindRequest {
+    public AlterContextRequest(final int maxXmitFrag, final int maxRecvFrag, final List<PresentationContext> contexts) {
+        super(PDUType.ALTER_CONTEXT, maxXmitFrag, maxRecvFrag, contexts);
+    }
+}
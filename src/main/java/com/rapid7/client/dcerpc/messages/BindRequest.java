@@ -19,7 +19,10 @@
 package com.rapid7.client.dcerpc.messages;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.List;
 import com.rapid7.client.dcerpc.Header;
 import com.rapid7.client.dcerpc.Interface;
 import com.rapid7.client.dcerpc.PDUType;
@@ -112,20 +115,39 @@ import com.rapid7.client.dcerpc.io.PacketOutput;
  *
  * @see <a href=http://pubs.opengroup.org/onlinepubs/009629399/chap12.htm>CDE 1.1: Remote Procedure Call</a>
  */
-public final class BindRequest extends Header {
+public class BindRequest extends Header {
     private final int maxXmitFrag;
     private final int maxRecvFrag;
-    private final Interface abstractSyntax;
-    private final Interface transferSyntax;
+    private final List<PresentationContext> contexts;
 
     public BindRequest(final int maxXmitFrag, final int maxRecvFrag, final Interface abstractSyntax, final Interface transferSyntax) {
-        setPDUType(PDUType.BIND);
+        this(maxXmitFrag, maxRecvFrag, Collections.singletonList(new PresentationContext(0, abstractSyntax, transferSyntax)));
+    }
+
+    /**
+     * @param maxXmitFrag The proposed max_xmit_frag.
+     * @param maxRecvFrag The proposed max_recv_frag.
+     * @param contexts The presentation contexts to negotiate, at least one and at most 255.
+     */
+    public BindRequest(final int maxXmitFrag, final int maxRecvFrag, final List<PresentationContext> contexts) {
+        this(PDUType.BIND, maxXmitFrag, maxRecvFrag, contexts);
+    }
+
+    protected BindRequest(final PDUType pduType, final int maxXmitFrag, final int maxRecvFrag,
+            final List<PresentationContext> contexts) {
+        if (contexts.isEmpty() || contexts.size() > 0xFF) {
+            throw new IllegalArgumentException("Invalid number of presentation contexts: " + contexts.size());
+        }
+        setPDUType(pduType);
         setPFCFlags(EnumSet.of(PFCFlag.FIRST_FRAGMENT, PFCFlag.LAST_FRAGMENT));
-        setFragLength((short) 72);
+        setFragLength((short) (28 + 44 * contexts.size()));
         this.maxXmitFrag = maxXmitFrag;
         this.maxRecvFrag = maxRecvFrag;
-        this.abstractSyntax = abstractSyntax;
-        this.transferSyntax = transferSyntax;
+        this.contexts = Collections.unmodifiableList(new ArrayList<>(contexts));
+    }
+
+    public List<PresentationContext> getContexts() {
+        return contexts;
     }
 
     @Override
@@ -135,19 +157,23 @@ public final class BindRequest extends Header {
         packetOut.writeShort(maxRecvFrag); // 18:02 max receive fragsize, bytes
         packetOut.writeInt(0); // 20:04 Incarnation of client-server assoc group
         // 24:<variable size> Presentation context list
-        packetOut.writeByte(1); // 24:01 Number of items
+        packetOut.writeByte(contexts.size()); // 24:01 Number of items
         packetOut.writeByte(0); // 25:01 Alignment pad, m.b.z.
         packetOut.writeShort(0); // 26:02 Alignment pad, m.b.z.
-        // 28:20 Presentation syntax
-        packetOut.writeShort(0); // 28:02 Context ID
-        packetOut.writeByte(1); // 30:01 Number of item(s)
-        packetOut.writeByte(0); // 31:01 Alignment pad, m.b.z.
-        packetOut.write(abstractSyntax.getUUID()); // 32:16 UUID
-        packetOut.writeShort(abstractSyntax.getMajorVersion()); // 48:02 Major version
-        packetOut.writeShort(abstractSyntax.getMinorVersion()); // 50:02 Minor version
-        packetOut.write(transferSyntax.getUUID()); // 52:16 UUID
-        packetOut.writeShort(transferSyntax.getMajorVersion()); // 68:02 Major version
-        packetOut.writeShort(transferSyntax.getMinorVersion()); // 70:02 Minor version
+        for (final PresentationContext context : contexts) {
+            // 28:44 Presentation context element, repeated at 44 octet intervals
+            final Interface abstractSyntax = context.getAbstractSyntax();
+            final Interface transferSyntax = context.getTransferSyntax();
+            packetOut.writeShort(context.getContextID()); // 28:02 Context ID
+            packetOut.writeByte(1); // 30:01 Number of item(s)
+            packetOut.writeByte(0); // 31:01 Alignment pad, m.b.z.
+            packetOut.write(abstractSyntax.getUUID()); // 32:16 UUID
+            packetOut.writeShort(abstractSyntax.getMajorVersion()); // 48:02 Major version
+            packetOut.writeShort(abstractSyntax.getMinorVersion()); // 50:02 Minor version
+            packetOut.write(transferSyntax.getUUID()); // 52:16 UUID
+            packetOut.writeShort(transferSyntax.getMajorVersion()); // 68:02 Major version
+            packetOut.writeShort(transferSyntax.getMinorVersion()); // 70:02 Minor version
+        }
     }
 
     @Override
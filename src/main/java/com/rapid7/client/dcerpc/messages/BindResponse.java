@@ -23,6 +23,7 @@ import com.rapid7.client.dcerpc.Header;
 import com.rapid7.client.dcerpc.io.PacketInput;
 import com.rapid7.client.dcerpc.io.PacketOutput;
 
+import static com.rapid7.client.dcerpc.PDUType.ALTER_CONTEXT_RESP;
 import static com.rapid7.client.dcerpc.PDUType.BIND_ACK;
 import static com.rapid7.client.dcerpc.PDUType.BIND_NAK;
 
@@ -103,11 +104,21 @@ import static com.rapid7.client.dcerpc.PDUType.BIND_NAK;
  * @see <a href=http://pubs.opengroup.org/onlinepubs/009629399/chap12.htm>CDE 1.1: Remote Procedure Call</a>
  */
 public final class BindResponse extends Header {
+    /**
+     * The p_cont_def_result_t of an accepted presentation context.
+     */
+    public final static int ACCEPTANCE = 0;
+    private final static int RESULT_LENGTH = 24;
     private short maxXmitFrag;
     private short maxRecvFrag;
+    private int assocGroupID;
+    private int[] results;
 
+    /**
+     * @return True iff this is a bind_ack, or the alter_context_resp which shares its format.
+     */
     public boolean isACK() {
-        return BIND_ACK.equals(getPDUType());
+        return BIND_ACK.equals(getPDUType()) || ALTER_CONTEXT_RESP.equals(getPDUType());
     }
 
     public boolean isNAK() {
@@ -130,15 +141,63 @@ public final class BindResponse extends Header {
         this.maxRecvFrag = maxRecvFrag;
     }
 
+    public int getAssocGroupID() {
+        return assocGroupID;
+    }
+
+    public void setAssocGroupID(final int assocGroupID) {
+        this.assocGroupID = assocGroupID;
+    }
+
+    /**
+     * @return The p_cont_def_result_t of each presentation context, in the order they were proposed, or null if the
+     * PDU carried no result list.
+     */
+    public int[] getResults() {
+        return results;
+    }
+
+    public void setResults(final int[] results) {
+        this.results = results;
+    }
+
+    /**
+     * @param index The index of the presentation context in the request.
+     * @return True iff the presentation context was accepted. A PDU without a result list accepts all contexts.
+     */
+    public boolean isAccepted(final int index) {
+        return results == null || (index < results.length && results[index] == ACCEPTANCE);
+    }
+
     @Override
     public void marshal(final PacketOutput packetOut) throws IOException {
         // This method is used for unit tests and is not a complete implementation.
         switch (getPDUType()) {
             case BIND_ACK:
-                setFragLength((short) 20);
+            case ALTER_CONTEXT_RESP:
+                if (results == null) {
+                    setFragLength((short) 20);
+                    super.marshal(packetOut);
+                    packetOut.writeShort(maxXmitFrag);
+                    packetOut.writeShort(maxRecvFrag);
+                    break;
+                }
+                // Without a secondary address
+                setFragLength((short) (32 + RESULT_LENGTH * results.length));
                 super.marshal(packetOut);
                 packetOut.writeShort(maxXmitFrag);
                 packetOut.writeShort(maxRecvFrag);
+                packetOut.writeInt(assocGroupID);
+                packetOut.writeShort(0);
+                packetOut.writeShort(0);
+                packetOut.writeByte(results.length);
+                packetOut.writeByte(0);
+                packetOut.writeShort(0);
+                for (final int result : results) {
+                    packetOut.writeShort(result);
+                    packetOut.writeShort(0);
+                    packetOut.write(new byte[20]);
+                }
                 break;
             case BIND_NAK:
                 setFragLength((short) 16);
@@ -155,9 +214,33 @@ public final class BindResponse extends Header {
 
         switch (getPDUType()) {
             case BIND_ACK:
+            case ALTER_CONTEXT_RESP:
                 maxXmitFrag = packetIn.readShort();
                 maxRecvFrag = packetIn.readShort();
-                packetIn.fullySkipBytes(getFragLength() - 20);
+                if (getFragLength() == 20) {
+                    results = null;
+                    break;
+                }
+                assocGroupID = packetIn.readInt(); // 20:04 assoc_group_id
+                final int secAddrLength = packetIn.readUnsignedShort(); // 24:02 sec_addr length
+                packetIn.fullySkipBytes(secAddrLength);
+                // Restore 4 octet alignment
+                int offset = 26 + secAddrLength;
+                final int pad = (4 - offset % 4) % 4;
+                packetIn.fullySkipBytes(pad);
+                offset += pad;
+                results = new int[packetIn.readUnsignedByte()]; // n_results
+                packetIn.fullySkipBytes(3); // Reserved, m.b.z.
+                offset += 4;
+                for (int i = 0; i < results.length; i++) {
+                    results[i] = packetIn.readUnsignedShort(); // p_cont_def_result_t result
+                    packetIn.fullySkipBytes(22); // p_provider_reason_t reason, p_syntax_id_t transfer_syntax
+                }
+                offset += RESULT_LENGTH * results.length;
+                if (offset > getFragLength()) {
+                    throw new IOException(String.format("Invalid fragment length: %d < %d", getFragLength(), offset));
+                }
+                packetIn.fullySkipBytes(getFragLength() - offset);
                 break;
             case BIND_NAK:
                 packetIn.fullySkipBytes(getFragLength() - 16);
@@ -0,0 +1,70 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.messages;
+
+import com.rapid7.client.dcerpc.Interface;
+
+/**
+ * An element of the presentation context list of a bind or alter_context PDU: a context identifier for one abstract
+ * syntax and the transfer syntax proposed for it.<br>
+ *
+ * <pre>
+ * typedef struct {
+ *     p_context_id_t p_cont_id;
+ *     u_int8 n_transfer_syn;            // number of items
+ *     u_int8 reserved;                  // alignment pad, m.b.z.
+ *     p_syntax_id_t abstract_syntax;    // transfer syntax list
+ *     p_syntax_id_t [size_is(n_transfer_syn)] transfer_syntaxes[];
+ * } p_cont_elem_t;
+ * </pre>
+ *
+ * The context identifier is carried by each request PDU to select the interface it is addressed to.
+ */
+public final class PresentationContext {
+    private final int contextID;
+    private final Interface abstractSyntax;
+    private final Interface transferSyntax;
+
+    public PresentationContext(final int contextID, final Interface abstractSyntax, final Interface transferSyntax) {
+        if (contextID < 0 || contextID > 0xFFFF) {
+            throw new IllegalArgumentException("Invalid context ID: " + contextID);
+        }
+        this.contextID = contextID;
+        this.abstractSyntax = abstractSyntax;
+        this.transferSyntax = transferSyntax;
+    }
+
+    public int getContextID() {
+        return contextID;
+    }
+
+    public Interface getAbstractSyntax() {
+        return abstractSyntax;
+    }
+
+    public Interface getTransferSyntax() {
+        return transferSyntax;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PresentationContext{contextID: %d, abstractSyntax: %s, transferSyntax: %s}", contextID,
+                abstractSyntax, transferSyntax);
+    }
+}
@@ -87,6 +87,7 @@ import com.rapid7.client.dcerpc.io.PacketOutput;
  */
 public final class Request extends Header {
     private short opNum;
+    private short contextID;
     private byte[] stub;
 
     public Request() {
@@ -100,6 +101,13 @@ public final class Request extends Header {
         return opNum;
     }
 
+    /**
+     * @return The presentation context identifier, as negotiated by bind or alter_context.
+     */
+    public short getContextID() {
+        return contextID;
+    }
+
     /**
      * @return The stub data.
      */
@@ -111,6 +119,10 @@ public final class Request extends Header {
         this.opNum = opNum;
     }
 
+    public void setContextID(final short contextID) {
+        this.contextID = contextID;
+    }
+
     public void setStub(final byte[] stub) {
         this.stub = stub;
     }
@@ -120,14 +132,32 @@ public final class Request extends Header {
         if (null == getStub()) {
             throw new IllegalStateException("Invalid stub: " + getStub());
         }
+        final byte[] stub = getStub();
+        marshalHeader(packetOut, stub.length, stub.length);
+        packetOut.write(stub);
+    }
+
+    /**
+     * Marshal the request header for a fragment whose stub data is written separately by the caller. Used when a
+     * stub is streamed across several fragments.
+     *
+     * @param packetOut The output to write the header to.
+     * @param stubLength The number of stub bytes carried by this fragment.
+     * @param allocHint The allocation hint, or 0 (zero) if the total stub length is not known.
+     * @throws IOException On write failure.
+     */
+    public void marshalHeader(final PacketOutput packetOut, final int stubLength, final int allocHint)
+            throws IOException {
         final Set<PFCFlag> pfcFlags = getPFCFlags();
-        setFragLength((short) ((pfcFlags.contains(PFCFlag.OBJECT_UUID) ? 40 : 24) + stub.length));
+        final int fragLength = (pfcFlags.contains(PFCFlag.OBJECT_UUID) ? 40 : 24) + stubLength;
+        if (fragLength > 0xFFFF) {
+            throw new IllegalStateException("Invalid fragment length: " + fragLength);
+        }
+        setFragLength((short) fragLength);
         super.marshal(packetOut);
-        final byte[] stub = getStub();
-        packetOut.writeInt(stub.length); // 16:04 Allocation hint
-        packetOut.writeShort(0); // 20:02 Presentation context, i.e. data representation
+        packetOut.writeInt(allocHint); // 16:04 Allocation hint
+        packetOut.writeShort(getContextID()); // 20:02 Presentation context, i.e. data representation
         packetOut.writeShort(getOpNum()); // 22:02 Operation # within the interface
-        packetOut.write(stub);
     }
 
     @Override
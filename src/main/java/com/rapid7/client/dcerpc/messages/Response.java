@@ -96,10 +96,34 @@ public final class Response extends Header {
 
     @Override
     public void unmarshal(final PacketInput packetIn) throws IOException {
-        super.unmarshal(packetIn);
-        setStub(new byte[getFragLength() - getAuthLength() - 24]);
-        packetIn.fullySkipBytes(8);
+        unmarshalHeader(packetIn);
+        setStub(new byte[getStubLength()]);
         packetIn.readFully(getStub());
         packetIn.fullySkipBytes(getAuthLength());
     }
+
+    /**
+     * Unmarshal the fixed 24 octet response header only, leaving the stub data unread. The stub data of the fragment
+     * then follows at offset 24 and is {@link #getStubLength()} octets long. This allows the stub data to be consumed
+     * in place instead of being copied into {@link #getStub()}.
+     *
+     * @param packetIn The input to read the header from.
+     * @throws IOException On read failure.
+     */
+    public void unmarshalHeader(final PacketInput packetIn) throws IOException {
+        super.unmarshal(packetIn);
+        packetIn.fullySkipBytes(8);
+    }
+
+    /**
+     * @return The length of the stub data in this fragment, as given by the header.
+     * @throws IOException If the header describes a negative stub length.
+     */
+    public int getStubLength() throws IOException {
+        final int stubLength = getFragLength() - getAuthLength() - 24;
+        if (stubLength < 0) {
+            throw new IOException(String.format("Invalid fragment length: %d", getFragLength()));
+        }
+        return stubLength;
+    }
 }
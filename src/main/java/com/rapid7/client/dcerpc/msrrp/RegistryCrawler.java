@@ -0,0 +1,266 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.msrrp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Predicate;
+import com.google.common.base.Strings;
+import com.rapid7.client.dcerpc.RPCException;
+import com.rapid7.client.dcerpc.msrrp.dto.RegistryKey;
+import com.rapid7.client.dcerpc.msrrp.dto.RegistryKeyInfo;
+import com.rapid7.client.dcerpc.msrrp.dto.RegistryValue;
+import com.rapid7.client.dcerpc.transport.RPCTransport;
+
+/**
+ * Crawls registry trees over several winreg transports to the same host at once. A single transport carries one call
+ * per round trip, so a crawl over N transports runs up to N times faster than {@link RegistryService#walk(String,
+ * String, RegistryVisitor)}.
+ * <br>
+ * Each key is a fork/join task, which reads the key on whichever transport is free and forks a task per subkey, so
+ * idle workers steal subtrees from busy ones. The results are merged back in the order of a depth first walk. Unlike a
+ * walk, a crawl holds its whole result in memory; crawl large trees in parts, or with a depth limit.
+ * <br>
+ * Transports are typically opened with {@link com.rapid7.client.dcerpc.transport.SMBTransportFactories#WINREG}, once
+ * per worker; each opens its own named pipe. This class is thread safe.
+ */
+public class RegistryCrawler implements Closeable {
+    private final List<RegistryService> registryServices;
+    private final BlockingQueue<RegistryService> idleRegistryServices;
+    private final ForkJoinPool pool;
+
+    /**
+     * @param transports Transports bound to the winreg interface of the same host, one per worker. They are left open
+     * by {@link #close()}.
+     */
+    public RegistryCrawler(final List<RPCTransport> transports) {
+        if (transports == null || transports.isEmpty())
+            throw new IllegalArgumentException("Expecting at least one transport");
+        final List<RegistryService> registryServices = new ArrayList<>(transports.size());
+        for (final RPCTransport transport : transports) {
+            registryServices.add(new RegistryService(transport));
+        }
+        this.registryServices = Collections.unmodifiableList(registryServices);
+        this.idleRegistryServices = new LinkedBlockingQueue<>(registryServices);
+        this.pool = new ForkJoinPool(transports.size());
+    }
+
+    /**
+     * Crawl a registry tree without depth limit.
+     *
+     * @see #crawl(String, String, int, Predicate)
+     */
+    public List<Entry> crawl(final String hiveName, final String keyPath) throws IOException {
+        return crawl(hiveName, keyPath, Integer.MAX_VALUE, path -> false);
+    }
+
+    /**
+     * Crawl a registry tree.
+     *
+     * @param hiveName The hive.
+     * @param keyPath The path of the key to start from, or null or empty for the hive itself.
+     * @param maxDepth The maximum depth of the keys to crawl, the starting key being at depth 0.
+     * @param prune Tests the path of each key below the starting key; keys for which it holds are left out along with
+     * their subtrees. It is called concurrently.
+     * @return An entry per key, in the order of a depth first walk. Keys which could not be read have an entry with a
+     * failure, and their subtrees are left out.
+     * @throws IOException If the starting key could not be read, or if a transport failed.
+     */
+    public List<Entry> crawl(final String hiveName, final String keyPath, final int maxDepth,
+            final Predicate<String> prune) throws IOException {
+        if (maxDepth < 0)
+            throw new IllegalArgumentException("Invalid maxDepth: " + maxDepth);
+        if (prune == null)
+            throw new IllegalArgumentException("Invalid prune: null");
+        final List<Entry> entries;
+        try {
+            entries = pool.invoke(new CrawlTask(hiveName, Strings.nullToEmpty(keyPath), 0, maxDepth, prune));
+        } catch (final UncheckedIOException exception) {
+            throw exception.getCause();
+        }
+        final Entry root = entries.get(0);
+        if (root.getFailure() != null) {
+            throw root.getFailure();
+        }
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Close every handle opened by the crawls, but not the transports.
+     *
+     * @throws IOException If a transport failed while closing handles.
+     */
+    @Override
+    public void close() throws IOException {
+        pool.shutdown();
+        IOException failure = null;
+        for (final RegistryService registryService : registryServices) {
+            try {
+                registryService.close();
+            } catch (final IOException exception) {
+                if (failure == null) {
+                    failure = exception;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * A crawled key.
+     */
+    public static class Entry {
+        private final String keyPath;
+        private final RegistryKeyInfo keyInfo;
+        private final List<RegistryValue> values;
+        private final IOException failure;
+
+        Entry(final String keyPath, final RegistryKeyInfo keyInfo, final List<RegistryValue> values,
+                final IOException failure) {
+            this.keyPath = keyPath;
+            this.keyInfo = keyInfo;
+            this.values = values;
+            this.failure = failure;
+        }
+
+        /**
+         * @return The path of the key relative to its hive, as named by the server.
+         */
+        public String getKeyPath() {
+            return keyPath;
+        }
+
+        /**
+         * @return The key information, or null if the key could not be read.
+         */
+        public RegistryKeyInfo getKeyInfo() {
+            return keyInfo;
+        }
+
+        /**
+         * @return The values of the key, or null if the key could not be read.
+         */
+        public List<RegistryValue> getValues() {
+            return values;
+        }
+
+        /**
+         * @return Why the key could not be read, or null.
+         */
+        public IOException getFailure() {
+            return failure;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s {keyInfo=%s, values=%s, failure=%s}", keyPath, keyInfo, values, failure);
+        }
+    }
+
+    private class CrawlTask extends RecursiveTask<List<Entry>> {
+        private final String hiveName;
+        private final String keyPath;
+        private final int depth;
+        private final int maxDepth;
+        private final Predicate<String> prune;
+
+        CrawlTask(final String hiveName, final String keyPath, final int depth, final int maxDepth,
+                final Predicate<String> prune) {
+            this.hiveName = hiveName;
+            this.keyPath = keyPath;
+            this.depth = depth;
+            this.maxDepth = maxDepth;
+            this.prune = prune;
+        }
+
+        @Override
+        protected List<Entry> compute() {
+            final List<RegistryKey> subKeys;
+            final List<Entry> entries = new ArrayList<>();
+            final RegistryService registryService = takeRegistryService();
+            try {
+                final RegistryKeyInfo keyInfo = registryService.getKeyInfo(hiveName, keyPath);
+                final List<RegistryValue> values = keyInfo.getValues() > 0
+                        ? registryService.getValues(hiveName, keyPath, keyInfo) : Collections.emptyList();
+                subKeys = keyInfo.getSubKeys() > 0 && depth < maxDepth
+                        ? registryService.getSubKeys(hiveName, keyPath, keyInfo) : Collections.emptyList();
+                // Only once the key is fully read, so a failure leaves a single entry for it.
+                entries.add(new Entry(keyPath, keyInfo, values, null));
+            } catch (final IOException exception) {
+                if (depth == 0 || exception instanceof RPCException) {
+                    entries.add(new Entry(keyPath, null, null, exception));
+                    return entries;
+                }
+                // The transport failed; the crawl cannot complete.
+                throw new UncheckedIOException(exception);
+            } finally {
+                idleRegistryServices.add(registryService);
+            }
+
+            final List<CrawlTask> tasks = new ArrayList<>(subKeys.size());
+            for (final RegistryKey subKey : subKeys) {
+                final String subKeyPath = keyPath.isEmpty() ? subKey.getName() : keyPath + "\\" + subKey.getName();
+                if (!prune.test(subKeyPath)) {
+                    tasks.add(new CrawlTask(hiveName, subKeyPath, depth + 1, maxDepth, prune));
+                }
+            }
+            for (final CrawlTask task : invokeAll(tasks)) {
+                entries.addAll(task.join());
+            }
+            return entries;
+        }
+
+        private RegistryService takeRegistryService() {
+            // There are as many registry services as workers, so one is free unless a worker is compensating for a
+            // blocked join.
+            try {
+                final RegistryService[] registryService = new RegistryService[1];
+                ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                    @Override
+                    public boolean block() throws InterruptedException {
+                        if (registryService[0] == null) {
+                            registryService[0] = idleRegistryServices.take();
+                        }
+                        return true;
+                    }
+
+                    @Override
+                    public boolean isReleasable() {
+                        return registryService[0] != null
+                                || (registryService[0] = idleRegistryServices.poll()) != null;
+                    }
+                });
+                return registryService[0];
+            } catch (final InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(exception);
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.msrrp;
+
+import java.io.Closeable;
+
+/**
+ * An open registry key handle, leased from the handle cache of a {@link RegistryService}. The handle stays open while
+ * leased, even if the cache evicts it; close the lease once the handle is no longer used.
+ */
+public interface RegistryHandle extends Closeable {
+    /**
+     * @return The RPC context handle of the key.
+     */
+    byte[] getHandle();
+
+    /**
+     * Release the lease. Closing it again has no effect.
+     */
+    @Override
+    void close();
+}
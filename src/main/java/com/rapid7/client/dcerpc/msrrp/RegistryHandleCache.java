@@ -0,0 +1,286 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.msrrp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import com.rapid7.client.dcerpc.msrrp.dto.RegistryHive;
+
+/**
+ * A bounded cache of open registry key handles, by hive, canonical path and access mask, evicting the least recently
+ * used handle beyond its capacity and handles idle for longer than its idle timeout.
+ * <br>
+ * Handles are leased, so a handle is never closed while in use: an evicted handle is only handed back for closing
+ * once its last lease is released. Handles to close are collected and drained in batches by
+ * {@link #drainClosable(boolean)}, to be closed on the server by the caller. This class is thread safe.
+ */
+final class RegistryHandleCache {
+    /**
+     * Opens a handle on the server, on a cache miss.
+     */
+    @FunctionalInterface
+    interface Opener {
+        byte[] open() throws IOException;
+    }
+
+    private final int maxHandles;
+    private final long idleTimeoutNanos;
+    private final int closeBatchSize;
+    private final LongSupplier clock;
+    // Guarded by this; in access order, least recently used first.
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // Guarded by this
+    private final List<byte[]> closable = new ArrayList<>();
+    private boolean closed;
+
+    /**
+     * @param maxHandles The most handles to keep open. Handles in use may exceed it.
+     * @param idleTimeout How long an unused handle is kept open, or 0 to keep it until evicted for space.
+     * @param unit The unit of idleTimeout.
+     * @param closeBatchSize How many handles to collect before {@link #drainClosable(boolean)} hands them back.
+     */
+    RegistryHandleCache(final int maxHandles, final long idleTimeout, final TimeUnit unit, final int closeBatchSize) {
+        this(maxHandles, idleTimeout, unit, closeBatchSize, System::nanoTime);
+    }
+
+    RegistryHandleCache(final int maxHandles, final long idleTimeout, final TimeUnit unit, final int closeBatchSize,
+            final LongSupplier clock) {
+        if (maxHandles < 1) {
+            throw new IllegalArgumentException(String.format("Invalid maxHandles: %d", maxHandles));
+        }
+        if (idleTimeout < 0) {
+            throw new IllegalArgumentException(String.format("Invalid idleTimeout: %d", idleTimeout));
+        }
+        if (closeBatchSize < 1) {
+            throw new IllegalArgumentException(String.format("Invalid closeBatchSize: %d", closeBatchSize));
+        }
+        this.maxHandles = maxHandles;
+        this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+        this.closeBatchSize = closeBatchSize;
+        this.clock = clock;
+    }
+
+    /**
+     * Lease the handle of a key, opening it on a miss. The opener runs without holding the cache, so concurrent
+     * misses for the same key may each open it; all but the first handle cached are handed back for closing.
+     *
+     * @param hive The hive.
+     * @param path The canonical path of the key, or the empty string for the hive itself.
+     * @param access The access mask the handle was opened with.
+     * @param opener Opens the handle on a miss.
+     * @return A lease on the handle, to be closed once the handle is no longer used.
+     * @throws IOException If the opener failed, or if this cache is closed.
+     */
+    Lease acquire(final RegistryHive hive, final String path, final int access, final Opener opener)
+            throws IOException {
+        final Key key = new Key(hive, path, access);
+        synchronized (this) {
+            checkOpen();
+            evictIdle();
+            final Entry entry = entries.get(key);
+            if (entry != null) {
+                return entry.lease(clock.getAsLong());
+            }
+        }
+        final byte[] handle = opener.open();
+        synchronized (this) {
+            if (closed) {
+                closable.add(handle);
+                throw new IOException("RegistryService closed.");
+            }
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry(handle);
+                entries.put(key, entry);
+            } else {
+                closable.add(handle);
+            }
+            final Lease lease = entry.lease(clock.getAsLong());
+            evictOverCapacity();
+            return lease;
+        }
+    }
+
+    /**
+     * Lease the handle of a key only if it is cached.
+     *
+     * @return A lease on the handle, or null if it is not cached or this cache is closed.
+     */
+    synchronized Lease acquireIfCached(final RegistryHive hive, final String path, final int access) {
+        if (closed) {
+            return null;
+        }
+        final Entry entry = entries.get(new Key(hive, path, access));
+        return entry == null ? null : entry.lease(clock.getAsLong());
+    }
+
+    /**
+     * @param all Whether to drain handles to close even if fewer than a batch are pending.
+     * @return The handles to close on the server, possibly none.
+     */
+    synchronized List<byte[]> drainClosable(final boolean all) {
+        evictIdle();
+        if (closable.isEmpty() || (!all && closable.size() < closeBatchSize)) {
+            return Collections.emptyList();
+        }
+        final List<byte[]> handles = new ArrayList<>(closable);
+        closable.clear();
+        return handles;
+    }
+
+    /**
+     * Evict every handle, and refuse new leases. Handles in use are handed back for closing once released.
+     */
+    synchronized void close() {
+        closed = true;
+        for (final Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext(); ) {
+            evict(iterator.next());
+            iterator.remove();
+        }
+    }
+
+    /**
+     * @return The number of cached handles.
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("RegistryService closed.");
+        }
+    }
+
+    private void evictIdle() {
+        if (idleTimeoutNanos == 0) {
+            return;
+        }
+        final long now = clock.getAsLong();
+        for (final Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext(); ) {
+            final Entry entry = iterator.next();
+            if (now - entry.lastUsed < idleTimeoutNanos) {
+                // Access order is also last use order.
+                return;
+            }
+            if (entry.leases == 0) {
+                evict(entry);
+                iterator.remove();
+            }
+        }
+    }
+
+    private void evictOverCapacity() {
+        for (final Iterator<Entry> iterator = entries.values().iterator();
+                entries.size() > maxHandles && iterator.hasNext(); ) {
+            final Entry entry = iterator.next();
+            if (entry.leases == 0) {
+                evict(entry);
+                iterator.remove();
+            }
+        }
+    }
+
+    private void evict(final Entry entry) {
+        entry.evicted = true;
+        if (entry.leases == 0) {
+            closable.add(entry.handle);
+        }
+    }
+
+    /**
+     * A lease on a cached handle.
+     */
+    final class Lease implements RegistryHandle {
+        private final Entry entry;
+        private boolean released;
+
+        private Lease(final Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public byte[] getHandle() {
+            return entry.handle;
+        }
+
+        @Override
+        public void close() {
+            synchronized (RegistryHandleCache.this) {
+                if (!released) {
+                    released = true;
+                    if (--entry.leases == 0 && entry.evicted) {
+                        closable.add(entry.handle);
+                    }
+                }
+            }
+        }
+    }
+
+    private final class Entry {
+        private final byte[] handle;
+        private int leases;
+        private long lastUsed;
+        private boolean evicted;
+
+        private Entry(final byte[] handle) {
+            this.handle = handle;
+        }
+
+        private Lease lease(final long now) {
+            leases++;
+            lastUsed = now;
+            return new Lease(this);
+        }
+    }
+
+    private static final class Key {
+        private final RegistryHive hive;
+        private final String path;
+        private final int access;
+
+        private Key(final RegistryHive hive, final String path, final int access) {
+            this.hive = Objects.requireNonNull(hive);
+            this.path = Objects.requireNonNull(path);
+            this.access = access;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return hive == other.hive && path.equals(other.path) && access == other.access;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(hive, path, access);
+        }
+    }
+}
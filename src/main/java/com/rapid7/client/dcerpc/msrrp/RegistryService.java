@@ -18,14 +18,16 @@
  */
 package com.rapid7.client.dcerpc.msrrp;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Deque;
 import java.util.List;
-import java.util.Map;
-import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 import com.google.common.base.Strings;
 import com.rapid7.client.dcerpc.RPCException;
 import com.rapid7.client.dcerpc.io.ndr.arrays.RPCConformantVaryingByteArray;
@@ -36,6 +38,7 @@ import com.rapid7.client.dcerpc.msrrp.dto.RegistryKey;
 import com.rapid7.client.dcerpc.msrrp.dto.RegistryKeyInfo;
 import com.rapid7.client.dcerpc.msrrp.dto.RegistryValue;
 import com.rapid7.client.dcerpc.msrrp.dto.RegistryValueType;
+import com.rapid7.client.dcerpc.msrrp.messages.BaseRegCloseKey;
 import com.rapid7.client.dcerpc.msrrp.messages.BaseRegEnumKeyRequest;
 import com.rapid7.client.dcerpc.msrrp.messages.BaseRegEnumKeyResponse;
 import com.rapid7.client.dcerpc.msrrp.messages.BaseRegEnumValueRequest;
@@ -45,6 +48,8 @@ import com.rapid7.client.dcerpc.msrrp.messages.BaseRegGetKeySecurityResponse;
 import com.rapid7.client.dcerpc.msrrp.messages.BaseRegOpenKey;
 import com.rapid7.client.dcerpc.msrrp.messages.BaseRegQueryInfoKeyRequest;
 import com.rapid7.client.dcerpc.msrrp.messages.BaseRegQueryInfoKeyResponse;
+import com.rapid7.client.dcerpc.msrrp.messages.BaseRegQueryMultipleValues2Request;
+import com.rapid7.client.dcerpc.msrrp.messages.BaseRegQueryMultipleValues2Response;
 import com.rapid7.client.dcerpc.msrrp.messages.BaseRegQueryValueRequest;
 import com.rapid7.client.dcerpc.msrrp.messages.BaseRegQueryValueResponse;
 import com.rapid7.client.dcerpc.msrrp.messages.HandleRequest;
@@ -53,6 +58,7 @@ import com.rapid7.client.dcerpc.objects.RPCUnicodeString;
 import com.rapid7.client.dcerpc.service.Service;
 import com.rapid7.client.dcerpc.transport.RPCTransport;
 
+import static com.rapid7.client.dcerpc.mserref.SystemErrorCode.ERROR_MORE_DATA;
 import static com.rapid7.client.dcerpc.mserref.SystemErrorCode.ERROR_NO_MORE_ITEMS;
 import static com.rapid7.client.dcerpc.mserref.SystemErrorCode.ERROR_SUCCESS;
 
@@ -60,26 +66,70 @@ import static com.rapid7.client.dcerpc.mserref.SystemErrorCode.ERROR_SUCCESS;
  * This class implements a partial registry service in accordance with [MS-RRP]: Windows Remote Registry Protocol which
  * specifies the Windows Remote Registry Protocol, a remote procedure call (RPC)-based client/server protocol that is
  * used to remotely manage a hierarchical data store such as the Windows registry.
+ * <br>
+ * Opened hive and key handles are cached, up to a maximum number of handles and for as long as they are used within
+ * an idle timeout. Handles evicted from the cache are closed on the server in batches, and {@link #close()} closes
+ * every handle still open; the transport itself is left open.
  *
  * @see <a href="https://msdn.microsoft.com/en-us/library/cc244877.aspx">[MS-RRP]: Windows Remote Registry Protocol</a>
  */
-public class RegistryService extends Service {
+public class RegistryService extends Service implements Closeable {
     private final static int MAX_REGISTRY_KEY_NAME_SIZE = 32767;
     private final static int MAX_REGISTRY_KEY_CLASS_SIZE = 32767;
     private final static int MAX_REGISTRY_VALUE_NAME_SIZE = 32767;
     private final static int MAX_REGISTRY_VALUE_DATA_SIZE = 1048576;
+    private final static int MULTIPLE_VALUES_SIZE_HINT = 256;
     private final static int MAXIMUM_ALLOWED = 33554432;
     private final static int ACCESS_SYSTEM_SECURITY = 16777216;
-    private final Map<RegistryHive, byte[]> hiveCache = new HashMap<>();
-    private final Map<RegistryHandleKey, byte[]> keyPathCache = new HashMap<>();
+    private final static int DEFAULT_MAX_HANDLES = 1024;
+    private final static long DEFAULT_IDLE_TIMEOUT_SECONDS = 300;
+    private final static int CLOSE_BATCH_SIZE = 16;
+    private final RegistryHandleCache handleCache;
+    private volatile boolean sizedEnumeration;
 
     public RegistryService(final RPCTransport transport) {
+        this(transport, DEFAULT_MAX_HANDLES, DEFAULT_IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param transport The transport, bound to the winreg interface.
+     * @param maxHandles The most key handles to keep open. Handles in use may exceed it.
+     * @param idleTimeout How long an unused handle is kept open, or 0 to keep it until evicted for space.
+     * @param unit The unit of idleTimeout.
+     */
+    public RegistryService(final RPCTransport transport, final int maxHandles, final long idleTimeout,
+            final TimeUnit unit) {
+        this(transport, new RegistryHandleCache(maxHandles, idleTimeout, unit, CLOSE_BATCH_SIZE));
+    }
+
+    RegistryService(final RPCTransport transport, final RegistryHandleCache handleCache) {
         super(transport);
+        this.handleCache = handleCache;
+    }
+
+    /**
+     * Size the buffers of {@link #getSubKeys(String, String)} and {@link #getValues(String, String)} from the longest
+     * names and data reported by BaseRegQueryInfoKey, rather than from the maximum sizes the registry allows. This costs
+     * one more call per key, and saves the server from allocating and marshalling up to 1MB for every subkey and value
+     * enumerated. Should a name or value outgrow the reported sizes during the enumeration, it is retried with sizes
+     * queried anew, and then with the maximum sizes. Walks always size their buffers this way.
+     *
+     * @param sizedEnumeration Whether to size enumeration buffers from BaseRegQueryInfoKey.
+     */
+    public void setSizedEnumeration(final boolean sizedEnumeration) {
+        this.sizedEnumeration = sizedEnumeration;
+    }
+
+    /**
+     * @return Whether enumeration buffers are sized from BaseRegQueryInfoKey.
+     */
+    public boolean isSizedEnumeration() {
+        return sizedEnumeration;
     }
 
     public boolean doesKeyExist(final String hiveName, final String keyPath) throws IOException {
         try {
-            openKey(hiveName, keyPath);
+            openKey(hiveName, keyPath).close();
         } catch (final RPCException exception) {
             if (isFileNotFound(exception))
                 return false;
@@ -101,74 +151,169 @@ public class RegistryService extends Service {
     }
 
     public RegistryKeyInfo getKeyInfo(final String hiveName, final String keyPath) throws IOException {
-        final byte[] handle = openKey(hiveName, keyPath);
-        final BaseRegQueryInfoKeyRequest request = new BaseRegQueryInfoKeyRequest(handle);
-        final BaseRegQueryInfoKeyResponse response = callExpectSuccess(request, "BaseRegQueryInfoKey");
-        return new RegistryKeyInfo(response.getSubKeys(), response.getMaxSubKeyLen(), response.getMaxClassLen(),
-                response.getValues(), response.getMaxValueNameLen(), response.getMaxValueLen(),
-                response.getSecurityDescriptor(), response.getLastWriteTime());
+        try (final RegistryHandleCache.Lease lease = leaseKey(hiveName, keyPath, MAXIMUM_ALLOWED)) {
+            return queryInfoKey(lease.getHandle());
+        }
     }
 
     public List<RegistryKey> getSubKeys(final String hiveName, final String keyPath) throws IOException {
-        final List<RegistryKey> keyNames = new LinkedList<>();
-        final byte[] handle = openKey(hiveName, keyPath);
-        for (int index = 0; ; index++) {
-            final BaseRegEnumKeyRequest request = new BaseRegEnumKeyRequest(handle, index, MAX_REGISTRY_KEY_NAME_SIZE, MAX_REGISTRY_KEY_CLASS_SIZE);
-            final BaseRegEnumKeyResponse response = call(request);
-            final int returnCode = response.getReturnValue();
-
-            if (ERROR_SUCCESS.is(returnCode)) {
-                keyNames.add(new RegistryKey(
-                        parseRPCUnicodeString(response.getLpNameOut()),
-                        new FileTime(response.getLastWriteTime())));
-            } else if (ERROR_NO_MORE_ITEMS.is(returnCode)) {
-                return Collections.unmodifiableList(new ArrayList<>(keyNames));
-            } else {
-                throw new RPCException("BaseRegEnumKey", returnCode);
-            }
+        try (final RegistryHandleCache.Lease lease = leaseKey(hiveName, keyPath, MAXIMUM_ALLOWED)) {
+            final EnumerationSizes sizes = sizedEnumeration
+                    ? EnumerationSizes.of(queryInfoKey(lease.getHandle())) : EnumerationSizes.maximum();
+            return enumerateSubKeys(lease.getHandle(), sizes);
         }
     }
 
     public List<RegistryValue> getValues(final String hiveName, final String keyPath) throws IOException {
-        final List<RegistryValue> values = new LinkedList<>();
-        final byte[] handle = openKey(hiveName, keyPath);
-        for (int index = 0; ; index++) {
-            final BaseRegEnumValueRequest request = new BaseRegEnumValueRequest(handle, index, MAX_REGISTRY_VALUE_NAME_SIZE, MAX_REGISTRY_VALUE_DATA_SIZE);
-            final BaseRegEnumValueResponse response = call(request);
-            final int returnCode = response.getReturnValue();
-            if (ERROR_SUCCESS.is(returnCode)) {
-                values.add(new RegistryValue(
-                        parseRPCUnicodeString(response.getName()),
-                        RegistryValueType.getRegistryValueType(response.getType()),
-                        response.getData().getArray()));
-            } else if (ERROR_NO_MORE_ITEMS.is(returnCode)) {
-                return Collections.unmodifiableList(new ArrayList<>(values));
-            } else {
-                throw new RPCException("BaseRegEnumValue", returnCode);
-            }
+        try (final RegistryHandleCache.Lease lease = leaseKey(hiveName, keyPath, MAXIMUM_ALLOWED)) {
+            final EnumerationSizes sizes = sizedEnumeration
+                    ? EnumerationSizes.of(queryInfoKey(lease.getHandle())) : EnumerationSizes.maximum();
+            return enumerateValues(lease.getHandle(), sizes);
+        }
+    }
+
+    /**
+     * {@link #getSubKeys(String, String)}, sized from key information already at hand.
+     */
+    List<RegistryKey> getSubKeys(final String hiveName, final String keyPath, final RegistryKeyInfo keyInfo)
+            throws IOException {
+        try (final RegistryHandleCache.Lease lease = leaseKey(hiveName, keyPath, MAXIMUM_ALLOWED)) {
+            return enumerateSubKeys(lease.getHandle(), EnumerationSizes.of(keyInfo));
+        }
+    }
+
+    /**
+     * {@link #getValues(String, String)}, sized from key information already at hand.
+     */
+    List<RegistryValue> getValues(final String hiveName, final String keyPath, final RegistryKeyInfo keyInfo)
+            throws IOException {
+        try (final RegistryHandleCache.Lease lease = leaseKey(hiveName, keyPath, MAXIMUM_ALLOWED)) {
+            return enumerateValues(lease.getHandle(), EnumerationSizes.of(keyInfo));
         }
     }
 
     public RegistryValue getValue(final String hiveName, final String keyPath, final String valueName)
             throws IOException {
         final String canonicalizedValueName = Strings.nullToEmpty(valueName);
-        final byte[] handle = openKey(hiveName, keyPath);
-        final BaseRegQueryValueRequest request = new BaseRegQueryValueRequest(handle, RPCUnicodeString.NullTerminated.of(canonicalizedValueName), MAX_REGISTRY_VALUE_DATA_SIZE);
-        final BaseRegQueryValueResponse response = callExpectSuccess(request, "BaseRegQueryValue");
-        final RPCConformantVaryingByteArray data = response.getData();
-        return new RegistryValue(canonicalizedValueName,
-                RegistryValueType.getRegistryValueType(response.getType()),
-                (data == null ? null : data.getArray()));
+        try (final RegistryHandleCache.Lease lease = leaseKey(hiveName, keyPath, MAXIMUM_ALLOWED)) {
+            final BaseRegQueryValueRequest request = new BaseRegQueryValueRequest(lease.getHandle(), RPCUnicodeString.NullTerminated.of(canonicalizedValueName), MAX_REGISTRY_VALUE_DATA_SIZE);
+            final BaseRegQueryValueResponse response = callExpectSuccess(request, "BaseRegQueryValue");
+            final RPCConformantVaryingByteArray data = response.getData();
+            return new RegistryValue(canonicalizedValueName,
+                    RegistryValueType.getRegistryValueType(response.getType()),
+                    (data == null ? null : data.getArray()));
+        }
+    }
+
+    /**
+     * Read several values of a key with a single BaseRegQueryMultipleValues2 call, rather than a call per value.
+     * The data buffer is first sized from a guess, then, if the server returns ERROR_MORE_DATA, from the size it
+     * reports as required.
+     *
+     * @param hiveName The hive of the key.
+     * @param keyPath The path of the key.
+     * @param valueNames The names of the values, null or empty for the default value.
+     * @return The values, in the order of their names, with null in place of any value that does not exist.
+     * @throws IOException If the key could not be opened or the values could not be read.
+     */
+    public List<RegistryValue> getValues(final String hiveName, final String keyPath, final String... valueNames)
+            throws IOException {
+        final String[] canonicalizedValueNames = new String[valueNames.length];
+        final RPCUnicodeString.NullTerminated[] rpcValueNames = new RPCUnicodeString.NullTerminated[valueNames.length];
+        for (int i = 0; i < valueNames.length; i++) {
+            canonicalizedValueNames[i] = Strings.nullToEmpty(valueNames[i]);
+            rpcValueNames[i] = RPCUnicodeString.NullTerminated.of(canonicalizedValueNames[i]);
+        }
+        if (valueNames.length == 0) {
+            return new ArrayList<>(0);
+        }
+        try (final RegistryHandleCache.Lease lease = leaseKey(hiveName, keyPath, MAXIMUM_ALLOWED)) {
+            final BaseRegQueryMultipleValues2Response response;
+            try {
+                response = queryMultipleValues(lease.getHandle(), rpcValueNames);
+            } catch (final RPCException exception) {
+                if (!isFileNotFound(exception)) {
+                    throw exception;
+                }
+                // The call fails as a whole if any value is missing, so find out which one value by value.
+                return getExistingValues(lease.getHandle(), canonicalizedValueNames);
+            }
+            final List<RegistryValue> values = new ArrayList<>(valueNames.length);
+            for (int i = 0; i < valueNames.length; i++) {
+                values.add(new RegistryValue(canonicalizedValueNames[i],
+                        RegistryValueType.getRegistryValueType(response.getTypes()[i]), response.getData(i)));
+            }
+            return values;
+        }
     }
 
     public byte[] getKeySecurity(final String hiveName, final String keyPath, final int securityDescriptorType)
             throws IOException {
-        final byte[] handle = openKey(hiveName, keyPath, MAXIMUM_ALLOWED | ACCESS_SYSTEM_SECURITY);
-        final int size = getKeyInfo(hiveName, keyPath).getSecurityDescriptor();
-        final BaseRegGetKeySecurityRequest request =
-                new BaseRegGetKeySecurityRequest(handle, securityDescriptorType, size);
-        final BaseRegGetKeySecurityResponse response = callExpectSuccess(request, "BaseRegGetKeySecurity");
-        return response.getpRpcSecurityDescriptorOut().getLpSecurityDescriptor();
+        try (final RegistryHandleCache.Lease lease = leaseKey(hiveName, keyPath,
+                MAXIMUM_ALLOWED | ACCESS_SYSTEM_SECURITY)) {
+            final int size = getKeyInfo(hiveName, keyPath).getSecurityDescriptor();
+            final BaseRegGetKeySecurityRequest request =
+                    new BaseRegGetKeySecurityRequest(lease.getHandle(), securityDescriptorType, size);
+            final BaseRegGetKeySecurityResponse response = callExpectSuccess(request, "BaseRegGetKeySecurity");
+            return response.getpRpcSecurityDescriptorOut().getLpSecurityDescriptor();
+        }
+    }
+
+    /**
+     * Walk a registry tree depth first, without depth limit.
+     *
+     * @see #walk(String, String, int, RegistryWalkOrder, RegistryVisitor)
+     */
+    public void walk(final String hiveName, final String keyPath, final RegistryVisitor visitor) throws IOException {
+        walk(hiveName, keyPath, Integer.MAX_VALUE, RegistryWalkOrder.DEPTH_FIRST, visitor);
+    }
+
+    /**
+     * Walk a registry tree, visiting each key with its information and values. Keys are enumerated one at a time,
+     * and each is opened relative to its parent, so the tree is never held in memory; see {@link RegistryWalkOrder}
+     * for the memory use of each order.
+     *
+     * @param hiveName The hive.
+     * @param keyPath The path of the key to start from, or null or empty for the hive itself.
+     * @param maxDepth The maximum depth of the keys to visit, the starting key being at depth 0.
+     * @param order The order in which to visit keys.
+     * @param visitor The visitor.
+     * @throws IOException If the walk failed, or if the visitor aborted it.
+     */
+    public void walk(final String hiveName, final String keyPath, final int maxDepth, final RegistryWalkOrder order,
+            final RegistryVisitor visitor) throws IOException {
+        if (maxDepth < 0)
+            throw new IllegalArgumentException("Invalid maxDepth: " + maxDepth);
+        if (order == null)
+            throw new IllegalArgumentException("Invalid order: null");
+        if (visitor == null)
+            throw new IllegalArgumentException("Invalid visitor: null");
+        final RegistryHive hive = getHive(hiveName);
+        final String rootKeyPath = Strings.nullToEmpty(keyPath);
+        final RegistryHandleCache.Lease rootLease;
+        try {
+            rootLease = leaseKey(hiveName, rootKeyPath, MAXIMUM_ALLOWED);
+        } catch (final IOException exception) {
+            visitor.visitKeyFailed(rootKeyPath, exception);
+            return;
+        }
+        if (order == RegistryWalkOrder.DEPTH_FIRST) {
+            walkDepthFirst(hive, new WalkFrame(rootKeyPath, rootLease, 0), maxDepth, visitor);
+        } else {
+            walkBreadthFirst(hive, new WalkFrame(rootKeyPath, rootLease, 0), maxDepth, visitor);
+        }
+    }
+
+    /**
+     * Close every cached hive and key handle on the server. Handles still in use by other threads are closed as soon
+     * as they are released; the service refuses any further operation.
+     *
+     * @throws IOException If the transport failed while closing handles.
+     */
+    @Override
+    public void close() throws IOException {
+        handleCache.close();
+        closeEvictedHandles(true);
     }
 
     protected String canonicalize(String keyPath) {
@@ -183,73 +328,502 @@ public class RegistryService extends Service {
         return keyPath;
     }
 
-    protected byte[] openHive(final String hiveName) throws IOException {
+    /**
+     * @return A lease on the handle of the hive, which keeps it open until the lease is closed.
+     */
+    protected RegistryHandle openHive(final String hiveName) throws IOException {
+        return leaseKey(hiveName, null, MAXIMUM_ALLOWED);
+    }
+
+    /**
+     * Open a key relative to the deepest of its ancestors with a cached handle, or else to its hive.
+     *
+     * @return A lease on the handle of the key, which keeps it open until the lease is closed.
+     */
+    protected RegistryHandle openKey(final String hiveName, final String keyPath) throws IOException {
+        return leaseKey(hiveName, keyPath, MAXIMUM_ALLOWED);
+    }
+
+    /**
+     * Open a subkey relative to the handle of its parent, opening and caching the parent first if needed. Walking a
+     * tree this way costs one open of a single path segment per key, e.g. for each {@link RegistryKey} returned by
+     * {@link #getSubKeys(String, String)} of the parent.
+     *
+     * @param hiveName The hive.
+     * @param parentKeyPath The path of the parent key, or null or empty for the hive itself.
+     * @param subKeyName The name of the subkey, a single path segment.
+     * @return A lease on the handle of the subkey, which keeps it open until the lease is closed.
+     */
+    protected RegistryHandle openSubKey(final String hiveName, final String parentKeyPath, final String subKeyName)
+            throws IOException {
+        final String canonicalizedSubKeyName = canonicalize(subKeyName);
+        if (canonicalizedSubKeyName.isEmpty())
+            throw new IllegalArgumentException("Invalid subkey: " + subKeyName);
+        try (final RegistryHandleCache.Lease parentLease = leaseKey(hiveName, parentKeyPath, MAXIMUM_ALLOWED)) {
+            return leaseSubKey(getHive(hiveName), parentKeyPath, parentLease, subKeyName);
+        }
+    }
+
+    private RegistryHandleCache.Lease leaseKey(final String hiveName, final String keyPath, final int desiredAccess)
+            throws IOException {
+        return leaseKey(getHive(hiveName), keyPath, desiredAccess);
+    }
+
+    private RegistryHandleCache.Lease leaseKey(final RegistryHive hive, final String keyPath, final int desiredAccess)
+            throws IOException {
+        closeEvictedHandles(false);
+
+        final String canonicalizedKeyPath = canonicalize(keyPath);
+        if (canonicalizedKeyPath.isEmpty()) {
+            return leaseHive(hive);
+        }
+        return handleCache.acquire(hive, canonicalizedKeyPath, desiredAccess,
+                () -> openFromDeepestAncestor(hive, canonicalizedKeyPath, desiredAccess));
+    }
+
+    private byte[] openFromDeepestAncestor(final RegistryHive hive, final String keyPath, final int desiredAccess)
+            throws IOException {
+        // Servers parse the whole subkey path on every open, so start from as deep as possible.
+        for (int separator = keyPath.lastIndexOf('\\'); separator > 0;
+                separator = keyPath.lastIndexOf('\\', separator - 1)) {
+            try (final RegistryHandleCache.Lease ancestorLease =
+                    handleCache.acquireIfCached(hive, keyPath.substring(0, separator), MAXIMUM_ALLOWED)) {
+                if (ancestorLease != null) {
+                    return openRelativeKey(ancestorLease.getHandle(), keyPath.substring(separator + 1),
+                            desiredAccess);
+                }
+            }
+        }
+        try (final RegistryHandleCache.Lease hiveLease = leaseHive(hive)) {
+            return openRelativeKey(hiveLease.getHandle(), keyPath, desiredAccess);
+        }
+    }
+
+    private byte[] openRelativeKey(final byte[] parentHandle, final String subKeyPath, final int desiredAccess)
+            throws IOException {
+        final BaseRegOpenKey request = new BaseRegOpenKey(parentHandle, RPCUnicodeString.NullTerminated.of(subKeyPath), 0, desiredAccess);
+        final HandleResponse response = callExpectSuccess(request, "BaseRegOpenKey");
+        return response.getHandle();
+    }
+
+    private RegistryHive getHive(final String hiveName) {
         if (hiveName == null)
             throw new IllegalArgumentException("Invalid hive: null");
         final RegistryHive hive = RegistryHive.getRegistryHiveByName(hiveName);
         if (hive == null)
             throw new IllegalArgumentException("Unknown hive: " + hiveName);
-        synchronized (hiveCache) {
-            if (hiveCache.containsKey(hive)) {
-                return hiveCache.get(hive);
+        return hive;
+    }
+
+    private RegistryHandleCache.Lease leaseSubKey(final RegistryHive hive, final String parentKeyPath,
+            final RegistryHandleCache.Lease parentLease, final String subKeyName) throws IOException {
+        closeEvictedHandles(false);
+        final String canonicalizedParentKeyPath = canonicalize(parentKeyPath);
+        final String canonicalizedSubKeyName = canonicalize(subKeyName);
+        final String keyPath = canonicalizedParentKeyPath.isEmpty() ? canonicalizedSubKeyName
+                : canonicalizedParentKeyPath + "\\" + canonicalizedSubKeyName;
+        return handleCache.acquire(hive, keyPath, MAXIMUM_ALLOWED,
+                () -> openRelativeKey(parentLease.getHandle(), canonicalizedSubKeyName, MAXIMUM_ALLOWED));
+    }
+
+    private RegistryHandleCache.Lease leaseHive(final RegistryHive hive) throws IOException {
+        // Hive handles are always opened with MAXIMUM_ALLOWED, and cached under the empty path.
+        return handleCache.acquire(hive, "", MAXIMUM_ALLOWED, () -> {
+            final HandleRequest request = new HandleRequest(hive.getOpNum(), MAXIMUM_ALLOWED);
+            final HandleResponse response = callExpectSuccess(request, hive.getOpName());
+            return response.getHandle();
+        });
+    }
+
+    private void closeEvictedHandles(final boolean all) throws IOException {
+        final List<byte[]> handles = handleCache.drainClosable(all);
+        if (handles.isEmpty()) {
+            return;
+        }
+        // Pipeline the batch rather than waiting a round trip per handle.
+        final List<CompletableFuture<HandleResponse>> futures = new ArrayList<>(handles.size());
+        for (final byte[] handle : handles) {
+            futures.add(callAsync(new BaseRegCloseKey(handle)));
+        }
+        IOException failure = null;
+        for (final CompletableFuture<HandleResponse> future : futures) {
+            try {
+                future.join();
+            } catch (final CompletionException exception) {
+                if (failure == null) {
+                    failure = exception.getCause() instanceof IOException ? (IOException) exception.getCause()
+                            : new IOException(exception.getCause());
+                }
+            }
+        }
+        // Closing evicted handles is best effort, as the server frees them with the association anyway.
+        if (all && failure != null) {
+            throw failure;
+        }
+    }
+
+    private void walkDepthFirst(final RegistryHive hive, final WalkFrame root, final int maxDepth,
+            final RegistryVisitor visitor) throws IOException {
+        final Deque<WalkFrame> stack = new ArrayDeque<>();
+        try {
+            if (!visit(root, maxDepth, visitor, stack)) {
+                return;
+            }
+            while (!stack.isEmpty()) {
+                final WalkFrame parent = stack.peek();
+                final String subKeyName;
+                try {
+                    subKeyName = enumerateSubKey(parent.lease.getHandle(), parent.nextSubKeyIndex++, parent.sizes);
+                } catch (final RPCException exception) {
+                    stack.pop().lease.close();
+                    if (visitor.visitKeyFailed(parent.keyPath, exception) == RegistryVisitResult.TERMINATE) {
+                        return;
+                    }
+                    continue;
+                }
+                if (subKeyName == null) {
+                    stack.pop().lease.close();
+                    continue;
+                }
+                final String keyPath = parent.childPath(subKeyName);
+                final RegistryHandleCache.Lease lease;
+                try {
+                    lease = leaseSubKey(hive, parent.keyPath, parent.lease, subKeyName);
+                } catch (final IOException exception) {
+                    if (visitor.visitKeyFailed(keyPath, exception) == RegistryVisitResult.TERMINATE) {
+                        return;
+                    }
+                    continue;
+                }
+                if (!visit(new WalkFrame(keyPath, lease, parent.depth + 1), maxDepth, visitor, stack)) {
+                    return;
+                }
+            }
+        } finally {
+            for (final WalkFrame frame : stack) {
+                frame.lease.close();
+            }
+        }
+    }
+
+    private void walkBreadthFirst(final RegistryHive hive, final WalkFrame root, final int maxDepth,
+            final RegistryVisitor visitor) throws IOException {
+        final Deque<WalkFrame> keys = new ArrayDeque<>();
+        if (!visit(root, maxDepth, visitor, keys)) {
+            return;
+        }
+        // Only paths are queued, not handles; each key is opened relative to its parent, likely still cached.
+        final Deque<String> keyPaths = new ArrayDeque<>();
+        final Deque<Integer> depths = new ArrayDeque<>();
+        try {
+            for (; ; ) {
+                final WalkFrame parent = keys.poll();
+                if (parent != null) {
+                    try {
+                        for (int index = 0; ; index++) {
+                            final String subKeyName = enumerateSubKey(parent.lease.getHandle(), index, parent.sizes);
+                            if (subKeyName == null) {
+                                break;
+                            }
+                            keyPaths.add(parent.childPath(subKeyName));
+                            depths.add(parent.depth + 1);
+                        }
+                    } catch (final RPCException exception) {
+                        if (visitor.visitKeyFailed(parent.keyPath, exception) == RegistryVisitResult.TERMINATE) {
+                            return;
+                        }
+                    } finally {
+                        parent.lease.close();
+                    }
+                    continue;
+                }
+                final String keyPath = keyPaths.poll();
+                if (keyPath == null) {
+                    return;
+                }
+                final int depth = depths.poll();
+                final RegistryHandleCache.Lease lease;
+                try {
+                    lease = leaseKey(hive, keyPath, MAXIMUM_ALLOWED);
+                } catch (final IOException exception) {
+                    if (visitor.visitKeyFailed(keyPath, exception) == RegistryVisitResult.TERMINATE) {
+                        return;
+                    }
+                    continue;
+                }
+                if (!visit(new WalkFrame(keyPath, lease, depth), maxDepth, visitor, keys)) {
+                    return;
+                }
+            }
+        } finally {
+            for (final WalkFrame frame : keys) {
+                frame.lease.close();
+            }
+        }
+    }
+
+    /**
+     * Visit a key, then queue it for the enumeration of its subkeys unless pruned, or else release it.
+     *
+     * @return false if the walk is to stop.
+     */
+    private boolean visit(final WalkFrame frame, final int maxDepth, final RegistryVisitor visitor,
+            final Deque<WalkFrame> queue) throws IOException {
+        boolean queued = false;
+        try {
+            RegistryVisitResult result;
+            boolean hasSubKeys = false;
+            try {
+                final RegistryKeyInfo keyInfo = queryInfoKey(frame.lease.getHandle());
+                hasSubKeys = keyInfo.getSubKeys() > 0;
+                frame.sizes = EnumerationSizes.of(keyInfo);
+                result = visitor.preVisitKey(frame.keyPath, keyInfo);
+                if (result == RegistryVisitResult.CONTINUE) {
+                    final List<RegistryValue> values = keyInfo.getValues() > 0
+                            ? enumerateValues(frame.lease.getHandle(), frame.sizes) : Collections.emptyList();
+                    result = visitor.visitKey(frame.keyPath, keyInfo, values);
+                }
+            } catch (final RPCException exception) {
+                result = visitor.visitKeyFailed(frame.keyPath, exception);
+                hasSubKeys = false;
+            }
+            if (result == RegistryVisitResult.CONTINUE && hasSubKeys && frame.depth < maxDepth) {
+                queue.push(frame);
+                queued = true;
+            }
+            return result != RegistryVisitResult.TERMINATE;
+        } finally {
+            if (!queued) {
+                frame.lease.close();
+            }
+        }
+    }
+
+    private RegistryKeyInfo queryInfoKey(final byte[] handle) throws IOException {
+        final BaseRegQueryInfoKeyRequest request = new BaseRegQueryInfoKeyRequest(handle);
+        final BaseRegQueryInfoKeyResponse response = callExpectSuccess(request, "BaseRegQueryInfoKey");
+        return new RegistryKeyInfo(response.getSubKeys(), response.getMaxSubKeyLen(), response.getMaxClassLen(),
+                response.getValues(), response.getMaxValueNameLen(), response.getMaxValueLen(),
+                response.getSecurityDescriptor(), response.getLastWriteTime());
+    }
+
+    /**
+     * @return The name of the subkey at the given index, or null if there is none.
+     */
+    private String enumerateSubKey(final byte[] handle, final int index, final EnumerationSizes sizes)
+            throws IOException {
+        final BaseRegEnumKeyResponse response = enumerateKey(handle, index, sizes);
+        return response == null ? null : parseRPCUnicodeString(response.getLpNameOut());
+    }
+
+    private List<RegistryKey> enumerateSubKeys(final byte[] handle, final EnumerationSizes sizes) throws IOException {
+        final List<RegistryKey> keyNames = new ArrayList<>();
+        for (int index = 0; ; index++) {
+            final BaseRegEnumKeyResponse response = enumerateKey(handle, index, sizes);
+            if (response == null) {
+                return Collections.unmodifiableList(keyNames);
+            }
+            keyNames.add(new RegistryKey(
+                    parseRPCUnicodeString(response.getLpNameOut()),
+                    new FileTime(response.getLastWriteTime())));
+        }
+    }
+
+    /**
+     * @return The successful response, or null if there is no subkey at the given index.
+     */
+    private BaseRegEnumKeyResponse enumerateKey(final byte[] handle, final int index, final EnumerationSizes sizes)
+            throws IOException {
+        for (; ; ) {
+            final BaseRegEnumKeyRequest request = new BaseRegEnumKeyRequest(handle, index, sizes.keyNameChars, sizes.keyClassChars);
+            final BaseRegEnumKeyResponse response = call(request);
+            final int returnCode = response.getReturnValue();
+            if (ERROR_SUCCESS.is(returnCode)) {
+                return response;
+            } else if (ERROR_NO_MORE_ITEMS.is(returnCode)) {
+                return null;
+            } else if (!ERROR_MORE_DATA.is(returnCode) || !growSizes(sizes, handle)) {
+                throw new RPCException("BaseRegEnumKey", returnCode);
+            }
+        }
+    }
+
+    private List<RegistryValue> enumerateValues(final byte[] handle, final EnumerationSizes sizes) throws IOException {
+        final List<RegistryValue> values = new ArrayList<>();
+        for (int index = 0; ; index++) {
+            final BaseRegEnumValueRequest request = new BaseRegEnumValueRequest(handle, index, sizes.valueNameChars, sizes.valueDataBytes);
+            final BaseRegEnumValueResponse response = call(request);
+            final int returnCode = response.getReturnValue();
+            if (ERROR_SUCCESS.is(returnCode)) {
+                values.add(new RegistryValue(
+                        parseRPCUnicodeString(response.getName()),
+                        RegistryValueType.getRegistryValueType(response.getType()),
+                        response.getData().getArray()));
+            } else if (ERROR_NO_MORE_ITEMS.is(returnCode)) {
+                return Collections.unmodifiableList(values);
+            } else if (ERROR_MORE_DATA.is(returnCode) && growSizes(sizes, handle)) {
+                // Retry the same index.
+                index--;
             } else {
-                final short opNum = hive.getOpNum();
-                final HandleRequest request = new HandleRequest(opNum, MAXIMUM_ALLOWED);
-                final HandleResponse response = callExpectSuccess(request, hive.getOpName());
-                final byte[] handle = response.getHandle();
-                hiveCache.put(hive, handle);
-                return handle;
+                throw new RPCException("BaseRegEnumValue", returnCode);
             }
         }
     }
 
-    protected byte[] openKey(final String hiveName, final String keyPath) throws IOException {
-        return openKey(hiveName, keyPath, MAXIMUM_ALLOWED);
+    /**
+     * Grow the sizes of an enumeration after ERROR_MORE_DATA: first to the sizes queried anew, in case a name or value
+     * grew since, and then to the maximum sizes.
+     *
+     * @return false if the sizes are already the maximum sizes.
+     */
+    private boolean growSizes(final EnumerationSizes sizes, final byte[] handle) throws IOException {
+        if (sizes.isMaximum()) {
+            return false;
+        }
+        if (!sizes.requeried) {
+            sizes.requeried = true;
+            if (sizes.growTo(EnumerationSizes.of(queryInfoKey(handle)))) {
+                return true;
+            }
+        }
+        sizes.growToMaximum();
+        return true;
     }
 
-    private byte[] openKey(final String hiveName, final String keyPath, int desiredAccess) throws IOException {
-        final String canonicalizedKeyPath = canonicalize(keyPath);
-        if (canonicalizedKeyPath.isEmpty()) {
-            return openHive(hiveName);
+    private BaseRegQueryMultipleValues2Response queryMultipleValues(final byte[] handle,
+            final RPCUnicodeString.NullTerminated[] valueNames) throws IOException {
+        int totalSize = (int) Math.min((long) valueNames.length * MULTIPLE_VALUES_SIZE_HINT,
+                MAX_REGISTRY_VALUE_DATA_SIZE);
+        // The buffer is allocated and sent whole, so never grow it beyond what the values may hold.
+        final long maxTotalSize = Math.min((long) valueNames.length * MAX_REGISTRY_VALUE_DATA_SIZE,
+                Integer.MAX_VALUE);
+        for (int attempt = 0; ; attempt++) {
+            final BaseRegQueryMultipleValues2Request request =
+                    new BaseRegQueryMultipleValues2Request(handle, valueNames, totalSize);
+            final BaseRegQueryMultipleValues2Response response = call(request);
+            final int returnCode = response.getReturnValue();
+            if (ERROR_SUCCESS.is(returnCode)) {
+                if (response.getTypes().length != valueNames.length) {
+                    throw new IOException(String.format("BaseRegQueryMultipleValues2 returned %d of %d values.",
+                            response.getTypes().length, valueNames.length));
+                }
+                return response;
+            }
+            // The values may have grown in the meantime, so allow the required size to change once.
+            if (!ERROR_MORE_DATA.is(returnCode) || attempt > 0 || response.getRequiredSize() <= totalSize) {
+                throw new RPCException("BaseRegQueryMultipleValues2", returnCode);
+            }
+            final long requiredSize = response.getRequiredSize() & 0xFFFFFFFFL;
+            if (requiredSize > maxTotalSize) {
+                throw new IOException(String.format("BaseRegQueryMultipleValues2 required size exceeds %d: %d",
+                        maxTotalSize, requiredSize));
+            }
+            totalSize = (int) requiredSize;
         }
-        synchronized (keyPathCache) {
-            final RegistryHandleKey cachingKey = new RegistryHandleKey(canonicalizedKeyPath, desiredAccess);
-            if (keyPathCache.containsKey(cachingKey)) {
-                return keyPathCache.get(cachingKey);
+    }
+
+    private List<RegistryValue> getExistingValues(final byte[] handle, final String[] valueNames)
+            throws IOException {
+        final List<RegistryValue> values = new ArrayList<>(valueNames.length);
+        for (final String valueName : valueNames) {
+            final BaseRegQueryValueRequest request = new BaseRegQueryValueRequest(handle,
+                    RPCUnicodeString.NullTerminated.of(valueName), MAX_REGISTRY_VALUE_DATA_SIZE);
+            final BaseRegQueryValueResponse response = call(request);
+            if (SystemErrorCode.ERROR_FILE_NOT_FOUND.is(response.getReturnValue())) {
+                values.add(null);
+            } else if (ERROR_SUCCESS.is(response.getReturnValue())) {
+                final RPCConformantVaryingByteArray data = response.getData();
+                values.add(new RegistryValue(valueName, RegistryValueType.getRegistryValueType(response.getType()),
+                        (data == null ? null : data.getArray())));
+            } else {
+                throw new RPCException("BaseRegQueryValue", response.getReturnValue());
             }
-            final byte[] hiveHandle = openHive(hiveName);
-            final BaseRegOpenKey request = new BaseRegOpenKey(hiveHandle, RPCUnicodeString.NullTerminated.of(canonicalizedKeyPath), 0, desiredAccess);
-            final HandleResponse response = callExpectSuccess(request, "BaseRegOpenKey");
-            final byte[] keyHandle = response.getHandle();
-            keyPathCache.put(cachingKey, keyHandle);
-            return keyHandle;
         }
+        return values;
     }
 
     private boolean isFileNotFound(final RPCException exception) {
         return exception != null && exception.getErrorCode() == SystemErrorCode.ERROR_FILE_NOT_FOUND;
     }
 
-    private static class RegistryHandleKey {
-        private final String path;
-        private final int access;
+    /**
+     * A key of a walk, leased until its subkeys are enumerated.
+     */
+    private static class WalkFrame {
+        private final String keyPath;
+        private final RegistryHandleCache.Lease lease;
+        private final int depth;
+        private int nextSubKeyIndex;
+        private EnumerationSizes sizes;
 
-        RegistryHandleKey(final String path, final int access) {
-            this.path = Objects.requireNonNull(path);
-            this.access = access;
+        WalkFrame(final String keyPath, final RegistryHandleCache.Lease lease, final int depth) {
+            this.keyPath = keyPath;
+            this.lease = lease;
+            this.depth = depth;
         }
 
-        @Override
-        public boolean equals(final Object o) {
-            if (!(o instanceof RegistryHandleKey))
-                return false;
-            final RegistryHandleKey other = (RegistryHandleKey) o;
-            return path.equals(other.path) && access == other.access;
+        String childPath(final String subKeyName) {
+            return keyPath.isEmpty() ? subKeyName : keyPath + "\\" + subKeyName;
+        }
+    }
+
+    /**
+     * The buffer sizes of an enumeration, in characters for names and bytes for data. They only ever grow.
+     */
+    private static class EnumerationSizes {
+        private int keyNameChars;
+        private int keyClassChars;
+        private int valueNameChars;
+        private int valueDataBytes;
+        private boolean requeried;
+
+        private EnumerationSizes(final int keyNameChars, final int keyClassChars, final int valueNameChars,
+                final int valueDataBytes) {
+            this.keyNameChars = keyNameChars;
+            this.keyClassChars = keyClassChars;
+            this.valueNameChars = valueNameChars;
+            this.valueDataBytes = valueDataBytes;
+        }
+
+        static EnumerationSizes maximum() {
+            final EnumerationSizes sizes = new EnumerationSizes(0, 0, 0, 0);
+            sizes.growToMaximum();
+            return sizes;
+        }
+
+        static EnumerationSizes of(final RegistryKeyInfo keyInfo) {
+            // Name lengths exclude the terminating null character.
+            return new EnumerationSizes(
+                    Math.min(keyInfo.getMaxSubKeyLen() + 1, MAX_REGISTRY_KEY_NAME_SIZE),
+                    Math.min(keyInfo.getMaxClassLen() + 1, MAX_REGISTRY_KEY_CLASS_SIZE),
+                    Math.min(keyInfo.getMaxValueNameLen() + 1, MAX_REGISTRY_VALUE_NAME_SIZE),
+                    Math.min(keyInfo.getMaxValueLen(), MAX_REGISTRY_VALUE_DATA_SIZE));
+        }
+
+        boolean isMaximum() {
+            return keyNameChars == MAX_REGISTRY_KEY_NAME_SIZE && keyClassChars == MAX_REGISTRY_KEY_CLASS_SIZE
+                    && valueNameChars == MAX_REGISTRY_VALUE_NAME_SIZE
+                    && valueDataBytes == MAX_REGISTRY_VALUE_DATA_SIZE;
+        }
+
+        /**
+         * @return Whether any size grew.
+         */
+        boolean growTo(final EnumerationSizes other) {
+            final boolean grows = other.keyNameChars > keyNameChars || other.keyClassChars > keyClassChars
+                    || other.valueNameChars > valueNameChars || other.valueDataBytes > valueDataBytes;
+            keyNameChars = Math.max(keyNameChars, other.keyNameChars);
+            keyClassChars = Math.max(keyClassChars, other.keyClassChars);
+            valueNameChars = Math.max(valueNameChars, other.valueNameChars);
+            valueDataBytes = Math.max(valueDataBytes, other.valueDataBytes);
+            return grows;
         }
 
-        @Override
-        public int hashCode() {
-            return Objects.hash(path, access);
+        void growToMaximum() {
+            keyNameChars = MAX_REGISTRY_KEY_NAME_SIZE;
+            keyClassChars = MAX_REGISTRY_KEY_CLASS_SIZE;
+            valueNameChars = MAX_REGISTRY_VALUE_NAME_SIZE;
+            valueDataBytes = MAX_REGISTRY_VALUE_DATA_SIZE;
         }
     }
 }
@@ -0,0 +1,67 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.msrrp;
+
+import java.io.IOException;
+import java.util.List;
+import com.rapid7.client.dcerpc.msrrp.dto.RegistryKeyInfo;
+import com.rapid7.client.dcerpc.msrrp.dto.RegistryValue;
+
+/**
+ * Receives the keys of a registry walk, see {@link RegistryService#walk(String, String, int, RegistryWalkOrder,
+ * RegistryVisitor)}. Key paths are relative to the hive, as named by the server.
+ */
+public interface RegistryVisitor {
+    /**
+     * Called for each key before its values are enumerated, to prune the walk cheaply.
+     *
+     * @param keyPath The path of the key.
+     * @param keyInfo The key information.
+     * @return {@link RegistryVisitResult#SKIP_SUBTREE} to skip the values and subkeys of this key.
+     * @throws IOException To abort the walk.
+     */
+    default RegistryVisitResult preVisitKey(final String keyPath, final RegistryKeyInfo keyInfo) throws IOException {
+        return RegistryVisitResult.CONTINUE;
+    }
+
+    /**
+     * Called for each key not pruned by {@link #preVisitKey(String, RegistryKeyInfo)}, before its subkeys.
+     *
+     * @param keyPath The path of the key.
+     * @param keyInfo The key information.
+     * @param values The values of the key.
+     * @return {@link RegistryVisitResult#SKIP_SUBTREE} to skip the subkeys of this key.
+     * @throws IOException To abort the walk.
+     */
+    RegistryVisitResult visitKey(String keyPath, RegistryKeyInfo keyInfo, List<RegistryValue> values)
+            throws IOException;
+
+    /**
+     * Called for each key which could not be opened or read, typically for lack of access, or because it was deleted
+     * during the walk.
+     *
+     * @param keyPath The path of the key.
+     * @param exception The failure.
+     * @return How to continue the walk.
+     * @throws IOException To abort the walk, by default the given exception.
+     */
+    default RegistryVisitResult visitKeyFailed(final String keyPath, final IOException exception) throws IOException {
+        throw exception;
+    }
+}
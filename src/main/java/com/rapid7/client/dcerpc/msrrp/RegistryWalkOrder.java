@@ -0,0 +1,35 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.msrrp;
+
+/**
+ * The order in which a registry walk visits keys.
+ */
+public enum RegistryWalkOrder {
+    /**
+     * Visit every subkey of a key before its siblings. The walk holds one key handle and one enumeration index per
+     * level of depth, so its memory use is independent of the size of the tree.
+     */
+    DEPTH_FIRST,
+    /**
+     * Visit every key of a depth before the keys of the next depth. The walk holds the paths of the keys of the next
+     * depth, so its memory use grows with the width of the tree.
+     */
+    BREADTH_FIRST
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.msrrp.messages;
+
+import java.io.IOException;
+import com.rapid7.client.dcerpc.io.PacketOutput;
+import com.rapid7.client.dcerpc.io.ndr.Alignment;
+import com.rapid7.client.dcerpc.io.ndr.arrays.RPCConformantVaryingByteArray;
+import com.rapid7.client.dcerpc.messages.RequestCall;
+import com.rapid7.client.dcerpc.objects.RPCUnicodeString;
+
+/**
+ * <b>3.1.5.24 BaseRegQueryMultipleValues2 (Opnum 34)</b><br>
+ * <br>
+ * The BaseRegQueryMultipleValues2 method is called by the client. In response, the server returns the type and data
+ * for a list of value names that are associated with the specified registry key.
+ *
+ * <pre>
+ * error_status_t BaseRegQueryMultipleValues2(
+ *    [in] RPC_HKEY hKey,
+ *    [in, size_is(num_vals), length_is(num_vals)] PRVALENT val_listIn,
+ *    [out, size_is(num_vals), length_is(num_vals)] PRVALENT val_listOut,
+ *    [in] DWORD num_vals,
+ *    [in, out, unique, size_is(*ldwTotsize), length_is(*ldwTotsize)] char* lpvalueBuf,
+ *    [in] LPDWORD ldwTotsize,
+ *    [out] LPDWORD ldwRequiredSize
+ * );
+ *
+ * typedef struct _RVALENT {
+ *    [unique] PRRP_UNICODE_STRING ve_valuename;
+ *    DWORD ve_valuelen;
+ *    DWORD ve_valueptr;
+ *    DWORD ve_type;
+ * } RVALENT, *PRVALENT;
+ * </pre>
+ *
+ * hKey: A handle to a key that MUST have been opened previously by using one of the open methods that are specified in
+ * section 3.1.5: {@link OpenClassesRoot}, {@link OpenCurrentUser}, {@link OpenLocalMachine},
+ * {@link OpenPerformanceData}, {@link OpenUsers}, BaseRegCreateKey, {@link BaseRegOpenKey}, {@link OpenCurrentConfig},
+ * {@link OpenPerformanceText}, {@link OpenPerformanceNlsText}.<br>
+ * <br>
+ * val_listIn: A pointer to an array of RVALENT structures, one for each requested value. Only ve_valuename is
+ * meaningful on input.<br>
+ * <br>
+ * num_vals: The number of values in val_listIn.<br>
+ * <br>
+ * lpvalueBuf: A pointer to a buffer of ldwTotsize bytes, which receives the data of every value.<br>
+ * <br>
+ * ldwTotsize: The size of lpvalueBuf, in bytes.<br>
+ * <br>
+ * If lpvalueBuf is too small for the data of every value, the server returns ERROR_MORE_DATA, with the size required
+ * in ldwRequiredSize. Unlike BaseRegQueryMultipleValues, this lets the client size its buffer exactly on a second call.
+ *
+ * @see <a href="https://msdn.microsoft.com/en-us/cc244960">3.1.5.24 BaseRegQueryMultipleValues2 (Opnum 34)</a>
+ */
+public class BaseRegQueryMultipleValues2Request extends RequestCall<BaseRegQueryMultipleValues2Response> {
+    public final static short OP_NUM = 34;
+    private final byte[] hKey;
+    private final RPCUnicodeString.NullTerminated[] valueNames;
+    private final int totalSize;
+
+    /**
+     * @param hKey A handle to a key.
+     * @param valueNames The names of the values.
+     * @param totalSize The size of the buffer for the data of every value, in bytes.
+     */
+    public BaseRegQueryMultipleValues2Request(final byte[] hKey, final RPCUnicodeString.NullTerminated[] valueNames,
+            final int totalSize) {
+        super(OP_NUM);
+        this.hKey = hKey;
+        this.valueNames = valueNames;
+        this.totalSize = totalSize;
+    }
+
+    @Override
+    public BaseRegQueryMultipleValues2Response getResponseObject() {
+        return new BaseRegQueryMultipleValues2Response();
+    }
+
+    @Override
+    public void marshal(final PacketOutput packetOut) throws IOException {
+        // <NDR: fixed array> [in] RPC_HKEY hKey
+        packetOut.write(this.hKey);
+        // <NDR: conformant varying array> [in, size_is(num_vals), length_is(num_vals)] PRVALENT val_listIn
+        // MaximumCount, Offset, ActualCount
+        packetOut.writeInt(this.valueNames.length);
+        packetOut.writeInt(0);
+        packetOut.writeInt(this.valueNames.length);
+        for (final RPCUnicodeString.NullTerminated valueName : this.valueNames) {
+            // <NDR: pointer> [unique] PRRP_UNICODE_STRING ve_valuename
+            packetOut.writeReferentID(valueName);
+            // <NDR: unsigned long> DWORD ve_valuelen, ve_valueptr, ve_type
+            packetOut.writeInt(0);
+            packetOut.writeInt(0);
+            packetOut.writeInt(0);
+        }
+        // Deferred RRP_UNICODE_STRINGs, each followed by its own buffer
+        for (final RPCUnicodeString.NullTerminated valueName : this.valueNames) {
+            if (valueName != null) {
+                packetOut.writeMarshallable(valueName);
+            }
+        }
+        // <NDR: unsigned long> [in] DWORD num_vals
+        packetOut.align(Alignment.FOUR);
+        packetOut.writeInt(this.valueNames.length);
+        // <NDR: pointer[conformant varying array]> [in, out, unique, size_is(*ldwTotsize), length_is(*ldwTotsize)] char* lpvalueBuf
+        // The buffer is sent empty, but in full, as length_is also refers to ldwTotsize.
+        packetOut.writeReferentID();
+        final RPCConformantVaryingByteArray valueBuffer = new RPCConformantVaryingByteArray();
+        valueBuffer.setArray(new byte[this.totalSize]);
+        packetOut.writeMarshallable(valueBuffer);
+        // <NDR: unsigned long> [in] LPDWORD ldwTotsize
+        packetOut.align(Alignment.FOUR);
+        packetOut.writeInt(this.totalSize);
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.msrrp.messages;
+
+import java.io.IOException;
+import java.rmi.UnmarshalException;
+import com.rapid7.client.dcerpc.io.PacketInput;
+import com.rapid7.client.dcerpc.io.ndr.Alignment;
+import com.rapid7.client.dcerpc.io.ndr.arrays.RPCConformantVaryingByteArray;
+import com.rapid7.client.dcerpc.messages.RequestResponse;
+import com.rapid7.client.dcerpc.objects.RPCUnicodeString;
+
+/**
+ * The response of {@link BaseRegQueryMultipleValues2Request}: an RVALENT per requested value, giving the type of the
+ * value and the location of its data in the value buffer, then the value buffer and its required size.
+ */
+public class BaseRegQueryMultipleValues2Response extends RequestResponse {
+    private int[] types;
+    private int[] dataLengths;
+    private int[] dataOffsets;
+    private byte[] valueBuffer;
+    private int requiredSize;
+
+    /**
+     * @return The type of each value, by index.
+     */
+    public int[] getTypes() {
+        return types;
+    }
+
+    /**
+     * @return The length of the data of each value, by index.
+     */
+    public int[] getDataLengths() {
+        return dataLengths;
+    }
+
+    /**
+     * @return The offset of the data of each value in the value buffer, by index.
+     */
+    public int[] getDataOffsets() {
+        return dataOffsets;
+    }
+
+    /**
+     * @return The data of every value, or null if the server returned none.
+     */
+    public byte[] getValueBuffer() {
+        return valueBuffer;
+    }
+
+    /**
+     * @return The size of the value buffer required for the data of every value, in bytes.
+     */
+    public int getRequiredSize() {
+        return requiredSize;
+    }
+
+    /**
+     * @param index The index of a value.
+     * @return A copy of the data of the value.
+     * @throws IOException If the data lies outside of the value buffer.
+     */
+    public byte[] getData(final int index) throws IOException {
+        final int offset = dataOffsets[index];
+        final int length = dataLengths[index];
+        if (valueBuffer == null || offset < 0 || length < 0 || offset > valueBuffer.length - length) {
+            throw new IOException(String.format("Value %d outside of the value buffer: %d+%d", index, offset, length));
+        }
+        final byte[] data = new byte[length];
+        System.arraycopy(valueBuffer, offset, data, 0, length);
+        return data;
+    }
+
+    @Override
+    public void unmarshalResponse(final PacketInput packetIn) throws IOException {
+        // <NDR: conformant varying array> [out, size_is(num_vals), length_is(num_vals)] PRVALENT val_listOut
+        packetIn.align(Alignment.FOUR);
+        packetIn.readIndex("MaximumCount");
+        // Elements before the offset are not sent, and the server always returns the values from the start.
+        final int offset = packetIn.readIndex("Offset");
+        if (offset != 0) {
+            throw new UnmarshalException(String.format("Unexpected Offset of val_listOut: %d", offset));
+        }
+        final int count = packetIn.readIndex("ActualCount");
+        final boolean[] valueNames = new boolean[count];
+        this.dataLengths = new int[count];
+        this.dataOffsets = new int[count];
+        this.types = new int[count];
+        for (int i = 0; i < count; i++) {
+            valueNames[i] = packetIn.readReferentID() != 0;
+            this.dataLengths[i] = packetIn.readInt();
+            this.dataOffsets[i] = packetIn.readInt();
+            this.types[i] = packetIn.readInt();
+        }
+        // Deferred RRP_UNICODE_STRINGs, if the server echoes the names
+        for (int i = 0; i < count; i++) {
+            if (valueNames[i]) {
+                packetIn.readUnmarshallable(new RPCUnicodeString.NullTerminated());
+            }
+        }
+        // <NDR: pointer[conformant varying array]> [in, out, unique, size_is(*ldwTotsize), length_is(*ldwTotsize)] char* lpvalueBuf
+        packetIn.align(Alignment.FOUR);
+        if (packetIn.readReferentID() != 0) {
+            this.valueBuffer = packetIn.readUnmarshallable(new RPCConformantVaryingByteArray()).getArray();
+        } else {
+            this.valueBuffer = null;
+        }
+        // <NDR: unsigned long> [out] LPDWORD ldwRequiredSize
+        packetIn.align(Alignment.FOUR);
+        this.requiredSize = packetIn.readInt();
+    }
+}
@@ -22,6 +22,8 @@
 package com.rapid7.client.dcerpc.service;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import com.rapid7.client.dcerpc.RPCException;
 import com.rapid7.client.dcerpc.dto.ContextHandle;
 import com.rapid7.client.dcerpc.messages.RequestCall;
@@ -35,6 +37,7 @@ import com.rapid7.client.dcerpc.transport.RPCTransport;
 
 public abstract class Service {
     private final RPCTransport transport;
+    private volatile long callTimeoutNanos;
 
     protected Service(final RPCTransport transport) {
         if (transport == null)
@@ -42,10 +45,42 @@ public abstract class Service {
         this.transport = transport;
     }
 
+    /**
+     * Bound every call of this service by the given timeout. A call which times out retires the transport, see
+     * {@link RPCTransport#call(RequestCall, long, TimeUnit)}.
+     *
+     * @param timeout The timeout, or 0 to wait as long as the transport does.
+     * @param unit The unit of the timeout.
+     */
+    public void setCallTimeout(final long timeout, final TimeUnit unit) {
+        if (timeout < 0)
+            throw new IllegalArgumentException("Invalid timeout: " + timeout);
+        callTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * @param unit The unit of the timeout.
+     * @return The timeout of every call of this service, or 0 if calls wait as long as the transport does.
+     */
+    public long getCallTimeout(final TimeUnit unit) {
+        return unit.convert(callTimeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
     protected <R extends RequestResponse> R call(RequestCall<R> request) throws IOException {
+        final long timeoutNanos = callTimeoutNanos;
+        if (timeoutNanos > 0)
+            return transport.call(request, timeoutNanos, TimeUnit.NANOSECONDS);
         return transport.call(request);
     }
 
+    /**
+     * Invoke a call without waiting for its response, to pipeline several calls, see
+     * {@link RPCTransport#callAsync(RequestCall)}. The call timeout does not apply.
+     */
+    protected <R extends RequestResponse> CompletableFuture<R> callAsync(RequestCall<R> request) {
+        return transport.callAsync(request);
+    }
+
     protected <R extends RequestResponse> R callExpectSuccess(RequestCall<R> request, String name) throws IOException {
         return callExpect(request, name, SystemErrorCode.ERROR_SUCCESS);
     }
@@ -0,0 +1,87 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.transport;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A small lock-free free-list of heap {@link ByteBuffer}s, so buffers of a transport's fragment size are reused across
+ * calls instead of being allocated for each one. Buffers of the wrong size (for example, from before a bind changed the
+ * fragment size) are dropped rather than returned.
+ */
+class BufferPool {
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final int maxSize;
+
+    BufferPool(final int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param capacity The required capacity.
+     * @return A cleared buffer with exactly the given capacity.
+     */
+    ByteBuffer acquire(final int capacity) {
+        acquisitions.incrementAndGet();
+        final ByteBuffer buffer = buffers.poll();
+        if (buffer != null) {
+            size.decrementAndGet();
+            if (buffer.capacity() == capacity) {
+                buffer.clear();
+                return buffer;
+            }
+        }
+        misses.incrementAndGet();
+        return ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * @return The number of buffers handed out.
+     */
+    long getAcquisitions() {
+        return acquisitions.get();
+    }
+
+    /**
+     * @return The number of buffers which had to be allocated because no pooled buffer of the right size was free.
+     */
+    long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Return a buffer to the pool. The caller must not use it afterwards.
+     *
+     * @param buffer The buffer, which may be null.
+     */
+    void release(final ByteBuffer buffer) {
+        if (buffer != null && size.incrementAndGet() <= maxSize) {
+            buffers.offer(buffer);
+        } else if (buffer != null) {
+            size.decrementAndGet();
+        }
+    }
+}
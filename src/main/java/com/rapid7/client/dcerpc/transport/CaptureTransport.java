@@ -0,0 +1,160 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import com.rapid7.client.dcerpc.Interface;
+import com.rapid7.client.dcerpc.PDUType;
+import com.rapid7.client.dcerpc.io.Transport;
+
+/**
+ * Records every PDU sent and received through another transport to a {@link PDUCapture}, so the exchange can be
+ * served back by a {@link ReplayTransport}. Binding and calling this transport binds and calls through the
+ * decorated one, which must not be bound itself:
+ *
+ * <pre>
+ * try (final CaptureTransport transport = new CaptureTransport(new SMBTransport(namedPipe),
+ *         new PDUCapture.Writer(new FileOutputStream("winreg.cap")))) {
+ *     transport.bind(Interface.WINREG_V1_0, Interface.NDR_32BIT_V2);
+ *     ...
+ * }
+ * </pre>
+ */
+public class CaptureTransport extends RPCTransport implements Closeable {
+    private final static int CALL_ID_OFFSET = 12;
+    private final static int CONTEXT_ID_OFFSET = 20;
+    private final Transport transport;
+    private final PDUCapture.Writer capture;
+
+    /**
+     * @param transport The transport to capture.
+     * @param capture The capture to write to. It is closed with this transport.
+     */
+    public CaptureTransport(final Transport transport, final PDUCapture.Writer capture) {
+        if (transport == null) {
+            throw new IllegalArgumentException("Invalid Transport: null");
+        }
+        if (capture == null) {
+            throw new IllegalArgumentException("Invalid PDUCapture.Writer: null");
+        }
+        this.transport = transport;
+        this.capture = capture;
+    }
+
+    @Override
+    public int transact(final byte[] packetOut, final byte[] packetIn) throws IOException {
+        return transact(packetOut, 0, packetOut.length, packetIn);
+    }
+
+    @Override
+    public int transact(final byte[] packetOut, final int offset, final int length, final byte[] packetIn)
+            throws IOException {
+        capture(PDUCapture.Direction.OUTBOUND, packetOut, offset, length);
+        final int packetInLength = transport.transact(packetOut, offset, length, packetIn);
+        capture(PDUCapture.Direction.INBOUND, packetIn, 0, packetInLength);
+        return packetInLength;
+    }
+
+    @Override
+    protected int transact(final byte[] packetOut, final int offset, final int length, final byte[] packetIn,
+            final long timeoutNanos) throws IOException {
+        if (!(transport instanceof RPCTransport)) {
+            return transact(packetOut, offset, length, packetIn);
+        }
+        capture(PDUCapture.Direction.OUTBOUND, packetOut, offset, length);
+        final int packetInLength = ((RPCTransport) transport).transact(packetOut, offset, length, packetIn,
+                timeoutNanos);
+        capture(PDUCapture.Direction.INBOUND, packetIn, 0, packetInLength);
+        return packetInLength;
+    }
+
+    @Override
+    public void write(final byte[] packetOut) throws IOException {
+        write(packetOut, 0, packetOut.length);
+    }
+
+    @Override
+    public void write(final byte[] packetOut, final int offset, final int length) throws IOException {
+        capture(PDUCapture.Direction.OUTBOUND, packetOut, offset, length);
+        transport.write(packetOut, offset, length);
+    }
+
+    @Override
+    public int read(final byte[] packetIn) throws IOException {
+        final int packetInLength = transport.read(packetIn);
+        capture(PDUCapture.Direction.INBOUND, packetIn, 0, packetInLength);
+        return packetInLength;
+    }
+
+    @Override
+    protected int read(final byte[] packetIn, final long timeoutNanos) throws IOException {
+        if (!(transport instanceof RPCTransport)) {
+            return read(packetIn);
+        }
+        final int packetInLength = ((RPCTransport) transport).read(packetIn, timeoutNanos);
+        capture(PDUCapture.Direction.INBOUND, packetIn, 0, packetInLength);
+        return packetInLength;
+    }
+
+    @Override
+    protected void cancel() {
+        if (transport instanceof RPCTransport) {
+            ((RPCTransport) transport).cancel();
+        }
+    }
+
+    /**
+     * Close the capture, and the decorated transport if it is {@link Closeable}.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            capture.close();
+        } finally {
+            if (transport instanceof Closeable) {
+                ((Closeable) transport).close();
+            }
+        }
+    }
+
+    private void capture(final PDUCapture.Direction direction, final byte[] pdu, final int offset, final int length)
+            throws IOException {
+        int callID = 0;
+        Interface abstractSyntax = null;
+        if (length >= CONTEXT_ID_OFFSET + 2) {
+            callID = readInt(pdu, offset + CALL_ID_OFFSET);
+            // Requests, responses and faults carry a presentation context identifier.
+            final int pduType = pdu[offset + 2] & 0xFF;
+            if (pduType == PDUType.REQUEST.getValue() || pduType == PDUType.RESPONSE.getValue()
+                    || pduType == PDUType.FAULT.getValue()) {
+                abstractSyntax = getBoundInterface((pdu[offset + CONTEXT_ID_OFFSET] & 0xFF)
+                        | (pdu[offset + CONTEXT_ID_OFFSET + 1] & 0xFF) << 8);
+            }
+        } else if (length >= CALL_ID_OFFSET + 4) {
+            callID = readInt(pdu, offset + CALL_ID_OFFSET);
+        }
+        capture.write(direction, callID, abstractSyntax, pdu, offset, length);
+    }
+
+    static int readInt(final byte[] pdu, final int offset) {
+        return (pdu[offset] & 0xFF) | (pdu[offset + 1] & 0xFF) << 8 | (pdu[offset + 2] & 0xFF) << 16
+                | (pdu[offset + 3] & 0xFF) << 24;
+    }
+}
@@ -0,0 +1,229 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.transport;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongSupplier;
+import com.rapid7.client.dcerpc.Interface;
+
+/**
+ * A capture of the PDUs exchanged on a transport, as written by {@link CaptureTransport} and served back by
+ * {@link ReplayTransport}. The capture file is a header followed by one record per PDU, all big-endian:<br>
+ *
+ * <pre>
+ * byte[8]  magic           "DCERPCAP"
+ * u_int16  version         1
+ * // repeated for every PDU
+ * u_int8   direction       0: sent by the client, 1: received by the client
+ * u_int64  timestamp       nanoseconds since the start of the capture
+ * u_int32  call_id
+ * u_int8   has_interface
+ * byte[16] uuid            if has_interface: the interface of the PDU's presentation context
+ * u_int16  major_version   if has_interface
+ * u_int16  minor_version   if has_interface
+ * u_int32  length
+ * byte[]   pdu             the PDU as sent or received, header included
+ * </pre>
+ */
+public final class PDUCapture {
+    private final static byte[] MAGIC = {'D', 'C', 'E', 'R', 'P', 'C', 'A', 'P'};
+    private final static int VERSION = 1;
+
+    private PDUCapture() {
+    }
+
+    public enum Direction {
+        OUTBOUND,
+        INBOUND
+    }
+
+    /**
+     * Read all records of a capture.
+     *
+     * @param in The capture. It is read to its end but not closed.
+     * @return The records, in the order they were captured.
+     * @throws IOException If the capture is not well formed.
+     */
+    public static List<Record> read(final InputStream in) throws IOException {
+        final DataInputStream dataIn = new DataInputStream(in);
+        final byte[] magic = new byte[MAGIC.length];
+        dataIn.readFully(magic);
+        if (!Arrays.equals(MAGIC, magic)) {
+            throw new IOException("Not a PDU capture.");
+        }
+        final int version = dataIn.readUnsignedShort();
+        if (version != VERSION) {
+            throw new IOException(String.format("Unsupported PDU capture version: %d", version));
+        }
+
+        final List<Record> records = new ArrayList<>();
+        for (; ; ) {
+            final int direction = dataIn.read();
+            if (direction < 0) {
+                return records;
+            }
+            if (direction >= Direction.values().length) {
+                throw new IOException(String.format("Invalid direction: %d", direction));
+            }
+            try {
+                final long timestamp = dataIn.readLong();
+                final int callID = dataIn.readInt();
+                Interface abstractSyntax = null;
+                if (dataIn.readUnsignedByte() != 0) {
+                    final byte[] uuid = new byte[16];
+                    dataIn.readFully(uuid);
+                    abstractSyntax = lookup(uuid, dataIn.readShort(), dataIn.readShort());
+                }
+                final int length = dataIn.readInt();
+                if (length < 0) {
+                    throw new IOException(String.format("Invalid PDU length: %d", length));
+                }
+                final byte[] pdu = new byte[length];
+                dataIn.readFully(pdu);
+                records.add(new Record(Direction.values()[direction], timestamp, callID, abstractSyntax, pdu));
+            } catch (final EOFException exception) {
+                throw new EOFException("Truncated PDU capture.");
+            }
+        }
+    }
+
+    private static Interface lookup(final byte[] uuid, final short majorVersion, final short minorVersion) {
+        for (final Interface candidate : Interface.values()) {
+            if (Arrays.equals(candidate.getUUID(), uuid) && candidate.getMajorVersion() == majorVersion
+                    && candidate.getMinorVersion() == minorVersion) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A captured PDU.
+     */
+    public static final class Record {
+        private final Direction direction;
+        private final long timestamp;
+        private final int callID;
+        private final Interface abstractSyntax;
+        private final byte[] pdu;
+
+        public Record(final Direction direction, final long timestamp, final int callID,
+                final Interface abstractSyntax, final byte[] pdu) {
+            this.direction = direction;
+            this.timestamp = timestamp;
+            this.callID = callID;
+            this.abstractSyntax = abstractSyntax;
+            this.pdu = pdu;
+        }
+
+        public Direction getDirection() {
+            return direction;
+        }
+
+        /**
+         * @return The nanoseconds since the start of the capture.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public int getCallID() {
+            return callID;
+        }
+
+        /**
+         * @return The interface of the PDU's presentation context, or null for binds and unknown interfaces.
+         */
+        public Interface getInterface() {
+            return abstractSyntax;
+        }
+
+        public byte[] getPDU() {
+            return pdu;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Record{direction: %s, timestamp: %d, callID: %d, interface: %s, length: %d}",
+                    direction, timestamp, callID, abstractSyntax == null ? null : abstractSyntax.getName(),
+                    pdu.length);
+        }
+    }
+
+    /**
+     * Writes a capture. This class is thread safe.
+     */
+    public static class Writer implements Closeable {
+        private final DataOutputStream out;
+        private final LongSupplier clock;
+        private final long start;
+
+        /**
+         * @param out The stream to write the capture to. It is owned by this writer from now on.
+         * @throws IOException If the header could not be written.
+         */
+        public Writer(final OutputStream out) throws IOException {
+            this(out, System::nanoTime);
+        }
+
+        Writer(final OutputStream out, final LongSupplier clock) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(out));
+            this.clock = clock;
+            this.start = clock.getAsLong();
+            this.out.write(MAGIC);
+            this.out.writeShort(VERSION);
+        }
+
+        public synchronized void write(final Direction direction, final int callID, final Interface abstractSyntax,
+                final byte[] pdu, final int offset, final int length) throws IOException {
+            out.writeByte(direction.ordinal());
+            out.writeLong(clock.getAsLong() - start);
+            out.writeInt(callID);
+            if (abstractSyntax == null) {
+                out.writeByte(0);
+            } else {
+                out.writeByte(1);
+                out.write(abstractSyntax.getUUID());
+                out.writeShort(abstractSyntax.getMajorVersion());
+                out.writeShort(abstractSyntax.getMinorVersion());
+            }
+            out.writeInt(length);
+            out.write(pdu, offset, length);
+        }
+
+        public synchronized void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            out.close();
+        }
+    }
+}
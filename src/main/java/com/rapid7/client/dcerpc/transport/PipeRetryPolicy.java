@@ -0,0 +1,154 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.transport;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Immutable backoff settings for retrying to open a named pipe whose instances are all busy
+ * (STATUS_PIPE_NOT_AVAILABLE). The n-th retry (0 based) is delayed by <code>initialDelay * multiplier^n</code>, capped
+ * at the maximum delay, of which the jitter fraction is randomized so that many clients backing off from the same
+ * server do not retry in lock step.
+ */
+public final class PipeRetryPolicy {
+    /**
+     * A single retry after three seconds.
+     */
+    public final static PipeRetryPolicy DEFAULT = builder().build();
+
+    private final long initialDelayNanos;
+    private final long maxDelayNanos;
+    private final double multiplier;
+    private final double jitter;
+    private final int maxRetries;
+
+    private PipeRetryPolicy(final Builder builder) {
+        initialDelayNanos = builder.initialDelayNanos;
+        maxDelayNanos = builder.maxDelayNanos;
+        multiplier = builder.multiplier;
+        jitter = builder.jitter;
+        maxRetries = builder.maxRetries;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return The number of retries after the first attempt.
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * @param retry The 0 based retry.
+     * @param random A uniformly distributed random number in [0, 1).
+     * @return The delay before the retry, in nanoseconds.
+     */
+    public long getDelayNanos(final int retry, final double random) {
+        final double delay = Math.min(maxDelayNanos, initialDelayNanos * Math.pow(multiplier, retry));
+        return (long) (delay * (1 - jitter * random));
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "PipeRetryPolicy{initialDelayMs: %d, maxDelayMs: %d, multiplier: %s, jitter: %s, maxRetries: %d}",
+                TimeUnit.NANOSECONDS.toMillis(initialDelayNanos), TimeUnit.NANOSECONDS.toMillis(maxDelayNanos),
+                multiplier, jitter, maxRetries);
+    }
+
+    public static final class Builder {
+        private long initialDelayNanos = TimeUnit.SECONDS.toNanos(3);
+        private long maxDelayNanos = TimeUnit.SECONDS.toNanos(30);
+        private double multiplier = 2;
+        private double jitter = 0;
+        private int maxRetries = 1;
+
+        private Builder() {
+        }
+
+        /**
+         * @param delay The delay before the first retry.
+         * @param unit The unit of the delay.
+         * @return This builder.
+         */
+        public Builder withInitialDelay(final long delay, final TimeUnit unit) {
+            if (delay < 0) {
+                throw new IllegalArgumentException("Invalid initialDelay: " + delay);
+            }
+            this.initialDelayNanos = unit.toNanos(delay);
+            return this;
+        }
+
+        /**
+         * @param delay The upper bound of the delay before a retry.
+         * @param unit The unit of the delay.
+         * @return This builder.
+         */
+        public Builder withMaxDelay(final long delay, final TimeUnit unit) {
+            if (delay < 0) {
+                throw new IllegalArgumentException("Invalid maxDelay: " + delay);
+            }
+            this.maxDelayNanos = unit.toNanos(delay);
+            return this;
+        }
+
+        /**
+         * @param multiplier The factor by which the delay grows with each retry, at least 1.
+         * @return This builder.
+         */
+        public Builder withMultiplier(final double multiplier) {
+            if (!(multiplier >= 1)) {
+                throw new IllegalArgumentException("Invalid multiplier: " + multiplier);
+            }
+            this.multiplier = multiplier;
+            return this;
+        }
+
+        /**
+         * @param jitter The fraction of each delay which is randomized, in [0, 1].
+         * @return This builder.
+         */
+        public Builder withJitter(final double jitter) {
+            if (!(jitter >= 0 && jitter <= 1)) {
+                throw new IllegalArgumentException("Invalid jitter: " + jitter);
+            }
+            this.jitter = jitter;
+            return this;
+        }
+
+        /**
+         * @param maxRetries The retry budget, i.e. the number of retries after the first attempt.
+         * @return This builder.
+         */
+        public Builder withMaxRetries(final int maxRetries) {
+            if (maxRetries < 0) {
+                throw new IllegalArgumentException("Invalid maxRetries: " + maxRetries);
+            }
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        public PipeRetryPolicy build() {
+            return new PipeRetryPolicy(this);
+        }
+    }
+}
@@ -18,122 +18,893 @@
  */
 package com.rapid7.client.dcerpc.transport;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.util.EnumSet;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import org.apache.commons.lang3.mutable.MutableInt;
+import java.util.concurrent.locks.ReentrantLock;
 import com.rapid7.client.dcerpc.Interface;
 import com.rapid7.client.dcerpc.PDUType;
 import com.rapid7.client.dcerpc.PFCFlag;
+import com.rapid7.client.dcerpc.io.ByteBufferPacketInput;
 import com.rapid7.client.dcerpc.io.PacketInput;
 import com.rapid7.client.dcerpc.io.PacketOutput;
 import com.rapid7.client.dcerpc.io.Transport;
 import com.rapid7.client.dcerpc.messages.*;
 import com.rapid7.client.dcerpc.transport.exceptions.RPCFaultException;
+import com.rapid7.client.dcerpc.transport.metrics.RPCMetricsListener;
 
 public abstract class RPCTransport implements Transport {
     protected final static int DEFAULT_MAX_XMIT_FRAG = 16384;
     protected final static int DEFAULT_MAX_RECV_FRAG = 16384;
-    private final AtomicInteger callID = new AtomicInteger();
-    private int maxXmitFrag = DEFAULT_MAX_XMIT_FRAG;
-    private int maxRecvFrag = DEFAULT_MAX_RECV_FRAG;
+    private final static int RESPONSE_HEADER_LENGTH = 24;
+    // Shared by this transport and the views of its presentation contexts.
+    private final Association association;
+    // The presentation context of a view, or -1 to address the default context of the association.
+    private final int viewContextID;
+
+    protected RPCTransport() {
+        association = new Association(this);
+        viewContextID = -1;
+    }
+
+    private RPCTransport(final Association association, final int viewContextID) {
+        this.association = association;
+        this.viewContextID = viewContextID;
+    }
 
     public void bind(final Interface abstractSyntax, final Interface transferSyntax) throws IOException {
-        final BindRequest request = new BindRequest(DEFAULT_MAX_XMIT_FRAG, DEFAULT_MAX_RECV_FRAG, abstractSyntax, transferSyntax);
+        bind(abstractSyntax, transferSyntax, RPCTransportConfig.DEFAULT);
+    }
+
+    /**
+     * Bind to the given interface, proposing the fragment sizes of the given config.
+     *
+     * @param abstractSyntax The interface to bind to.
+     * @param transferSyntax The transfer syntax.
+     * @param config The settings to propose.
+     * @throws IOException If the bind was rejected or failed.
+     */
+    public void bind(final Interface abstractSyntax, final Interface transferSyntax, final RPCTransportConfig config)
+            throws IOException {
+        bind(config, transferSyntax, abstractSyntax);
+    }
+
+    /**
+     * Bind to several interfaces at once, one presentation context each, so a single association serves all of them.
+     * The first interface becomes the default for {@link #call(RequestCall)}; use {@link #forContext(Interface)} to
+     * address the others.
+     *
+     * @param config The settings to propose.
+     * @param transferSyntax The transfer syntax.
+     * @param abstractSyntaxes The interfaces to bind to.
+     * @throws IOException If the bind or the first interface was rejected, or the bind failed. Other rejected
+     * interfaces are not bound, see {@link #isBound(Interface)}.
+     */
+    public void bind(final RPCTransportConfig config, final Interface transferSyntax, final Interface... abstractSyntaxes)
+            throws IOException {
+        if (viewContextID >= 0) {
+            throw new IllegalStateException("The association is already bound.");
+        }
+        final List<PresentationContext> contexts = newContexts(transferSyntax, abstractSyntaxes);
+        final BindRequest request = new BindRequest(config.getMaxXmitFrag(), config.getMaxRecvFrag(), contexts);
+
+        // The server may send up to the proposed max_recv_frag before negotiation completes.
+        setMaxRecvFrag(config.getMaxRecvFrag());
+        final BindResponse response = negotiate(request, "BIND");
+
+        // u_int16 on the wire, and named from the server's point of view.
+        setMaxXmitFrag(response.getMaxRecvFrag() & 0xFFFF);
+        setMaxRecvFrag(response.getMaxXmitFrag() & 0xFFFF);
+    }
+
+    /**
+     * Negotiate a presentation context for another interface on this association with an alter_context PDU, so it can
+     * be called through {@link #forContext(Interface)}. Asynchronous calls must not be outstanding.
+     *
+     * @param abstractSyntax The interface.
+     * @param transferSyntax The transfer syntax.
+     * @throws IOException If the interface was rejected or the alter_context failed.
+     */
+    public void alterContext(final Interface abstractSyntax, final Interface transferSyntax) throws IOException {
+        if (isBound(abstractSyntax)) {
+            return;
+        }
+        final List<PresentationContext> contexts = newContexts(transferSyntax, abstractSyntax);
+        association.sendLock.lock();
+        try {
+            association.receiveLock.lock();
+            try {
+                if (!association.pendingCalls.isEmpty()) {
+                    throw new IllegalStateException("Asynchronous calls are outstanding.");
+                }
+                negotiate(new AlterContextRequest(getMaxXmitFrag(), getMaxRecvFrag(), contexts), "ALTER_CONTEXT");
+            } finally {
+                association.receiveLock.unlock();
+            }
+        } finally {
+            association.sendLock.unlock();
+        }
+    }
+
+    /**
+     * @param abstractSyntax The interface.
+     * @return True iff a presentation context for the interface has been accepted on this association.
+     */
+    public boolean isBound(final Interface abstractSyntax) {
+        return association.contextIDs.containsKey(abstractSyntax);
+    }
+
+    /**
+     * @param abstractSyntax The interface.
+     * @return A view of this transport which addresses calls to the given interface, sharing this association. Pass
+     * it to the service of that interface.
+     * @throws IllegalArgumentException If the interface is not bound on this association.
+     */
+    public RPCTransport forContext(final Interface abstractSyntax) {
+        final Integer contextID = association.contextIDs.get(abstractSyntax);
+        if (contextID == null) {
+            throw new IllegalArgumentException(String.format("%s (%s) is not bound.", abstractSyntax.getName(),
+                    abstractSyntax.getRepr()));
+        }
+        return new ContextTransport(association, contextID);
+    }
+
+    private List<PresentationContext> newContexts(final Interface transferSyntax, final Interface... abstractSyntaxes) {
+        final List<PresentationContext> contexts = new ArrayList<>(abstractSyntaxes.length);
+        for (final Interface abstractSyntax : abstractSyntaxes) {
+            contexts.add(new PresentationContext(association.nextContextID.getAndIncrement(), abstractSyntax,
+                    transferSyntax));
+        }
+        return contexts;
+    }
+
+    private BindResponse negotiate(final BindRequest request, final String name) throws IOException {
         final ByteArrayOutputStream packetOutputStream = new ByteArrayOutputStream();
         final PacketOutput packetOut = new PacketOutput(packetOutputStream);
 
         request.setCallID(getCallID());
-        request.setPFCFlags(EnumSet.of(PFCFlag.FIRST_FRAGMENT, PFCFlag.LAST_FRAGMENT));
         request.marshal(packetOut);
 
-        final byte[] packetInBytes = new byte[getMaxXmitFrag()];
-        final int packetInByteLength = transact(packetOutputStream.toByteArray(), packetInBytes);
-        final ByteArrayInputStream packetInputStream = new ByteArrayInputStream(packetInBytes, 0, packetInByteLength);
-        final PacketInput packetIn = new PacketInput(packetInputStream);
+        final List<PresentationContext> contexts = request.getContexts();
+        final RPCMetricsListener listener = association.metricsListener;
+        final long start = listener == null ? 0 : System.nanoTime();
+        final ByteBuffer packetInBuffer = association.receiveBuffers.acquire(getMaxRecvFrag());
         final BindResponse response = new BindResponse();
-
-        response.unmarshal(packetIn);
-
-        if (!response.isACK()) {
-            throw new IOException(String.format("BIND %s (%s) failed.", abstractSyntax.getName(), abstractSyntax.getRepr()));
+        try {
+            final byte[] packetInBytes = packetInBuffer.array();
+            final int packetInByteLength = association.transport.transact(packetOutputStream.toByteArray(),
+                    packetInBytes);
+            response.unmarshal(new ByteBufferPacketInput(packetInBytes, 0, packetInByteLength));
+        } catch (final IOException | RuntimeException exception) {
+            if (listener != null) {
+                final long latency = System.nanoTime() - start;
+                for (final PresentationContext context : contexts) {
+                    listener.onBind(context.getAbstractSyntax(), false, latency);
+                }
+            }
+            throw exception;
+        } finally {
+            association.receiveBuffers.release(packetInBuffer);
+        }
+        if (listener != null) {
+            final long latency = System.nanoTime() - start;
+            for (int i = 0; i < contexts.size(); i++) {
+                listener.onBind(contexts.get(i).getAbstractSyntax(), response.isACK() && response.isAccepted(i),
+                        latency);
+            }
         }
 
-        setMaxXmitFrag(response.getMaxXmitFrag());
-        setMaxRecvFrag(response.getMaxRecvFrag());
+        final Interface primary = contexts.get(0).getAbstractSyntax();
+        if (!response.isACK() || !response.isAccepted(0)) {
+            throw new IOException(String.format("%s %s (%s) failed.", name, primary.getName(), primary.getRepr()));
+        }
+        for (int i = 0; i < contexts.size(); i++) {
+            if (response.isAccepted(i)) {
+                final PresentationContext context = contexts.get(i);
+                if (association.contextIDs.putIfAbsent(context.getAbstractSyntax(), context.getContextID()) == null) {
+                    association.contextInterfaces.put(context.getContextID(), context.getAbstractSyntax());
+                }
+                if (i == 0 && request.getPDUType() == PDUType.BIND) {
+                    association.defaultContextID = context.getContextID();
+                }
+            }
+        }
+        return response;
     }
 
     public <T extends RequestResponse> T call(final RequestCall<T> call) throws IOException {
-        final ByteArrayOutputStream requestPacketOutputStream = new ByteArrayOutputStream();
-        final PacketOutput requestPacketOut = new PacketOutput(requestPacketOutputStream);
-        final Request request = new Request();
+        return call(call, getContextID());
+    }
 
-        request.setCallID(getCallID());
-        request.setPFCFlags(EnumSet.of(PFCFlag.FIRST_FRAGMENT, PFCFlag.LAST_FRAGMENT));
-        request.setOpNum(call.getOpNum());
-        request.setStub(call.getStub());
-        request.marshal(requestPacketOut);
+    /**
+     * Invoke a call, failing it if its response has not been received within the given timeout, which includes the
+     * time spent waiting for other calls on this transport. A call which times out after its request was sent retires
+     * this transport: its response may still arrive, so the stream can no longer be relied upon. On SMB, the
+     * outstanding read or transaction is cancelled with an SMB2 CANCEL; if the call was queued behind asynchronous
+     * calls, this fails those awaiting their responses too. A retired transport should be closed and replaced.
+     *
+     * @param call The request call.
+     * @param timeout The timeout.
+     * @param unit The unit of the timeout.
+     * @param <T> The response type.
+     * @return The unmarshalled response.
+     * @throws InterruptedByTimeoutException If the timeout expired.
+     * @throws IOException On transport failure or fault, or if this transport is retired.
+     * @see #isRetired()
+     */
+    public <T extends RequestResponse> T call(final RequestCall<T> call, final long timeout, final TimeUnit unit)
+            throws IOException {
+        return call(call, getContextID(), unit.toNanos(timeout));
+    }
 
-        final byte[] packetOutBytes = requestPacketOutputStream.toByteArray();
-        final byte[] packetInBytes = new byte[getMaxXmitFrag()];
-        final MutableInt packetInByteLength = new MutableInt();
+    /**
+     * Report every subsequent bind and call on this transport, and the views of its other interfaces, to the given
+     * listener.
+     *
+     * @param listener The listener, or null to stop reporting. Without a listener, nothing is measured.
+     */
+    public void setMetricsListener(final RPCMetricsListener listener) {
+        association.metricsListener = listener;
+    }
 
-        packetInByteLength.setValue(transact(packetOutBytes, packetInBytes));
+    public RPCMetricsListener getMetricsListener() {
+        return association.metricsListener;
+    }
 
-        final ByteArrayOutputStream responseStubOutputStream = new ByteArrayOutputStream();
+    /**
+     * @param contextID A presentation context identifier.
+     * @return The interface of the given presentation context, or null if it is not bound.
+     */
+    Interface getBoundInterface(final int contextID) {
+        return association.contextInterfaces.get(contextID);
+    }
+
+    /**
+     * @return Whether a call on this transport timed out, failed to marshal after part of its request was sent, or
+     * failed to receive or match a response, leaving it unusable.
+     */
+    public boolean isRetired() {
+        return association.retired;
+    }
+
+    /**
+     * Invoke a call on the given presentation context.
+     *
+     * @param call The request call.
+     * @param contextID The presentation context identifier of the interface.
+     * @param <T> The response type.
+     * @return The unmarshalled response.
+     * @throws IOException On transport failure or fault.
+     */
+    protected <T extends RequestResponse> T call(final RequestCall<T> call, final int contextID) throws IOException {
+        return call(call, contextID, 0);
+    }
+
+    /**
+     * Invoke a call on the given presentation context.
+     *
+     * @param call The request call.
+     * @param contextID The presentation context identifier of the interface.
+     * @param timeoutNanos The timeout in nanoseconds, or 0 to wait as long as the transport does.
+     * @param <T> The response type.
+     * @return The unmarshalled response.
+     * @throws IOException On transport failure or fault, or timeout.
+     */
+    protected <T extends RequestResponse> T call(final RequestCall<T> call, final int contextID,
+            final long timeoutNanos) throws IOException {
+        checkRetired();
+        final long deadline = timeoutNanos > 0 ? System.nanoTime() + timeoutNanos : 0;
+        lock(association.sendLock, deadline);
+        try {
+            // Calls are only registered under the send lock, so pending calls can no longer appear, and the receive
+            // lock is not waited for while a receiver reads for them.
+            if (association.pendingCalls.isEmpty()) {
+                lock(association.receiveLock, deadline);
+                try {
+                    return callSynchronously(call, contextID, deadline);
+                } finally {
+                    association.receiveLock.unlock();
+                }
+            }
+        } finally {
+            association.sendLock.unlock();
+        }
+        // Asynchronous calls are in flight; a transact would consume their responses, so queue behind them instead.
+        // The responses are received by the receiver of the asynchronous calls, so this thread only waits for its own.
+        return awaitCall(callAsync(call, contextID, ForkJoinPool.commonPool()), deadline);
+    }
+
+    /**
+     * Invoke a call without waiting for its response, allowing several calls to be outstanding on this transport at
+     * once. Responses are matched to their calls by call ID, so the server may answer in any order. The response is
+     * unmarshalled on {@link ForkJoinPool#commonPool()}.
+     *
+     * @param call The request call.
+     * @param <T> The response type.
+     * @return A future which completes with the unmarshalled response, or exceptionally on transport failure or fault.
+     */
+    public <T extends RequestResponse> CompletableFuture<T> callAsync(final RequestCall<T> call) {
+        return callAsync(call, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Invoke a call without waiting for its response, allowing several calls to be outstanding on this transport at
+     * once. Responses are matched to their calls by call ID, so the server may answer in any order. A single receiver
+     * reads the responses of every outstanding call, on the executor of the call which started it, and hands each
+     * response to the executor of its own call.
+     *
+     * @param call The request call.
+     * @param executor The executor used to unmarshal the response, and to receive responses if no receiver is
+     * running.
+     * @param <T> The response type.
+     * @return A future which completes with the unmarshalled response, or exceptionally on transport failure or fault.
+     */
+    public <T extends RequestResponse> CompletableFuture<T> callAsync(final RequestCall<T> call, final Executor executor) {
+        return callAsync(call, getContextID(), executor);
+    }
+
+    protected <T extends RequestResponse> CompletableFuture<T> callAsync(final RequestCall<T> call, final int contextID,
+            final Executor executor) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final int callID = getCallID();
+        try {
+            checkRetired();
+            // Register only once sent, so the receiver never waits on a call not yet sent.
+            association.sendLock.lock();
+            try {
+                final RPCMetricsListener listener = association.metricsListener;
+                final long start = listener == null ? 0 : System.nanoTime();
+                final RequestFragmentOutput requestOut = marshalRequest(call, callID, contextID);
+                final ByteBuffer requestBuffer = requestOut.getBuffer();
+                try {
+                    association.transport.write(requestBuffer.array(), 0, requestBuffer.position());
+                } catch (final IOException exception) {
+                    report(listener, contextID, call, requestOut, null, null, exception, start);
+                    throw exception;
+                } finally {
+                    association.sendBuffers.release(requestBuffer);
+                }
+                association.pendingCalls.put(callID,
+                        new PendingCall<>(call, future, executor, contextID, requestOut, listener, start));
+            } finally {
+                association.sendLock.unlock();
+            }
+        } catch (final IOException exception) {
+            future.completeExceptionally(exception);
+            return future;
+        }
+        scheduleReceive(executor);
+        return future;
+    }
+
+    private <T extends RequestResponse> T callSynchronously(final RequestCall<T> call, final int contextID,
+            final long deadline) throws IOException {
+        // Called with both the send and receive locks held.
+        final long transactTimeoutNanos = remainingNanos(deadline);
+        final RPCMetricsListener listener = association.metricsListener;
+        final long start = listener == null ? 0 : System.nanoTime();
+        final int callID = getCallID();
+        final RequestFragmentOutput requestOut = marshalRequest(call, callID, contextID);
+        final ByteBuffer requestBuffer = requestOut.getBuffer();
+        final ResponseStubInputStream stubInputStream = new ResponseStubInputStream();
         final Response response = new Response();
 
-        for (; ; ) {
-            final ByteArrayInputStream packetInputStream = new ByteArrayInputStream(packetInBytes, 0, packetInByteLength.getValue());
-            final PacketInput packetIn = new PacketInput(packetInputStream);
+        T result = null;
+        IOException failure = null;
+        try {
+            // Every fragment gets its own buffer so its stub data can be unmarshalled in place.
+            ByteBuffer packetInBuffer = association.receiveBuffers.acquire(getMaxRecvFrag());
+            int packetInByteLength;
+            try {
+                packetInByteLength = association.transport.transact(requestBuffer.array(), 0, requestBuffer.position(),
+                        packetInBuffer.array(), transactTimeoutNanos);
+            } catch (final IOException exception) {
+                association.receiveBuffers.release(packetInBuffer);
+                throw retireOnTimeout(exception);
+            } finally {
+                association.sendBuffers.release(requestBuffer);
+            }
+
+            for (; ; ) {
+                unmarshalFragment(response, callID, packetInBuffer, packetInByteLength, stubInputStream);
 
-            response.unmarshal(packetIn);
-            responseStubOutputStream.write(response.getStub());
+                final Set<PFCFlag> pfcFlags = response.getPFCFlags();
+                if (pfcFlags.contains(PFCFlag.LAST_FRAGMENT)) {
+                    break;
+                }
 
-            final Set<PFCFlag> pfcFlags = response.getPFCFlags();
-            if (pfcFlags.contains(PFCFlag.LAST_FRAGMENT)) {
-                break;
+                packetInBuffer = association.receiveBuffers.acquire(getMaxRecvFrag());
+                try {
+                    packetInByteLength = association.transport.read(packetInBuffer.array(), remainingNanos(deadline));
+                } catch (final IOException exception) {
+                    association.receiveBuffers.release(packetInBuffer);
+                    throw retireOnTimeout(exception);
+                }
             }
+            result = unmarshalResponse(call, response.getPDUType(), stubInputStream);
+            return result;
+        } catch (final IOException exception) {
+            failure = exception;
+            throw exception;
+        } finally {
+            report(listener, contextID, call, requestOut, stubInputStream, result, failure, start);
+            stubInputStream.release(association.receiveBuffers);
+        }
+    }
+
+    private void report(final RPCMetricsListener listener, final int contextID, final RequestCall<?> call,
+            final RequestFragmentOutput requestOut, final ResponseStubInputStream stubInputStream,
+            final RequestResponse result, final IOException failure, final long start) {
+        if (listener == null) {
+            return;
+        }
+        report(listener, contextID, call.getOpNum(), requestOut.getCount(), requestOut.getFragmentCount(),
+                stubInputStream, result, failure, start);
+    }
 
-            packetInByteLength.setValue(read(packetInBytes));
+    private void report(final RPCMetricsListener listener, final int contextID, final int opNum,
+            final long requestStubBytes, final int requestFragments, final ResponseStubInputStream stubInputStream,
+            final RequestResponse result, final Throwable failure, final long start) {
+        final RPCMetricsListener.Outcome outcome;
+        final int status;
+        if (result != null) {
+            outcome = RPCMetricsListener.Outcome.RESPONSE;
+            status = result.getReturnValue();
+        } else if (failure instanceof RPCFaultException) {
+            outcome = RPCMetricsListener.Outcome.FAULT;
+            status = ((RPCFaultException) failure).getRpcFaultValue();
+        } else {
+            outcome = RPCMetricsListener.Outcome.ERROR;
+            status = 0;
+        }
+        try {
+            listener.onCall(association.contextInterfaces.get(contextID), opNum & 0xFFFF, requestStubBytes,
+                    requestFragments, stubInputStream == null ? 0 : stubInputStream.getLength(),
+                    stubInputStream == null ? 0 : stubInputStream.getFragmentCount(), outcome, status,
+                    System.nanoTime() - start);
+        } catch (final RuntimeException exception) {
+            // A failing listener must not fail the call.
         }
-        final byte[] responseStub = responseStubOutputStream.toByteArray();
-        final ByteArrayInputStream stubInputStream = new ByteArrayInputStream(responseStub);
-        final PacketInput stubIn = new PacketInput(stubInputStream);
+    }
+
+    /**
+     * Unmarshal the header of a received fragment of the given call and append its stub data, in place, to the given
+     * stub stream. The buffer is returned to the receive pool if the fragment is rejected. A fragment of another call
+     * means the stream is out of sync, so this transport is retired.
+     */
+    private void unmarshalFragment(final Response response, final int callID, final ByteBuffer packetInBuffer,
+            final int packetInByteLength, final ResponseStubInputStream stubInputStream) throws IOException {
+        try {
+            unmarshalFragmentHeader(response, packetInBuffer.array(), packetInByteLength);
+            if (response.getCallID() != callID) {
+                association.retired = true;
+                throw new IOException(String.format("Received PDU for call ID %d, expected %d",
+                        response.getCallID(), callID));
+            }
+        } catch (final IOException e) {
+            association.receiveBuffers.release(packetInBuffer);
+            throw e;
+        }
+        stubInputStream.add(packetInBuffer, RESPONSE_HEADER_LENGTH, response.getStubLength());
+    }
+
+    private void unmarshalFragmentHeader(final Response response, final byte[] packetInBytes, final int packetInByteLength)
+            throws IOException {
+        response.unmarshalHeader(new ByteBufferPacketInput(packetInBytes, 0, packetInByteLength));
+        final int fragLength = RESPONSE_HEADER_LENGTH + response.getStubLength();
+        if (fragLength > packetInByteLength) {
+            throw new EOFException(String.format("Fragment truncated: %d < %d", packetInByteLength, fragLength));
+        }
+    }
+
+    /**
+     * Marshal the call's stub into request fragments of at most max_xmit_frag octets. All but the last fragment are
+     * written as they fill; the caller must hold the send lock, send the last fragment (from 0 to the position of the
+     * buffer of the returned output) itself and then release the buffer to {@link Association#sendBuffers}.<br>
+     * <br>
+     * If marshalling fails after a fragment was written, the server is left waiting for the rest of the request, so
+     * this transport is retired.
+     */
+    private RequestFragmentOutput marshalRequest(final RequestCall<?> call, final int callID, final int contextID)
+            throws IOException {
+        final ByteBuffer buffer = association.sendBuffers.acquire(getMaxXmitFrag());
+        RequestFragmentOutput fragmentOut = null;
+        try {
+            fragmentOut = new RequestFragmentOutput(association.transport, callID, contextID, call.getOpNum(), buffer,
+                    getMaxXmitFrag());
+            call.marshal(fragmentOut);
+            fragmentOut.finish();
+            return fragmentOut;
+        } catch (final IOException | RuntimeException exception) {
+            if (fragmentOut != null && fragmentOut.getFragmentCount() > 0) {
+                association.retired = true;
+            }
+            association.sendBuffers.release(buffer);
+            throw exception;
+        }
+    }
+
+    private <T extends RequestResponse> T unmarshalResponse(final RequestCall<T> call, final PDUType pduType,
+            final ResponseStubInputStream stubInputStream) throws IOException {
+        final PacketInput stubIn = stubInputStream.getPacketInput();
         // This is a request call - Expect a Response
-        if (response.getPDUType() != PDUType.RESPONSE) {
+        if (pduType != PDUType.RESPONSE) {
             // PDUType.REJECT is unexpected in connection-oriented calls
             // but maps to the same 32bit fields, so we can catch it with RPCFaultException as well.
-            if (response.getPDUType() == PDUType.FAULT || response.getPDUType() == PDUType.REJECT) {
+            if (pduType == PDUType.FAULT || pduType == PDUType.REJECT) {
                 throw RPCFaultException.read(stubIn);
             }
-            throw new IOException(String.format("Expected PDU %s but got: %s", PDUType.RESPONSE, response.getPDUType()));
+            throw new IOException(String.format("Expected PDU %s but got: %s", PDUType.RESPONSE, pduType));
         }
         final T result = call.getResponseObject();
         result.unmarshal(stubIn);
         return result;
     }
 
+    private void scheduleReceive(final Executor executor) {
+        if (!association.pendingCalls.isEmpty() && association.receiving.compareAndSet(false, true)) {
+            executor.execute(this::receive);
+        }
+    }
+
+    /**
+     * Read PDUs for outstanding asynchronous calls until none remain, routing each fragment to its call by call ID.
+     * Only one receiver runs at a time.
+     */
+    private void receive() {
+        try {
+            final Response response = new Response();
+            for (; ; ) {
+                final ByteBuffer packetInBuffer = association.receiveBuffers.acquire(getMaxRecvFrag());
+                final int packetInByteLength;
+                association.receiveLock.lock();
+                try {
+                    if (association.pendingCalls.isEmpty()) {
+                        association.receiveBuffers.release(packetInBuffer);
+                        break;
+                    }
+                    packetInByteLength = association.transport.read(packetInBuffer.array());
+                } finally {
+                    association.receiveLock.unlock();
+                }
+                final PendingCall<?> pendingCall;
+                try {
+                    unmarshalFragmentHeader(response, packetInBuffer.array(), packetInByteLength);
+                    pendingCall = association.pendingCalls.get(response.getCallID());
+                    if (pendingCall == null) {
+                        throw new IOException(String.format("Received PDU for unknown call ID: %d", response.getCallID()));
+                    }
+                } catch (final IOException | RuntimeException exception) {
+                    association.receiveBuffers.release(packetInBuffer);
+                    throw exception;
+                }
+                pendingCall.stubInputStream.add(packetInBuffer, RESPONSE_HEADER_LENGTH, response.getStubLength());
+                if (response.getPFCFlags().contains(PFCFlag.LAST_FRAGMENT)) {
+                    association.pendingCalls.remove(response.getCallID());
+                    pendingCall.completeOnExecutor(response.getPDUType());
+                }
+            }
+        } catch (final IOException | RuntimeException exception) {
+            // The stream is no longer in a known state, so no outstanding call can be matched reliably, and neither
+            // can any later call.
+            association.retired = true;
+            for (final Integer callID : association.pendingCalls.keySet()) {
+                final PendingCall<?> pendingCall = association.pendingCalls.remove(callID);
+                if (pendingCall != null) {
+                    pendingCall.fail(exception);
+                }
+            }
+        } finally {
+            association.receiving.set(false);
+        }
+        // A call may have been registered after the loop observed no pending calls; receive on its executor.
+        for (final PendingCall<?> pendingCall : association.pendingCalls.values()) {
+            scheduleReceive(pendingCall.executor);
+            break;
+        }
+    }
+
+    private <T> T awaitCall(final CompletableFuture<T> future, final long deadline) throws IOException {
+        if (deadline == 0) {
+            try {
+                return future.join();
+            } catch (final CompletionException exception) {
+                if (exception.getCause() instanceof IOException) {
+                    throw (IOException) exception.getCause();
+                }
+                throw exception;
+            }
+        }
+        try {
+            return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (final TimeoutException exception) {
+            // No further call can be made. Unless the transport can cancel the read the receiver is blocked on, the
+            // response is still received and discarded.
+            association.retired = true;
+            final InterruptedByTimeoutException timeoutException = new InterruptedByTimeoutException();
+            future.completeExceptionally(timeoutException);
+            association.transport.cancel();
+            throw timeoutException;
+        } catch (final InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            final InterruptedIOException interruptedException = new InterruptedIOException();
+            interruptedException.initCause(exception);
+            throw interruptedException;
+        } catch (final ExecutionException exception) {
+            if (exception.getCause() instanceof IOException) {
+                throw (IOException) exception.getCause();
+            }
+            throw new CompletionException(exception.getCause());
+        }
+    }
+
+    /**
+     * Transact with a bound on the time spent waiting for the response. Transports which cannot bound their I/O
+     * ignore the timeout, as does this default implementation.
+     *
+     * @param timeoutNanos The timeout in nanoseconds, or 0 for the default of the transport.
+     * @throws InterruptedByTimeoutException If the timeout expired.
+     */
+    protected int transact(final byte[] packetOut, final int offset, final int length, final byte[] packetIn,
+            final long timeoutNanos) throws IOException {
+        return transact(packetOut, offset, length, packetIn);
+    }
+
+    /**
+     * Read with a bound on the time spent waiting. Transports which cannot bound their I/O ignore the timeout, as does
+     * this default implementation.
+     *
+     * @param timeoutNanos The timeout in nanoseconds, or 0 for the default of the transport.
+     * @throws InterruptedByTimeoutException If the timeout expired.
+     */
+    protected int read(final byte[] packetIn, final long timeoutNanos) throws IOException {
+        return read(packetIn);
+    }
+
+    /**
+     * Cancel the read or transaction outstanding on the underlying transport, if any, failing the thread blocked on
+     * it. Called when a call times out while its response is received on another thread. Transports which cannot
+     * cancel their I/O ignore this, as does this default implementation.
+     */
+    protected void cancel() {
+    }
+
+    private void checkRetired() throws IOException {
+        if (association.retired) {
+            throw new IOException("RPCTransport retired after a timed out or failed call.");
+        }
+    }
+
+    /**
+     * A timed out or interrupted exchange leaves a response outstanding, so the stream is out of sync.
+     */
+    private IOException retireOnTimeout(final IOException exception) {
+        if (exception instanceof InterruptedByTimeoutException || exception instanceof InterruptedIOException) {
+            association.retired = true;
+        }
+        return exception;
+    }
+
+    private static long remainingNanos(final long deadline) throws InterruptedByTimeoutException {
+        if (deadline == 0) {
+            return 0;
+        }
+        final long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            throw new InterruptedByTimeoutException();
+        }
+        return remaining;
+    }
+
+    private static void lock(final ReentrantLock lock, final long deadline) throws IOException {
+        if (deadline == 0) {
+            lock.lock();
+            return;
+        }
+        try {
+            if (!lock.tryLock(remainingNanos(deadline), TimeUnit.NANOSECONDS)) {
+                throw new InterruptedByTimeoutException();
+            }
+        } catch (final InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            final InterruptedIOException interruptedException = new InterruptedIOException();
+            interruptedException.initCause(exception);
+            throw interruptedException;
+        }
+    }
+
+    /**
+     * @return The number of buffers taken from the receive buffer pool, one per received PDU.
+     */
+    public long getReceiveBufferAcquisitions() {
+        return association.receiveBuffers.getAcquisitions();
+    }
+
+    /**
+     * @return The number of receive buffers which had to be allocated because the pool had no free buffer of
+     * {@link #getMaxRecvFrag()} bytes.
+     */
+    public long getReceiveBufferMisses() {
+        return association.receiveBuffers.getMisses();
+    }
+
     protected int getCallID() {
-        return callID.getAndIncrement();
+        return association.callID.getAndIncrement();
     }
 
     protected int getMaxXmitFrag() {
-        return maxXmitFrag;
+        return association.maxXmitFrag;
     }
 
     protected int getMaxRecvFrag() {
-        return maxRecvFrag;
+        return association.maxRecvFrag;
     }
 
     protected void setMaxXmitFrag(final int maxXmitFrag) {
-        this.maxXmitFrag = maxXmitFrag;
+        association.maxXmitFrag = maxXmitFrag;
     }
 
     protected void setMaxRecvFrag(final int maxRecvFrag) {
-        this.maxRecvFrag = maxRecvFrag;
+        association.maxRecvFrag = maxRecvFrag;
+    }
+
+    /**
+     * @return The presentation context addressed by calls which do not name one.
+     */
+    private int getContextID() {
+        return viewContextID < 0 ? association.defaultContextID : viewContextID;
+    }
+
+    private class PendingCall<T extends RequestResponse> {
+        private final RequestCall<T> call;
+        private final CompletableFuture<T> future;
+        // Unmarshals the response.
+        private final Executor executor;
+        private final ResponseStubInputStream stubInputStream = new ResponseStubInputStream();
+        private final int contextID;
+        private final long requestStubBytes;
+        private final int requestFragments;
+        private final RPCMetricsListener listener;
+        private final long start;
+
+        PendingCall(final RequestCall<T> call, final CompletableFuture<T> future, final Executor executor,
+                final int contextID, final RequestFragmentOutput requestOut, final RPCMetricsListener listener,
+                final long start) {
+            this.call = call;
+            this.future = future;
+            this.executor = executor;
+            this.contextID = contextID;
+            this.requestStubBytes = requestOut.getCount();
+            this.requestFragments = requestOut.getFragmentCount();
+            this.listener = listener;
+            this.start = start;
+        }
+
+        void completeOnExecutor(final PDUType pduType) {
+            try {
+                executor.execute(() -> complete(pduType));
+            } catch (final RejectedExecutionException exception) {
+                fail(exception);
+            }
+        }
+
+        void complete(final PDUType pduType) {
+            T result = null;
+            Throwable failure = null;
+            try {
+                result = unmarshalResponse(call, pduType, stubInputStream);
+            } catch (final IOException | RuntimeException exception) {
+                failure = exception;
+            }
+            report(result, failure);
+            stubInputStream.release(association.receiveBuffers);
+            if (failure == null) {
+                future.complete(result);
+            } else {
+                future.completeExceptionally(failure);
+            }
+        }
+
+        void fail(final Throwable exception) {
+            report(null, exception);
+            stubInputStream.release(association.receiveBuffers);
+            future.completeExceptionally(exception);
+        }
+
+        private void report(final T result, final Throwable failure) {
+            if (listener != null) {
+                RPCTransport.this.report(listener, contextID, call.getOpNum(), requestStubBytes, requestFragments,
+                        stubInputStream, result, failure, start);
+            }
+        }
+    }
+
+    /**
+     * The state of an association: the underlying transport, the negotiated presentation contexts and fragment sizes,
+     * and the calls in flight.
+     */
+    private static class Association {
+        // The transport which performs all I/O on the association.
+        private final RPCTransport transport;
+        private final AtomicInteger callID = new AtomicInteger();
+        private int maxXmitFrag = DEFAULT_MAX_XMIT_FRAG;
+        private int maxRecvFrag = DEFAULT_MAX_RECV_FRAG;
+        // Guard each direction of the underlying transport, so PDUs of different calls are never interleaved.
+        // A synchronous call takes both, in this order.
+        private final ReentrantLock sendLock = new ReentrantLock();
+        private final ReentrantLock receiveLock = new ReentrantLock();
+        private final Map<Integer, PendingCall<?>> pendingCalls = new ConcurrentHashMap<>();
+        private final AtomicBoolean receiving = new AtomicBoolean();
+        private final BufferPool sendBuffers = new BufferPool(4);
+        private final BufferPool receiveBuffers = new BufferPool(8);
+        // Presentation context IDs of the interfaces accepted on this association.
+        private final Map<Interface, Integer> contextIDs = new ConcurrentHashMap<>();
+        private final Map<Integer, Interface> contextInterfaces = new ConcurrentHashMap<>();
+        private final AtomicInteger nextContextID = new AtomicInteger();
+        private volatile int defaultContextID;
+        // Set once a call timed out or was partially sent, leaving the stream in an unknown state.
+        private volatile boolean retired;
+        private volatile RPCMetricsListener metricsListener;
+
+        Association(final RPCTransport transport) {
+            this.transport = transport;
+        }
+    }
+
+    /**
+     * A view of an association which addresses all calls to one of its presentation contexts. It shares the state of
+     * the association, so only the I/O of {@link Transport} is delegated to the transport of the association.
+     */
+    private static class ContextTransport extends RPCTransport {
+        private final RPCTransport transport;
+
+        ContextTransport(final Association association, final int contextID) {
+            super(association, contextID);
+            this.transport = association.transport;
+        }
+
+        @Override
+        public int transact(final byte[] packetOut, final byte[] packetIn) throws IOException {
+            return transport.transact(packetOut, packetIn);
+        }
+
+        @Override
+        public int transact(final byte[] packetOut, final int offset, final int length, final byte[] packetIn)
+                throws IOException {
+            return transport.transact(packetOut, offset, length, packetIn);
+        }
+
+        @Override
+        public void write(final byte[] packetOut) throws IOException {
+            transport.write(packetOut);
+        }
+
+        @Override
+        public void write(final byte[] packetOut, final int offset, final int length) throws IOException {
+            transport.write(packetOut, offset, length);
+        }
+
+        @Override
+        public int read(final byte[] packetIn) throws IOException {
+            return transport.read(packetIn);
+        }
     }
 }
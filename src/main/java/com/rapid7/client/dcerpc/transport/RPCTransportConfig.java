@@ -0,0 +1,142 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.transport;
+
+/**
+ * Immutable settings proposed by an {@link RPCTransport} when it binds. The server may lower the fragment sizes in its
+ * bind_ack; the negotiated values are available from the transport afterwards.
+ * <br>
+ * Larger fragments mean fewer PDUs, and so fewer SMB round trips, for large requests and responses.
+ */
+public final class RPCTransportConfig {
+    /**
+     * The smallest fragment size every implementation must accept (MustRecvFragSize).
+     */
+    public final static int MIN_FRAG_SIZE = 1432;
+    /**
+     * The largest fragment size representable in the u_int16 frag_length field.
+     */
+    public final static int MAX_FRAG_SIZE = 0xFFFF;
+    public final static RPCTransportConfig DEFAULT = builder().build();
+
+    private final int maxXmitFrag;
+    private final int maxRecvFrag;
+
+    private RPCTransportConfig(final Builder builder) {
+        maxXmitFrag = builder.maxXmitFrag;
+        maxRecvFrag = builder.maxRecvFrag;
+    }
+
+    /**
+     * @return The proposed maximum size of a fragment sent by the client.
+     */
+    public int getMaxXmitFrag() {
+        return maxXmitFrag;
+    }
+
+    /**
+     * @return The proposed maximum size of a fragment received by the client.
+     */
+    public int getMaxRecvFrag() {
+        return maxRecvFrag;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return A builder initialized with the settings of this config.
+     */
+    public Builder toBuilder() {
+        return new Builder().withMaxXmitFrag(maxXmitFrag).withMaxRecvFrag(maxRecvFrag);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * maxXmitFrag + maxRecvFrag;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        } else if (!(obj instanceof RPCTransportConfig)) {
+            return false;
+        }
+        final RPCTransportConfig other = (RPCTransportConfig) obj;
+        return maxXmitFrag == other.maxXmitFrag && maxRecvFrag == other.maxRecvFrag;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RPCTransportConfig{maxXmitFrag: %d, maxRecvFrag: %d}", maxXmitFrag, maxRecvFrag);
+    }
+
+    public static final class Builder {
+        private int maxXmitFrag = RPCTransport.DEFAULT_MAX_XMIT_FRAG;
+        private int maxRecvFrag = RPCTransport.DEFAULT_MAX_RECV_FRAG;
+
+        private Builder() {
+        }
+
+        /**
+         * @param maxXmitFrag The proposed maximum size of a fragment sent by the client, in bytes.
+         * @return This builder.
+         * @throws IllegalArgumentException If the size is outside of [{@link #MIN_FRAG_SIZE}, {@link #MAX_FRAG_SIZE}].
+         */
+        public Builder withMaxXmitFrag(final int maxXmitFrag) {
+            this.maxXmitFrag = checkFragSize("maxXmitFrag", maxXmitFrag);
+            return this;
+        }
+
+        /**
+         * @param maxRecvFrag The proposed maximum size of a fragment received by the client, in bytes.
+         * @return This builder.
+         * @throws IllegalArgumentException If the size is outside of [{@link #MIN_FRAG_SIZE}, {@link #MAX_FRAG_SIZE}].
+         */
+        public Builder withMaxRecvFrag(final int maxRecvFrag) {
+            this.maxRecvFrag = checkFragSize("maxRecvFrag", maxRecvFrag);
+            return this;
+        }
+
+        /**
+         * Propose the same maximum size for fragments in both directions.
+         *
+         * @param maxFrag The proposed maximum fragment size, in bytes.
+         * @return This builder.
+         * @throws IllegalArgumentException If the size is outside of [{@link #MIN_FRAG_SIZE}, {@link #MAX_FRAG_SIZE}].
+         */
+        public Builder withMaxFrag(final int maxFrag) {
+            return withMaxXmitFrag(maxFrag).withMaxRecvFrag(maxFrag);
+        }
+
+        public RPCTransportConfig build() {
+            return new RPCTransportConfig(this);
+        }
+
+        private static int checkFragSize(final String name, final int fragSize) {
+            if (fragSize < MIN_FRAG_SIZE || fragSize > MAX_FRAG_SIZE) {
+                throw new IllegalArgumentException(String.format("Invalid %s: %d not in [%d, %d]", name, fragSize,
+                        MIN_FRAG_SIZE, MAX_FRAG_SIZE));
+            }
+            return fragSize;
+        }
+    }
+}
@@ -0,0 +1,510 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import com.hierynomus.smbj.session.Session;
+
+/**
+ * A pool of bound transports, keyed by SMB session and {@link SMBTransportFactories}, so that short-lived callers do not
+ * each pay the tree connect, pipe open and bind. Transports are handed out as {@link Lease}s, which return them to the
+ * pool on close.
+ * <br>
+ * Idle transports are closed once they have been idle for longer than the idle timeout. Before an idle transport is
+ * handed out again, its SMB connection is checked, and if it has been idle for longer than the health check idle time,
+ * a cheap call probes its interface, so transports reused in quick succession do not pay for a probe each time. The
+ * number of transports per host, leased and idle, is capped; when the cap is reached, idle transports of the host are
+ * closed to make room, and otherwise callers wait for a lease to be returned.
+ * <br>
+ * This class is thread safe.
+ */
+public class RPCTransportPool implements Closeable {
+    /**
+     * Decides whether an idle transport is still usable, typically with a cheap call on its interface, such as
+     * opening and closing a handle.
+     */
+    @FunctionalInterface
+    public interface HealthCheck {
+        boolean isHealthy(RPCTransport transport);
+    }
+
+    /**
+     * Opens and binds a new transport.
+     */
+    @FunctionalInterface
+    interface Opener {
+        RPCTransport open(Session session, SMBTransportFactories factory) throws IOException;
+    }
+
+    private final int maxPerHost;
+    private final long idleTimeoutNanos;
+    private final long healthCheckIdleNanos;
+    private final long acquireTimeoutNanos;
+    private final HealthCheck healthCheck;
+    private final Opener opener;
+    private final LongSupplier clock;
+    // Guarded by this
+    private final Map<Key, Deque<Idle>> idle = new HashMap<>();
+    private final Map<String, Integer> hostCounts = new HashMap<>();
+    private long nextEviction;
+    private boolean closed;
+
+    private RPCTransportPool(final Builder builder) {
+        maxPerHost = builder.maxPerHost;
+        idleTimeoutNanos = builder.idleTimeoutNanos;
+        healthCheckIdleNanos = builder.healthCheckIdleNanos;
+        acquireTimeoutNanos = builder.acquireTimeoutNanos;
+        healthCheck = builder.healthCheck;
+        opener = builder.opener;
+        clock = builder.clock;
+        nextEviction = clock.getAsLong() + idleTimeoutNanos;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Lease a bound transport for the interface of the given factory, reusing an idle one if possible.
+     *
+     * @param session The authenticated SMB session.
+     * @param factory The factory of the pipe and interface.
+     * @return The lease, to be closed when done.
+     * @throws IOException If a new transport could not be opened, or the host's cap was not freed up in time.
+     */
+    public Lease acquire(final Session session, final SMBTransportFactories factory) throws IOException {
+        final Key key = new Key(session, factory);
+        for (; ; ) {
+            final Idle pooled = takeIdle(key);
+            if (pooled == null) {
+                break;
+            }
+            if (isReusable(key, session, pooled)) {
+                return new Lease(key, pooled.transport);
+            }
+            discard(key, pooled.transport);
+        }
+
+        reserve(key);
+        try {
+            return new Lease(key, opener.open(session, factory));
+        } catch (final IOException | RuntimeException exception) {
+            unreserve(key.host);
+            throw exception;
+        }
+    }
+
+    /**
+     * Close the transports which have been idle for longer than the idle timeout. This is done by acquire as well, at
+     * most once per idle timeout, but may be called periodically to release resources of hosts no longer in use.
+     */
+    public void evictIdle() {
+        final List<RPCTransport> evicted = new ArrayList<>();
+        synchronized (this) {
+            final long now = clock.getAsLong();
+            nextEviction = now + idleTimeoutNanos;
+            for (final Iterator<Map.Entry<Key, Deque<Idle>>> entries = idle.entrySet().iterator(); entries.hasNext(); ) {
+                final Map.Entry<Key, Deque<Idle>> entry = entries.next();
+                // Oldest first
+                final Deque<Idle> transports = entry.getValue();
+                while (!transports.isEmpty() && now - transports.peekLast().since >= idleTimeoutNanos) {
+                    evicted.add(transports.pollLast().transport);
+                    decrement(entry.getKey().host);
+                }
+                if (transports.isEmpty()) {
+                    entries.remove();
+                }
+            }
+            if (!evicted.isEmpty()) {
+                notifyAll();
+            }
+        }
+        closeAll(evicted);
+    }
+
+    /**
+     * @return The number of idle transports.
+     */
+    public synchronized int getIdleCount() {
+        int count = 0;
+        for (final Deque<Idle> transports : idle.values()) {
+            count += transports.size();
+        }
+        return count;
+    }
+
+    /**
+     * @param host The host.
+     * @return The number of transports of the host, leased and idle.
+     */
+    public synchronized int getCount(final String host) {
+        final Integer count = hostCounts.get(normalize(host));
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * Close all idle transports. Transports still leased are closed when their lease is closed.
+     */
+    @Override
+    public void close() {
+        final List<RPCTransport> transports = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            for (final Map.Entry<Key, Deque<Idle>> entry : idle.entrySet()) {
+                for (final Idle pooled : entry.getValue()) {
+                    transports.add(pooled.transport);
+                    decrement(entry.getKey().host);
+                }
+            }
+            idle.clear();
+            notifyAll();
+        }
+        closeAll(transports);
+    }
+
+    private Idle takeIdle(final Key key) {
+        final boolean evictionDue;
+        synchronized (this) {
+            evictionDue = clock.getAsLong() - nextEviction >= 0;
+        }
+        if (evictionDue) {
+            evictIdle();
+        }
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("RPCTransportPool is closed.");
+            }
+            final Deque<Idle> transports = idle.get(key);
+            if (transports == null) {
+                return null;
+            }
+            // Most recently used first, so the least recently used ones can expire.
+            final Idle pooled = transports.pollFirst();
+            if (transports.isEmpty()) {
+                idle.remove(key);
+            }
+            return pooled;
+        }
+    }
+
+    private void reserve(final Key key) throws IOException {
+        RPCTransport evicted = null;
+        synchronized (this) {
+            final long deadline = clock.getAsLong() + acquireTimeoutNanos;
+            while (getCount(key.host) >= maxPerHost) {
+                if (closed) {
+                    throw new IllegalStateException("RPCTransportPool is closed.");
+                }
+                evicted = takeOldestIdle(key.host);
+                if (evicted != null) {
+                    break;
+                }
+                final long remaining = deadline - clock.getAsLong();
+                if (remaining <= 0) {
+                    throw new IOException(String.format("RPCTransportPool exhausted for host %s: %d transports in use.",
+                            key.host, maxPerHost));
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (final InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a transport.");
+                }
+            }
+            // An evicted transport hands its slot over to the new one.
+            if (evicted == null) {
+                hostCounts.merge(key.host, 1, Integer::sum);
+            }
+        }
+        if (evicted != null) {
+            closeQuietly(evicted);
+        }
+    }
+
+    private RPCTransport takeOldestIdle(final String host) {
+        Key oldestKey = null;
+        Idle oldest = null;
+        for (final Map.Entry<Key, Deque<Idle>> entry : idle.entrySet()) {
+            final Idle candidate = entry.getValue().peekLast();
+            if (entry.getKey().host.equals(host) && candidate != null
+                    && (oldest == null || candidate.since - oldest.since < 0)) {
+                oldestKey = entry.getKey();
+                oldest = candidate;
+            }
+        }
+        if (oldest == null) {
+            return null;
+        }
+        final Deque<Idle> transports = idle.get(oldestKey);
+        transports.pollLast();
+        if (transports.isEmpty()) {
+            idle.remove(oldestKey);
+        }
+        return oldest.transport;
+    }
+
+    private synchronized void unreserve(final String host) {
+        decrement(host);
+        notifyAll();
+    }
+
+    private void release(final Key key, final RPCTransport transport) {
+        synchronized (this) {
+            if (!closed) {
+                idle.computeIfAbsent(key, k -> new ArrayDeque<>()).addFirst(new Idle(transport, clock.getAsLong()));
+                notifyAll();
+                return;
+            }
+        }
+        discard(key, transport);
+    }
+
+    private void discard(final Key key, final RPCTransport transport) {
+        unreserve(key.host);
+        closeQuietly(transport);
+    }
+
+    /**
+     * Transports idle for longer than the idle timeout may not have been evicted yet, so they are rejected here.
+     */
+    private boolean isReusable(final Key key, final Session session, final Idle pooled) {
+        final long idleNanos = clock.getAsLong() - pooled.since;
+        if (idleNanos >= idleTimeoutNanos || !session.getConnection().isConnected() || pooled.transport.isRetired()) {
+            return false;
+        }
+        if (idleNanos < healthCheckIdleNanos) {
+            return true;
+        }
+        try {
+            if (healthCheck != null) {
+                return healthCheck.isHealthy(pooled.transport);
+            }
+            key.factory.checkAccess(pooled.transport);
+            return true;
+        } catch (final IOException | RuntimeException exception) {
+            return false;
+        }
+    }
+
+    private void decrement(final String host) {
+        hostCounts.computeIfPresent(host, (h, count) -> count > 1 ? count - 1 : null);
+    }
+
+    private static void closeAll(final List<RPCTransport> transports) {
+        for (final RPCTransport transport : transports) {
+            closeQuietly(transport);
+        }
+    }
+
+    private static void closeQuietly(final RPCTransport transport) {
+        if (transport instanceof Closeable) {
+            try {
+                ((Closeable) transport).close();
+            } catch (final IOException | RuntimeException exception) {
+                // The transport is discarded either way.
+            }
+        }
+    }
+
+    private static String normalize(final String host) {
+        return host.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * A transport leased from the pool. Closing the lease returns the transport to the pool, unless it has been
+     * invalidated, e.g. after a transport failure, in which case it is closed instead.
+     */
+    public final class Lease implements Closeable {
+        private final Key key;
+        private final RPCTransport transport;
+        private boolean closed;
+        private boolean invalid;
+
+        private Lease(final Key key, final RPCTransport transport) {
+            this.key = key;
+            this.transport = transport;
+        }
+
+        public RPCTransport getTransport() {
+            if (closed) {
+                throw new IllegalStateException("Lease is closed.");
+            }
+            return transport;
+        }
+
+        /**
+         * Mark the transport as unusable, so it is closed rather than reused when this lease is closed. Retired
+         * transports are never reused.
+         *
+         * @see RPCTransport#isRetired()
+         */
+        public void invalidate() {
+            invalid = true;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (invalid || transport.isRetired()) {
+                discard(key, transport);
+            } else {
+                release(key, transport);
+            }
+        }
+    }
+
+    public static final class Builder {
+        private int maxPerHost = 8;
+        private long idleTimeoutNanos = TimeUnit.SECONDS.toNanos(60);
+        private long healthCheckIdleNanos = TimeUnit.SECONDS.toNanos(5);
+        private long acquireTimeoutNanos = TimeUnit.SECONDS.toNanos(30);
+        // Null to probe the interface of the factory.
+        private HealthCheck healthCheck;
+        private Opener opener = (session, factory) -> factory.getTransport(session);
+        private LongSupplier clock = System::nanoTime;
+
+        private Builder() {
+        }
+
+        /**
+         * @param maxPerHost The maximum number of transports per host, leased and idle.
+         * @return This builder.
+         */
+        public Builder withMaxPerHost(final int maxPerHost) {
+            if (maxPerHost < 1) {
+                throw new IllegalArgumentException("Invalid maxPerHost: " + maxPerHost);
+            }
+            this.maxPerHost = maxPerHost;
+            return this;
+        }
+
+        /**
+         * @param timeout How long a transport may stay idle before it is closed.
+         * @param unit The unit of the timeout.
+         * @return This builder.
+         */
+        public Builder withIdleTimeout(final long timeout, final TimeUnit unit) {
+            this.idleTimeoutNanos = unit.toNanos(timeout);
+            return this;
+        }
+
+        /**
+         * @param idleTime How long a transport must have been idle for the {@link HealthCheck} to run before it is
+         * leased again; transports idle for less are only checked for a connected SMB session. 0 checks every time.
+         * @param unit The unit of the idle time.
+         * @return This builder.
+         */
+        public Builder withHealthCheckIdleTime(final long idleTime, final TimeUnit unit) {
+            if (idleTime < 0) {
+                throw new IllegalArgumentException("Invalid health check idle time: " + idleTime);
+            }
+            this.healthCheckIdleNanos = unit.toNanos(idleTime);
+            return this;
+        }
+
+        /**
+         * @param timeout How long {@link #acquire(Session, SMBTransportFactories)} waits for the cap of a host.
+         * @param unit The unit of the timeout.
+         * @return This builder.
+         */
+        public Builder withAcquireTimeout(final long timeout, final TimeUnit unit) {
+            this.acquireTimeoutNanos = unit.toNanos(timeout);
+            return this;
+        }
+
+        /**
+         * @param healthCheck The check run on a transport which has been idle for longer than the health check idle
+         * time, before it is leased again. By default, the root handle of the interface of the transport's factory is
+         * opened and closed (srvsvc queries IPC$ instead).
+         * @return This builder.
+         */
+        public Builder withHealthCheck(final HealthCheck healthCheck) {
+            if (healthCheck == null) {
+                throw new IllegalArgumentException("Invalid HealthCheck: null");
+            }
+            this.healthCheck = healthCheck;
+            return this;
+        }
+
+        Builder withOpener(final Opener opener) {
+            this.opener = opener;
+            return this;
+        }
+
+        Builder withClock(final LongSupplier clock) {
+            this.clock = clock;
+            return this;
+        }
+
+        public RPCTransportPool build() {
+            return new RPCTransportPool(this);
+        }
+    }
+
+    private static final class Key {
+        private final Session session;
+        private final SMBTransportFactories factory;
+        private final String host;
+
+        Key(final Session session, final SMBTransportFactories factory) {
+            this.session = session;
+            this.factory = factory;
+            this.host = normalize(session.getConnection().getRemoteHostname());
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(session) + factory.hashCode();
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return session == other.session && factory == other.factory;
+        }
+    }
+
+    private static final class Idle {
+        private final RPCTransport transport;
+        private final long since;
+
+        Idle(final RPCTransport transport, final long since) {
+            this.transport = transport;
+            this.since = since;
+        }
+    }
+}
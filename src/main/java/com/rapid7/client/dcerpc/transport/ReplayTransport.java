@@ -0,0 +1,172 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.transport;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import com.rapid7.client.dcerpc.PDUType;
+
+/**
+ * Serves a {@link PDUCapture} back without a network: each PDU the client sends is checked against the next PDU sent
+ * in the capture, and each PDU it reads is the next PDU received in the capture. The client must therefore make the
+ * same calls, in the same order, as when the capture was taken, starting with the bind.
+ * <br>
+ * Call IDs of replayed PDUs are rewritten to those of the client. In real time mode, each received PDU is delayed as
+ * long after the preceding sent PDU as it was in the capture, so slow responses are reproduced as well.
+ */
+public class ReplayTransport extends RPCTransport {
+    private final static int CALL_ID_OFFSET = 12;
+    private final static int OP_NUM_OFFSET = 22;
+    private final List<PDUCapture.Record> records;
+    private final boolean realTime;
+    // Guarded by this
+    private final Map<Integer, Integer> callIDs = new HashMap<>();
+    private int next;
+    private long lastOutboundTimestamp;
+    private long lastOutboundNanos;
+
+    /**
+     * @param records The captured records.
+     * @param realTime Whether to reproduce the captured response times.
+     */
+    public ReplayTransport(final List<PDUCapture.Record> records, final boolean realTime) {
+        this.records = new ArrayList<>(records);
+        this.realTime = realTime;
+    }
+
+    /**
+     * @param in The capture. It is read to its end but not closed.
+     * @param realTime Whether to reproduce the captured response times.
+     * @return A transport replaying the capture.
+     * @throws IOException If the capture is not well formed.
+     */
+    public static ReplayTransport open(final InputStream in, final boolean realTime) throws IOException {
+        return new ReplayTransport(PDUCapture.read(in), realTime);
+    }
+
+    @Override
+    public int transact(final byte[] packetOut, final byte[] packetIn) throws IOException {
+        return transact(packetOut, 0, packetOut.length, packetIn);
+    }
+
+    @Override
+    public int transact(final byte[] packetOut, final int offset, final int length, final byte[] packetIn)
+            throws IOException {
+        write(packetOut, offset, length);
+        return read(packetIn);
+    }
+
+    @Override
+    public void write(final byte[] packetOut) throws IOException {
+        write(packetOut, 0, packetOut.length);
+    }
+
+    @Override
+    public synchronized void write(final byte[] packetOut, final int offset, final int length) throws IOException {
+        final PDUCapture.Record record = nextRecord(PDUCapture.Direction.OUTBOUND);
+        final byte[] captured = record.getPDU();
+        if (!matches(packetOut, offset, length, captured)) {
+            throw new IOException(String.format("Replay diverged at record %d: sent PDU does not match %s.", next,
+                    record));
+        }
+        if (length >= CALL_ID_OFFSET + 4) {
+            callIDs.put(record.getCallID(), CaptureTransport.readInt(packetOut, offset + CALL_ID_OFFSET));
+        }
+        next++;
+        lastOutboundTimestamp = record.getTimestamp();
+        lastOutboundNanos = System.nanoTime();
+    }
+
+    @Override
+    public synchronized int read(final byte[] packetIn) throws IOException {
+        final PDUCapture.Record record = nextRecord(PDUCapture.Direction.INBOUND);
+        final byte[] pdu = record.getPDU();
+        if (pdu.length > packetIn.length) {
+            throw new IOException(String.format("Fragment exceeds max_recv_frag: %d > %d", pdu.length,
+                    packetIn.length));
+        }
+        if (realTime) {
+            delay(record.getTimestamp() - lastOutboundTimestamp - (System.nanoTime() - lastOutboundNanos));
+        }
+        System.arraycopy(pdu, 0, packetIn, 0, pdu.length);
+        final Integer callID = callIDs.get(record.getCallID());
+        if (callID != null && pdu.length >= CALL_ID_OFFSET + 4) {
+            for (int i = 0; i < 4; i++) {
+                packetIn[CALL_ID_OFFSET + i] = (byte) (callID >>> 8 * i);
+            }
+        }
+        next++;
+        return pdu.length;
+    }
+
+    /**
+     * @return Whether every captured PDU has been replayed.
+     */
+    public synchronized boolean isComplete() {
+        return next == records.size();
+    }
+
+    private PDUCapture.Record nextRecord(final PDUCapture.Direction direction) throws IOException {
+        if (next >= records.size()) {
+            throw new EOFException("End of capture.");
+        }
+        final PDUCapture.Record record = records.get(next);
+        if (record.getDirection() != direction) {
+            throw new IOException(String.format("Replay diverged at record %d: expected a PDU %s, but got %s.", next,
+                    direction == PDUCapture.Direction.OUTBOUND ? "sent" : "received", record));
+        }
+        return record;
+    }
+
+    /**
+     * Compare the PDU type and, for requests, the operation number. Everything else, such as handles and call IDs,
+     * may legitimately differ from the capture.
+     */
+    private static boolean matches(final byte[] packetOut, final int offset, final int length, final byte[] captured) {
+        if (length < 3 || captured.length < 3 || packetOut[offset + 2] != captured[2]) {
+            return false;
+        } else if (packetOut[offset + 2] != PDUType.REQUEST.getValue()) {
+            return true;
+        }
+        return length >= OP_NUM_OFFSET + 2 && captured.length >= OP_NUM_OFFSET + 2
+                && packetOut[offset + OP_NUM_OFFSET] == captured[OP_NUM_OFFSET]
+                && packetOut[offset + OP_NUM_OFFSET + 1] == captured[OP_NUM_OFFSET + 1];
+    }
+
+    private static void delay(final long nanos) throws InterruptedIOException {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (final InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            final InterruptedIOException interruptedException = new InterruptedIOException();
+            interruptedException.initCause(exception);
+            throw interruptedException;
+        }
+    }
+}
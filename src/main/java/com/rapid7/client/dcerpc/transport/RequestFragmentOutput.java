@@ -0,0 +1,111 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import com.rapid7.client.dcerpc.PFCFlag;
+import com.rapid7.client.dcerpc.io.ByteBufferPacketOutput;
+import com.rapid7.client.dcerpc.io.Transport;
+import com.rapid7.client.dcerpc.messages.Request;
+
+/**
+ * Marshals a request stub straight into a fragment buffer, behind 24 reserved octets for the request header, and
+ * splits it into request PDUs no larger than the negotiated max_xmit_frag. The header of each fragment is patched in
+ * once its stub length is known. Every fragment but the last is written to the {@link Transport} as soon as it is
+ * full; the last is left in the buffer by {@link #finish()} so the caller can choose how to send it (for example, with
+ * a transact).<br>
+ * <br>
+ * The stub data of every fragment but the last is a multiple of 8 octets, so NDR alignment is preserved across
+ * fragment boundaries.
+ */
+class RequestFragmentOutput extends ByteBufferPacketOutput {
+    final static int REQUEST_HEADER_LENGTH = 24;
+    private final Transport transport;
+    private final Request request = new Request();
+    private boolean first = true;
+    private int fragmentCount;
+
+    /**
+     * @param buffer A buffer of at least max_xmit_frag octets.
+     */
+    RequestFragmentOutput(final Transport transport, final int callID, final int contextID, final short opNum,
+            final ByteBuffer buffer, final int maxXmitFrag) {
+        super(reserve(buffer, maxXmitFrag));
+        this.transport = transport;
+        request.setCallID(callID);
+        request.setContextID((short) contextID);
+        request.setOpNum(opNum);
+    }
+
+    /**
+     * Patch the header of the last fragment. Afterwards, the buffer holds the last fragment from position 0 to its
+     * position.
+     *
+     * @throws IOException On marshalling failure.
+     */
+    void finish() throws IOException {
+        patchHeader(true);
+    }
+
+    /**
+     * @return The number of fragments patched so far, including the last once {@link #finish()} has been called.
+     */
+    int getFragmentCount() {
+        return fragmentCount;
+    }
+
+    @Override
+    protected void overflow() throws IOException {
+        patchHeader(false);
+        transport.write(getBuffer().array(), getBuffer().arrayOffset(), getBuffer().position());
+        discard();
+    }
+
+    private void patchHeader(final boolean last) throws IOException {
+        final EnumSet<PFCFlag> pfcFlags = EnumSet.noneOf(PFCFlag.class);
+        if (first) {
+            pfcFlags.add(PFCFlag.FIRST_FRAGMENT);
+        }
+        if (last) {
+            pfcFlags.add(PFCFlag.LAST_FRAGMENT);
+        }
+        request.setPFCFlags(pfcFlags);
+
+        final ByteBuffer header = getBuffer().duplicate();
+        header.position(0);
+        final int stubLength = getBuffer().position() - REQUEST_HEADER_LENGTH;
+        // While streaming, the remaining stub length is only known for the last fragment.
+        request.marshalHeader(new ByteBufferPacketOutput(header), stubLength, last ? stubLength : 0);
+        first = false;
+        fragmentCount++;
+    }
+
+    private static ByteBuffer reserve(final ByteBuffer buffer, final int maxXmitFrag) {
+        final int maxStubLength = (maxXmitFrag - REQUEST_HEADER_LENGTH) & ~7;
+        if (maxStubLength <= 0) {
+            throw new IllegalArgumentException("Invalid max_xmit_frag: " + maxXmitFrag);
+        }
+        buffer.clear();
+        buffer.limit(REQUEST_HEADER_LENGTH + maxStubLength);
+        buffer.position(REQUEST_HEADER_LENGTH);
+        return buffer;
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.transport;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import com.rapid7.client.dcerpc.io.ByteBufferPacketInput;
+import com.rapid7.client.dcerpc.io.PacketInput;
+
+/**
+ * Presents the stub data of a fragmented response as one contiguous stream, without copying it out of the buffers the
+ * fragments were received into. Each fragment contributes a slice of its receive buffer.
+ */
+class ResponseStubInputStream extends InputStream {
+    private final List<ByteBuffer> buffers = new ArrayList<>(1);
+    private final List<int[]> slices = new ArrayList<>(1);
+    private int slice;
+    private int position;
+    private int limit;
+
+    /**
+     * Append the stub data of the next fragment. The buffer must not be modified until the stream has been consumed.
+     *
+     * @param buffer The heap buffer the fragment was received into.
+     * @param offset The offset of the stub data within the buffer.
+     * @param length The length of the stub data.
+     */
+    void add(final ByteBuffer buffer, final int offset, final int length) {
+        buffers.add(buffer);
+        slices.add(new int[]{offset, offset + length});
+        if (buffers.size() == 1) {
+            position = offset;
+            limit = offset + length;
+        }
+    }
+
+    /**
+     * @return A {@link PacketInput} over the stub data. A stub received in a single fragment is decoded straight from
+     * its buffer; otherwise the fragments are read through this stream.
+     */
+    PacketInput getPacketInput() {
+        if (slices.size() == 1) {
+            final int[] only = slices.get(0);
+            return new ByteBufferPacketInput(buffers.get(0).array(), only[0], only[1] - only[0]);
+        }
+        return new PacketInput(this);
+    }
+
+    /**
+     * @return The number of fragments added.
+     */
+    int getFragmentCount() {
+        return slices.size();
+    }
+
+    /**
+     * @return The total length of the stub data added.
+     */
+    long getLength() {
+        long length = 0;
+        for (final int[] slice : slices) {
+            length += slice[1] - slice[0];
+        }
+        return length;
+    }
+
+    /**
+     * Return the fragment buffers to the pool they were acquired from. The stream must not be read afterwards.
+     *
+     * @param pool The pool.
+     */
+    void release(final BufferPool pool) {
+        for (final ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+        buffers.clear();
+        slices.clear();
+    }
+
+    @Override
+    public int read() {
+        if (!advance()) {
+            return -1;
+        }
+        return buffers.get(slice).array()[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) {
+        if (len == 0) {
+            return 0;
+        }
+        int read = 0;
+        while (read < len && advance()) {
+            final int length = Math.min(len - read, limit - position);
+            System.arraycopy(buffers.get(slice).array(), position, b, off + read, length);
+            position += length;
+            read += length;
+        }
+        return read == 0 ? -1 : read;
+    }
+
+    @Override
+    public long skip(final long n) {
+        long skipped = 0;
+        while (skipped < n && advance()) {
+            final int length = (int) Math.min(n - skipped, limit - position);
+            position += length;
+            skipped += length;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        long available = limit - position;
+        for (int i = slice + 1; i < slices.size(); i++) {
+            available += slices.get(i)[1] - slices.get(i)[0];
+        }
+        return (int) Math.min(available, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Move to the next non-empty slice if the current one is exhausted.
+     *
+     * @return False if there is no more data.
+     */
+    private boolean advance() {
+        while (position == limit) {
+            if (slice + 1 >= slices.size()) {
+                return false;
+            }
+            slice++;
+            position = slices.get(slice)[0];
+            limit = slices.get(slice)[1];
+        }
+        return true;
+    }
+}
@@ -18,10 +18,13 @@
  */
 package com.rapid7.client.dcerpc.transport;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
 import com.rapid7.helper.smbj.share.NamedPipe;
 
-public class SMBTransport extends RPCTransport {
+public class SMBTransport extends RPCTransport implements Closeable {
     private final NamedPipe namedPipe;
 
     public SMBTransport(final NamedPipe namedPipe) {
@@ -30,9 +33,26 @@ public class SMBTransport extends RPCTransport {
 
     @Override
     public int transact(final byte[] packetOut, final byte[] packetIn) throws IOException {
-        final byte[] packetInBytes = namedPipe.transact(packetOut);
-        System.arraycopy(packetInBytes, 0, packetIn, 0, packetInBytes.length);
-        return packetInBytes.length;
+        return namedPipe.transact(packetOut, 0, packetOut.length, packetIn, 0, packetIn.length);
+    }
+
+    @Override
+    public int transact(final byte[] packetOut, final int offset, final int length, final byte[] packetIn)
+            throws IOException {
+        return namedPipe.transact(packetOut, offset, length, packetIn, 0, packetIn.length);
+    }
+
+    /**
+     * On timeout, the outstanding SMB2 request is cancelled with an SMB2 CANCEL.
+     */
+    @Override
+    protected int transact(final byte[] packetOut, final int offset, final int length, final byte[] packetIn,
+            final long timeoutNanos) throws IOException {
+        if (timeoutNanos <= 0) {
+            return transact(packetOut, offset, length, packetIn);
+        }
+        return namedPipe.transact(packetOut, offset, length, ByteBuffer.wrap(packetIn), timeoutNanos,
+                TimeUnit.NANOSECONDS);
     }
 
     @Override
@@ -40,10 +60,40 @@ public class SMBTransport extends RPCTransport {
         namedPipe.write(packetOut);
     }
 
+    @Override
+    public void write(final byte[] packetOut, final int offset, final int length) throws IOException {
+        namedPipe.write(packetOut, offset, length);
+    }
+
     @Override
     public int read(final byte[] packetIn) throws IOException {
-        final byte[] packetInBytes = namedPipe.read();
-        System.arraycopy(packetInBytes, 0, packetIn, 0, packetInBytes.length);
-        return packetInBytes.length;
+        return namedPipe.read(packetIn, 0, packetIn.length);
+    }
+
+    /**
+     * On timeout, the outstanding SMB2 request is cancelled with an SMB2 CANCEL.
+     */
+    @Override
+    protected int read(final byte[] packetIn, final long timeoutNanos) throws IOException {
+        if (timeoutNanos <= 0) {
+            return read(packetIn);
+        }
+        return namedPipe.read(ByteBuffer.wrap(packetIn), timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Cancel the outstanding SMB2 read or IOCTL of the named pipe with an SMB2 CANCEL.
+     */
+    @Override
+    protected void cancel() {
+        namedPipe.cancel();
+    }
+
+    /**
+     * Close the named pipe.
+     */
+    @Override
+    public void close() {
+        namedPipe.close();
     }
 }
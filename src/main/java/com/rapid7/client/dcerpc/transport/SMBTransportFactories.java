@@ -18,84 +18,348 @@
  */
 package com.rapid7.client.dcerpc.transport;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import com.hierynomus.mserref.NtStatus;
 import com.hierynomus.protocol.transport.TransportException;
-import com.hierynomus.smbj.common.SMBException;
 import com.hierynomus.smbj.session.Session;
 import com.hierynomus.smbj.share.PipeShare;
 import com.hierynomus.smbj.share.Share;
 import com.rapid7.client.dcerpc.Interface;
+import com.rapid7.client.dcerpc.epm.EndpointCache;
+import com.rapid7.client.dcerpc.mslsad.LocalSecurityAuthorityService;
+import com.rapid7.client.dcerpc.msrrp.RegistryService;
+import com.rapid7.client.dcerpc.mssamr.SecurityAccountManagerService;
+import com.rapid7.client.dcerpc.mssrvs.ServerService;
+import com.rapid7.client.dcerpc.msvcctl.ServiceControlManagerService;
 import com.rapid7.helper.smbj.io.SMB2Exception;
 import com.rapid7.helper.smbj.share.NamedPipe;
 
 public enum SMBTransportFactories {
-    WINREG("winreg", Interface.WINREG_V1_0, Interface.NDR_32BIT_V2),
-    SRVSVC("srvsvc", Interface.SRVSVC_V3_0, Interface.NDR_32BIT_V2),
-    LSASVC("lsarpc", Interface.LSASVC_V0_0, Interface.NDR_32BIT_V2),
-    SAMSVC("samr", Interface.SAMSVC_V1_0, Interface.NDR_32BIT_V2),
-    BROWSER_SRVSVC("browser", Interface.SRVSVC_V3_0, Interface.NDR_32BIT_V2),
-    SVCCTL("svcctl", Interface.SVCCTL_V2_0, Interface.NDR_32BIT_V2);
-
-    private final static int STATUS_PIPE_NOT_AVAILABLE_BACKOFF_TIME_MS = 3000;
-    private final static int STATUS_PIPE_NOT_AVAILABLE_RETRIES = 1;
+    WINREG("winreg", Interface.WINREG_V1_0, Interface.NDR_32BIT_V2, transport -> {
+        try (final RegistryService service = new RegistryService(transport)) {
+            service.doesKeyExist("HKLM", null);
+        }
+    }),
+    SRVSVC("srvsvc", Interface.SRVSVC_V3_0, Interface.NDR_32BIT_V2,
+            transport -> new ServerService(transport).getShare0("IPC$")),
+    LSASVC("lsarpc", Interface.LSASVC_V0_0, Interface.NDR_32BIT_V2, transport -> {
+        final LocalSecurityAuthorityService service = new LocalSecurityAuthorityService(transport);
+        service.closePolicyHandle(service.openPolicyHandle());
+    }),
+    SAMSVC("samr", Interface.SAMSVC_V1_0, Interface.NDR_32BIT_V2, transport -> {
+        final SecurityAccountManagerService service = new SecurityAccountManagerService(transport);
+        service.closeHandle(service.openServer());
+    }),
+    BROWSER_SRVSVC("browser", Interface.SRVSVC_V3_0, Interface.NDR_32BIT_V2,
+            transport -> new ServerService(transport).getShare0("IPC$")),
+    SVCCTL("svcctl", Interface.SVCCTL_V2_0, Interface.NDR_32BIT_V2, transport -> {
+        final ServiceControlManagerService service = new ServiceControlManagerService(transport);
+        service.closeServiceManagerHandle(service.openServiceManagerHandle());
+    });
+
+    /**
+     * A cheap call which succeeds only if the caller may use the interface, e.g. opening and closing its root handle
+     * with the access its service asks for.
+     */
+    @FunctionalInterface
+    private interface Probe {
+        void probe(RPCTransport transport) throws IOException;
+    }
+
+    private final static int TCP_CONNECT_TIMEOUT_MS = 5000;
     private final String name;
     private final Interface abstractSyntax;
     private final Interface transferSyntax;
+    private final Probe probe;
 
-    private SMBTransportFactories(final String path, final Interface abstractSyntax, final Interface transferSyntax) {
+    private SMBTransportFactories(final String path, final Interface abstractSyntax, final Interface transferSyntax,
+            final Probe probe) {
         name = path;
         this.abstractSyntax = abstractSyntax;
         this.transferSyntax = transferSyntax;
+        this.probe = probe;
     }
 
     public RPCTransport getTransport(final Session session) throws IOException {
-        final Share share = session.connectShare("IPC$");
-        if (share instanceof PipeShare) {
-            final PipeShare pipeShare = (PipeShare) share;
-            final NamedPipe namedPipe = openAndHandleStatusPipeNotAvailable(session, pipeShare);
-            final SMBTransport transport = new SMBTransport(namedPipe);
+        return getTransport(session, RPCTransportConfig.DEFAULT);
+    }
+
+    /**
+     * Open the named pipe of this factory and bind to its interface, proposing the given settings.
+     *
+     * @param session The authenticated SMB session.
+     * @param config The settings to propose.
+     * @return The bound transport.
+     * @throws IOException If the pipe could not be opened or the bind failed.
+     */
+    public RPCTransport getTransport(final Session session, final RPCTransportConfig config) throws IOException {
+        return getTransport(session, config, PipeRetryPolicy.DEFAULT);
+    }
+
+    /**
+     * Open the named pipe of this factory and bind to its interface, proposing the given settings.
+     *
+     * @param session The authenticated SMB session.
+     * @param config The settings to propose.
+     * @param retryPolicy The backoff used when all instances of the named pipe are busy (STATUS_PIPE_NOT_AVAILABLE).
+     * @return The bound transport.
+     * @throws IOException If the pipe could not be opened or the bind failed.
+     */
+    public RPCTransport getTransport(final Session session, final RPCTransportConfig config,
+            final PipeRetryPolicy retryPolicy) throws IOException {
+        return open(session, config, retryPolicy, abstractSyntax);
+    }
+
+    /**
+     * Open the named pipe of this factory and bind to its interface and the given additional interfaces in a single
+     * bind, so one pipe serves all of them. The server must host the additional interfaces behind the same pipe, e.g.
+     * samr behind lsarpc. Address them with {@link RPCTransport#forContext(Interface)}; additional interfaces rejected
+     * by the server are not bound, see {@link RPCTransport#isBound(Interface)}.
+     *
+     * @param session The authenticated SMB session.
+     * @param config The settings to propose.
+     * @param additionalSyntaxes The additional interfaces to bind to.
+     * @return The bound transport, whose default interface is the one of this factory.
+     * @throws IOException If the pipe could not be opened or the bind failed.
+     */
+    public RPCTransport getTransport(final Session session, final RPCTransportConfig config,
+            final Interface... additionalSyntaxes) throws IOException {
+        final Interface[] abstractSyntaxes = new Interface[1 + additionalSyntaxes.length];
+        abstractSyntaxes[0] = abstractSyntax;
+        System.arraycopy(additionalSyntaxes, 0, abstractSyntaxes, 1, additionalSyntaxes.length);
+        return open(session, config, PipeRetryPolicy.DEFAULT, abstractSyntaxes);
+    }
+
+    /**
+     * Open the named pipe of this factory and bind to its interface without blocking the caller while the pipe is
+     * busy. Each attempt, which blocks on the tree connect, pipe open and bind, runs on the executor; when all
+     * instances of the pipe are busy (STATUS_PIPE_NOT_AVAILABLE), the scheduler waits out the backoff of
+     * {@link PipeRetryPolicy#DEFAULT} and hands the next attempt to the executor, so no thread is held while backing
+     * off. The scheduler never runs an attempt, so a shared scheduler with a single thread can serve many hosts; the
+     * executor should be sized for the number of attempts expected to block at once.
+     *
+     * @param session The authenticated SMB session.
+     * @param executor The executor to open the pipe and bind on.
+     * @param scheduler The scheduler which times the backoff.
+     * @return A future of the bound transport. It fails with the exception of the last attempt, to which the
+     * exceptions of the previous attempts are added as suppressed.
+     */
+    public CompletableFuture<RPCTransport> getTransportAsync(final Session session, final Executor executor,
+            final ScheduledExecutorService scheduler) {
+        return getTransportAsync(session, executor, scheduler, RPCTransportConfig.DEFAULT, PipeRetryPolicy.DEFAULT);
+    }
+
+    /**
+     * Like {@link #getTransportAsync(Session, Executor, ScheduledExecutorService)}, proposing the given settings and
+     * backing off according to the given retry policy.
+     *
+     * @param session The authenticated SMB session.
+     * @param executor The executor to open the pipe and bind on.
+     * @param scheduler The scheduler which times the backoff.
+     * @param config The settings to propose.
+     * @param retryPolicy The backoff used when all instances of the named pipe are busy.
+     * @return A future of the bound transport.
+     */
+    public CompletableFuture<RPCTransport> getTransportAsync(final Session session, final Executor executor,
+            final ScheduledExecutorService scheduler, final RPCTransportConfig config,
+            final PipeRetryPolicy retryPolicy) {
+        final AtomicReference<PipeShare> pipeShare = new AtomicReference<>();
+        return ScheduledRetry.submit(scheduler, executor, retryPolicy, () -> {
+            if (pipeShare.get() == null) {
+                pipeShare.set(connectPipeShare(session));
+            }
+            return bind(openPipe(session, pipeShare.get()), config, abstractSyntax);
+        }, SMBTransportFactories::isPipeNotAvailable, SMBTransportFactories::closeQuietly);
+    }
+
+    /**
+     * Open the named pipes of several factories and bind to their interfaces. The pipes are opened in a single round
+     * trip rather than one per pipe, which matters for short jobs against high-latency hosts that need several
+     * interfaces. The IPC$ tree connect is shared by all pipes of the session.
+     * <br>
+     * Busy pipes (STATUS_PIPE_NOT_AVAILABLE) are not retried; use {@link #getTransport(Session)} for those.
+     *
+     * @param session The authenticated SMB session.
+     * @param factories The factories of the pipes.
+     * @return The bound transports, in the order of factories.
+     * @throws IOException If any of the pipes could not be opened or bound, in which case all are closed.
+     */
+    public static List<RPCTransport> getTransports(final Session session, final SMBTransportFactories... factories)
+            throws IOException {
+        return getTransports(session, RPCTransportConfig.DEFAULT, factories);
+    }
+
+    /**
+     * Like {@link #getTransports(Session, SMBTransportFactories...)}, proposing the given settings for every bind.
+     *
+     * @param session The authenticated SMB session.
+     * @param config The settings to propose.
+     * @param factories The factories of the pipes.
+     * @return The bound transports, in the order of factories.
+     * @throws IOException If any of the pipes could not be opened or bound, in which case all are closed.
+     */
+    public static List<RPCTransport> getTransports(final Session session, final RPCTransportConfig config,
+            final SMBTransportFactories... factories) throws IOException {
+        if (factories.length == 0) {
+            return new ArrayList<>(0);
+        }
+        final String[] names = new String[factories.length];
+        for (int i = 0; i < factories.length; i++) {
+            names[i] = factories[i].name;
+        }
+        final List<NamedPipe> namedPipes = NamedPipe.open(session, factories[0].connectPipeShare(session), names);
+
+        final List<RPCTransport> transports = new ArrayList<>(factories.length);
+        try {
+            for (int i = 0; i < factories.length; i++) {
+                final SMBTransportFactories factory = factories[i];
+                transports.add(factory.bind(namedPipes.get(i), config, factory.abstractSyntax));
+            }
+        } catch (final IOException | RuntimeException exception) {
+            // The transport which failed to bind has closed its pipe already.
+            for (int i = transports.size() + 1; i < namedPipes.size(); i++) {
+                namedPipes.get(i).close();
+            }
+            for (final RPCTransport transport : transports) {
+                closeQuietly(transport);
+            }
+            throw exception;
+        }
+        return transports;
+    }
+
+    /**
+     * Connect over ncacn_ip_tcp if the endpoint mapper of the session's host knows a TCP endpoint for this
+     * factory's interface, otherwise fall back to the named pipe.
+     * <br>
+     * The TCP transport does not authenticate. Servers usually accept an unauthenticated bind, even to interfaces
+     * such as lsarpc, samr or svcctl, and then deny the calls themselves. So once bound, a probe opens and closes the
+     * root handle of the interface, with the access its service asks for (for srvsvc, which has none, it queries
+     * IPC$). An endpoint which cannot be connected or bound to, or whose probe fails, is rejected in the cache, so
+     * the following connections go straight to the named pipe.
+     *
+     * @param session The authenticated SMB session, also used for the fallback.
+     * @param endpoints The endpoint cache.
+     * @return The bound transport. A {@link TCPTransport} must be closed by the caller.
+     * @throws IOException If the named pipe fallback failed.
+     */
+    public RPCTransport getTransport(final Session session, final EndpointCache endpoints) throws IOException {
+        final String host = session.getConnection().getRemoteHostname();
+        final int port = endpoints.getTCPPort(host, abstractSyntax, transferSyntax);
+        if (port > 0) {
+            try {
+                return connectTCP(new InetSocketAddress(host, port));
+            } catch (final IOException exception) {
+                endpoints.reject(host, abstractSyntax);
+            }
+        }
+        return getTransport(session);
+    }
 
-            transport.bind(abstractSyntax, transferSyntax);
+    /**
+     * Probe the interface of this factory on the given transport with a cheap call.
+     *
+     * @throws IOException If the call failed or was denied.
+     */
+    void checkAccess(final RPCTransport transport) throws IOException {
+        probe.probe(transport);
+    }
 
-            return transport;
+    private TCPTransport connectTCP(final InetSocketAddress address) throws IOException {
+        final TCPTransport transport = TCPTransport.connect(address, TCP_CONNECT_TIMEOUT_MS, abstractSyntax,
+                transferSyntax, RPCTransportConfig.DEFAULT);
+        try {
+            checkAccess(transport);
+        } catch (final IOException | RuntimeException exception) {
+            closeQuietly(transport);
+            throw exception;
         }
+        return transport;
+    }
 
+    private RPCTransport open(final Session session, final RPCTransportConfig config,
+            final PipeRetryPolicy retryPolicy, final Interface... abstractSyntaxes) throws IOException {
+        final PipeShare pipeShare = connectPipeShare(session);
+        final NamedPipe namedPipe = openAndHandleStatusPipeNotAvailable(session, pipeShare, retryPolicy);
+        return bind(namedPipe, config, abstractSyntaxes);
+    }
+
+    private PipeShare connectPipeShare(final Session session) throws IOException {
+        final Share share = session.connectShare("IPC$");
+        if (share instanceof PipeShare) {
+            return (PipeShare) share;
+        }
         throw new TransportException(String.format("%s not a named pipe.", name));
     }
 
-    private NamedPipe openAndHandleStatusPipeNotAvailable(final Session session, final PipeShare pipeShare)
-            throws IOException {
+    private RPCTransport bind(final NamedPipe namedPipe, final RPCTransportConfig config,
+            final Interface... abstractSyntaxes) throws IOException {
+        final SMBTransport transport = new SMBTransport(namedPipe);
+        try {
+            transport.bind(config, transferSyntax, abstractSyntaxes);
+        } catch (final IOException | RuntimeException exception) {
+            closeQuietly(transport);
+            throw exception;
+        }
+        return transport;
+    }
+
+    private NamedPipe openAndHandleStatusPipeNotAvailable(final Session session, final PipeShare pipeShare,
+            final PipeRetryPolicy retryPolicy) throws IOException {
         final Queue<SMB2Exception> exceptions = new LinkedList<>();
-        for (int retry = -1; retry < STATUS_PIPE_NOT_AVAILABLE_RETRIES; retry++) {
+        for (int retry = 0; ; retry++) {
             try {
                 return openPipe(session, pipeShare);
             } catch (final SMB2Exception exception) {
+                if (!isPipeNotAvailable(exception) || retry >= retryPolicy.getMaxRetries()) {
+                    for (final SMB2Exception previous : exceptions) {
+                        exception.addSuppressed(previous);
+                    }
+                    throw exception;
+                }
                 exceptions.offer(exception);
-                switch (exception.getStatus()) {
-                    case STATUS_PIPE_NOT_AVAILABLE:
-                        // XXX: There has to be a better way to do this...
-                        try {
-                            Thread.sleep(STATUS_PIPE_NOT_AVAILABLE_BACKOFF_TIME_MS);
-                        } catch (final InterruptedException iException) {
-                            final InterruptedIOException iioException = new InterruptedIOException();
-                            iioException.addSuppressed(iException);
-                            throw iioException;
-                        }
-                        break;
-                    default:
-                        throw exceptions.poll();
+                try {
+                    TimeUnit.NANOSECONDS.sleep(retryPolicy.getDelayNanos(retry,
+                            ThreadLocalRandom.current().nextDouble()));
+                } catch (final InterruptedException iException) {
+                    Thread.currentThread().interrupt();
+                    final InterruptedIOException iioException = new InterruptedIOException();
+                    iioException.addSuppressed(iException);
+                    throw iioException;
                 }
             }
         }
-        if (!exceptions.isEmpty())
-            throw exceptions.poll();
-        throw new SMBException("Unknown error when opening pipe: " + pipeShare.getSmbPath().toString());
     }
 
     private NamedPipe openPipe(final Session session, final PipeShare pipeShare) throws IOException {
         return new NamedPipe(session, pipeShare, name);
     }
+
+    private static boolean isPipeNotAvailable(final IOException exception) {
+        return exception instanceof SMB2Exception
+                && ((SMB2Exception) exception).getStatus() == NtStatus.STATUS_PIPE_NOT_AVAILABLE;
+    }
+
+    private static void closeQuietly(final RPCTransport transport) {
+        if (transport instanceof Closeable) {
+            try {
+                ((Closeable) transport).close();
+            } catch (final IOException exception) {
+                // Nothing more to do.
+            }
+        }
+    }
 }
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.transport;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Runs an attempt on an executor, retrying it with backoff while it fails with a retryable exception. The scheduler
+ * only times the backoff and hands the retry to the executor, so blocking attempts never occupy its threads, and no
+ * thread is held while waiting for a retry.
+ *
+ * @param <T> The result of an attempt.
+ */
+class ScheduledRetry<T> {
+    @FunctionalInterface
+    interface Attempt<T> {
+        T run() throws IOException;
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final Executor executor;
+    private final PipeRetryPolicy policy;
+    private final Attempt<T> attempt;
+    private final Predicate<IOException> retryable;
+    private final Consumer<T> discard;
+    private final CompletableFuture<T> future = new CompletableFuture<>();
+    private final List<IOException> failures = new ArrayList<>();
+
+    private ScheduledRetry(final ScheduledExecutorService scheduler, final Executor executor,
+            final PipeRetryPolicy policy, final Attempt<T> attempt, final Predicate<IOException> retryable,
+            final Consumer<T> discard) {
+        this.scheduler = scheduler;
+        this.executor = executor;
+        this.policy = policy;
+        this.attempt = attempt;
+        this.retryable = retryable;
+        this.discard = discard;
+    }
+
+    /**
+     * @param scheduler The scheduler which times the backoff.
+     * @param executor The executor to run the attempts on.
+     * @param policy The backoff and retry budget.
+     * @param attempt The attempt.
+     * @param retryable Whether a failed attempt may be retried.
+     * @param discard Releases the result of an attempt which completed after the future was cancelled.
+     * @return A future completed with the result of the first successful attempt, or the exception of the last
+     * attempt, to which the exceptions of the previous attempts are added as suppressed.
+     */
+    static <T> CompletableFuture<T> submit(final ScheduledExecutorService scheduler, final Executor executor,
+            final PipeRetryPolicy policy, final Attempt<T> attempt, final Predicate<IOException> retryable,
+            final Consumer<T> discard) {
+        final ScheduledRetry<T> retry = new ScheduledRetry<>(scheduler, executor, policy, attempt, retryable, discard);
+        retry.execute();
+        return retry.future;
+    }
+
+    private void schedule(final long delayNanos) {
+        try {
+            scheduler.schedule(this::execute, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (final RejectedExecutionException exception) {
+            future.completeExceptionally(exception);
+        }
+    }
+
+    private void execute() {
+        try {
+            executor.execute(this::run);
+        } catch (final RejectedExecutionException exception) {
+            future.completeExceptionally(exception);
+        }
+    }
+
+    private void run() {
+        if (future.isDone()) {
+            // Cancelled while waiting.
+            return;
+        }
+        try {
+            final T result = attempt.run();
+            if (!future.complete(result)) {
+                discard.accept(result);
+            }
+        } catch (final IOException exception) {
+            final int retry = failures.size();
+            if (retry < policy.getMaxRetries() && retryable.test(exception) && !future.isDone()) {
+                failures.add(exception);
+                schedule(policy.getDelayNanos(retry, ThreadLocalRandom.current().nextDouble()));
+            } else {
+                for (final IOException failure : failures) {
+                    exception.addSuppressed(failure);
+                }
+                future.completeExceptionally(exception);
+            }
+        } catch (final RuntimeException exception) {
+            future.completeExceptionally(exception);
+        }
+    }
+}
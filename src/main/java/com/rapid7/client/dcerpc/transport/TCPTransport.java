@@ -0,0 +1,271 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.transport;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import com.rapid7.client.dcerpc.Header;
+import com.rapid7.client.dcerpc.Interface;
+import com.rapid7.client.dcerpc.io.ByteBufferPacketInput;
+
+/**
+ * Connection-oriented DCE/RPC directly over TCP (ncacn_ip_tcp). TCP is a byte stream, so PDUs are delimited by the
+ * frag_length of their common header rather than by SMB messages.<br>
+ * <br>
+ * The channel is non-blocking and each direction waits on a selector of its own, so reads can be bounded in time
+ * while a write of another thread is in progress.
+ */
+public class TCPTransport extends RPCTransport implements Closeable {
+    /**
+     * The time a read without a deadline of its own waits for a PDU, like the default transact timeout of an SMB
+     * session.
+     */
+    public final static long DEFAULT_READ_TIMEOUT_MS = 60000;
+    private final static int HEADER_LENGTH = 16;
+    private final SocketChannel channel;
+    private final Selector readSelector;
+    private final Selector writeSelector;
+    private final long readTimeoutNanos;
+
+    /**
+     * @param channel A connected socket channel. It is owned by this transport from now on, and made non-blocking.
+     * @throws IOException If the channel could not be made non-blocking.
+     */
+    public TCPTransport(final SocketChannel channel) throws IOException {
+        this(channel, DEFAULT_READ_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param channel A connected socket channel. It is owned by this transport from now on, and made non-blocking.
+     * @param readTimeout The time a read without a deadline of its own waits for a PDU, or 0 to wait indefinitely.
+     * @param unit The unit of the read timeout.
+     * @throws IOException If the channel could not be made non-blocking.
+     */
+    public TCPTransport(final SocketChannel channel, final long readTimeout, final TimeUnit unit) throws IOException {
+        if (channel == null) {
+            throw new IllegalArgumentException("Invalid SocketChannel: null");
+        }
+        if (readTimeout < 0) {
+            throw new IllegalArgumentException("Invalid read timeout: " + readTimeout);
+        }
+        this.channel = channel;
+        this.readTimeoutNanos = unit.toNanos(readTimeout);
+        channel.configureBlocking(false);
+        readSelector = Selector.open();
+        try {
+            writeSelector = Selector.open();
+            try {
+                channel.register(readSelector, SelectionKey.OP_READ);
+                channel.register(writeSelector, SelectionKey.OP_WRITE);
+            } catch (final IOException exception) {
+                writeSelector.close();
+                throw exception;
+            }
+        } catch (final IOException exception) {
+            readSelector.close();
+            throw exception;
+        }
+    }
+
+    /**
+     * Connect to an RPC endpoint and bind to the given interface.
+     *
+     * @param address The address of the endpoint, typically a dynamic port resolved with the endpoint mapper.
+     * @param connectTimeoutMs The connect timeout in milliseconds, or 0 to wait indefinitely.
+     * @param abstractSyntax The interface to bind to.
+     * @param transferSyntax The transfer syntax.
+     * @param config The settings to propose.
+     * @return The bound transport.
+     * @throws IOException If the connection or the bind failed.
+     */
+    public static TCPTransport connect(final InetSocketAddress address, final int connectTimeoutMs,
+            final Interface abstractSyntax, final Interface transferSyntax, final RPCTransportConfig config)
+            throws IOException {
+        return connect(address, connectTimeoutMs, DEFAULT_READ_TIMEOUT_MS, abstractSyntax, transferSyntax, config);
+    }
+
+    /**
+     * Connect to an RPC endpoint and bind to the given interface.
+     *
+     * @param address The address of the endpoint, typically a dynamic port resolved with the endpoint mapper.
+     * @param connectTimeoutMs The connect timeout in milliseconds, or 0 to wait indefinitely.
+     * @param readTimeoutMs The time in milliseconds a read without a deadline of its own waits for a PDU, the bind
+     * included, or 0 to wait indefinitely.
+     * @param abstractSyntax The interface to bind to.
+     * @param transferSyntax The transfer syntax.
+     * @param config The settings to propose.
+     * @return The bound transport.
+     * @throws IOException If the connection or the bind failed.
+     */
+    public static TCPTransport connect(final InetSocketAddress address, final int connectTimeoutMs,
+            final long readTimeoutMs, final Interface abstractSyntax, final Interface transferSyntax,
+            final RPCTransportConfig config) throws IOException {
+        final SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().connect(address, connectTimeoutMs);
+            final TCPTransport transport = new TCPTransport(channel, readTimeoutMs, TimeUnit.MILLISECONDS);
+            transport.bind(abstractSyntax, transferSyntax, config);
+            return transport;
+        } catch (final IOException | RuntimeException exception) {
+            channel.close();
+            throw exception;
+        }
+    }
+
+    @Override
+    public int transact(final byte[] packetOut, final byte[] packetIn) throws IOException {
+        return transact(packetOut, 0, packetOut.length, packetIn);
+    }
+
+    @Override
+    public int transact(final byte[] packetOut, final int offset, final int length, final byte[] packetIn)
+            throws IOException {
+        write(packetOut, offset, length);
+        return read(packetIn);
+    }
+
+    @Override
+    public void write(final byte[] packetOut) throws IOException {
+        write(packetOut, 0, packetOut.length);
+    }
+
+    @Override
+    public void write(final byte[] packetOut, final int offset, final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(packetOut, offset, length);
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) == 0) {
+                // The send buffer is full.
+                await(writeSelector, 0);
+            }
+        }
+    }
+
+    /**
+     * Read exactly one PDU into packetIn, waiting no longer than the read timeout of this transport.
+     *
+     * @return The length of the PDU.
+     * @throws InterruptedByTimeoutException If the read timeout expired.
+     * @throws IOException If the PDU does not fit packetIn or the connection was closed.
+     */
+    @Override
+    public int read(final byte[] packetIn) throws IOException {
+        return read(packetIn, 0);
+    }
+
+    @Override
+    protected int transact(final byte[] packetOut, final int offset, final int length, final byte[] packetIn,
+            final long timeoutNanos) throws IOException {
+        write(packetOut, offset, length);
+        return read(packetIn, timeoutNanos);
+    }
+
+    /**
+     * Read exactly one PDU into packetIn, waiting no longer than the given timeout for it, or than the read timeout of
+     * this transport if none is given.
+     *
+     * @throws InterruptedByTimeoutException If the timeout expired.
+     */
+    @Override
+    protected int read(final byte[] packetIn, final long timeoutNanos) throws IOException {
+        if (packetIn.length < HEADER_LENGTH) {
+            throw new IOException(String.format("Buffer too small for a PDU header: %d", packetIn.length));
+        }
+        final long effectiveTimeoutNanos = timeoutNanos > 0 ? timeoutNanos : readTimeoutNanos;
+        final long deadline = effectiveTimeoutNanos > 0 ? System.nanoTime() + effectiveTimeoutNanos : 0;
+        readFully(packetIn, 0, HEADER_LENGTH, deadline);
+
+        final Header header = new Header();
+        header.unmarshal(new ByteBufferPacketInput(packetIn, 0, HEADER_LENGTH));
+        final int fragLength = header.getFragLength();
+        if (fragLength < HEADER_LENGTH) {
+            throw new IOException(String.format("Invalid fragment length: %d", fragLength));
+        }
+        if (fragLength > packetIn.length) {
+            throw new IOException(String.format("Fragment exceeds max_recv_frag: %d > %d", fragLength, packetIn.length));
+        }
+
+        readFully(packetIn, HEADER_LENGTH, fragLength - HEADER_LENGTH, deadline);
+        return fragLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            // Wakes any thread waiting on them.
+            readSelector.close();
+            writeSelector.close();
+        }
+    }
+
+    private void readFully(final byte[] packetIn, final int offset, final int length, final long deadline)
+            throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(packetIn, offset, length);
+        while (buffer.hasRemaining()) {
+            final int count = channel.read(buffer);
+            if (count < 0) {
+                throw new EOFException("Connection closed by the remote endpoint.");
+            } else if (count == 0) {
+                await(readSelector, deadline);
+            }
+        }
+    }
+
+    /**
+     * Wait until the channel is ready for the operation the given selector was registered for.
+     *
+     * @param deadline The deadline as of {@link System#nanoTime()}, or 0 to wait indefinitely.
+     * @throws InterruptedByTimeoutException If the deadline passed.
+     */
+    private static void await(final Selector selector, final long deadline) throws IOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException();
+        }
+        long timeoutMs = 0;
+        if (deadline != 0) {
+            final long remainingNanos = deadline - System.nanoTime();
+            if (remainingNanos <= 0) {
+                throw new InterruptedByTimeoutException();
+            }
+            // Round up, as 0 would wait indefinitely.
+            timeoutMs = TimeUnit.NANOSECONDS.toMillis(remainingNanos + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+        }
+        try {
+            selector.select(timeoutMs);
+            selector.selectedKeys().clear();
+        } catch (final ClosedSelectorException exception) {
+            final AsynchronousCloseException closeException = new AsynchronousCloseException();
+            closeException.initCause(exception);
+            throw closeException;
+        }
+    }
+}
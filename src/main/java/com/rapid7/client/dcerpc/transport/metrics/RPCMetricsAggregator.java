@@ -0,0 +1,244 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.transport.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import com.rapid7.client.dcerpc.Interface;
+
+/**
+ * An in-memory {@link RPCMetricsListener} which aggregates calls per interface and operation number, and binds per
+ * interface, with a {@link LatencyHistogram} of their latencies in nanoseconds. It can be shared by any number of
+ * transports. Apart from the first call of an operation and non-zero status codes, recording does not allocate.
+ */
+public class RPCMetricsAggregator implements RPCMetricsListener {
+    private final ConcurrentMap<Interface, ConcurrentMap<Integer, CallStats>> calls = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Interface, BindStats> binds = new ConcurrentHashMap<>();
+
+    @Override
+    public void onBind(final Interface abstractSyntax, final boolean accepted, final long latencyNanos) {
+        if (abstractSyntax == null) {
+            return;
+        }
+        BindStats stats = binds.get(abstractSyntax);
+        if (stats == null) {
+            stats = binds.computeIfAbsent(abstractSyntax, BindStats::new);
+        }
+        stats.record(accepted, latencyNanos);
+    }
+
+    @Override
+    public void onCall(final Interface abstractSyntax, final int opNum, final long requestStubBytes,
+            final int requestFragments, final long responseStubBytes, final int responseFragments,
+            final Outcome outcome, final int status, final long latencyNanos) {
+        if (abstractSyntax == null) {
+            return;
+        }
+        ConcurrentMap<Integer, CallStats> operations = calls.get(abstractSyntax);
+        if (operations == null) {
+            operations = calls.computeIfAbsent(abstractSyntax, key -> new ConcurrentHashMap<>());
+        }
+        CallStats stats = operations.get(opNum);
+        if (stats == null) {
+            stats = operations.computeIfAbsent(opNum, key -> new CallStats(abstractSyntax, key));
+        }
+        stats.record(requestStubBytes, requestFragments, responseStubBytes, responseFragments, outcome, status,
+                latencyNanos);
+    }
+
+    /**
+     * @return The statistics of every operation called so far, the busiest first.
+     */
+    public List<CallStats> getCallStats() {
+        final List<CallStats> stats = new ArrayList<>();
+        for (final Map<Integer, CallStats> operations : calls.values()) {
+            stats.addAll(operations.values());
+        }
+        stats.sort((stats1, stats2) -> Long.compare(stats2.getLatency().getCount(), stats1.getLatency().getCount()));
+        return stats;
+    }
+
+    /**
+     * @param abstractSyntax The interface.
+     * @param opNum The operation number.
+     * @return The statistics of the operation, or null if it has not been called.
+     */
+    public CallStats getCallStats(final Interface abstractSyntax, final int opNum) {
+        final Map<Integer, CallStats> operations = calls.get(abstractSyntax);
+        return operations == null ? null : operations.get(opNum);
+    }
+
+    /**
+     * @param abstractSyntax The interface.
+     * @return The bind statistics of the interface, or null if it has not been bound.
+     */
+    public BindStats getBindStats(final Interface abstractSyntax) {
+        return binds.get(abstractSyntax);
+    }
+
+    /**
+     * Forget all statistics.
+     */
+    public void reset() {
+        calls.clear();
+        binds.clear();
+    }
+
+    public static class BindStats {
+        private final Interface abstractSyntax;
+        private final AtomicLong rejected = new AtomicLong();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        BindStats(final Interface abstractSyntax) {
+            this.abstractSyntax = abstractSyntax;
+        }
+
+        void record(final boolean accepted, final long latencyNanos) {
+            if (!accepted) {
+                rejected.incrementAndGet();
+            }
+            latency.record(latencyNanos);
+        }
+
+        public Interface getInterface() {
+            return abstractSyntax;
+        }
+
+        /**
+         * @return The number of binds which rejected the interface or failed.
+         */
+        public long getRejected() {
+            return rejected.get();
+        }
+
+        /**
+         * @return The latencies of all binds, in nanoseconds.
+         */
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("BindStats{interface: %s, count: %d, rejected: %d, p50: %dns, p99: %dns}",
+                    abstractSyntax.getName(), latency.getCount(), getRejected(), latency.getValueAtPercentile(50),
+                    latency.getValueAtPercentile(99));
+        }
+    }
+
+    public static class CallStats {
+        private final Interface abstractSyntax;
+        private final int opNum;
+        private final AtomicLong faults = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong requestStubBytes = new AtomicLong();
+        private final AtomicLong requestFragments = new AtomicLong();
+        private final AtomicLong responseStubBytes = new AtomicLong();
+        private final AtomicLong responseFragments = new AtomicLong();
+        private final ConcurrentMap<Integer, AtomicLong> statuses = new ConcurrentHashMap<>();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        CallStats(final Interface abstractSyntax, final int opNum) {
+            this.abstractSyntax = abstractSyntax;
+            this.opNum = opNum;
+        }
+
+        void record(final long requestStubBytes, final int requestFragments, final long responseStubBytes,
+                final int responseFragments, final Outcome outcome, final int status, final long latencyNanos) {
+            this.requestStubBytes.addAndGet(requestStubBytes);
+            this.requestFragments.addAndGet(requestFragments);
+            this.responseStubBytes.addAndGet(responseStubBytes);
+            this.responseFragments.addAndGet(responseFragments);
+            if (outcome == Outcome.FAULT) {
+                faults.incrementAndGet();
+            } else if (outcome == Outcome.ERROR) {
+                errors.incrementAndGet();
+            }
+            if (status != 0) {
+                statuses.computeIfAbsent(status, key -> new AtomicLong()).incrementAndGet();
+            }
+            latency.record(latencyNanos);
+        }
+
+        public Interface getInterface() {
+            return abstractSyntax;
+        }
+
+        public int getOpNum() {
+            return opNum;
+        }
+
+        public long getFaults() {
+            return faults.get();
+        }
+
+        public long getErrors() {
+            return errors.get();
+        }
+
+        public long getRequestStubBytes() {
+            return requestStubBytes.get();
+        }
+
+        public long getRequestFragments() {
+            return requestFragments.get();
+        }
+
+        public long getResponseStubBytes() {
+            return responseStubBytes.get();
+        }
+
+        public long getResponseFragments() {
+            return responseFragments.get();
+        }
+
+        /**
+         * @return The number of calls per non-zero return value or fault status.
+         */
+        public Map<Integer, Long> getStatusCounts() {
+            final Map<Integer, Long> counts = new HashMap<>();
+            for (final Map.Entry<Integer, AtomicLong> entry : statuses.entrySet()) {
+                counts.put(entry.getKey(), entry.getValue().get());
+            }
+            return Collections.unmodifiableMap(counts);
+        }
+
+        /**
+         * @return The latencies of all calls, in nanoseconds.
+         */
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("CallStats{interface: %s, opNum: %d, count: %d, faults: %d, errors: %d, "
+                            + "requestStubBytes: %d, responseStubBytes: %d, responseFragments: %d, p50: %dns, p99: %dns}",
+                    abstractSyntax.getName(), opNum, latency.getCount(), getFaults(), getErrors(),
+                    getRequestStubBytes(), getResponseStubBytes(), getResponseFragments(),
+                    latency.getValueAtPercentile(50), latency.getValueAtPercentile(99));
+        }
+    }
+}
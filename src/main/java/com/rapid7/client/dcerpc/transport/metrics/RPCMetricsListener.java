@@ -0,0 +1,66 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.transport.metrics;
+
+import com.rapid7.client.dcerpc.Interface;
+
+/**
+ * Receives a measurement for every bind and call of an {@link com.rapid7.client.dcerpc.transport.RPCTransport} it is
+ * set on. Measurements are passed as primitives so that none is allocated for them. Listeners are invoked on the
+ * thread completing the call and must be thread safe and fast.
+ *
+ * @see RPCMetricsAggregator
+ */
+public interface RPCMetricsListener {
+    enum Outcome {
+        /**
+         * The response was received; the status is its return value.
+         */
+        RESPONSE,
+        /**
+         * The server answered with a fault PDU; the status is the fault status.
+         */
+        FAULT,
+        /**
+         * The call failed on the transport, or its response could not be unmarshalled; the status is 0.
+         */
+        ERROR
+    }
+
+    /**
+     * @param abstractSyntax The interface proposed.
+     * @param accepted Whether the server accepted the interface.
+     * @param latencyNanos The time from sending the bind or alter_context to receiving its response.
+     */
+    void onBind(Interface abstractSyntax, boolean accepted, long latencyNanos);
+
+    /**
+     * @param abstractSyntax The interface called, or null if unknown.
+     * @param opNum The operation number.
+     * @param requestStubBytes The length of the request stub.
+     * @param requestFragments The number of request PDUs.
+     * @param responseStubBytes The length of the response stub received.
+     * @param responseFragments The number of response PDUs received.
+     * @param outcome The outcome.
+     * @param status The return value or fault status, see {@link Outcome}.
+     * @param latencyNanos The time from marshalling the request to unmarshalling the response.
+     */
+    void onCall(Interface abstractSyntax, int opNum, long requestStubBytes, int requestFragments,
+            long responseStubBytes, int responseFragments, Outcome outcome, int status, long latencyNanos);
+}
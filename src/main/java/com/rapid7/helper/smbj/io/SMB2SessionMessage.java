@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.nio.channels.InterruptedByTimeoutException;
 import java.util.EnumSet;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -69,17 +70,37 @@ public abstract class SMB2SessionMessage {
         }
     }
 
+    public long getTimeout() {
+        return timeout;
+    }
+
     public <T extends SMB2Packet> T read(final Future<T> future) throws IOException {
+        return read(future, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Wait for a response. If it does not arrive in time, the request is cancelled, which sends an SMB2 CANCEL for it.
+     *
+     * @throws InterruptedByTimeoutException If the response did not arrive in time.
+     * @throws InterruptedIOException If the wait was interrupted, or the request was cancelled by another thread.
+     */
+    public <T extends SMB2Packet> T read(final Future<T> future, final long timeout, final TimeUnit unit)
+            throws IOException {
         try {
-            return future.get(timeout, TimeUnit.MILLISECONDS);
+            return future.get(timeout, unit);
         } catch (final InterruptedException exception) {
             final InterruptedIOException innerException = new InterruptedIOException();
             innerException.initCause(exception);
             throw innerException;
         } catch (final TimeoutException exception) {
+            future.cancel(true);
             final InterruptedByTimeoutException innerException = new InterruptedByTimeoutException();
             innerException.initCause(exception);
             throw innerException;
+        } catch (final CancellationException exception) {
+            final InterruptedIOException innerException = new InterruptedIOException("SMB2 request cancelled.");
+            innerException.initCause(exception);
+            throw innerException;
         } catch (final ExecutionException exception) {
             throw new IOException(exception);
         }
@@ -93,7 +114,22 @@ public abstract class SMB2SessionMessage {
     public <T extends SMB2Packet> T sendAndRead(final SMB2Packet packet, final EnumSet<NtStatus> ok)
             throws IOException {
         final Future<T> future = send(packet);
-        final T responsePacket = read(future);
+        return read(future, ok);
+    }
+
+    public <T extends SMB2Packet> T read(final Future<T> future, final EnumSet<NtStatus> ok) throws IOException {
+        return read(future, ok, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    public <T extends SMB2Packet> T sendAndRead(final SMB2Packet packet, final EnumSet<NtStatus> ok,
+            final long timeout, final TimeUnit unit) throws IOException {
+        final Future<T> future = send(packet);
+        return read(future, ok, timeout, unit);
+    }
+
+    public <T extends SMB2Packet> T read(final Future<T> future, final EnumSet<NtStatus> ok, final long timeout,
+            final TimeUnit unit) throws IOException {
+        final T responsePacket = read(future, timeout, unit);
         final SMB2PacketHeader responseHeader = responsePacket.getHeader();
         final NtStatus responseStatus = NtStatus.valueOf(responseHeader.getStatusCode());
         if (!ok.contains(responseStatus)) {
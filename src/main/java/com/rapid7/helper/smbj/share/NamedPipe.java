@@ -21,12 +21,18 @@ package com.rapid7.helper.smbj.share;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import com.hierynomus.msdtyp.AccessMask;
 import com.hierynomus.mserref.NtStatus;
 import com.hierynomus.mssmb2.SMB2CreateDisposition;
 import com.hierynomus.mssmb2.SMB2FileId;
 import com.hierynomus.mssmb2.SMB2ImpersonationLevel;
+import com.hierynomus.mssmb2.SMB2Packet;
 import com.hierynomus.mssmb2.SMB2ShareAccess;
 import com.hierynomus.mssmb2.messages.*;
 import com.hierynomus.smbj.common.SMBRuntimeException;
@@ -38,6 +44,7 @@ import com.rapid7.helper.smbj.io.SMB2SessionMessage;
 
 public class NamedPipe extends SMB2SessionMessage implements Closeable {
     private final static int FSCTL_PIPE_TRANSCEIVE = 0x0011c017;
+    private final static EnumSet<NtStatus> CREATE_SUCCESS = EnumSet.of(NtStatus.STATUS_SUCCESS);
     private final static EnumSet<NtStatus> IOCTL_SUCCESS = EnumSet.of(NtStatus.STATUS_SUCCESS, NtStatus.STATUS_BUFFER_OVERFLOW);
     private final static EnumSet<NtStatus> READ_SUCCESS = EnumSet.of(NtStatus.STATUS_SUCCESS, NtStatus.STATUS_BUFFER_OVERFLOW, NtStatus.STATUS_END_OF_FILE);
     private final static EnumSet<NtStatus> WRITE_SUCCESS = EnumSet.of(NtStatus.STATUS_SUCCESS);
@@ -46,23 +53,71 @@ public class NamedPipe extends SMB2SessionMessage implements Closeable {
     private final int transactBufferSize;
     private final int readBufferSize;
     private final int writeBufferSize;
+    // The read or IOCTL request awaiting its response, if any.
+    private volatile Future<?> outstanding;
 
     public NamedPipe(final Session session, final PipeShare share, final String name) throws IOException {
+        this(session, share, new PipeOpener(session, share).open(name));
+    }
+
+    private NamedPipe(final Session session, final PipeShare share, final SMB2CreateResponse createResponse) {
         super(session, share.getTreeConnect().getConfig());
 
         this.share = share;
 
-        final SMB2CreateRequest createRequest = new SMB2CreateRequest(session.getConnection().getNegotiatedProtocol().getDialect(), session.getSessionId(), share.getTreeConnect().getTreeId(), SMB2ImpersonationLevel.Impersonation, EnumSet.of(AccessMask.MAXIMUM_ALLOWED), null, EnumSet.of(SMB2ShareAccess.FILE_SHARE_READ, SMB2ShareAccess.FILE_SHARE_WRITE), SMB2CreateDisposition.FILE_OPEN_IF, null, new SmbPath(share.getSmbPath(), name));
-        final SMB2CreateResponse createResponse = sendAndRead(createRequest, EnumSet.of(NtStatus.STATUS_SUCCESS));
-
         fileID = createResponse.getFileId();
         transactBufferSize = Math.min(share.getTreeConnect().getConfig().getTransactBufferSize(), session.getConnection().getNegotiatedProtocol().getMaxTransactSize());
         readBufferSize = Math.min(share.getTreeConnect().getConfig().getReadBufferSize(), session.getConnection().getNegotiatedProtocol().getMaxReadSize());
         writeBufferSize = Math.min(share.getTreeConnect().getConfig().getWriteBufferSize(), session.getConnection().getNegotiatedProtocol().getMaxWriteSize());
     }
 
+    /**
+     * Open several pipes of a share in a single round trip: the CREATE requests of all pipes are sent before waiting
+     * for any of the responses.
+     *
+     * @param session The authenticated SMB session.
+     * @param share The IPC$ share.
+     * @param names The names of the pipes.
+     * @return The opened pipes, in the order of names.
+     * @throws IOException If any of the pipes could not be opened, in which case the others are closed. The failures
+     * of further pipes are added as suppressed.
+     */
+    public static List<NamedPipe> open(final Session session, final PipeShare share, final String... names)
+            throws IOException {
+        final PipeOpener opener = new PipeOpener(session, share);
+        final List<Future<SMB2CreateResponse>> futures = new ArrayList<>(names.length);
+        for (final String name : names) {
+            futures.add(opener.send(opener.createRequest(name)));
+        }
+
+        final List<NamedPipe> namedPipes = new ArrayList<>(names.length);
+        IOException failure = null;
+        for (final Future<SMB2CreateResponse> future : futures) {
+            try {
+                namedPipes.add(new NamedPipe(session, share, opener.read(future, CREATE_SUCCESS)));
+            } catch (final IOException exception) {
+                if (failure == null) {
+                    failure = exception;
+                } else {
+                    failure.addSuppressed(exception);
+                }
+            }
+        }
+        if (failure != null) {
+            for (final NamedPipe namedPipe : namedPipes) {
+                namedPipe.close();
+            }
+            throw failure;
+        }
+        return namedPipes;
+    }
+
     public byte[] transact(final byte[] inBuffer) throws IOException {
-        final SMB2IoctlResponse response = _ioctl(inBuffer);
+        return transact(inBuffer, 0, inBuffer.length);
+    }
+
+    public byte[] transact(final byte[] inBuffer, final int offset, final int length) throws IOException {
+        final SMB2IoctlResponse response = _ioctl(inBuffer, offset, length);
         final ByteArrayOutputStream outBuffer = new ByteArrayOutputStream(4096);
         final byte[] outData = response.getOutputBuffer();
         try {
@@ -95,8 +150,104 @@ public class NamedPipe extends SMB2SessionMessage implements Closeable {
         return dataBuffer.toByteArray();
     }
 
+    /**
+     * Transact a message on the pipe, reading the response message directly into outBuffer, from its position up to
+     * its limit. The position of outBuffer is advanced past the response.
+     * <br>
+     * A response which does not fit the remaining space of outBuffer is read from the pipe to its end regardless, so
+     * the pipe stays usable, and then rejected.
+     *
+     * @param inBuffer The message to send.
+     * @param offset The offset of the message in inBuffer.
+     * @param length The length of the message.
+     * @param outBuffer The buffer to read the response into.
+     * @return The length of the response.
+     * @throws IOException If the transaction failed, or the response exceeds the remaining space of outBuffer.
+     */
+    public int transact(final byte[] inBuffer, final int offset, final int length, final ByteBuffer outBuffer)
+            throws IOException {
+        return transact(inBuffer, offset, length, outBuffer, getTimeout(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Like {@link #transact(byte[], int, int, ByteBuffer)}, but bounded by the given timeout rather than the transact
+     * timeout of the session. When the timeout expires, the outstanding request is cancelled with an SMB2 CANCEL; a
+     * response may still be pending on the pipe afterwards, so it should not be used for further transactions.
+     *
+     * @throws java.nio.channels.InterruptedByTimeoutException If the timeout expired.
+     */
+    public int transact(final byte[] inBuffer, final int offset, final int length, final ByteBuffer outBuffer,
+            final long timeout, final TimeUnit unit) throws IOException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        final SMB2IoctlResponse response = _ioctl(inBuffer, offset, length, deadline);
+        final int capacity = outBuffer.remaining();
+        int responseLength = put(response.getOutputBuffer(), outBuffer);
+        final NtStatus status = NtStatus.valueOf(response.getHeader().getStatusCode());
+        if (status.equals(NtStatus.STATUS_BUFFER_OVERFLOW)) {
+            responseLength += readRemaining(outBuffer, deadline);
+        }
+        return checkOverflow(responseLength, capacity);
+    }
+
+    /**
+     * @see #transact(byte[], int, int, ByteBuffer)
+     */
+    public int transact(final byte[] inBuffer, final int offset, final int length, final byte[] outBuffer,
+            final int outOffset, final int outLength) throws IOException {
+        return transact(inBuffer, offset, length, ByteBuffer.wrap(outBuffer, outOffset, outLength));
+    }
+
+    /**
+     * Read a message from the pipe directly into outBuffer, from its position up to its limit. The position of
+     * outBuffer is advanced past the message.
+     * <br>
+     * A message which does not fit the remaining space of outBuffer is read from the pipe to its end regardless, so
+     * the pipe stays usable, and then rejected.
+     *
+     * @param outBuffer The buffer to read the message into.
+     * @return The length of the message.
+     * @throws IOException If the read failed, or the message exceeds the remaining space of outBuffer.
+     */
+    public int read(final ByteBuffer outBuffer) throws IOException {
+        return read(outBuffer, getTimeout(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Like {@link #read(ByteBuffer)}, but bounded by the given timeout rather than the transact timeout of the
+     * session. When the timeout expires, the outstanding request is cancelled with an SMB2 CANCEL.
+     *
+     * @throws java.nio.channels.InterruptedByTimeoutException If the timeout expired.
+     */
+    public int read(final ByteBuffer outBuffer, final long timeout, final TimeUnit unit) throws IOException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        final int capacity = outBuffer.remaining();
+        return checkOverflow(readRemaining(outBuffer, deadline), capacity);
+    }
+
+    /**
+     * @see #read(ByteBuffer)
+     */
+    public int read(final byte[] outBuffer, final int offset, final int length) throws IOException {
+        return read(ByteBuffer.wrap(outBuffer, offset, length));
+    }
+
     public void write(final byte[] buffer) throws IOException {
-        _write(buffer);
+        write(buffer, 0, buffer.length);
+    }
+
+    public void write(final byte[] buffer, final int offset, final int length) throws IOException {
+        _write(buffer, offset, length);
+    }
+
+    /**
+     * Cancel the read or transaction outstanding on the pipe, if any, with an SMB2 CANCEL, failing the thread blocked
+     * on it. A response may still be pending on the pipe afterwards, so it should not be used further.
+     */
+    public void cancel() {
+        final Future<?> future = outstanding;
+        if (future != null) {
+            future.cancel(true);
+        }
     }
 
     @Override
@@ -104,21 +255,89 @@ public class NamedPipe extends SMB2SessionMessage implements Closeable {
         share.closeFileId(fileID);
     }
 
-    private SMB2IoctlResponse _ioctl(final byte[] inBuffer) throws IOException {
-        final SMB2IoctlRequest ioctlRequest = new SMB2IoctlRequest(getDialect(), getSessionID(), share.getTreeConnect().getTreeId(), FSCTL_PIPE_TRANSCEIVE, fileID, new ArrayByteChunkProvider(inBuffer, 0, inBuffer.length, 0), true, transactBufferSize);
-        final SMB2IoctlResponse ioctlResponse = sendAndRead(ioctlRequest, IOCTL_SUCCESS);
-        return ioctlResponse;
+    private int readRemaining(final ByteBuffer outBuffer, final long deadline) throws IOException {
+        int length = 0;
+        for (; ; ) {
+            final SMB2ReadResponse response = _read(deadline);
+            length += put(response.getData(), outBuffer);
+            final NtStatus status = NtStatus.valueOf(response.getHeader().getStatusCode());
+            if (!status.equals(NtStatus.STATUS_BUFFER_OVERFLOW)) {
+                return length;
+            }
+        }
+    }
+
+    /**
+     * Copy as much of data as fits into outBuffer. Whatever does not fit is dropped, see
+     * {@link #checkOverflow(int, int)}.
+     *
+     * @return The length of data.
+     */
+    private static int put(final byte[] data, final ByteBuffer outBuffer) {
+        outBuffer.put(data, 0, Math.min(data.length, outBuffer.remaining()));
+        return data.length;
+    }
+
+    private static int checkOverflow(final int length, final int capacity) throws IOException {
+        if (length > capacity) {
+            throw new IOException(String.format("Pipe message exceeds buffer: %d > %d", length, capacity));
+        }
+        return length;
+    }
+
+    private SMB2IoctlResponse _ioctl(final byte[] inBuffer, final int offset, final int length) throws IOException {
+        return _ioctl(inBuffer, offset, length, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(getTimeout()));
+    }
+
+    private SMB2IoctlResponse _ioctl(final byte[] inBuffer, final int offset, final int length, final long deadline) throws IOException {
+        final SMB2IoctlRequest ioctlRequest = new SMB2IoctlRequest(getDialect(), getSessionID(), share.getTreeConnect().getTreeId(), FSCTL_PIPE_TRANSCEIVE, fileID, new ArrayByteChunkProvider(inBuffer, offset, length, 0), true, transactBufferSize);
+        return sendAndTrack(ioctlRequest, IOCTL_SUCCESS, deadline);
     }
 
     private SMB2ReadResponse _read() throws IOException {
+        return _read(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(getTimeout()));
+    }
+
+    private SMB2ReadResponse _read(final long deadline) throws IOException {
         final SMB2ReadRequest readRequest = new SMB2ReadRequest(getDialect(), fileID, getSessionID(), share.getTreeConnect().getTreeId(), 0, readBufferSize);
-        final SMB2ReadResponse readResponse = sendAndRead(readRequest, READ_SUCCESS);
-        return readResponse;
+        return sendAndTrack(readRequest, READ_SUCCESS, deadline);
+    }
+
+    /**
+     * Send a request and wait for its response until the deadline, keeping it as the outstanding request meanwhile so
+     * {@link #cancel()} can cancel it.
+     */
+    private <T extends SMB2Packet> T sendAndTrack(final SMB2Packet packet, final EnumSet<NtStatus> ok,
+            final long deadline) throws IOException {
+        final Future<T> future = send(packet);
+        outstanding = future;
+        try {
+            return read(future, ok, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } finally {
+            outstanding = null;
+        }
     }
 
-    private SMB2WriteResponse _write(final byte[] buffer) throws IOException {
-        final SMB2WriteRequest writeRequest = new SMB2WriteRequest(getDialect(), fileID, getSessionID(), share.getTreeConnect().getTreeId(), new ArrayByteChunkProvider(buffer, 0, buffer.length, 0), writeBufferSize);
+    private SMB2WriteResponse _write(final byte[] buffer, final int offset, final int length) throws IOException {
+        final SMB2WriteRequest writeRequest = new SMB2WriteRequest(getDialect(), fileID, getSessionID(), share.getTreeConnect().getTreeId(), new ArrayByteChunkProvider(buffer, offset, length, 0), writeBufferSize);
         final SMB2WriteResponse writeResponse = sendAndRead(writeRequest, WRITE_SUCCESS);
         return writeResponse;
     }
+
+    private static class PipeOpener extends SMB2SessionMessage {
+        private final PipeShare share;
+
+        PipeOpener(final Session session, final PipeShare share) {
+            super(session, share.getTreeConnect().getConfig());
+            this.share = share;
+        }
+
+        SMB2CreateResponse open(final String name) throws IOException {
+            return sendAndRead(createRequest(name), CREATE_SUCCESS);
+        }
+
+        SMB2CreateRequest createRequest(final String name) {
+            return new SMB2CreateRequest(getDialect(), getSessionID(), share.getTreeConnect().getTreeId(), SMB2ImpersonationLevel.Impersonation, EnumSet.of(AccessMask.MAXIMUM_ALLOWED), null, EnumSet.of(SMB2ShareAccess.FILE_SHARE_READ, SMB2ShareAccess.FILE_SHARE_WRITE), SMB2CreateDisposition.FILE_OPEN_IF, null, new SmbPath(share.getSmbPath(), name));
+        }
+    }
 }
@@ -0,0 +1,121 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.epm;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+import com.rapid7.client.dcerpc.Interface;
+
+import static org.junit.Assert.*;
+
+public class Test_EndpointCache {
+    private final AtomicLong now = new AtomicLong();
+    private final AtomicInteger lookups = new AtomicInteger();
+
+    @Test
+    public void cachesResolvedEndpoint() {
+        final EndpointCache cache = newCache((host, abstractSyntax, transferSyntax) -> 49668);
+
+        assertEquals(49668, cache.getTCPPort("HOST", Interface.LSASVC_V0_0, Interface.NDR_32BIT_V2));
+        now.addAndGet(TimeUnit.SECONDS.toNanos(59));
+        assertEquals(49668, cache.getTCPPort("host", Interface.LSASVC_V0_0, Interface.NDR_32BIT_V2));
+        assertEquals(1, lookups.get());
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertEquals(49668, cache.getTCPPort("host", Interface.LSASVC_V0_0, Interface.NDR_32BIT_V2));
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    public void cachesPerHostAndInterface() {
+        final EndpointCache cache = newCache((host, abstractSyntax, transferSyntax) -> 49668);
+
+        cache.getTCPPort("host1", Interface.LSASVC_V0_0, Interface.NDR_32BIT_V2);
+        cache.getTCPPort("host2", Interface.LSASVC_V0_0, Interface.NDR_32BIT_V2);
+        cache.getTCPPort("host1", Interface.SAMSVC_V1_0, Interface.NDR_32BIT_V2);
+        cache.getTCPPort("host1", Interface.LSASVC_V0_0, Interface.NDR_32BIT_V2);
+        assertEquals(3, lookups.get());
+
+        cache.invalidate("host1");
+        cache.getTCPPort("host1", Interface.LSASVC_V0_0, Interface.NDR_32BIT_V2);
+        cache.getTCPPort("host2", Interface.LSASVC_V0_0, Interface.NDR_32BIT_V2);
+        assertEquals(4, lookups.get());
+    }
+
+    @Test
+    public void cachesNegativeResults() {
+        final EndpointCache cache = newCache((host, abstractSyntax, transferSyntax) -> {
+            throw new IOException("Connection refused");
+        });
+
+        assertEquals(-1, cache.getTCPPort("host", Interface.SVCCTL_V2_0, Interface.NDR_32BIT_V2));
+        now.addAndGet(TimeUnit.SECONDS.toNanos(9));
+        assertEquals(-1, cache.getTCPPort("host", Interface.SVCCTL_V2_0, Interface.NDR_32BIT_V2));
+        assertEquals(1, lookups.get());
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertEquals(-1, cache.getTCPPort("host", Interface.SVCCTL_V2_0, Interface.NDR_32BIT_V2));
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    public void reject() {
+        final EndpointCache cache = newCache((host, abstractSyntax, transferSyntax) -> 49668);
+
+        assertEquals(49668, cache.getTCPPort("host", Interface.SAMSVC_V1_0, Interface.NDR_32BIT_V2));
+        cache.reject("host", Interface.SAMSVC_V1_0);
+        assertEquals(-1, cache.getTCPPort("host", Interface.SAMSVC_V1_0, Interface.NDR_32BIT_V2));
+        assertEquals(1, lookups.get());
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        assertEquals(49668, cache.getTCPPort("host", Interface.SAMSVC_V1_0, Interface.NDR_32BIT_V2));
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    public void evictsExpiredEntries() {
+        final EndpointCache cache = newCache((host, abstractSyntax, transferSyntax) -> 49668);
+
+        for (int i = 0; i < 100; i++) {
+            cache.getTCPPort("host" + i, Interface.LSASVC_V0_0, Interface.NDR_32BIT_V2);
+        }
+        assertEquals(100, cache.size());
+
+        // Once every entry has expired, the next entry cached sweeps them.
+        now.addAndGet(TimeUnit.SECONDS.toNanos(60));
+        cache.getTCPPort("other", Interface.LSASVC_V0_0, Interface.NDR_32BIT_V2);
+        assertEquals(1, cache.size());
+        assertEquals(101, lookups.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidTTL() {
+        new EndpointCache(-1, 10, TimeUnit.SECONDS, (host, abstractSyntax, transferSyntax) -> -1);
+    }
+
+    private EndpointCache newCache(final EndpointCache.Resolver resolver) {
+        return new EndpointCache(60, 10, TimeUnit.SECONDS, (host, abstractSyntax, transferSyntax) -> {
+            lookups.incrementAndGet();
+            return resolver.resolve(host, abstractSyntax, transferSyntax);
+        }, now::get);
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.epm;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import com.rapid7.client.dcerpc.Interface;
+import com.rapid7.client.dcerpc.PDUType;
+import com.rapid7.client.dcerpc.PFCFlag;
+import com.rapid7.client.dcerpc.RPCException;
+import com.rapid7.client.dcerpc.epm.messages.EptMapRequest;
+import com.rapid7.client.dcerpc.epm.messages.EptMapResponse;
+import com.rapid7.client.dcerpc.epm.objects.ProtocolTower;
+import com.rapid7.client.dcerpc.messages.BindResponse;
+import com.rapid7.client.dcerpc.transport.RPCTransport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class Test_EndpointMapperService {
+    @Rule
+    public final ExpectedException thrown = ExpectedException.none();
+
+    @Test
+    public void getTCPPort() throws IOException {
+        final RPCTransport transport = mock(RPCTransport.class);
+        final EptMapResponse response = mock(EptMapResponse.class);
+        final ProtocolTower.Floor tcp = new ProtocolTower.Floor(new byte[]{ProtocolTower.PROTOCOL_TCP},
+                new byte[]{(byte) 0xC2, 0x04});
+
+        when(transport.call(any(EptMapRequest.class))).thenReturn(response);
+        when(response.getReturnValue()).thenReturn(0);
+        when(response.getTowers()).thenReturn(Arrays.asList(
+                new ProtocolTower(Collections.emptyList()).toBytes(),
+                new ProtocolTower(Collections.singletonList(tcp)).toBytes()));
+
+        assertEquals(49668, new EndpointMapperService(transport).getTCPPort(Interface.LSASVC_V0_0, Interface.NDR_32BIT_V2));
+    }
+
+    @Test
+    public void getTCPPortNotRegistered() throws IOException {
+        final RPCTransport transport = mock(RPCTransport.class);
+        final EptMapResponse response = mock(EptMapResponse.class);
+
+        when(transport.call(any(EptMapRequest.class))).thenReturn(response);
+        when(response.getReturnValue()).thenReturn(EptMapResponse.EPT_S_NOT_REGISTERED);
+
+        assertEquals(-1, new EndpointMapperService(transport).getTCPPort(Interface.LSASVC_V0_0, Interface.NDR_32BIT_V2));
+    }
+
+    @Test
+    public void getTCPPortFailed() throws IOException {
+        final RPCTransport transport = mock(RPCTransport.class);
+        final EptMapResponse response = mock(EptMapResponse.class);
+
+        when(transport.call(any(EptMapRequest.class))).thenReturn(response);
+        when(response.getReturnValue()).thenReturn(5);
+
+        thrown.expect(RPCException.class);
+        new EndpointMapperService(transport).getTCPPort(Interface.LSASVC_V0_0, Interface.NDR_32BIT_V2);
+    }
+
+    @Test
+    public void lookupTCPPortTimeout() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final CountDownLatch done = new CountDownLatch(1);
+        try (final ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            executor.submit(() -> {
+                try (final Socket socket = serverSocket.accept()) {
+                    final DataInputStream in = new DataInputStream(socket.getInputStream());
+                    socket.getOutputStream().write(bindACK(readPDU(in)[12]));
+                    // Never answer the ept_map call.
+                    readPDU(in);
+                    done.await(5, TimeUnit.SECONDS);
+                }
+                return null;
+            });
+
+            final long start = System.nanoTime();
+            try {
+                EndpointMapperService.lookupTCPPort(
+                        new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort()), 1000,
+                        300, Interface.LSASVC_V0_0, Interface.NDR_32BIT_V2);
+                fail("Expected InterruptedByTimeoutException");
+            } catch (final InterruptedByTimeoutException exception) {
+                assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(3));
+            }
+        } finally {
+            done.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    private static byte[] readPDU(final DataInputStream in) throws IOException {
+        final byte[] header = new byte[16];
+        in.readFully(header);
+        final int fragLength = (header[8] & 0xFF) | (header[9] & 0xFF) << 8;
+        final byte[] pdu = Arrays.copyOf(header, fragLength);
+        in.readFully(pdu, 16, fragLength - 16);
+        return pdu;
+    }
+
+    private static byte[] bindACK(final int callID) throws IOException {
+        final BindResponse response = new BindResponse();
+        response.setPDUType(PDUType.BIND_ACK);
+        response.setPFCFlags(EnumSet.of(PFCFlag.FIRST_FRAGMENT, PFCFlag.LAST_FRAGMENT));
+        response.setCallID(callID);
+        response.setMaxXmitFrag((short) 4280);
+        response.setMaxRecvFrag((short) 4280);
+        return Hex.decode(response.toHexString());
+    }
+}
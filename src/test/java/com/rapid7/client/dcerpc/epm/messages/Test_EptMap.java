@@ -0,0 +1,76 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.epm.messages;
+
+import java.io.IOException;
+import java.rmi.UnmarshalException;
+import org.bouncycastle.util.encoders.Hex;
+import org.testng.annotations.Test;
+import com.rapid7.client.dcerpc.Interface;
+import com.rapid7.client.dcerpc.epm.objects.ProtocolTower;
+
+import static org.testng.Assert.assertEquals;
+
+public class Test_EptMap {
+    @Test
+    public void encodeEptMapRequest() throws IOException {
+        final EptMapRequest request = new EptMapRequest(
+                ProtocolTower.forTCP(Interface.SAMSVC_V1_0, Interface.NDR_32BIT_V2).toBytes(), new byte[20], 4);
+        assertEquals(request.getOpNum(), EptMapRequest.OP_NUM);
+        assertEquals(request.toHexString(),
+                "00000200" + "00000000000000000000000000000000"
+                        + "04000200" + "4b000000" + "4b000000"
+                        + "050013000d785734123412cdabef000123456789ac01000200000013000d045d888aeb1cc9119fe808002b10486002000200000001000b020000000100070200000001000904000000000000"
+                        + "0000000000000000000000000000000000000000"
+                        + "04000000");
+    }
+
+    @Test
+    public void parseEptMapResponse() throws IOException {
+        final EptMapResponse response = new EptMapResponse();
+        response.fromHexString("0000000000000000000000000000000000000000"
+                + "01000000" + "04000000" + "00000000" + "01000000" + "03000000"
+                + "4b000000" + "4b000000"
+                + "050013000d785734123412cdabef000123456789ac01000200000013000d045d888aeb1cc9119fe808002b1048600200"
+                + "0200000001000b020000000100070200c00a01000904000a00000500"
+                + "00000000");
+        assertEquals(response.getReturnValue(), 0);
+        assertEquals(response.getEntryHandle(), new byte[20]);
+        assertEquals(response.getTowers().size(), 1);
+        assertEquals(ProtocolTower.fromBytes(response.getTowers().get(0)).getTCPPort(), 49162);
+    }
+
+    @Test
+    public void parseEptMapResponseNotRegistered() throws IOException {
+        final EptMapResponse response = new EptMapResponse();
+        response.fromHexString("0000000000000000000000000000000000000000"
+                + "00000000" + "04000000" + "00000000" + "00000000"
+                + "d6a0c916");
+        assertEquals(response.getReturnValue(), EptMapResponse.EPT_S_NOT_REGISTERED);
+        assertEquals(response.getTowers().size(), 0);
+    }
+
+    @Test(expectedExceptions = UnmarshalException.class)
+    public void parseEptMapResponseOffset() throws IOException {
+        final EptMapResponse response = new EptMapResponse();
+        response.fromHexString("0000000000000000000000000000000000000000"
+                + "01000000" + "04000000" + "01000000" + "01000000" + "00000000"
+                + "00000000");
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.epm.objects;
+
+import java.io.EOFException;
+import java.io.IOException;
+import org.bouncycastle.util.encoders.Hex;
+import org.testng.annotations.Test;
+import com.rapid7.client.dcerpc.Interface;
+
+import static org.testng.Assert.assertEquals;
+
+public class Test_ProtocolTower {
+    @Test
+    public void forTCP() {
+        final ProtocolTower tower = ProtocolTower.forTCP(Interface.SAMSVC_V1_0, Interface.NDR_32BIT_V2);
+        assertEquals(Hex.toHexString(tower.toBytes()), "050013000d785734123412cdabef000123456789ac01000200000013000d045d888aeb1cc9119fe808002b10486002000200000001000b0200000001000702000000010009040000000000");
+        assertEquals(tower.getFloors().size(), 5);
+        assertEquals(tower.getTCPPort(), 0);
+    }
+
+    @Test
+    public void fromBytes() throws IOException {
+        final ProtocolTower tower = ProtocolTower.fromBytes(Hex.decode("050013000d785734123412cdabef000123456789ac01000200000013000d045d888aeb1cc9119fe808002b10486002000200000001000b020000000100070200c00a01000904000a000005"));
+        assertEquals(tower.getFloors().size(), 5);
+        assertEquals(tower.getFloors().get(0).getProtocol(), ProtocolTower.PROTOCOL_UUID);
+        assertEquals(tower.getFloors().get(4).getRHS(), new byte[]{10, 0, 0, 5});
+        assertEquals(tower.getTCPPort(), 49162);
+    }
+
+    @Test
+    public void fromBytesNoTCP() throws IOException {
+        // ncacn_np: RPC connection-oriented, named pipe, NetBIOS
+        final ProtocolTower tower = ProtocolTower.fromBytes(Hex.decode("030001000b0200000001000f010000010011010000"));
+        assertEquals(tower.getTCPPort(), -1);
+    }
+
+    @Test(expectedExceptions = EOFException.class)
+    public void fromBytesTruncated() throws IOException {
+        ProtocolTower.fromBytes(Hex.decode("0500130000"));
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.bouncycastle.util.encoders.Hex;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import com.rapid7.client.dcerpc.io.ndr.Alignment;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class Test_ByteBufferPacketInput {
+
+    @Test(expectedExceptions = {IllegalArgumentException.class}, expectedExceptionsMessageRegExp = "Invalid ByteBuffer: null")
+    public void constructorNullByteBuffer() {
+        new ByteBufferPacketInput(null);
+    }
+
+    @DataProvider
+    public Object[][] data_align() {
+        return new Object[][] {
+                {Alignment.ONE, 1, 1, 1},
+                {Alignment.TWO, 2, 1, 2},
+                {Alignment.TWO, 2, 2, 2},
+                {Alignment.FOUR, 4, 0, 0},
+                {Alignment.FOUR, 4, 1, 4},
+                {Alignment.FOUR, 4, 3, 4},
+                {Alignment.EIGHT, 8, 1, 8},
+                {Alignment.EIGHT, 8, 7, 8},
+                {Alignment.EIGHT, 8, 8, 8},
+        };
+    }
+
+    @Test(dataProvider = "data_align")
+    public void test_align(Alignment alignment, int size, int offset, int expectedCount) throws IOException {
+        final PacketInput packetIn = new ByteBufferPacketInput(ByteBuffer.allocate(size));
+        packetIn.fullySkipBytes(offset);
+        packetIn.align(alignment);
+        assertEquals(expectedCount, packetIn.getCount());
+    }
+
+    @Test(expectedExceptions = {EOFException.class})
+    public void eof_align() throws IOException {
+        final PacketInput packetIn = new ByteBufferPacketInput(ByteBuffer.allocate(2));
+        packetIn.readByte();
+        packetIn.align(Alignment.FOUR);
+    }
+
+    @Test
+    public void getCountIsRelativeToStart() throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(Hex.decode("FFFF0100000002000000"));
+        buffer.position(2);
+        final PacketInput packetIn = new ByteBufferPacketInput(buffer);
+        assertEquals(0, packetIn.getCount());
+        assertEquals(1, packetIn.readInt());
+        assertEquals(4, packetIn.getCount());
+        packetIn.align(Alignment.EIGHT);
+        assertEquals(8, packetIn.getCount());
+        // The source buffer is left untouched
+        assertEquals(2, buffer.position());
+        assertEquals(ByteOrder.BIG_ENDIAN, buffer.order());
+    }
+
+    @Test
+    public void offsetAndLength() throws IOException {
+        final PacketInput packetIn = new ByteBufferPacketInput(Hex.decode("FF0102FF"), 1, 2);
+        assertEquals(0x0201, packetIn.readShort());
+        assertEquals(2, packetIn.getCount());
+    }
+
+    @Test(expectedExceptions = {EOFException.class})
+    public void eof_limit() throws IOException {
+        new ByteBufferPacketInput(Hex.decode("0102030405"), 0, 3).readInt();
+    }
+
+    @Test(expectedExceptions = {EOFException.class})
+    public void eof_readFully() throws IOException {
+        getPacketInput("00").readFully(new byte[2]);
+    }
+
+    @Test(expectedExceptions = {EOFException.class})
+    public void eof_fullySkipBytes() throws IOException {
+        getPacketInput("00").fullySkipBytes(2);
+    }
+
+    @Test(expectedExceptions = {EOFException.class}, expectedExceptionsMessageRegExp = "Invalid skip length: -1")
+    public void fullySkipBytesNegative() throws IOException {
+        final PacketInput packetIn = getPacketInput("0001");
+        packetIn.readByte();
+        packetIn.fullySkipBytes(-1);
+    }
+
+    @Test(expectedExceptions = {EOFException.class})
+    public void fullySkipBytesBeforeStart() throws IOException {
+        getPacketInput("0001").fullySkipBytes(-2);
+    }
+
+    @Test(expectedExceptions = {EOFException.class})
+    public void eof_readByte() throws IOException {
+        getPacketInput("").readByte();
+    }
+
+    @Test(expectedExceptions = {EOFException.class})
+    public void eof_readShort() throws IOException {
+        getPacketInput("00").readShort();
+    }
+
+    @Test(expectedExceptions = {EOFException.class})
+    public void eof_readChar() throws IOException {
+        getPacketInput("00").readChar();
+    }
+
+    @Test(expectedExceptions = {EOFException.class})
+    public void eof_readInt() throws IOException {
+        getPacketInput("000000").readInt();
+    }
+
+    @Test(expectedExceptions = {EOFException.class})
+    public void eof_readLong() throws IOException {
+        getPacketInput("00000000000000").readLong();
+    }
+
+    @Test
+    public void readPrimitives() throws IOException {
+        final PacketInput packetIn = getPacketInput("01" + "FF" + "0080" + "FFFF" + "4100" + "00010203" + "FFFFFFFF" + "0001020304050607" + "0000803F" + "000000000000F03F");
+        assertEquals(true, packetIn.readBoolean());
+        assertEquals((char) 0xFF, packetIn.readUnsignedByte());
+        assertEquals(Short.MIN_VALUE, packetIn.readShort());
+        assertEquals(0xFFFF, packetIn.readUnsignedShort());
+        assertEquals('A', packetIn.readChar());
+        assertEquals(50462976, packetIn.readInt());
+        assertEquals(0xFFFFFFFFL, packetIn.readUnsignedInt());
+        assertEquals(506097522914230528L, packetIn.readLong());
+        assertEquals(1.0f, packetIn.readFloat(), 0.0f);
+        assertEquals(1.0d, packetIn.readDouble(), 0.0d);
+        assertEquals(36, packetIn.getCount());
+    }
+
+    @Test
+    public void readRawBytes() throws IOException {
+        final PacketInput packetIn = getPacketInput("0001020304");
+        packetIn.fullySkipBytes(1);
+        assertArrayEquals(new byte[]{0x01, 0x02, 0x03}, packetIn.readRawBytes(3));
+        assertEquals(4, packetIn.getCount());
+    }
+
+    @Test
+    public void directBuffer() throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(8);
+        buffer.put(Hex.decode("0100000002000000"));
+        buffer.flip();
+        final PacketInput packetIn = new ByteBufferPacketInput(buffer);
+        assertEquals(1, packetIn.readInt());
+        assertEquals(2, packetIn.readInt());
+    }
+
+    private PacketInput getPacketInput(final String hexString) {
+        return new ByteBufferPacketInput(ByteBuffer.wrap(Hex.decode(hexString)));
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.bouncycastle.util.encoders.Hex;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import com.rapid7.client.dcerpc.io.ndr.Alignment;
+
+import static org.junit.Assert.assertEquals;
+
+public class Test_ByteBufferPacketOutput {
+
+    @Test(expectedExceptions = {IllegalArgumentException.class}, expectedExceptionsMessageRegExp = "Invalid ByteBuffer: null")
+    public void constructorNullByteBuffer() {
+        new ByteBufferPacketOutput(null);
+    }
+
+    @DataProvider
+    public Object[][] data_align() {
+        return new Object[][] {
+                {Alignment.ONE, "FF", "FF"},
+                {Alignment.TWO, "FF", "FF00"},
+                {Alignment.FOUR, "FFFF", "FFFF0000"},
+                {Alignment.FOUR, "FFFFFFFF", "FFFFFFFF"},
+                {Alignment.EIGHT, "FF", "FF00000000000000"},
+                {Alignment.EIGHT, "FFFFFFFFFFFFFF", "FFFFFFFFFFFFFF00"},
+        };
+    }
+
+    @Test(dataProvider = "data_align")
+    public void test_align(Alignment alignment, String hex, String expectHex) throws IOException {
+        final ByteBufferPacketOutput packetOut = new ByteBufferPacketOutput(ByteBuffer.allocate(2));
+        packetOut.write(Hex.decode(hex));
+        packetOut.align(alignment);
+        assertEquals(expectHex, toHexString(packetOut.getBuffer(), 0));
+    }
+
+    @Test
+    public void alignRelativeToStart() throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.position(3);
+        final ByteBufferPacketOutput packetOut = new ByteBufferPacketOutput(buffer);
+        packetOut.writeByte(0xFF);
+        packetOut.align(Alignment.FOUR);
+        assertEquals(4, packetOut.getCount());
+        assertEquals("FF000000", toHexString(packetOut.getBuffer(), 3));
+    }
+
+    @Test
+    public void matchesStreamOutput() throws IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final ByteBufferPacketOutput bufferOut = new ByteBufferPacketOutput(ByteBuffer.allocate(1));
+        for (final PacketOutput packetOut : Arrays.asList(new PacketOutput(outputStream), bufferOut)) {
+            packetOut.writeBoolean(true);
+            packetOut.writeByte(0x80);
+            packetOut.writeShort(0x0102);
+            packetOut.writeChar('A');
+            packetOut.writeInt(0x01020304);
+            packetOut.writeInt(0xFFFFFFFFL);
+            packetOut.writeLong(0x0102030405060708L);
+            packetOut.writeFloat(1.0f);
+            packetOut.writeDouble(1.0d);
+            packetOut.writeBytes("ab");
+            packetOut.writeChars("ab");
+            packetOut.writeReferentID();
+            packetOut.pad(3);
+            packetOut.write(0x7F);
+            packetOut.write(new byte[]{0x01, 0x02, 0x03}, 1, 2);
+        }
+        assertEquals(Hex.toHexString(outputStream.toByteArray()).toUpperCase(), toHexString(bufferOut.getBuffer(), 0));
+        assertEquals(outputStream.size(), bufferOut.getCount());
+    }
+
+    @Test
+    public void growPreservesReservedHeader() throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.put(new byte[]{0x01, 0x02});
+        final ByteBufferPacketOutput packetOut = new ByteBufferPacketOutput(buffer);
+        packetOut.writeInt(0x06050403);
+        packetOut.writeLong(0);
+        assertEquals(12, packetOut.getCount());
+        assertEquals("0102030405060000000000000000", toHexString(packetOut.getBuffer(), 0));
+        assertEquals(14, packetOut.getBuffer().position());
+    }
+
+    @Test
+    public void overflowAndDiscard() throws IOException {
+        final ByteArrayOutputStream consumed = new ByteArrayOutputStream();
+        final ByteBuffer buffer = ByteBuffer.allocate(5);
+        buffer.position(1);
+        final ByteBufferPacketOutput packetOut = new ByteBufferPacketOutput(buffer) {
+            @Override
+            protected void overflow() {
+                consumed.write(getBuffer().array(), 1, getBuffer().position() - 1);
+                discard();
+            }
+        };
+        packetOut.writeShort(0x0201);
+        packetOut.writeByte(0x03);
+        // Split across the boundary
+        packetOut.writeInt(0x07060504);
+        packetOut.align(Alignment.EIGHT);
+        assertEquals(8, packetOut.getCount());
+        consumed.write(packetOut.getBuffer().array(), 1, packetOut.getBuffer().position() - 1);
+        assertEquals("0102030405060700", Hex.toHexString(consumed.toByteArray()).toUpperCase());
+    }
+
+    private static String toHexString(final ByteBuffer buffer, final int from) {
+        return Hex.toHexString(Arrays.copyOfRange(buffer.array(), from, buffer.position())).toUpperCase();
+    }
+}
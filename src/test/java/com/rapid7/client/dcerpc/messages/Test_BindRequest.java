@@ -19,8 +19,11 @@
 package com.rapid7.client.dcerpc.messages;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 import org.junit.Test;
 import com.rapid7.client.dcerpc.Interface;
+import com.rapid7.client.dcerpc.PDUType;
 
 import static org.junit.Assert.assertEquals;
 
@@ -46,4 +49,32 @@ public class Test_BindRequest {
         request.setCallID(1);
         assertEquals("05000b031000000048000000010000000010001000000000010000000000010001d08c334422f131aaaa90003800100301000000045d888aeb1cc9119fe808002b10486002000000", request.toHexString());
     }
+
+    @Test
+    public void requestMultipleContexts() throws IOException {
+        final BindRequest request = new BindRequest(4280, 4280, Arrays.asList(
+                new PresentationContext(0, Interface.LSASVC_V0_0, Interface.NDR_32BIT_V2),
+                new PresentationContext(1, Interface.SAMSVC_V1_0, Interface.NDR_32BIT_V2)));
+        request.setCallID(1);
+        assertEquals(116, request.getFragLength());
+        assertEquals("05000b03100000007400000001000000b810b8100000000002000000"
+                + "00000100785734123412cdabef000123456789ab00000000045d888aeb1cc9119fe808002b10486002000000"
+                + "01000100785734123412cdabef000123456789ac01000000045d888aeb1cc9119fe808002b10486002000000", request.toHexString());
+    }
+
+    @Test
+    public void alterContextRequest() throws IOException {
+        final AlterContextRequest request = new AlterContextRequest(4280, 4280, Collections.singletonList(
+                new PresentationContext(1, Interface.SAMSVC_V1_0, Interface.NDR_32BIT_V2)));
+        request.setCallID(2);
+        assertEquals(PDUType.ALTER_CONTEXT, request.getPDUType());
+        assertEquals("05000e03100000004800000002000000b810b8100000000001000000"
+                + "01000100785734123412cdabef000123456789ac01000000045d888aeb1cc9119fe808002b10486002000000",
+                request.toHexString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void requestNoContexts() {
+        new BindRequest(4280, 4280, Collections.<PresentationContext>emptyList());
+    }
 }
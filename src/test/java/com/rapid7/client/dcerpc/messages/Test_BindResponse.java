@@ -19,7 +19,10 @@
 package com.rapid7.client.dcerpc.messages;
 
 import java.io.IOException;
+import java.util.EnumSet;
 import org.junit.Test;
+import com.rapid7.client.dcerpc.PDUType;
+import com.rapid7.client.dcerpc.PFCFlag;
 
 import static org.junit.Assert.*;
 
@@ -52,4 +55,47 @@ public class Test_BindResponse {
         assertEquals(4096, response.getMaxXmitFrag());
         assertEquals(4096, response.getMaxRecvFrag());
     }
+
+    @Test
+    public void ackResults() throws IOException {
+        final BindResponse response = new BindResponse();
+
+        response.fromHexString("05000c0310000000440000000100000000100010a52100000d005c504950455c77696e72656700000100000000000000045d888aeb1cc9119fe808002b10486002000000");
+
+        assertEquals(0x21a5, response.getAssocGroupID());
+        assertArrayEquals(new int[]{BindResponse.ACCEPTANCE}, response.getResults());
+        assertTrue(response.isAccepted(0));
+        assertFalse(response.isAccepted(1));
+    }
+
+    @Test
+    public void alterContextResponse() throws IOException {
+        // Alter_context_resp, two results: provider rejection (abstract syntax not supported), acceptance
+        final BindResponse response = new BindResponse();
+
+        response.fromHexString("05000f0310000000500000000200000000100010a52100000000000002000000"
+                + "020001000000000000000000000000000000000000000000"
+                + "00000000045d888aeb1cc9119fe808002b10486002000000");
+
+        assertTrue(response.isACK());
+        assertArrayEquals(new int[]{2, BindResponse.ACCEPTANCE}, response.getResults());
+        assertFalse(response.isAccepted(0));
+        assertTrue(response.isAccepted(1));
+    }
+
+    @Test
+    public void marshalResults() throws IOException {
+        final BindResponse response = new BindResponse();
+        response.setPDUType(PDUType.BIND_ACK);
+        response.setPFCFlags(EnumSet.of(PFCFlag.FIRST_FRAGMENT));
+        response.setAssocGroupID(0x21a5);
+        response.setResults(new int[]{BindResponse.ACCEPTANCE, 2});
+
+        final BindResponse parsed = new BindResponse();
+        parsed.fromHexString(response.toHexString());
+
+        assertEquals(80, parsed.getFragLength());
+        assertEquals(0x21a5, parsed.getAssocGroupID());
+        assertArrayEquals(new int[]{BindResponse.ACCEPTANCE, 2}, parsed.getResults());
+    }
 }
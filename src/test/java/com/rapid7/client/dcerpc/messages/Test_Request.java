@@ -18,13 +18,16 @@
  */
 package com.rapid7.client.dcerpc.messages;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.EnumSet;
+import org.bouncycastle.util.encoders.Hex;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import com.rapid7.client.dcerpc.PDUType;
 import com.rapid7.client.dcerpc.PFCFlag;
+import com.rapid7.client.dcerpc.io.PacketOutput;
 
 import static org.junit.Assert.*;
 
@@ -85,6 +88,43 @@ public class Test_Request {
         request.toHexString();
     }
 
+    @Test
+    public void marshalHeader() throws IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final Request request = new Request();
+
+        request.setPFCFlags(EnumSet.of(PFCFlag.FIRST_FRAGMENT));
+        request.setOpNum((short) 2);
+        request.marshalHeader(new PacketOutput(outputStream), 0x8000, 0);
+
+        assertEquals("050000011000000018800000000000000000000000000200", Hex.toHexString(outputStream.toByteArray()));
+        assertEquals(0x8018, request.getFragLength());
+    }
+
+    @Test
+    public void marshalHeaderContextID() throws IOException {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final Request request = new Request();
+
+        request.setPFCFlags(EnumSet.of(PFCFlag.FIRST_FRAGMENT, PFCFlag.LAST_FRAGMENT));
+        request.setContextID((short) 1);
+        request.setOpNum((short) 2);
+        request.marshalHeader(new PacketOutput(outputStream), 8, 8);
+
+        assertEquals("050000031000000020000000000000000800000001000200", Hex.toHexString(outputStream.toByteArray()));
+    }
+
+    @Test
+    public void marshalHeaderTooLarge() throws IOException {
+        thrown.expect(IllegalStateException.class);
+        thrown.expectMessage("Invalid fragment length: 65536");
+
+        final Request request = new Request();
+
+        request.setPFCFlags(EnumSet.of(PFCFlag.FIRST_FRAGMENT));
+        request.marshalHeader(new PacketOutput(new ByteArrayOutputStream()), 0xFFFF - 23, 0);
+    }
+
     @Test
     public void unmarshal() throws IOException {
         thrown.expect(UnsupportedOperationException.class);
@@ -18,13 +18,16 @@
  */
 package com.rapid7.client.dcerpc.messages;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.EnumSet;
+import org.bouncycastle.util.encoders.Hex;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import com.rapid7.client.dcerpc.PDUType;
 import com.rapid7.client.dcerpc.PFCFlag;
+import com.rapid7.client.dcerpc.io.PacketInput;
 
 import static org.junit.Assert.*;
 
@@ -72,4 +75,32 @@ public class Test_Response {
         assertEquals(1, response.getCallID());
         assertArrayEquals(new byte[0], response.getStub());
     }
+
+    @Test
+    public void unmarshalHeader() throws IOException {
+        final Response response = new Response();
+
+        response.fromHexString("05000203100000001c000000010000000000000000000000" + "01020304");
+        assertEquals(4, response.getStubLength());
+
+        final Response header = new Response();
+        final byte[] packetInBytes = Hex.decode("05000203100000001c000000010000000000000000000000" + "01020304");
+        final PacketInput packetIn = new PacketInput(new ByteArrayInputStream(packetInBytes));
+
+        header.unmarshalHeader(packetIn);
+
+        assertEquals(24, packetIn.getCount());
+        assertEquals(4, header.getStubLength());
+        assertNull(header.getStub());
+    }
+
+    @Test
+    public void getStubLengthInvalid() throws IOException {
+        thrown.expect(IOException.class);
+        thrown.expectMessage("Invalid fragment length: 16");
+
+        final Response response = new Response();
+        response.setFragLength((short) 16);
+        response.getStubLength();
+    }
 }
@@ -0,0 +1,419 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.msrrp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.rapid7.client.dcerpc.io.PacketInput;
+import com.rapid7.client.dcerpc.io.PacketOutput;
+import com.rapid7.client.dcerpc.io.ndr.Alignment;
+import com.rapid7.client.dcerpc.io.ndr.arrays.RPCConformantVaryingByteArray;
+import com.rapid7.client.dcerpc.messages.HandleResponse;
+import com.rapid7.client.dcerpc.messages.RequestCall;
+import com.rapid7.client.dcerpc.messages.RequestResponse;
+import com.rapid7.client.dcerpc.msrrp.dto.RegistryValueType;
+import com.rapid7.client.dcerpc.msrrp.messages.BaseRegCloseKey;
+import com.rapid7.client.dcerpc.msrrp.messages.BaseRegEnumKeyRequest;
+import com.rapid7.client.dcerpc.msrrp.messages.BaseRegEnumKeyResponse;
+import com.rapid7.client.dcerpc.msrrp.messages.BaseRegEnumValueRequest;
+import com.rapid7.client.dcerpc.msrrp.messages.BaseRegEnumValueResponse;
+import com.rapid7.client.dcerpc.msrrp.messages.BaseRegOpenKey;
+import com.rapid7.client.dcerpc.msrrp.messages.BaseRegQueryInfoKeyRequest;
+import com.rapid7.client.dcerpc.msrrp.messages.BaseRegQueryInfoKeyResponse;
+import com.rapid7.client.dcerpc.msrrp.messages.BaseRegQueryMultipleValues2Request;
+import com.rapid7.client.dcerpc.msrrp.messages.BaseRegQueryMultipleValues2Response;
+import com.rapid7.client.dcerpc.msrrp.messages.BaseRegQueryValueRequest;
+import com.rapid7.client.dcerpc.msrrp.messages.BaseRegQueryValueResponse;
+import com.rapid7.client.dcerpc.msrrp.messages.HandleRequest;
+import com.rapid7.client.dcerpc.objects.RPCUnicodeString;
+import com.rapid7.client.dcerpc.transport.RPCTransport;
+
+import static com.rapid7.client.dcerpc.mserref.SystemErrorCode.ERROR_ACCESS_DENIED;
+import static com.rapid7.client.dcerpc.mserref.SystemErrorCode.ERROR_FILE_NOT_FOUND;
+import static com.rapid7.client.dcerpc.mserref.SystemErrorCode.ERROR_MORE_DATA;
+import static com.rapid7.client.dcerpc.mserref.SystemErrorCode.ERROR_NO_MORE_ITEMS;
+import static com.rapid7.client.dcerpc.mserref.SystemErrorCode.ERROR_SUCCESS;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * An in-memory registry hive answering the winreg calls of {@link RegistryService} through a mocked transport,
+ * decoding the marshalled requests. Every hive opens the same tree.
+ */
+class FakeRegistry {
+    // 1970-01-01, the earliest a FileTime may be
+    private final static long LAST_WRITE_TIME = 116444736000000000L;
+    // Canonical path to the names of its subkeys, as created.
+    private final Map<String, List<String>> subKeys = new LinkedHashMap<>();
+    private final Map<String, List<String>> values = new HashMap<>();
+    private final Set<String> denied = new HashSet<>();
+    private final Set<String> enumerationDenied = new HashSet<>();
+    // Handle ID to canonical path
+    private final List<String> handles = new ArrayList<>();
+    private final AtomicInteger calls = new AtomicInteger();
+    private final AtomicInteger closes = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final AtomicInteger maxRequestedDataLength = new AtomicInteger();
+    private final List<Integer> requestedTotalSizes = new ArrayList<>();
+    private volatile long latencyMs;
+    private volatile boolean underreportSizes;
+    private volatile int requiredSize = -1;
+
+    FakeRegistry() {
+        subKeys.put("", new ArrayList<>());
+    }
+
+    /**
+     * Add a key, and any missing ancestor.
+     */
+    synchronized FakeRegistry key(final String keyPath, final String... valueNames) {
+        String parent = "";
+        for (final String name : keyPath.split("\\\\")) {
+            final String child = parent.isEmpty() ? name.toLowerCase() : parent + "\\" + name.toLowerCase();
+            if (!subKeys.containsKey(child)) {
+                subKeys.get(parent).add(name);
+                subKeys.put(child, new ArrayList<>());
+            }
+            parent = child;
+        }
+        values.computeIfAbsent(parent, path -> new ArrayList<>()).addAll(Arrays.asList(valueNames));
+        return this;
+    }
+
+    /**
+     * Deny opening a key.
+     */
+    synchronized FakeRegistry deny(final String keyPath) {
+        denied.add(keyPath.toLowerCase());
+        return this;
+    }
+
+    /**
+     * Deny enumerating the subkeys of a key, while still allowing it to be opened and queried.
+     */
+    synchronized FakeRegistry denyEnumeration(final String keyPath) {
+        enumerationDenied.add(keyPath.toLowerCase());
+        return this;
+    }
+
+    /**
+     * Delay every answer, as a network round trip would.
+     */
+    FakeRegistry withLatency(final long latencyMs) {
+        this.latencyMs = latencyMs;
+        return this;
+    }
+
+    /**
+     * Report the longest names and data of every key as 0, as if they grew since.
+     */
+    FakeRegistry withUnderreportedSizes() {
+        underreportSizes = true;
+        return this;
+    }
+
+    /**
+     * Report the given size as required by BaseRegQueryMultipleValues2 on ERROR_MORE_DATA, rather than the actual one.
+     */
+    FakeRegistry withRequiredSize(final int requiredSize) {
+        this.requiredSize = requiredSize;
+        return this;
+    }
+
+    /**
+     * @return The largest data buffer requested by BaseRegEnumValue.
+     */
+    int getMaxRequestedDataLength() {
+        return maxRequestedDataLength.get();
+    }
+
+    /**
+     * @return The size of every value buffer requested by BaseRegQueryMultipleValues2, in order.
+     */
+    synchronized List<Integer> getRequestedTotalSizes() {
+        return new ArrayList<>(requestedTotalSizes);
+    }
+
+    /**
+     * @return The most calls answered at once, over every transport.
+     */
+    int getMaxConcurrentCalls() {
+        return maxInFlight.get();
+    }
+
+    int getCallCount() {
+        return calls.get();
+    }
+
+    int getCloseCount() {
+        return closes.get();
+    }
+
+    RPCTransport newTransport() throws IOException {
+        final RPCTransport transport = mock(RPCTransport.class);
+        when(transport.call(any(RequestCall.class)))
+                .thenAnswer(invocation -> answer((RequestCall<?>) invocation.getArguments()[0]));
+        when(transport.callAsync(any(RequestCall.class)))
+                .thenAnswer(invocation -> CompletableFuture.completedFuture(
+                        answer((RequestCall<?>) invocation.getArguments()[0])));
+        return transport;
+    }
+
+    private RequestResponse answer(final RequestCall<?> request) throws IOException {
+        calls.incrementAndGet();
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        try {
+            if (latencyMs > 0) {
+                Thread.sleep(latencyMs);
+            }
+            return answerNow(request);
+        } catch (final InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new IOException(exception);
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private RequestResponse answerNow(final RequestCall<?> request) throws IOException {
+        final ByteBuffer stub = marshal(request);
+        if (request instanceof HandleRequest) {
+            return handleResponse(open(""));
+        }
+        if (request instanceof BaseRegCloseKey) {
+            closes.incrementAndGet();
+            return handleResponse(-1);
+        }
+        final String keyPath = path(stub);
+        if (request instanceof BaseRegOpenKey) {
+            final int length = stub.getShort(20);
+            final String name = new String(stub.array(), 40, length - 2, StandardCharsets.UTF_16LE).toLowerCase();
+            final String child = keyPath.isEmpty() ? name : keyPath + "\\" + name;
+            if (!exists(child)) {
+                return error(HandleResponse.class, ERROR_FILE_NOT_FOUND.getValue());
+            } else if (isDenied(child)) {
+                return error(HandleResponse.class, ERROR_ACCESS_DENIED.getValue());
+            }
+            return handleResponse(open(child));
+        }
+        if (request instanceof BaseRegQueryInfoKeyRequest) {
+            final BaseRegQueryInfoKeyResponse response = mock(BaseRegQueryInfoKeyResponse.class);
+            final List<String> subKeyNames = subKeys(keyPath);
+            final List<String> valueNames = values(keyPath);
+            final int maxLength = underreportSizes ? 0 : maxLength(subKeyNames, valueNames);
+            when(response.getSubKeys()).thenReturn(subKeyNames.size());
+            when(response.getMaxSubKeyLen()).thenReturn(maxLength);
+            when(response.getValues()).thenReturn(valueNames.size());
+            when(response.getMaxValueNameLen()).thenReturn(maxLength);
+            when(response.getMaxValueLen()).thenReturn(maxLength);
+            when(response.getReturnValue()).thenReturn(ERROR_SUCCESS.getValue());
+            return response;
+        }
+        if (request instanceof BaseRegQueryValueRequest) {
+            final String name = new String(stub.array(), 40, stub.getShort(20) - 2, StandardCharsets.UTF_16LE);
+            if (!values(keyPath).contains(name)) {
+                return error(BaseRegQueryValueResponse.class, ERROR_FILE_NOT_FOUND.getValue());
+            }
+            final RPCConformantVaryingByteArray data = mock(RPCConformantVaryingByteArray.class);
+            when(data.getArray()).thenReturn(name.getBytes(StandardCharsets.UTF_8));
+            final BaseRegQueryValueResponse response = mock(BaseRegQueryValueResponse.class);
+            when(response.getType()).thenReturn(RegistryValueType.REG_BINARY.getTypeID());
+            when(response.getData()).thenReturn(data);
+            when(response.getReturnValue()).thenReturn(ERROR_SUCCESS.getValue());
+            return response;
+        }
+        if (request instanceof BaseRegQueryMultipleValues2Request) {
+            return queryMultipleValues(keyPath, stub);
+        }
+        final int index = stub.getInt(20);
+        // Name buffers are sized in bytes, including the null terminator.
+        final int nameChars = (stub.getShort(26) & 0xFFFF) / 2;
+        if (request instanceof BaseRegEnumKeyRequest) {
+            final List<String> names = subKeys(keyPath);
+            if (isEnumerationDenied(keyPath)) {
+                return error(BaseRegEnumKeyResponse.class, ERROR_ACCESS_DENIED.getValue());
+            } else if (index >= names.size()) {
+                return error(BaseRegEnumKeyResponse.class, ERROR_NO_MORE_ITEMS.getValue());
+            } else if (names.get(index).length() + 1 > nameChars) {
+                return error(BaseRegEnumKeyResponse.class, ERROR_MORE_DATA.getValue());
+            }
+            final BaseRegEnumKeyResponse response = mock(BaseRegEnumKeyResponse.class);
+            when(response.getLpNameOut()).thenReturn(RPCUnicodeString.NullTerminated.of(names.get(index)));
+            when(response.getLastWriteTime()).thenReturn(LAST_WRITE_TIME);
+            when(response.getReturnValue()).thenReturn(ERROR_SUCCESS.getValue());
+            return response;
+        }
+        if (request instanceof BaseRegEnumValueRequest) {
+            final List<String> names = values(keyPath);
+            if (index >= names.size()) {
+                return error(BaseRegEnumValueResponse.class, ERROR_NO_MORE_ITEMS.getValue());
+            }
+            // lpcbData, then lpcbLen
+            final int dataLength = stub.getInt(stub.limit() - 12);
+            maxRequestedDataLength.accumulateAndGet(dataLength, Math::max);
+            // The data of a value is its name.
+            if (names.get(index).length() + 1 > nameChars || names.get(index).length() > dataLength) {
+                return error(BaseRegEnumValueResponse.class, ERROR_MORE_DATA.getValue());
+            }
+            final RPCConformantVaryingByteArray data = mock(RPCConformantVaryingByteArray.class);
+            when(data.getArray()).thenReturn(names.get(index).getBytes(StandardCharsets.UTF_8));
+            final BaseRegEnumValueResponse response = mock(BaseRegEnumValueResponse.class);
+            when(response.getName()).thenReturn(RPCUnicodeString.NullTerminated.of(names.get(index)));
+            when(response.getType()).thenReturn(RegistryValueType.REG_BINARY.getTypeID());
+            when(response.getData()).thenReturn(data);
+            when(response.getReturnValue()).thenReturn(ERROR_SUCCESS.getValue());
+            return response;
+        }
+        throw new IOException("Unexpected request: " + request.getClass().getSimpleName());
+    }
+
+    private RequestResponse queryMultipleValues(final String keyPath, final ByteBuffer stub) throws IOException {
+        // val_listIn: the entries, then the value names they point to
+        final int count = stub.getInt(28);
+        final List<String> names = new ArrayList<>(count);
+        int position = 32 + 16 * count;
+        for (int i = 0; i < count; i++) {
+            final int actualCount = stub.getInt(position + 16);
+            names.add(new String(stub.array(), position + 20, (actualCount - 1) * 2, StandardCharsets.UTF_16LE));
+            position = (position + 20 + actualCount * 2 + 3) & ~3;
+        }
+        final int totalSize = stub.getInt(stub.limit() - 4);
+        synchronized (this) {
+            requestedTotalSizes.add(totalSize);
+        }
+        if (!values(keyPath).containsAll(names)) {
+            return error(BaseRegQueryMultipleValues2Response.class, ERROR_FILE_NOT_FOUND.getValue());
+        }
+        // The data of a value is its name.
+        final ByteArrayOutputStream valueBuffer = new ByteArrayOutputStream();
+        for (final String name : names) {
+            valueBuffer.write(name.getBytes(StandardCharsets.UTF_8));
+        }
+        final int requiredSize = valueBuffer.size();
+        if (requiredSize > totalSize) {
+            final BaseRegQueryMultipleValues2Response response = error(BaseRegQueryMultipleValues2Response.class,
+                    ERROR_MORE_DATA.getValue());
+            when(response.getRequiredSize()).thenReturn(this.requiredSize < 0 ? requiredSize : this.requiredSize);
+            return response;
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final PacketOutput packetOut = new PacketOutput(bytes);
+        packetOut.writeInt(count);
+        packetOut.writeInt(0);
+        packetOut.writeInt(count);
+        int offset = 0;
+        for (final String name : names) {
+            packetOut.writeReferentID();
+            packetOut.writeInt(name.length());
+            packetOut.writeInt(offset);
+            packetOut.writeInt(RegistryValueType.REG_BINARY.getTypeID());
+            offset += name.length();
+        }
+        for (final String name : names) {
+            packetOut.writeMarshallable(RPCUnicodeString.NullTerminated.of(name));
+        }
+        packetOut.align(Alignment.FOUR);
+        packetOut.writeReferentID();
+        final RPCConformantVaryingByteArray data = new RPCConformantVaryingByteArray();
+        data.setArray(Arrays.copyOf(valueBuffer.toByteArray(), totalSize));
+        packetOut.writeMarshallable(data);
+        packetOut.align(Alignment.FOUR);
+        packetOut.writeInt(requiredSize);
+        packetOut.writeInt(ERROR_SUCCESS.getValue());
+        final BaseRegQueryMultipleValues2Response response = new BaseRegQueryMultipleValues2Response();
+        response.unmarshal(new PacketInput(new ByteArrayInputStream(bytes.toByteArray())));
+        return response;
+    }
+
+    private static int maxLength(final List<String> subKeyNames, final List<String> valueNames) {
+        int maxLength = 0;
+        for (final String name : subKeyNames) {
+            maxLength = Math.max(maxLength, name.length());
+        }
+        for (final String name : valueNames) {
+            maxLength = Math.max(maxLength, name.length());
+        }
+        return maxLength;
+    }
+
+    private synchronized boolean exists(final String keyPath) {
+        return subKeys.containsKey(keyPath);
+    }
+
+    private synchronized boolean isDenied(final String keyPath) {
+        return denied.contains(keyPath);
+    }
+
+    private synchronized boolean isEnumerationDenied(final String keyPath) {
+        return enumerationDenied.contains(keyPath);
+    }
+
+    private synchronized List<String> subKeys(final String keyPath) {
+        return new ArrayList<>(subKeys.get(keyPath));
+    }
+
+    private synchronized List<String> values(final String keyPath) {
+        return new ArrayList<>(values.getOrDefault(keyPath, new ArrayList<>()));
+    }
+
+    private synchronized int open(final String keyPath) {
+        handles.add(keyPath);
+        return handles.size() - 1;
+    }
+
+    private synchronized String path(final ByteBuffer stub) {
+        return handles.get(stub.getInt(0));
+    }
+
+    private static ByteBuffer marshal(final RequestCall<?> request) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        request.marshal(new PacketOutput(bytes));
+        return ByteBuffer.wrap(bytes.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static HandleResponse handleResponse(final int id) {
+        final HandleResponse response = mock(HandleResponse.class);
+        when(response.getHandle()).thenReturn(ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN).putInt(id).array());
+        when(response.getReturnValue()).thenReturn(ERROR_SUCCESS.getValue());
+        return response;
+    }
+
+    private static <T extends RequestResponse> T error(final Class<T> responseClass, final int returnValue) {
+        final T response = mock(responseClass);
+        when(response.getReturnValue()).thenReturn(returnValue);
+        return response;
+    }
+}
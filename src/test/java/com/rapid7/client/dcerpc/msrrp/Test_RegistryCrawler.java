@@ -0,0 +1,124 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.msrrp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.testng.annotations.Test;
+import com.rapid7.client.dcerpc.RPCException;
+import com.rapid7.client.dcerpc.mserref.SystemErrorCode;
+import com.rapid7.client.dcerpc.transport.RPCTransport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class Test_RegistryCrawler {
+
+    @Test
+    public void crawlMatchesWalk() throws IOException {
+        final FakeRegistry registry = tree(new FakeRegistry().withLatency(2));
+        final List<String> walked = new ArrayList<>();
+        new RegistryService(registry.newTransport()).walk("HKLM", "Software", (keyPath, keyInfo, values) -> {
+            walked.add(keyPath + values.size());
+            return RegistryVisitResult.CONTINUE;
+        });
+
+        final List<String> crawled = new ArrayList<>();
+        try (final RegistryCrawler crawler = new RegistryCrawler(transports(registry, 4))) {
+            for (final RegistryCrawler.Entry entry : crawler.crawl("HKLM", "Software")) {
+                assertNull(entry.getFailure());
+                crawled.add(entry.getKeyPath() + entry.getValues().size());
+            }
+        }
+
+        assertEquals(1 + 4 + 4 * 4, crawled.size());
+        assertEquals(walked, crawled);
+        assertTrue(registry.getMaxConcurrentCalls() > 1);
+        assertTrue(registry.getMaxConcurrentCalls() <= 4);
+    }
+
+    @Test
+    public void crawlPruned() throws IOException {
+        final FakeRegistry registry = tree(new FakeRegistry());
+        try (final RegistryCrawler crawler = new RegistryCrawler(transports(registry, 2))) {
+            final List<RegistryCrawler.Entry> entries = crawler.crawl("HKLM", "Software", 1,
+                    keyPath -> keyPath.endsWith("Key0"));
+            assertEquals(4, entries.size());
+            assertEquals("Software", entries.get(0).getKeyPath());
+            assertEquals("Software\\Key1", entries.get(1).getKeyPath());
+        }
+    }
+
+    @Test
+    public void crawlFailedKey() throws IOException {
+        final FakeRegistry registry = tree(new FakeRegistry()).deny("Software\\Key2");
+        try (final RegistryCrawler crawler = new RegistryCrawler(transports(registry, 2))) {
+            final List<RegistryCrawler.Entry> entries = crawler.crawl("HKLM", "Software");
+            assertEquals(1 + 4 + 3 * 4, entries.size());
+            final RegistryCrawler.Entry failed = entries.get(1 + 2 * 5);
+            assertEquals("Software\\Key2", failed.getKeyPath());
+            assertEquals(SystemErrorCode.ERROR_ACCESS_DENIED,
+                    ((RPCException) failed.getFailure()).getErrorCode());
+        }
+    }
+
+    @Test
+    public void crawlFailedEnumeration() throws IOException {
+        final FakeRegistry registry = tree(new FakeRegistry()).denyEnumeration("Software\\Key2");
+        try (final RegistryCrawler crawler = new RegistryCrawler(transports(registry, 2))) {
+            final List<RegistryCrawler.Entry> entries = crawler.crawl("HKLM", "Software");
+            assertEquals(1 + 4 + 3 * 4, entries.size());
+            final List<RegistryCrawler.Entry> failed = new ArrayList<>();
+            for (final RegistryCrawler.Entry entry : entries) {
+                if ("Software\\Key2".equals(entry.getKeyPath())) {
+                    failed.add(entry);
+                }
+            }
+            assertEquals(1, failed.size());
+            assertEquals(SystemErrorCode.ERROR_ACCESS_DENIED,
+                    ((RPCException) failed.get(0).getFailure()).getErrorCode());
+        }
+    }
+
+    @Test(expectedExceptions = {RPCException.class})
+    public void crawlMissingRoot() throws IOException {
+        try (final RegistryCrawler crawler = new RegistryCrawler(transports(new FakeRegistry(), 2))) {
+            crawler.crawl("HKLM", "Missing");
+        }
+    }
+
+    private static FakeRegistry tree(final FakeRegistry registry) {
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 4; j++) {
+                registry.key("Software\\Key" + i + "\\Key" + j, "Value");
+            }
+        }
+        return registry;
+    }
+
+    private static List<RPCTransport> transports(final FakeRegistry registry, final int count) throws IOException {
+        final List<RPCTransport> transports = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            transports.add(registry.newTransport());
+        }
+        return transports;
+    }
+}
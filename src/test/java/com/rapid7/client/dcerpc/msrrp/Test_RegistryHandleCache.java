@@ -0,0 +1,152 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.msrrp;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import com.rapid7.client.dcerpc.msrrp.dto.RegistryHive;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class Test_RegistryHandleCache {
+    private final AtomicLong now = new AtomicLong();
+    private final AtomicInteger opens = new AtomicInteger();
+
+    @BeforeMethod
+    public void setUp() {
+        // TestNG shares the instance between tests.
+        now.set(0);
+        opens.set(0);
+    }
+
+    @Test
+    public void cachesPerHivePathAndAccess() throws IOException {
+        final RegistryHandleCache cache = newCache(16, 0, 1);
+
+        acquire(cache, RegistryHive.HKEY_LOCAL_MACHINE, "software", 1).close();
+        acquire(cache, RegistryHive.HKEY_CURRENT_USER, "software", 1).close();
+        acquire(cache, RegistryHive.HKEY_LOCAL_MACHINE, "software", 2).close();
+        final RegistryHandleCache.Lease lease = acquire(cache, RegistryHive.HKEY_LOCAL_MACHINE, "software", 1);
+        lease.close();
+
+        assertEquals(3, opens.get());
+        assertArrayEquals(handle(1), lease.getHandle());
+        assertEquals(0, cache.drainClosable(true).size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws IOException {
+        final RegistryHandleCache cache = newCache(2, 0, 1);
+
+        acquire(cache, RegistryHive.HKEY_LOCAL_MACHINE, "a", 1).close();
+        acquire(cache, RegistryHive.HKEY_LOCAL_MACHINE, "b", 1).close();
+        acquire(cache, RegistryHive.HKEY_LOCAL_MACHINE, "a", 1).close();
+        acquire(cache, RegistryHive.HKEY_LOCAL_MACHINE, "c", 1).close();
+
+        assertEquals(2, cache.size());
+        assertHandles(cache.drainClosable(false), 2);
+        acquire(cache, RegistryHive.HKEY_LOCAL_MACHINE, "a", 1).close();
+        assertEquals(3, opens.get());
+    }
+
+    @Test
+    public void neverClosesLeasedHandles() throws IOException {
+        final RegistryHandleCache cache = newCache(1, 0, 1);
+
+        final RegistryHandleCache.Lease lease = acquire(cache, RegistryHive.HKEY_LOCAL_MACHINE, "a", 1);
+        acquire(cache, RegistryHive.HKEY_LOCAL_MACHINE, "b", 1).close();
+        // Over capacity, but "a" is in use.
+        assertEquals(2, cache.size());
+        acquire(cache, RegistryHive.HKEY_LOCAL_MACHINE, "c", 1).close();
+        assertHandles(cache.drainClosable(true), 2);
+
+        cache.close();
+        assertHandles(cache.drainClosable(true), 3);
+        lease.close();
+        assertHandles(cache.drainClosable(true), 1);
+    }
+
+    @Test
+    public void evictsIdleHandles() throws IOException {
+        final RegistryHandleCache cache = newCache(16, 60, 1);
+
+        acquire(cache, RegistryHive.HKEY_LOCAL_MACHINE, "a", 1).close();
+        now.addAndGet(TimeUnit.SECONDS.toNanos(30));
+        acquire(cache, RegistryHive.HKEY_LOCAL_MACHINE, "b", 1).close();
+        now.addAndGet(TimeUnit.SECONDS.toNanos(30));
+
+        assertHandles(cache.drainClosable(false), 1);
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void closesInBatches() throws IOException {
+        final RegistryHandleCache cache = newCache(1, 0, 3);
+
+        for (final String path : new String[]{"a", "b", "c"}) {
+            acquire(cache, RegistryHive.HKEY_LOCAL_MACHINE, path, 1).close();
+            assertTrue(cache.drainClosable(false).isEmpty());
+        }
+        acquire(cache, RegistryHive.HKEY_LOCAL_MACHINE, "d", 1).close();
+        assertHandles(cache.drainClosable(false), 1, 2, 3);
+    }
+
+    @Test(expectedExceptions = {IOException.class}, expectedExceptionsMessageRegExp = "RegistryService closed.")
+    public void closed() throws IOException {
+        final RegistryHandleCache cache = newCache(16, 0, 1);
+        cache.close();
+        acquire(cache, RegistryHive.HKEY_LOCAL_MACHINE, "a", 1);
+    }
+
+    @Test(expectedExceptions = {IllegalArgumentException.class},
+            expectedExceptionsMessageRegExp = "Invalid maxHandles: 0")
+    public void invalidMaxHandles() {
+        newCache(0, 0, 1);
+    }
+
+    private RegistryHandleCache newCache(final int maxHandles, final long idleTimeoutSeconds, final int batchSize) {
+        return new RegistryHandleCache(maxHandles, idleTimeoutSeconds, TimeUnit.SECONDS, batchSize, now::get);
+    }
+
+    private RegistryHandleCache.Lease acquire(final RegistryHandleCache cache, final RegistryHive hive,
+            final String path, final int access) throws IOException {
+        return cache.acquire(hive, path, access, () -> handle(opens.incrementAndGet()));
+    }
+
+    private static void assertHandles(final List<byte[]> actual, final int... expected) {
+        assertEquals(expected.length, actual.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertTrue(Arrays.equals(handle(expected[i]), actual.get(i)));
+        }
+    }
+
+    private static byte[] handle(final int id) {
+        final byte[] handle = new byte[20];
+        handle[0] = (byte) id;
+        return handle;
+    }
+}
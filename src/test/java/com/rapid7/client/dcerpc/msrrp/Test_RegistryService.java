@@ -20,11 +20,21 @@
  */
 package com.rapid7.client.dcerpc.msrrp;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import org.bouncycastle.util.encoders.Hex;
+import org.mockito.ArgumentCaptor;
 import org.testng.annotations.Test;
+import com.google.common.base.Strings;
 import com.rapid7.client.dcerpc.RPCException;
+import com.rapid7.client.dcerpc.io.PacketOutput;
 import com.rapid7.client.dcerpc.io.ndr.arrays.RPCConformantVaryingByteArray;
 import com.rapid7.client.dcerpc.messages.HandleResponse;
 import com.rapid7.client.dcerpc.messages.RequestCall;
@@ -33,6 +43,7 @@ import com.rapid7.client.dcerpc.msrrp.dto.RegistryKey;
 import com.rapid7.client.dcerpc.msrrp.dto.RegistryKeyInfo;
 import com.rapid7.client.dcerpc.msrrp.dto.RegistryValue;
 import com.rapid7.client.dcerpc.msrrp.dto.RegistryValueType;
+import com.rapid7.client.dcerpc.msrrp.messages.BaseRegCloseKey;
 import com.rapid7.client.dcerpc.msrrp.messages.BaseRegEnumKeyResponse;
 import com.rapid7.client.dcerpc.msrrp.messages.BaseRegEnumValueResponse;
 import com.rapid7.client.dcerpc.msrrp.messages.BaseRegQueryInfoKeyResponse;
@@ -47,9 +58,12 @@ import static com.rapid7.client.dcerpc.mserref.SystemErrorCode.ERROR_SUCCESS;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -969,7 +983,7 @@ public class Test_RegistryService {
         when(hiveResponse.getHandle()).thenReturn(Hex.decode("01234567"));
         when(hiveResponse.getReturnValue()).thenReturn(ERROR_SUCCESS.getValue());
 
-        final byte[] handle = registryService.openHive("HKLM");
+        final byte[] handle = registryService.openHive("HKLM").getHandle();
 
         assertArrayEquals(Hex.decode("01234567"), handle);
 
@@ -988,7 +1002,7 @@ public class Test_RegistryService {
 
         when(transport.call(any(RequestCall.class))).thenReturn(hiveResponse);
         when(hiveResponse.getReturnValue()).thenReturn(ERROR_FILE_NOT_FOUND.getValue());
-        registryService.openKey("HKLM", "key");
+        registryService.openKey("HKLM", "key").close();
     }
 
     @Test
@@ -1001,8 +1015,8 @@ public class Test_RegistryService {
         when(hiveResponse.getHandle()).thenReturn(Hex.decode("01234567"));
         when(hiveResponse.getReturnValue()).thenReturn(ERROR_SUCCESS.getValue());
 
-        final byte[] handle1 = registryService.openHive("HKLM");
-        final byte[] handle2 = registryService.openHive("HKLM");
+        final byte[] handle1 = registryService.openHive("HKLM").getHandle();
+        final byte[] handle2 = registryService.openHive("HKLM").getHandle();
 
         assertArrayEquals(Hex.decode("01234567"), handle1);
         assertArrayEquals(Hex.decode("01234567"), handle2);
@@ -1026,8 +1040,8 @@ public class Test_RegistryService {
         when(hiveResponse2.getHandle()).thenReturn(Hex.decode("22222222"));
         when(hiveResponse2.getReturnValue()).thenReturn(ERROR_SUCCESS.getValue());
 
-        final byte[] handle1 = registryService.openHive("HKLM");
-        final byte[] handle2 = registryService.openHive("HKU");
+        final byte[] handle1 = registryService.openHive("HKLM").getHandle();
+        final byte[] handle2 = registryService.openHive("HKU").getHandle();
 
         assertArrayEquals(Hex.decode("11111111"), handle1);
         assertArrayEquals(Hex.decode("22222222"), handle2);
@@ -1045,7 +1059,7 @@ public class Test_RegistryService {
     public void openHiveWithEmptyHiveName() throws IOException {
         final RPCTransport transport = mock(RPCTransport.class);
         final RegistryService registryService = new RegistryService(transport);
-        registryService.openHive("");
+        registryService.openHive("").close();
     }
 
     @Test(expectedExceptions = {IllegalArgumentException.class},
@@ -1053,7 +1067,7 @@ public class Test_RegistryService {
     public void openHiveWithNullHiveName() throws IOException {
         final RPCTransport transport = mock(RPCTransport.class);
         final RegistryService registryService = new RegistryService(transport);
-        registryService.openHive(null);
+        registryService.openHive(null).close();
     }
 
     @Test
@@ -1069,7 +1083,7 @@ public class Test_RegistryService {
         when(keyResponse.getHandle()).thenReturn(Hex.decode("01234567"));
         when(keyResponse.getReturnValue()).thenReturn(ERROR_SUCCESS.getValue());
 
-        final byte[] handle = registryService.openKey("HKLM", "key");
+        final byte[] handle = registryService.openKey("HKLM", "key").getHandle();
 
         assertArrayEquals(Hex.decode("01234567"), handle);
 
@@ -1090,7 +1104,7 @@ public class Test_RegistryService {
 
         when(transport.call(any(RequestCall.class))).thenReturn(hiveResponse);
         when(hiveResponse.getReturnValue()).thenReturn(ERROR_FILE_NOT_FOUND.getValue());
-        registryService.openKey("HKLM", "key");
+        registryService.openKey("HKLM", "key").close();
     }
 
     @Test(expectedExceptions = {RPCException.class},
@@ -1105,7 +1119,7 @@ public class Test_RegistryService {
         when(hiveResponse.getHandle()).thenReturn(Hex.decode("76543210"));
         when(hiveResponse.getReturnValue()).thenReturn(ERROR_SUCCESS.getValue());
         when(keyResponse.getReturnValue()).thenReturn(ERROR_FILE_NOT_FOUND.getValue());
-        registryService.openKey("HKLM", "key");
+        registryService.openKey("HKLM", "key").close();
     }
 
     @Test
@@ -1121,8 +1135,8 @@ public class Test_RegistryService {
         when(keyResponse.getHandle()).thenReturn(Hex.decode("01234567"));
         when(keyResponse.getReturnValue()).thenReturn(ERROR_SUCCESS.getValue());
 
-        final byte[] handle1 = registryService.openKey("HKLM", "key");
-        final byte[] handle2 = registryService.openKey("HKLM", "key");
+        final byte[] handle1 = registryService.openKey("HKLM", "key").getHandle();
+        final byte[] handle2 = registryService.openKey("HKLM", "key").getHandle();
 
         assertArrayEquals(Hex.decode("01234567"), handle1);
         assertArrayEquals(Hex.decode("01234567"), handle2);
@@ -1151,8 +1165,8 @@ public class Test_RegistryService {
         when(keyResponse2.getHandle()).thenReturn(Hex.decode("22222222"));
         when(keyResponse2.getReturnValue()).thenReturn(ERROR_SUCCESS.getValue());
 
-        final byte[] handle1 = registryService.openKey("HKLM", "key1");
-        final byte[] handle2 = registryService.openKey("HKLM", "key2");
+        final byte[] handle1 = registryService.openKey("HKLM", "key1").getHandle();
+        final byte[] handle2 = registryService.openKey("HKLM", "key2").getHandle();
 
         assertArrayEquals(Hex.decode("11111111"), handle1);
         assertArrayEquals(Hex.decode("22222222"), handle2);
@@ -1172,7 +1186,7 @@ public class Test_RegistryService {
     public void openKeyWithEmptyHiveName() throws IOException {
         final RPCTransport transport = mock(RPCTransport.class);
         final RegistryService registryService = new RegistryService(transport);
-        registryService.openKey("", "key");
+        registryService.openKey("", "key").close();
     }
 
     @Test(expectedExceptions = {IllegalArgumentException.class},
@@ -1180,7 +1194,7 @@ public class Test_RegistryService {
     public void openKeyWithNullHiveName() throws IOException {
         final RPCTransport transport = mock(RPCTransport.class);
         final RegistryService registryService = new RegistryService(transport);
-        registryService.openKey(null, "key");
+        registryService.openKey(null, "key").close();
     }
 
     @Test
@@ -1193,7 +1207,7 @@ public class Test_RegistryService {
         when(hiveResponse.getHandle()).thenReturn(Hex.decode("76543210"));
         when(hiveResponse.getReturnValue()).thenReturn(ERROR_SUCCESS.getValue());
 
-        final byte[] handle = registryService.openKey("HKLM", "");
+        final byte[] handle = registryService.openKey("HKLM", "").getHandle();
 
         assertArrayEquals(Hex.decode("76543210"), handle);
 
@@ -1213,7 +1227,7 @@ public class Test_RegistryService {
         when(hiveResponse.getHandle()).thenReturn(Hex.decode("76543210"));
         when(hiveResponse.getReturnValue()).thenReturn(ERROR_SUCCESS.getValue());
 
-        final byte[] handle = registryService.openKey("HKLM", null);
+        final byte[] handle = registryService.openKey("HKLM", null).getHandle();
 
         assertArrayEquals(Hex.decode("76543210"), handle);
 
@@ -1222,4 +1236,356 @@ public class Test_RegistryService {
         verify(hiveResponse, times(1)).getReturnValue();
         verifyNoMoreInteractions(transport, hiveResponse);
     }
+
+    @Test
+    public void openKeyCachedPerHive() throws IOException {
+        final RPCTransport transport = mock(RPCTransport.class);
+        final HandleResponse response = mock(HandleResponse.class);
+        final RegistryService registryService = new RegistryService(transport);
+
+        when(transport.call(any(RequestCall.class))).thenReturn(response);
+        when(response.getReturnValue()).thenReturn(ERROR_SUCCESS.getValue());
+
+        registryService.openKey("HKLM", "software").close();
+        registryService.openKey("HKCU", "software").close();
+        registryService.openKey("HKLM", "software").close();
+
+        // Each hive, and the key in each hive.
+        verify(transport, times(4)).call(any(RequestCall.class));
+    }
+
+    @Test
+    public void evictedHandlesClosed() throws IOException {
+        final RPCTransport transport = mock(RPCTransport.class);
+        final HandleResponse response = mock(HandleResponse.class);
+        final RegistryService registryService = new RegistryService(transport, 2, 0, TimeUnit.SECONDS);
+
+        when(transport.call(any(RequestCall.class))).thenReturn(response);
+        when(transport.callAsync(any(BaseRegCloseKey.class)))
+                .thenReturn(CompletableFuture.completedFuture(response));
+        when(response.getReturnValue()).thenReturn(ERROR_SUCCESS.getValue());
+
+        for (int i = 0; i < 20; i++) {
+            registryService.openKey("HKLM", "key" + i).close();
+        }
+        // Evicted handles are closed in batches of 16.
+        verify(transport, times(16)).callAsync(any(BaseRegCloseKey.class));
+
+        registryService.close();
+        // The hive and 20 keys opened, all of them closed.
+        verify(transport, times(21)).call(any(RequestCall.class));
+        verify(transport, times(21)).callAsync(any(BaseRegCloseKey.class));
+    }
+
+    @Test
+    public void leasedHandleNotClosedWhenEvicted() throws IOException {
+        final RPCTransport transport = mock(RPCTransport.class);
+        final HandleResponse leasedResponse = mock(HandleResponse.class);
+        final HandleResponse response = mock(HandleResponse.class);
+        final RegistryService registryService = new RegistryService(transport, 2, 0, TimeUnit.SECONDS);
+        final List<String> closedHandles = new ArrayList<>();
+        final byte[] leasedHandle = new byte[20];
+        leasedHandle[0] = 1;
+
+        when(transport.call(any(RequestCall.class))).thenReturn(response, leasedResponse, response);
+        when(transport.callAsync(any(BaseRegCloseKey.class))).thenAnswer(invocation -> {
+            closedHandles.add(Hex.toHexString(((BaseRegCloseKey) invocation.getArguments()[0]).getStub()));
+            return CompletableFuture.completedFuture(response);
+        });
+        when(leasedResponse.getHandle()).thenReturn(leasedHandle);
+        when(leasedResponse.getReturnValue()).thenReturn(ERROR_SUCCESS.getValue());
+        when(response.getHandle()).thenReturn(new byte[20]);
+        when(response.getReturnValue()).thenReturn(ERROR_SUCCESS.getValue());
+
+        final RegistryHandle lease = registryService.openKey("HKLM", "key");
+        for (int i = 0; i < 40; i++) {
+            registryService.openKey("HKLM", "key" + i).close();
+        }
+        // The other keys were evicted and closed, but the leased key stays open.
+        assertFalse(closedHandles.isEmpty());
+        assertFalse(closedHandles.contains(Hex.toHexString(leasedHandle)));
+
+        lease.close();
+        registryService.close();
+        assertTrue(closedHandles.contains(Hex.toHexString(leasedHandle)));
+    }
+
+    @Test(expectedExceptions = {IOException.class}, expectedExceptionsMessageRegExp = "RegistryService closed.")
+    public void closed() throws IOException {
+        final RPCTransport transport = mock(RPCTransport.class);
+        final RegistryService registryService = new RegistryService(transport);
+        registryService.close();
+
+        verify(transport, never()).callAsync(any(RequestCall.class));
+        registryService.getValue("HKLM", "key", "value");
+    }
+
+    @Test
+    public void openKeyRelativeToCachedAncestor() throws IOException {
+        final RPCTransport transport = mock(RPCTransport.class);
+        final HandleResponse response = mock(HandleResponse.class);
+        final RegistryService registryService = new RegistryService(transport);
+
+        when(transport.call(any(RequestCall.class))).thenReturn(response);
+        when(response.getHandle()).thenReturn(new byte[20]);
+        when(response.getReturnValue()).thenReturn(ERROR_SUCCESS.getValue());
+
+        registryService.openKey("HKLM", "software").close();
+        registryService.openKey("HKLM", "software\\classes\\clsid").close();
+        registryService.openKey("HKLM", "software\\classes\\clsid\\{0}").close();
+
+        final ArgumentCaptor<RequestCall> captor = ArgumentCaptor.forClass(RequestCall.class);
+        verify(transport, times(4)).call(captor.capture());
+        final List<RequestCall> requests = captor.getAllValues();
+        assertEquals("software", subKeyName(requests.get(1)));
+        assertEquals("classes\\clsid", subKeyName(requests.get(2)));
+        assertEquals("{0}", subKeyName(requests.get(3)));
+    }
+
+    @Test
+    public void openSubKey() throws IOException {
+        final RPCTransport transport = mock(RPCTransport.class);
+        final HandleResponse response = mock(HandleResponse.class);
+        final RegistryService registryService = new RegistryService(transport);
+
+        when(transport.call(any(RequestCall.class))).thenReturn(response);
+        when(response.getHandle()).thenReturn(new byte[20]);
+        when(response.getReturnValue()).thenReturn(ERROR_SUCCESS.getValue());
+
+        registryService.openSubKey("HKLM", "Software\\Classes", "CLSID").close();
+        registryService.openSubKey("HKLM", "software\\classes", "clsid").close();
+        registryService.openKey("HKLM", "software\\classes\\clsid").close();
+
+        final ArgumentCaptor<RequestCall> captor = ArgumentCaptor.forClass(RequestCall.class);
+        verify(transport, times(3)).call(captor.capture());
+        final List<RequestCall> requests = captor.getAllValues();
+        assertEquals("software\\classes", subKeyName(requests.get(1)));
+        assertEquals("clsid", subKeyName(requests.get(2)));
+    }
+
+    @Test
+    public void walkDepthFirst() throws IOException {
+        final List<String> visited = new ArrayList<>();
+        final RegistryService registryService = new RegistryService(walkRegistry().newTransport());
+
+        registryService.walk("HKLM", "Software", (keyPath, keyInfo, values) -> {
+            visited.add(keyPath + values.size());
+            return RegistryVisitResult.CONTINUE;
+        });
+
+        assertEquals(Arrays.asList("Software0", "Software\\A2", "Software\\A\\A10", "Software\\A\\A20",
+                "Software\\B1"), visited);
+    }
+
+    @Test
+    public void walkBreadthFirst() throws IOException {
+        final List<String> visited = new ArrayList<>();
+        final RegistryService registryService = new RegistryService(walkRegistry().newTransport());
+
+        registryService.walk("HKLM", null, Integer.MAX_VALUE, RegistryWalkOrder.BREADTH_FIRST,
+                (keyPath, keyInfo, values) -> {
+                    visited.add(keyPath);
+                    return RegistryVisitResult.CONTINUE;
+                });
+
+        assertEquals(Arrays.asList("", "Software", "Software\\A", "Software\\B", "Software\\A\\A1",
+                "Software\\A\\A2"), visited);
+    }
+
+    @Test
+    public void walkPruned() throws IOException {
+        final FakeRegistry registry = walkRegistry();
+        final List<String> visited = new ArrayList<>();
+        final RegistryService registryService = new RegistryService(registry.newTransport());
+
+        registryService.walk("HKLM", "", 2, RegistryWalkOrder.DEPTH_FIRST, new RegistryVisitor() {
+            @Override
+            public RegistryVisitResult preVisitKey(final String keyPath, final RegistryKeyInfo keyInfo) {
+                return keyPath.endsWith("B") ? RegistryVisitResult.SKIP_SUBTREE : RegistryVisitResult.CONTINUE;
+            }
+
+            @Override
+            public RegistryVisitResult visitKey(final String keyPath, final RegistryKeyInfo keyInfo,
+                    final List<RegistryValue> values) {
+                visited.add(keyPath);
+                return RegistryVisitResult.CONTINUE;
+            }
+        });
+
+        assertEquals(Arrays.asList("", "Software", "Software\\A"), visited);
+        // The hive: open, BaseRegQueryInfoKey and BaseRegEnumKey until exhausted. Software: the same. A, at the
+        // maximum depth: BaseRegEnumValue until exhausted instead. B, pruned: open and BaseRegQueryInfoKey only.
+        assertEquals(4 + 5 + 5 + 2, registry.getCallCount());
+    }
+
+    @Test
+    public void walkFailedKey() throws IOException {
+        final List<String> visited = new ArrayList<>();
+        final List<String> failed = new ArrayList<>();
+        final RegistryService registryService = new RegistryService(walkRegistry().deny("Software\\A").newTransport());
+
+        registryService.walk("HKLM", "Software", new RegistryVisitor() {
+            @Override
+            public RegistryVisitResult visitKey(final String keyPath, final RegistryKeyInfo keyInfo,
+                    final List<RegistryValue> values) {
+                visited.add(keyPath);
+                return RegistryVisitResult.CONTINUE;
+            }
+
+            @Override
+            public RegistryVisitResult visitKeyFailed(final String keyPath, final IOException exception) {
+                failed.add(keyPath);
+                return RegistryVisitResult.CONTINUE;
+            }
+        });
+
+        assertEquals(Arrays.asList("Software", "Software\\B"), visited);
+        assertEquals(Arrays.asList("Software\\A"), failed);
+    }
+
+    @Test
+    public void walkTerminated() throws IOException {
+        final List<String> visited = new ArrayList<>();
+        final FakeRegistry registry = walkRegistry();
+        final RegistryService registryService = new RegistryService(registry.newTransport(), 1, 0, TimeUnit.SECONDS);
+
+        registryService.walk("HKLM", "Software", (keyPath, keyInfo, values) -> {
+            visited.add(keyPath);
+            return keyPath.endsWith("A1") ? RegistryVisitResult.TERMINATE : RegistryVisitResult.CONTINUE;
+        });
+        registryService.close();
+
+        assertEquals(Arrays.asList("Software", "Software\\A", "Software\\A\\A1"), visited);
+        // The hive, Software, A and A1: every handle of the walk was released, so closed.
+        assertEquals(4, registry.getCloseCount());
+    }
+
+    @Test
+    public void getValuesSized() throws IOException {
+        final FakeRegistry registry = walkRegistry();
+        final RegistryService registryService = new RegistryService(registry.newTransport());
+        registryService.setSizedEnumeration(true);
+
+        assertEquals(2, registryService.getValues("HKLM", "Software\\A").size());
+        assertEquals(2, registryService.getSubKeys("HKLM", "Software\\A").size());
+
+        assertEquals("Value1".length(), registry.getMaxRequestedDataLength());
+        // The hive and the key, then per enumeration BaseRegQueryInfoKey, the items, and the end.
+        assertEquals(2 + 4 + 4, registry.getCallCount());
+    }
+
+    @Test
+    public void getValuesSizedMoreData() throws IOException {
+        final FakeRegistry registry = walkRegistry().withUnderreportedSizes();
+        final RegistryService registryService = new RegistryService(registry.newTransport());
+        registryService.setSizedEnumeration(true);
+
+        assertEquals(2, registryService.getValues("HKLM", "Software\\A").size());
+
+        // The first value, retried after ERROR_MORE_DATA with sizes queried anew, which did not grow, and then with
+        // the maximum sizes.
+        assertEquals(1048576, registry.getMaxRequestedDataLength());
+        assertEquals(2 + 1 + 1 + 1 + 3, registry.getCallCount());
+    }
+
+    @Test
+    public void getValuesUnsized() throws IOException {
+        final FakeRegistry registry = walkRegistry();
+        final RegistryService registryService = new RegistryService(registry.newTransport());
+
+        assertEquals(2, registryService.getValues("HKLM", "Software\\A").size());
+
+        assertEquals(1048576, registry.getMaxRequestedDataLength());
+        assertEquals(2 + 3, registry.getCallCount());
+    }
+
+    @Test
+    public void getValuesByName() throws IOException {
+        final FakeRegistry registry = walkRegistry();
+        final RegistryService registryService = new RegistryService(registry.newTransport());
+
+        final List<RegistryValue> values = registryService.getValues("HKLM", "Software\\A", "Value2", "Value1");
+
+        assertEquals(2, values.size());
+        assertEquals("Value2", values.get(0).getName());
+        assertEquals(RegistryValueType.REG_BINARY, values.get(0).getType());
+        assertArrayEquals("Value2".getBytes(StandardCharsets.UTF_8), values.get(0).getData());
+        assertEquals("Value1", values.get(1).getName());
+        assertArrayEquals("Value1".getBytes(StandardCharsets.UTF_8), values.get(1).getData());
+        assertEquals(Arrays.asList(512), registry.getRequestedTotalSizes());
+        // The hive and the key, then a single BaseRegQueryMultipleValues2.
+        assertEquals(2 + 1, registry.getCallCount());
+    }
+
+    @Test
+    public void getValuesByNameMoreData() throws IOException {
+        final String valueName = Strings.repeat("V", 300);
+        final FakeRegistry registry = new FakeRegistry().key("Software\\A", valueName);
+        final RegistryService registryService = new RegistryService(registry.newTransport());
+
+        final List<RegistryValue> values = registryService.getValues("HKLM", "Software\\A", valueName);
+
+        assertArrayEquals(valueName.getBytes(StandardCharsets.UTF_8), values.get(0).getData());
+        // Retried after ERROR_MORE_DATA with the required size.
+        assertEquals(Arrays.asList(256, 300), registry.getRequestedTotalSizes());
+    }
+
+    @Test
+    public void getValuesByNameRequiredSizeTooLarge() throws IOException {
+        final String valueName = Strings.repeat("V", 300);
+        final FakeRegistry registry = new FakeRegistry().key("Software\\A", valueName)
+                .withRequiredSize(Integer.MAX_VALUE);
+        final RegistryService registryService = new RegistryService(registry.newTransport());
+
+        try {
+            registryService.getValues("HKLM", "Software\\A", valueName);
+            fail("Expected IOException");
+        } catch (final IOException exception) {
+            assertEquals("BaseRegQueryMultipleValues2 required size exceeds 1048576: 2147483647",
+                    exception.getMessage());
+        }
+        // Not retried with the bogus size.
+        assertEquals(Collections.singletonList(256), registry.getRequestedTotalSizes());
+    }
+
+    @Test
+    public void getValuesByNameMissing() throws IOException {
+        final FakeRegistry registry = walkRegistry();
+        final RegistryService registryService = new RegistryService(registry.newTransport());
+
+        final List<RegistryValue> values = registryService.getValues("HKLM", "Software\\A", "Value1", "Missing");
+
+        assertEquals(2, values.size());
+        assertEquals("Value1", values.get(0).getName());
+        assertNull(values.get(1));
+        // ERROR_FILE_NOT_FOUND, then BaseRegQueryValue per value.
+        assertEquals(2 + 1 + 2, registry.getCallCount());
+    }
+
+    @Test
+    public void getValuesByNameNone() throws IOException {
+        final FakeRegistry registry = walkRegistry();
+        final RegistryService registryService = new RegistryService(registry.newTransport());
+
+        assertTrue(registryService.getValues("HKLM", "Software\\A", new String[0]).isEmpty());
+        assertEquals(0, registry.getCallCount());
+    }
+
+    private static FakeRegistry walkRegistry() {
+        return new FakeRegistry()
+                .key("Software\\A", "Value1", "Value2")
+                .key("Software\\A\\A1")
+                .key("Software\\A\\A2")
+                .key("Software\\B", "Value1");
+    }
+
+    private static String subKeyName(final RequestCall request) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        request.marshal(new PacketOutput(bytes));
+        // hKey, then an RPC_UNICODE_STRING: Length, MaximumLength, referent, MaximumCount, Offset, ActualCount
+        final byte[] stub = bytes.toByteArray();
+        final int length = (stub[20] & 0xFF) | (stub[21] & 0xFF) << 8;
+        // Less the null terminator
+        return new String(stub, 40, length - 2, StandardCharsets.UTF_16LE);
+    }
 }
@@ -0,0 +1,85 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.msrrp.messages;
+
+import java.io.IOException;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.Test;
+
+import com.rapid7.client.dcerpc.objects.RPCUnicodeString;
+
+import static org.bouncycastle.util.encoders.Hex.toHexString;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+public class Test_BaseRegQueryMultipleValues2Request {
+    private final byte[] contextHandle = Hex.decode("000000000a665393f4666e49a68cd99f269d020f");
+    private final BaseRegQueryMultipleValues2Request request = new BaseRegQueryMultipleValues2Request(contextHandle,
+            new RPCUnicodeString.NullTerminated[]{RPCUnicodeString.NullTerminated.of("A"),
+                    RPCUnicodeString.NullTerminated.of("BC")}, 6);
+
+    @Test
+    public void getOpNum() {
+        assertEquals(34, request.getOpNum());
+    }
+
+    @Test
+    public void getStub() throws IOException {
+        // Handle: 000000000a665393f4666e49a68cd99f269d020f
+        // val_listIn
+        //      Max Count: 2, Offset: 0, Actual Count: 2
+        //      RVALENT
+        //          Referent ID: 0x00020000
+        //          ve_valuelen: 0, ve_valueptr: 0, ve_type: 0
+        //      RVALENT
+        //          Referent ID: 0x00020004
+        //          ve_valuelen: 0, ve_valueptr: 0, ve_type: 0
+        //      ve_valuename
+        //          Name Len: 4, Name Size: 4
+        //          Referent ID: 0x00020008
+        //          Max Count: 2, Offset: 0, Actual Count: 2
+        //          Name: A
+        //      ve_valuename
+        //          Name Len: 6, Name Size: 6
+        //          Referent ID: 0x0002000c
+        //          Max Count: 3, Offset: 0, Actual Count: 3
+        //          Name: BC
+        // num_vals: 2
+        // lpvalueBuf
+        //      Referent ID: 0x00020010
+        //      Max Count: 6, Offset: 0, Actual Count: 6
+        // ldwTotsize: 6
+        assertEquals("000000000a665393f4666e49a68cd99f269d020f"
+                        + "020000000000000002000000"
+                        + "00000200000000000000000000000000"
+                        + "04000200000000000000000000000000"
+                        + "0400040008000200020000000000000002000000" + "41000000"
+                        + "060006000c000200030000000000000003000000420043000000" + "0000"
+                        + "02000000"
+                        + "10000200060000000000000006000000000000000000" + "0000"
+                        + "06000000",
+                toHexString(request.getStub()));
+    }
+
+    @Test
+    public void getResponseObject() throws IOException {
+        assertThat(request.getResponseObject(), instanceOf(BaseRegQueryMultipleValues2Response.class));
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.msrrp.messages;
+
+import java.io.IOException;
+import java.rmi.UnmarshalException;
+import org.junit.Test;
+import com.rapid7.client.dcerpc.msrrp.dto.RegistryValueType;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class Test_BaseRegQueryMultipleValues2Response {
+    @Test
+    public void unmarshal() throws IOException {
+        // val_listOut
+        //      Max Count: 2, Offset: 0, Actual Count: 2
+        //      RVALENT
+        //          Referent ID: 0x00020000
+        //          ve_valuelen: 4, ve_valueptr: 0, ve_type: REG_DWORD
+        //      RVALENT
+        //          Referent ID: 0x00020004
+        //          ve_valuelen: 2, ve_valueptr: 4, ve_type: REG_BINARY
+        //      ve_valuename
+        //          Name Len: 4, Name Size: 4
+        //          Referent ID: 0x00020008
+        //          Max Count: 2, Offset: 0, Actual Count: 2
+        //          Name: A
+        //      ve_valuename
+        //          Name Len: 6, Name Size: 6
+        //          Referent ID: 0x0002000c
+        //          Max Count: 3, Offset: 0, Actual Count: 3
+        //          Name: BC
+        // lpvalueBuf
+        //      Referent ID: 0x00020010
+        //      Max Count: 6, Offset: 0, Actual Count: 6
+        //      Data: 01000000abcd
+        // ldwRequiredSize: 6
+        // Windows Error: WERR_OK (0x00000000)
+        final BaseRegQueryMultipleValues2Response response = new BaseRegQueryMultipleValues2Response();
+
+        response.fromHexString("020000000000000002000000"
+                + "00000200040000000000000004000000"
+                + "04000200020000000400000003000000"
+                + "0400040008000200020000000000000002000000" + "41000000"
+                + "060006000c000200030000000000000003000000420043000000" + "0000"
+                + "10000200060000000000000006000000" + "01000000abcd" + "0000"
+                + "06000000"
+                + "00000000");
+
+        assertArrayEquals(new int[]{RegistryValueType.REG_DWORD.getTypeID(), RegistryValueType.REG_BINARY.getTypeID()},
+                response.getTypes());
+        assertArrayEquals(new byte[]{1, 0, 0, 0}, response.getData(0));
+        assertArrayEquals(new byte[]{(byte) 0xAB, (byte) 0xCD}, response.getData(1));
+        assertEquals(6, response.getRequiredSize());
+        assertEquals(0, response.getReturnValue());
+    }
+
+    @Test
+    public void unmarshalMoreData() throws IOException {
+        // val_listOut: Max Count: 1, Offset: 0, Actual Count: 1, without a name
+        // lpvalueBuf: NULL
+        // ldwRequiredSize: 1024
+        // Windows Error: WERR_MORE_DATA (0x000000ea)
+        final BaseRegQueryMultipleValues2Response response = new BaseRegQueryMultipleValues2Response();
+
+        response.fromHexString("010000000000000001000000"
+                + "00000000000000000000000000000000"
+                + "00000000"
+                + "00040000"
+                + "ea000000");
+
+        assertEquals(1024, response.getRequiredSize());
+        assertEquals(0xEA, response.getReturnValue());
+    }
+
+    @Test(expected = UnmarshalException.class)
+    public void unmarshalOffset() throws IOException {
+        // val_listOut: Max Count: 1, Offset: 1, Actual Count: 0
+        final BaseRegQueryMultipleValues2Response response = new BaseRegQueryMultipleValues2Response();
+
+        response.fromHexString("010000000100000000000000"
+                + "00000000"
+                + "00000000"
+                + "00000000");
+    }
+
+    @Test(expected = IOException.class)
+    public void getDataOutsideOfBuffer() throws IOException {
+        final BaseRegQueryMultipleValues2Response response = new BaseRegQueryMultipleValues2Response();
+
+        response.fromHexString("010000000000000001000000"
+                + "00000000080000000000000003000000"
+                + "00000200040000000000000004000000" + "01000000"
+                + "04000000"
+                + "00000000");
+
+        response.getData(0);
+    }
+}
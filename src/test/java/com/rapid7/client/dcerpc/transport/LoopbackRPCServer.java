@@ -0,0 +1,462 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import com.rapid7.client.dcerpc.Interface;
+import com.rapid7.client.dcerpc.PDUFault;
+import com.rapid7.client.dcerpc.PDUType;
+import com.rapid7.client.dcerpc.PFCFlag;
+import com.rapid7.client.dcerpc.io.ByteBufferPacketInput;
+import com.rapid7.client.dcerpc.io.Packet;
+import com.rapid7.client.dcerpc.io.PacketInput;
+import com.rapid7.client.dcerpc.io.PacketOutput;
+import com.rapid7.client.dcerpc.messages.BindResponse;
+import com.rapid7.client.dcerpc.messages.Response;
+import com.rapid7.client.dcerpc.transport.exceptions.RPCFaultException;
+
+/**
+ * An in-process stand-in for a connection-oriented DCE/RPC server, to run services end to end, and under load,
+ * without a Windows host. Binds are accepted for every interface with a handler, fragmented requests are reassembled,
+ * responses are fragmented to the negotiated size, and unknown operations fault with nca_op_rng_error.
+ * <br>
+ * Clients connect either through {@link #newTransport()}, entirely in memory, or over a loopback socket with
+ * {@link TCPTransport} after {@link #listen()}. Each connection is a separate association.
+ */
+public class LoopbackRPCServer implements Closeable {
+    /**
+     * Serves one operation.
+     */
+    @FunctionalInterface
+    public interface Handler {
+        /**
+         * @param request The request stub.
+         * @return The response stub, including the trailing return value. It may be of any size.
+         * @throws RPCFaultException To answer with a fault PDU carrying its status.
+         * @throws IOException If the request is malformed; the fault is then nca_s_fault_ndr.
+         */
+        byte[] handle(PacketInput request) throws IOException;
+    }
+
+    private final static int HEADER_LENGTH = 16;
+    private final static int REQUEST_HEADER_LENGTH = 24;
+    private final static int PROVIDER_REJECTION = 2;
+    private final Map<Interface, Map<Integer, Handler>> handlers;
+    private final long latencyNanos;
+    private final int maxFrag;
+    private final AtomicLong calls = new AtomicLong();
+    private final Set<Closeable> sockets = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private ServerSocket serverSocket;
+    private ExecutorService executor;
+
+    private LoopbackRPCServer(final Builder builder) {
+        final Map<Interface, Map<Integer, Handler>> handlers = new HashMap<>();
+        for (final Map.Entry<Interface, Map<Integer, Handler>> entry : builder.handlers.entrySet()) {
+            handlers.put(entry.getKey(), new HashMap<>(entry.getValue()));
+        }
+        this.handlers = handlers;
+        this.latencyNanos = builder.latencyNanos;
+        this.maxFrag = builder.maxFrag;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @param stub The response stub.
+     * @return A handler answering every request with the same stub.
+     */
+    public static Handler respond(final byte[] stub) {
+        return request -> stub;
+    }
+
+    /**
+     * @return A new association, in memory. It is not bound.
+     */
+    public RPCTransport newTransport() {
+        return new LoopbackTransport(new Connection());
+    }
+
+    /**
+     * Start accepting connections on an ephemeral loopback port, if not already.
+     *
+     * @return The address to connect to.
+     * @throws IOException If the socket could not be bound.
+     */
+    public synchronized InetSocketAddress listen() throws IOException {
+        if (serverSocket == null) {
+            serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            executor = Executors.newCachedThreadPool(runnable -> {
+                final Thread thread = new Thread(runnable, "LoopbackRPCServer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            final ServerSocket acceptSocket = serverSocket;
+            executor.execute(() -> accept(acceptSocket));
+        }
+        return (InetSocketAddress) serverSocket.getLocalSocketAddress();
+    }
+
+    /**
+     * @return The number of calls answered, with a response or a fault.
+     */
+    public long getCallCount() {
+        return calls.get();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (serverSocket != null) {
+            serverSocket.close();
+            for (final Closeable socket : sockets) {
+                socket.close();
+            }
+            executor.shutdownNow();
+            serverSocket = null;
+        }
+    }
+
+    private void accept(final ServerSocket acceptSocket) {
+        while (!acceptSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = acceptSocket.accept();
+                socket.setTcpNoDelay(true);
+            } catch (final IOException exception) {
+                // Closed
+                return;
+            }
+            sockets.add(socket);
+            executor.execute(() -> serve(socket));
+        }
+    }
+
+    private void serve(final Socket socket) {
+        final Connection connection = new Connection();
+        try (final Socket closing = socket) {
+            final DataInputStream in = new DataInputStream(socket.getInputStream());
+            final OutputStream out = socket.getOutputStream();
+            final byte[] header = new byte[HEADER_LENGTH];
+            for (; ; ) {
+                try {
+                    in.readFully(header);
+                } catch (final EOFException exception) {
+                    // The client closed the connection.
+                    return;
+                }
+                final int fragLength = (header[8] & 0xFF) | (header[9] & 0xFF) << 8;
+                final byte[] pdu = Arrays.copyOf(header, fragLength);
+                in.readFully(pdu, HEADER_LENGTH, fragLength - HEADER_LENGTH);
+                for (final byte[] response : connection.receive(pdu)) {
+                    out.write(response);
+                }
+                out.flush();
+            }
+        } catch (final IOException exception) {
+            // Closed or malformed; drop the connection as a server would.
+        } finally {
+            sockets.remove(socket);
+        }
+    }
+
+    private void delay() throws InterruptedIOException {
+        if (latencyNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(latencyNanos);
+            } catch (final InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private static Interface lookup(final byte[] uuid, final int majorVersion, final int minorVersion) {
+        for (final Interface candidate : Interface.values()) {
+            if (Arrays.equals(candidate.getUUID(), uuid) && candidate.getMajorVersion() == majorVersion
+                    && candidate.getMinorVersion() == minorVersion) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private static byte[] marshal(final Packet packet) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        packet.marshal(new PacketOutput(out));
+        return out.toByteArray();
+    }
+
+    /**
+     * The state of one association: its presentation contexts, negotiated fragment size and partial requests.
+     */
+    private final class Connection {
+        private final Map<Integer, Interface> contexts = new HashMap<>();
+        private final Map<Integer, ByteArrayOutputStream> requests = new HashMap<>();
+        private int maxXmitFrag = maxFrag;
+
+        /**
+         * @param pdu One PDU from the client.
+         * @return The PDUs to answer with, if any.
+         */
+        List<byte[]> receive(final byte[] pdu) throws IOException {
+            final PacketInput in = new ByteBufferPacketInput(pdu, 0, pdu.length);
+            final int pduType = pdu[2];
+            final int flags = pdu[3];
+            final int callID = (int) readUnsignedInt(pdu, 12);
+            if (pduType == PDUType.BIND.getValue() || pduType == PDUType.ALTER_CONTEXT.getValue()) {
+                in.fullySkipBytes(HEADER_LENGTH);
+                return Collections.singletonList(bind(in, pduType == PDUType.BIND.getValue(), callID));
+            } else if (pduType != PDUType.REQUEST.getValue()) {
+                throw new IOException(String.format("Unexpected PDU type: %d", pduType));
+            }
+            final int contextID = (pdu[20] & 0xFF) | (pdu[21] & 0xFF) << 8;
+            final int opNum = (pdu[22] & 0xFF) | (pdu[23] & 0xFF) << 8;
+            ByteArrayOutputStream stub = requests.get(callID);
+            if (stub == null || (flags & PFCFlag.FIRST_FRAGMENT.getValue()) != 0) {
+                stub = new ByteArrayOutputStream();
+                requests.put(callID, stub);
+            }
+            stub.write(pdu, REQUEST_HEADER_LENGTH, pdu.length - REQUEST_HEADER_LENGTH);
+            if ((flags & PFCFlag.LAST_FRAGMENT.getValue()) == 0) {
+                return Collections.emptyList();
+            }
+            requests.remove(callID);
+            final List<byte[]> responses = call(contexts.get(contextID), opNum, stub.toByteArray(), callID);
+            calls.incrementAndGet();
+            delay();
+            return responses;
+        }
+
+        private byte[] bind(final PacketInput in, final boolean bind, final int callID) throws IOException {
+            final int maxXmitFrag = in.readUnsignedShort();
+            final int maxRecvFrag = in.readUnsignedShort();
+            in.fullySkipBytes(4);
+            final int count = in.readUnsignedByte();
+            in.fullySkipBytes(3);
+            final int[] results = new int[count];
+            for (int i = 0; i < count; i++) {
+                final int contextID = in.readUnsignedShort();
+                final int transferSyntaxes = in.readUnsignedByte();
+                in.fullySkipBytes(1);
+                final byte[] uuid = in.readRawBytes(16);
+                final Interface abstractSyntax = lookup(uuid, in.readUnsignedShort(), in.readUnsignedShort());
+                in.fullySkipBytes(20 * transferSyntaxes);
+                if (abstractSyntax != null && handlers.containsKey(abstractSyntax)) {
+                    contexts.put(contextID, abstractSyntax);
+                } else {
+                    results[i] = PROVIDER_REJECTION;
+                }
+            }
+            if (bind) {
+                this.maxXmitFrag = Math.min(maxFrag, maxRecvFrag);
+            }
+            final BindResponse response = new BindResponse();
+            response.setPDUType(bind ? PDUType.BIND_ACK : PDUType.ALTER_CONTEXT_RESP);
+            response.setPFCFlags(EnumSet.of(PFCFlag.FIRST_FRAGMENT, PFCFlag.LAST_FRAGMENT));
+            response.setCallID(callID);
+            response.setMaxXmitFrag((short) this.maxXmitFrag);
+            response.setMaxRecvFrag((short) Math.min(maxFrag, maxXmitFrag));
+            response.setAssocGroupID(0x1234);
+            response.setResults(results);
+            return marshal(response);
+        }
+
+        private List<byte[]> call(final Interface abstractSyntax, final int opNum, final byte[] request,
+                final int callID) throws IOException {
+            if (abstractSyntax == null) {
+                return Collections.singletonList(fault(PDUFault.NCA_UNK_IF.getValue(), callID));
+            }
+            final Handler handler = handlers.get(abstractSyntax).get(opNum);
+            if (handler == null) {
+                return Collections.singletonList(fault(PDUFault.NCA_OP_RNG_ERROR.getValue(), callID));
+            }
+            final byte[] stub;
+            try {
+                stub = handler.handle(new ByteBufferPacketInput(request, 0, request.length));
+            } catch (final RPCFaultException exception) {
+                return Collections.singletonList(fault(exception.getRpcFaultValue(), callID));
+            } catch (final IOException exception) {
+                return Collections.singletonList(fault(PDUFault.NCA_S_FAULT_NDR.getValue(), callID));
+            }
+            final int fragStubLength = maxXmitFrag - REQUEST_HEADER_LENGTH;
+            final List<byte[]> fragments = new ArrayList<>(1 + stub.length / fragStubLength);
+            int offset = 0;
+            do {
+                final int length = Math.min(fragStubLength, stub.length - offset);
+                final EnumSet<PFCFlag> flags = EnumSet.noneOf(PFCFlag.class);
+                if (offset == 0) {
+                    flags.add(PFCFlag.FIRST_FRAGMENT);
+                }
+                if (offset + length == stub.length) {
+                    flags.add(PFCFlag.LAST_FRAGMENT);
+                }
+                final Response response = new Response();
+                response.setPFCFlags(flags);
+                response.setCallID(callID);
+                response.setStub(Arrays.copyOfRange(stub, offset, offset + length));
+                fragments.add(marshal(response));
+                offset += length;
+            } while (offset < stub.length);
+            return fragments;
+        }
+
+        private byte[] fault(final int status, final int callID) throws IOException {
+            final Response response = new Response();
+            response.setPDUType(PDUType.FAULT);
+            response.setPFCFlags(EnumSet.of(PFCFlag.FIRST_FRAGMENT, PFCFlag.LAST_FRAGMENT,
+                    PFCFlag.DID_NOT_EXECUTE));
+            response.setCallID(callID);
+            // status, reserved
+            response.setStub(new byte[]{(byte) status, (byte) (status >>> 8), (byte) (status >>> 16),
+                    (byte) (status >>> 24), 0, 0, 0, 0});
+            return marshal(response);
+        }
+
+        private long readUnsignedInt(final byte[] pdu, final int offset) {
+            return ((pdu[offset] & 0xFF) | (pdu[offset + 1] & 0xFF) << 8 | (pdu[offset + 2] & 0xFF) << 16
+                    | (long) (pdu[offset + 3] & 0xFF) << 24);
+        }
+    }
+
+    /**
+     * An association served directly by {@link Connection}, without I/O.
+     */
+    private static class LoopbackTransport extends RPCTransport {
+        private final Connection connection;
+        private final Queue<byte[]> responses = new ArrayDeque<>();
+
+        LoopbackTransport(final Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public int transact(final byte[] packetOut, final byte[] packetIn) throws IOException {
+            return transact(packetOut, 0, packetOut.length, packetIn);
+        }
+
+        @Override
+        public synchronized int transact(final byte[] packetOut, final int offset, final int length,
+                final byte[] packetIn) throws IOException {
+            write(packetOut, offset, length);
+            return read(packetIn);
+        }
+
+        @Override
+        public void write(final byte[] packetOut) throws IOException {
+            write(packetOut, 0, packetOut.length);
+        }
+
+        @Override
+        public synchronized void write(final byte[] packetOut, final int offset, final int length)
+                throws IOException {
+            responses.addAll(connection.receive(Arrays.copyOfRange(packetOut, offset, offset + length)));
+        }
+
+        @Override
+        public synchronized int read(final byte[] packetIn) throws IOException {
+            final byte[] response = responses.poll();
+            if (response == null) {
+                throw new EOFException("No response pending.");
+            }
+            if (response.length > packetIn.length) {
+                throw new IOException(String.format("Fragment exceeds max_recv_frag: %d > %d", response.length,
+                        packetIn.length));
+            }
+            System.arraycopy(response, 0, packetIn, 0, response.length);
+            return response.length;
+        }
+    }
+
+    public static final class Builder {
+        private final Map<Interface, Map<Integer, Handler>> handlers = new HashMap<>();
+        private long latencyNanos;
+        private int maxFrag = RPCTransportConfig.MAX_FRAG_SIZE;
+
+        private Builder() {
+        }
+
+        /**
+         * @param abstractSyntax The interface, e.g. {@link Interface#WINREG_V1_0}. Binds to it are accepted.
+         * @param opNum The operation number.
+         * @param handler Serves the operation. Handlers of an in-memory association run on the calling thread, and
+         * those of socket connections on one thread per connection.
+         * @return This builder.
+         */
+        public Builder withHandler(final Interface abstractSyntax, final int opNum, final Handler handler) {
+            handlers.computeIfAbsent(abstractSyntax, key -> new HashMap<>()).put(opNum, handler);
+            return this;
+        }
+
+        /**
+         * @param latency The delay before each call is answered, simulating a remote server.
+         * @param unit The unit of latency.
+         * @return This builder.
+         */
+        public Builder withLatency(final long latency, final TimeUnit unit) {
+            if (latency < 0) {
+                throw new IllegalArgumentException(String.format("Invalid latency: %d", latency));
+            }
+            this.latencyNanos = unit.toNanos(latency);
+            return this;
+        }
+
+        /**
+         * @param maxFrag The largest fragment the server sends or accepts; lower to force fragmentation.
+         * @return This builder.
+         */
+        public Builder withMaxFrag(final int maxFrag) {
+            if (maxFrag < RPCTransportConfig.MIN_FRAG_SIZE || maxFrag > RPCTransportConfig.MAX_FRAG_SIZE) {
+                throw new IllegalArgumentException(String.format("Invalid maxFrag: %d not in [%d, %d]", maxFrag,
+                        RPCTransportConfig.MIN_FRAG_SIZE, RPCTransportConfig.MAX_FRAG_SIZE));
+            }
+            this.maxFrag = maxFrag;
+            return this;
+        }
+
+        public LoopbackRPCServer build() {
+            return new LoopbackRPCServer(this);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.transport;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class Test_BufferPool {
+    @Test
+    public void reuse() {
+        final BufferPool pool = new BufferPool(1);
+        final ByteBuffer buffer = pool.acquire(16);
+        assertEquals(16, buffer.capacity());
+        buffer.position(4);
+        pool.release(buffer);
+
+        final ByteBuffer reused = pool.acquire(16);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(16, reused.limit());
+    }
+
+    @Test
+    public void dropsWrongCapacity() {
+        final BufferPool pool = new BufferPool(1);
+        final ByteBuffer buffer = pool.acquire(16);
+        pool.release(buffer);
+        assertNotSame(buffer, pool.acquire(32));
+        assertNotSame(buffer, pool.acquire(16));
+    }
+
+    @Test
+    public void bounded() {
+        final BufferPool pool = new BufferPool(1);
+        final ByteBuffer buffer1 = pool.acquire(16);
+        final ByteBuffer buffer2 = pool.acquire(16);
+        pool.release(buffer1);
+        pool.release(buffer2);
+        pool.release(null);
+        assertSame(buffer1, pool.acquire(16));
+        assertNotSame(buffer2, pool.acquire(16));
+    }
+}
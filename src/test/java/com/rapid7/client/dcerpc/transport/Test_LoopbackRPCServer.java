@@ -0,0 +1,198 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import com.rapid7.client.dcerpc.Interface;
+import com.rapid7.client.dcerpc.PDUFault;
+import com.rapid7.client.dcerpc.io.PacketOutput;
+import com.rapid7.client.dcerpc.msrrp.RegistryService;
+import com.rapid7.client.dcerpc.msrrp.dto.RegistryValue;
+import com.rapid7.client.dcerpc.transport.exceptions.RPCFaultException;
+
+import static org.junit.Assert.*;
+
+public class Test_LoopbackRPCServer {
+    private final static byte[] HANDLE_STUB = new byte[24];
+    private LoopbackRPCServer server;
+
+    @After
+    public void tearDown() throws IOException {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void inMemory() throws IOException {
+        server = registryServer(256).build();
+        final RPCTransport transport = server.newTransport();
+        transport.bind(Interface.WINREG_V1_0, Interface.NDR_32BIT_V2);
+        final RegistryService registryService = new RegistryService(transport);
+
+        for (int i = 0; i < 1000; i++) {
+            final RegistryValue value = registryService.getValue("HKLM", "SOFTWARE\\Rapid7", "Data");
+            assertArrayEquals(data(256), value.getData());
+        }
+        // OpenLocalMachine and BaseRegOpenKey once, as their handles are cached.
+        assertEquals(1002, server.getCallCount());
+    }
+
+    @Test
+    public void loopbackSocketFragmentsResponses() throws IOException {
+        server = registryServer(100000).withMaxFrag(RPCTransportConfig.MIN_FRAG_SIZE).build();
+        try (final TCPTransport transport = TCPTransport.connect(server.listen(), 5000, Interface.WINREG_V1_0,
+                Interface.NDR_32BIT_V2, RPCTransportConfig.DEFAULT)) {
+            assertEquals(RPCTransportConfig.MIN_FRAG_SIZE, transport.getMaxRecvFrag());
+            final RegistryValue value = new RegistryService(transport).getValue("HKLM", "SOFTWARE\\Rapid7", "Data");
+            assertArrayEquals(data(100000), value.getData());
+        }
+    }
+
+    @Test
+    public void loopbackSocketConcurrentConnections() throws Exception {
+        server = registryServer(64).build();
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(executor.submit(() -> {
+                    try (final TCPTransport transport = TCPTransport.connect(server.listen(), 5000,
+                            Interface.WINREG_V1_0, Interface.NDR_32BIT_V2, RPCTransportConfig.DEFAULT)) {
+                        final RegistryService registryService = new RegistryService(transport);
+                        for (int j = 0; j < 250; j++) {
+                            assertArrayEquals(data(64),
+                                    registryService.getValue("HKLM", "SOFTWARE\\Rapid7", "Data").getData());
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(4 * 252, server.getCallCount());
+    }
+
+    @Test
+    public void unknownOperationFaults() throws IOException {
+        server = registryServer(0).build();
+        final RPCTransport transport = server.newTransport();
+        transport.bind(Interface.WINREG_V1_0, Interface.NDR_32BIT_V2);
+
+        try {
+            // BaseRegQueryInfoKey has no handler.
+            new RegistryService(transport).getSubKeys("HKLM", "SOFTWARE");
+            fail("Expected RPCFaultException");
+        } catch (final RPCFaultException exception) {
+            assertEquals(PDUFault.NCA_OP_RNG_ERROR, exception.getRpcFault());
+        }
+    }
+
+    @Test
+    public void handlerFaults() throws IOException {
+        server = LoopbackRPCServer.builder().withHandler(Interface.WINREG_V1_0, 2, request -> {
+            throw new RPCFaultException(PDUFault.NCA_S_FAULT_ACCESS_DENIED.getValue());
+        }).build();
+        final RPCTransport transport = server.newTransport();
+        transport.bind(Interface.WINREG_V1_0, Interface.NDR_32BIT_V2);
+
+        try {
+            new RegistryService(transport).getValue("HKLM", "", "Data");
+            fail("Expected RPCFaultException");
+        } catch (final RPCFaultException exception) {
+            assertEquals(PDUFault.NCA_S_FAULT_ACCESS_DENIED, exception.getRpcFault());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void bindRejectsInterfaceWithoutHandlers() throws IOException {
+        server = registryServer(0).build();
+        server.newTransport().bind(Interface.SAMSVC_V1_0, Interface.NDR_32BIT_V2);
+    }
+
+    @Test
+    public void latency() throws IOException {
+        server = registryServer(0).withLatency(50, TimeUnit.MILLISECONDS).build();
+        final RPCTransport transport = server.newTransport();
+        transport.bind(Interface.WINREG_V1_0, Interface.NDR_32BIT_V2);
+        final RegistryService registryService = new RegistryService(transport);
+
+        final long start = System.nanoTime();
+        registryService.getValue("HKLM", "SOFTWARE\\Rapid7", "Data");
+        // OpenLocalMachine, BaseRegOpenKey and BaseRegQueryValue
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150));
+    }
+
+    /**
+     * @param valueLength The length of the REG_BINARY value returned by BaseRegQueryValue.
+     */
+    private static LoopbackRPCServer.Builder registryServer(final int valueLength) throws IOException {
+        final byte[] queryValueStub = queryValueStub(data(valueLength));
+        return LoopbackRPCServer.builder()
+                // OpenLocalMachine
+                .withHandler(Interface.WINREG_V1_0, 2, LoopbackRPCServer.respond(HANDLE_STUB))
+                // BaseRegOpenKey
+                .withHandler(Interface.WINREG_V1_0, 15, LoopbackRPCServer.respond(HANDLE_STUB))
+                // BaseRegQueryValue
+                .withHandler(Interface.WINREG_V1_0, 17, LoopbackRPCServer.respond(queryValueStub));
+    }
+
+    private static byte[] queryValueStub(final byte[] data) throws IOException {
+        final ByteArrayOutputStream stub = new ByteArrayOutputStream();
+        final PacketOutput out = new PacketOutput(stub);
+        // lpType: REG_BINARY
+        out.writeReferentID();
+        out.writeInt(3);
+        // lpData: MaximumCount, Offset, ActualCount, data
+        out.writeReferentID();
+        out.writeInt(data.length);
+        out.writeInt(0);
+        out.writeInt(data.length);
+        out.write(data);
+        out.pad((4 - data.length % 4) % 4);
+        // lpcbData, lpcbLen
+        out.writeReferentID();
+        out.writeInt(data.length);
+        out.writeReferentID();
+        out.writeInt(data.length);
+        // ERROR_SUCCESS
+        out.writeInt(0);
+        return stub.toByteArray();
+    }
+
+    private static byte[] data(final int length) {
+        final byte[] data = new byte[length];
+        Arrays.fill(data, (byte) 0x5A);
+        return data;
+    }
+}
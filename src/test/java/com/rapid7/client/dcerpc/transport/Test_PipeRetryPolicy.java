@@ -0,0 +1,70 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.transport;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class Test_PipeRetryPolicy {
+    @Test
+    public void defaults() {
+        assertEquals(1, PipeRetryPolicy.DEFAULT.getMaxRetries());
+        assertEquals(TimeUnit.SECONDS.toNanos(3), PipeRetryPolicy.DEFAULT.getDelayNanos(0, 0.5));
+    }
+
+    @Test
+    public void exponentialBackoff() {
+        final PipeRetryPolicy policy = PipeRetryPolicy.builder().withInitialDelay(100, TimeUnit.MILLISECONDS)
+                .withMaxDelay(1, TimeUnit.SECONDS).withMultiplier(3).build();
+
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), policy.getDelayNanos(0, 0));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(300), policy.getDelayNanos(1, 0));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(900), policy.getDelayNanos(2, 0));
+        assertEquals(TimeUnit.SECONDS.toNanos(1), policy.getDelayNanos(3, 0));
+        assertEquals(TimeUnit.SECONDS.toNanos(1), policy.getDelayNanos(100, 0));
+    }
+
+    @Test
+    public void jitter() {
+        final PipeRetryPolicy policy = PipeRetryPolicy.builder().withInitialDelay(1, TimeUnit.SECONDS)
+                .withJitter(0.5).build();
+
+        assertEquals(TimeUnit.SECONDS.toNanos(1), policy.getDelayNanos(0, 0));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(750), policy.getDelayNanos(0, 0.5));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(2000), policy.getDelayNanos(1, 0));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1500), policy.getDelayNanos(1, 0.5));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidJitter() {
+        PipeRetryPolicy.builder().withJitter(1.5);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidMultiplier() {
+        PipeRetryPolicy.builder().withMultiplier(0.5);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidMaxRetries() {
+        PipeRetryPolicy.builder().withMaxRetries(-1);
+    }
+}
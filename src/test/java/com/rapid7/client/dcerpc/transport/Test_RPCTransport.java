@@ -19,9 +19,22 @@
 package com.rapid7.client.dcerpc.transport;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import org.bouncycastle.util.encoders.Hex;
 import org.junit.Rule;
 import org.junit.Test;
@@ -32,7 +45,9 @@ import com.rapid7.client.dcerpc.Interface;
 import com.rapid7.client.dcerpc.PDUType;
 import com.rapid7.client.dcerpc.PFCFlag;
 import com.rapid7.client.dcerpc.io.PacketInput;
+import com.rapid7.client.dcerpc.io.PacketOutput;
 import com.rapid7.client.dcerpc.messages.*;
+import com.rapid7.client.dcerpc.transport.metrics.RPCMetricsAggregator;
 
 import static org.junit.Assert.*;
 import static org.mockito.Matchers.any;
@@ -66,7 +81,7 @@ public class Test_RPCTransport {
             @Override
             public int transact(final byte[] packetOut, final byte[] packetIn) throws IOException {
                 assertArrayEquals(requestBytes, packetOut);
-                assertArrayEquals(new byte[getMaxXmitFrag()], packetIn);
+                assertArrayEquals(new byte[getMaxRecvFrag()], packetIn);
                 System.arraycopy(responseBytes, 0, packetIn, 0, responseBytes.length);
                 return responseBytes.length;
             }
@@ -81,6 +96,133 @@ public class Test_RPCTransport {
         assertEquals(2048, transport.getMaxRecvFrag());
     }
 
+    @Test
+    public void bindWithConfig() throws IOException {
+        final BindRequest request = new BindRequest(4280, 65535, Interface.WINREG_V1_0, Interface.NDR_32BIT_V2);
+        request.setCallID(0);
+        final byte[] requestBytes = Hex.decode(request.toHexString());
+
+        final BindResponse response = new BindResponse();
+
+        response.setPDUType(PDUType.BIND_ACK);
+        response.setPFCFlags(EnumSet.of(PFCFlag.FIRST_FRAGMENT, PFCFlag.LAST_FRAGMENT));
+        // The server transmits up to our max_recv_frag and receives up to our max_xmit_frag.
+        response.setMaxXmitFrag((short) 65535);
+        response.setMaxRecvFrag((short) 4280);
+
+        final byte[] responseBytes = Hex.decode(response.toHexString());
+
+        final RPCTransport transport = new TestRPCTransport() {
+            @Override
+            public int transact(final byte[] packetOut, final byte[] packetIn) throws IOException {
+                assertArrayEquals(requestBytes, packetOut);
+                assertEquals(65535, packetIn.length);
+                System.arraycopy(responseBytes, 0, packetIn, 0, responseBytes.length);
+                return responseBytes.length;
+            }
+        };
+
+        transport.bind(Interface.WINREG_V1_0, Interface.NDR_32BIT_V2,
+                RPCTransportConfig.builder().withMaxXmitFrag(4280).withMaxRecvFrag(65535).build());
+
+        assertEquals(4280, transport.getMaxXmitFrag());
+        assertEquals(65535, transport.getMaxRecvFrag());
+    }
+
+    @Test
+    public void bindMultipleContexts() throws IOException {
+        final Queue<byte[]> packets = new LinkedList<>();
+        final RPCTransport transport = new RespondingRPCTransport(packets,
+                bindResponse(PDUType.BIND_ACK, new int[]{BindResponse.ACCEPTANCE, BindResponse.ACCEPTANCE, 2}),
+                callResponse(), callResponse());
+
+        transport.bind(RPCTransportConfig.DEFAULT, Interface.NDR_32BIT_V2,
+                Interface.LSASVC_V0_0, Interface.SAMSVC_V1_0, Interface.WINREG_V1_0);
+
+        final byte[] bind = packets.poll();
+        assertEquals(PDUType.BIND.getValue(), bind[2]);
+        assertEquals(3, bind[24]);
+        assertTrue(transport.isBound(Interface.LSASVC_V0_0));
+        assertTrue(transport.isBound(Interface.SAMSVC_V1_0));
+        assertFalse(transport.isBound(Interface.WINREG_V1_0));
+
+        assertEquals(0x01234567, transport.forContext(Interface.SAMSVC_V1_0).call(new TestRequestCall()).value);
+        assertEquals(1, packets.poll()[20]);
+        assertEquals(0x01234567, transport.call(new TestRequestCall()).value);
+        assertEquals(0, packets.poll()[20]);
+
+        thrown.expect(IllegalArgumentException.class);
+        thrown.expectMessage("winreg interface (338cd001-2244-31f1-aaaa-900038001003:v1.0) is not bound.");
+        transport.forContext(Interface.WINREG_V1_0);
+    }
+
+    @Test
+    public void alterContext() throws IOException {
+        final Queue<byte[]> packets = new LinkedList<>();
+        final RPCTransport transport = new RespondingRPCTransport(packets,
+                bindResponse(PDUType.BIND_ACK, null),
+                bindResponse(PDUType.ALTER_CONTEXT_RESP, new int[]{BindResponse.ACCEPTANCE}),
+                callResponse());
+
+        transport.bind(Interface.LSASVC_V0_0, Interface.NDR_32BIT_V2);
+        transport.alterContext(Interface.SAMSVC_V1_0, Interface.NDR_32BIT_V2);
+        // Already bound, nothing is sent.
+        transport.alterContext(Interface.SAMSVC_V1_0, Interface.NDR_32BIT_V2);
+
+        packets.poll();
+        final byte[] alterContext = packets.poll();
+        assertEquals(PDUType.ALTER_CONTEXT.getValue(), alterContext[2]);
+        assertEquals(1, alterContext[28]);
+
+        final RPCTransport samr = transport.forContext(Interface.SAMSVC_V1_0);
+        assertTrue(samr.isBound(Interface.LSASVC_V0_0));
+        assertEquals(0x01234567, samr.call(new TestRequestCall()).value);
+        assertEquals(1, packets.poll()[20]);
+        assertTrue(packets.isEmpty());
+    }
+
+    @Test
+    public void forContextSharesAssociation() throws IOException {
+        final Queue<byte[]> packets = new LinkedList<>();
+        final RPCTransport transport = new RespondingRPCTransport(packets,
+                bindResponse(PDUType.BIND_ACK, new int[]{BindResponse.ACCEPTANCE, BindResponse.ACCEPTANCE}),
+                callResponse(), callResponse());
+
+        transport.bind(RPCTransportConfig.DEFAULT, Interface.NDR_32BIT_V2, Interface.LSASVC_V0_0,
+                Interface.SAMSVC_V1_0);
+        final RPCTransport samr = transport.forContext(Interface.SAMSVC_V1_0);
+
+        assertEquals(transport.getMaxXmitFrag(), samr.getMaxXmitFrag());
+        assertEquals(0x01234567, samr.call(new TestRequestCall()).value);
+        assertEquals(0x01234567, transport.call(new TestRequestCall()).value);
+        // Call IDs are drawn from the association, whichever view makes the call.
+        packets.poll();
+        assertEquals(1, packets.poll()[12]);
+        assertEquals(2, packets.poll()[12]);
+        assertEquals(transport.getReceiveBufferAcquisitions(), samr.getReceiveBufferAcquisitions());
+
+        thrown.expect(IllegalStateException.class);
+        thrown.expectMessage("The association is already bound.");
+        samr.bind(Interface.SAMSVC_V1_0, Interface.NDR_32BIT_V2);
+    }
+
+    @Test
+    public void alterContextRejected() throws IOException {
+        final RPCTransport transport = new RespondingRPCTransport(new LinkedList<>(),
+                bindResponse(PDUType.BIND_ACK, null),
+                bindResponse(PDUType.ALTER_CONTEXT_RESP, new int[]{2}));
+
+        transport.bind(Interface.LSASVC_V0_0, Interface.NDR_32BIT_V2);
+
+        thrown.expect(IOException.class);
+        thrown.expectMessage("ALTER_CONTEXT samr interface (12345778-1234-ABCD-EF00-0123456789AC:v1.0) failed.");
+        try {
+            transport.alterContext(Interface.SAMSVC_V1_0, Interface.NDR_32BIT_V2);
+        } finally {
+            assertFalse(transport.isBound(Interface.SAMSVC_V1_0));
+        }
+    }
+
     @Test
     public void bindNAK() throws IOException {
         final BindRequest request = new BindRequest(16384, 16384, Interface.WINREG_V1_0, Interface.NDR_32BIT_V2);
@@ -103,7 +245,7 @@ public class Test_RPCTransport {
             @Override
             public int transact(final byte[] packetOut, final byte[] packetIn) throws IOException {
                 assertArrayEquals(requestBytes, packetOut);
-                assertArrayEquals(new byte[getMaxXmitFrag()], packetIn);
+                assertArrayEquals(new byte[getMaxRecvFrag()], packetIn);
                 System.arraycopy(responseBytes, 0, packetIn, 0, responseBytes.length);
                 return responseBytes.length;
             }
@@ -138,7 +280,7 @@ public class Test_RPCTransport {
             @Override
             public int transact(final byte[] packetOut, final byte[] packetIn) throws IOException {
                 assertArrayEquals(requestBytes, packetOut);
-                assertArrayEquals(new byte[getMaxXmitFrag()], packetIn);
+                assertArrayEquals(new byte[getMaxRecvFrag()], packetIn);
                 System.arraycopy(responseBytes, 0, packetIn, 0, responseBytes.length);
                 return responseBytes.length;
             }
@@ -148,7 +290,6 @@ public class Test_RPCTransport {
         final RequestResponse requestResponse = mock(RequestResponse.class);
 
         when(requestCall.getOpNum()).thenReturn((short) 1);
-        when(requestCall.getStub()).thenReturn(new byte[0]);
         when(requestCall.getResponseObject()).thenReturn(requestResponse);
 
         final RequestResponse callResponse = transport.call(requestCall);
@@ -156,7 +297,7 @@ public class Test_RPCTransport {
         assertEquals(requestResponse, callResponse);
 
         verify(requestCall, times(1)).getOpNum();
-        verify(requestCall, times(1)).getStub();
+        verify(requestCall, times(1)).marshal(any(PacketOutput.class));
         verify(requestCall, times(1)).getResponseObject();
         verify(requestResponse, times(1)).unmarshal(any(PacketInput.class));
         verifyNoMoreInteractions(requestCall, requestResponse);
@@ -185,7 +326,7 @@ public class Test_RPCTransport {
             @Override
             public int transact(final byte[] packetOut, final byte[] packetIn) throws IOException {
                 assertArrayEquals(requestBytes, packetOut);
-                assertArrayEquals(new byte[getMaxXmitFrag()], packetIn);
+                assertArrayEquals(new byte[getMaxRecvFrag()], packetIn);
                 System.arraycopy(responseBytes, 0, packetIn, 0, responseBytes.length);
                 return responseBytes.length;
             }
@@ -195,7 +336,6 @@ public class Test_RPCTransport {
         final RequestResponse requestResponse = mock(RequestResponse.class);
 
         when(requestCall.getOpNum()).thenReturn((short) 1);
-        when(requestCall.getStub()).thenReturn(new byte[0]);
         when(requestCall.getResponseObject()).thenReturn(requestResponse);
 
         doAnswer(new Answer() {
@@ -213,7 +353,7 @@ public class Test_RPCTransport {
         assertEquals(requestResponse, callResponse);
 
         verify(requestCall, times(1)).getOpNum();
-        verify(requestCall, times(1)).getStub();
+        verify(requestCall, times(1)).marshal(any(PacketOutput.class));
         verify(requestCall, times(1)).getResponseObject();
         verify(requestResponse, times(1)).unmarshal(any(PacketInput.class));
         verifyNoMoreInteractions(requestCall, requestResponse);
@@ -257,7 +397,7 @@ public class Test_RPCTransport {
             @Override
             public int transact(final byte[] packetOut, final byte[] packetIn) throws IOException {
                 assertArrayEquals(requestBytes, packetOut);
-                assertArrayEquals(new byte[getMaxXmitFrag()], packetIn);
+                assertArrayEquals(new byte[getMaxRecvFrag()], packetIn);
                 return read(packetIn);
             }
 
@@ -273,7 +413,6 @@ public class Test_RPCTransport {
         final RequestResponse requestResponse = mock(RequestResponse.class);
 
         when(requestCall.getOpNum()).thenReturn((short) 1);
-        when(requestCall.getStub()).thenReturn(new byte[0]);
         when(requestCall.getResponseObject()).thenReturn(requestResponse);
 
         doAnswer(new Answer() {
@@ -292,12 +431,353 @@ public class Test_RPCTransport {
         assertEquals(requestResponse, callResponse);
 
         verify(requestCall, times(1)).getOpNum();
-        verify(requestCall, times(1)).getStub();
+        verify(requestCall, times(1)).marshal(any(PacketOutput.class));
         verify(requestCall, times(1)).getResponseObject();
         verify(requestResponse, times(1)).unmarshal(any(PacketInput.class));
         verifyNoMoreInteractions(requestCall, requestResponse);
     }
 
+    @Test
+    public void callFragmented() throws IOException {
+        final byte[] stub = new byte[40];
+        for (int i = 0; i < stub.length; i++) {
+            stub[i] = (byte) i;
+        }
+        final Queue<byte[]> fragments = new LinkedList<>();
+        final Response response = new Response();
+        response.setPFCFlags(EnumSet.of(PFCFlag.FIRST_FRAGMENT, PFCFlag.LAST_FRAGMENT));
+        response.setStub(new byte[]{0x04, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00});
+        final byte[] responseBytes = Hex.decode(response.toHexString());
+
+        final RPCTransport transport = new TestRPCTransport() {
+            @Override
+            public void write(final byte[] packetOut) {
+                fragments.add(packetOut);
+            }
+
+            @Override
+            public int transact(final byte[] packetOut, final byte[] packetIn) {
+                fragments.add(packetOut);
+                System.arraycopy(responseBytes, 0, packetIn, 0, responseBytes.length);
+                return responseBytes.length;
+            }
+        };
+        // 16 stub octets per fragment
+        transport.setMaxXmitFrag(44);
+
+        final TestResponse callResponse = transport.call(new TestRequestCall() {
+            @Override
+            public void marshal(final PacketOutput packetOut) throws IOException {
+                packetOut.write(stub);
+            }
+        });
+
+        assertEquals(4, callResponse.value);
+        assertEquals(3, fragments.size());
+        final byte[][] expectedFlags = {{0x01}, {0x00}, {0x02}};
+        final int[] expectedStubLengths = {16, 16, 8};
+        int stubOffset = 0;
+        for (int i = 0; i < 3; i++) {
+            final byte[] fragment = fragments.poll();
+            assertEquals(PDUType.REQUEST.getValue(), fragment[2]);
+            assertEquals(expectedFlags[i][0], fragment[3]);
+            assertEquals(24 + expectedStubLengths[i], (fragment[8] & 0xFF) | (fragment[9] & 0xFF) << 8);
+            assertEquals(24 + expectedStubLengths[i], fragment.length);
+            assertEquals(1, fragment[22]);
+            for (int j = 0; j < expectedStubLengths[i]; j++) {
+                assertEquals(stub[stubOffset++], fragment[24 + j]);
+            }
+        }
+    }
+
+    @Test
+    public void callMarshalFailureAfterFragmentRetiresTransport() throws IOException {
+        final Queue<byte[]> fragments = new LinkedList<>();
+        final RPCTransport transport = new TestRPCTransport() {
+            @Override
+            public void write(final byte[] packetOut) {
+                fragments.add(packetOut);
+            }
+        };
+        // 16 stub octets per fragment
+        transport.setMaxXmitFrag(44);
+
+        try {
+            transport.call(new TestRequestCall() {
+                @Override
+                public void marshal(final PacketOutput packetOut) throws IOException {
+                    packetOut.write(new byte[20]);
+                    throw new IOException("Marshalling failed");
+                }
+            });
+            fail("Expected IOException");
+        } catch (final IOException exception) {
+            assertEquals("Marshalling failed", exception.getMessage());
+        }
+
+        assertEquals(1, fragments.size());
+        assertTrue(transport.isRetired());
+    }
+
+    @Test
+    public void callMarshalFailureBeforeFragment() throws IOException {
+        final RPCTransport transport = new TestRPCTransport();
+
+        try {
+            transport.call(new TestRequestCall() {
+                @Override
+                public void marshal(final PacketOutput packetOut) throws IOException {
+                    throw new IOException("Marshalling failed");
+                }
+            });
+            fail("Expected IOException");
+        } catch (final IOException exception) {
+            assertEquals("Marshalling failed", exception.getMessage());
+        }
+
+        assertFalse(transport.isRetired());
+    }
+
+    @Test
+    public void callAsyncOutOfOrder() throws Exception {
+        final BlockingQueue<byte[]> responses = new LinkedBlockingQueue<>();
+        final Queue<Integer> requestCallIDs = new LinkedList<>();
+        final RPCTransport transport = new TestRPCTransport() {
+            @Override
+            public void write(final byte[] packetOut) {
+                requestCallIDs.add((packetOut[12] & 0xFF) | (packetOut[13] & 0xFF) << 8);
+            }
+
+            @Override
+            public int read(final byte[] packetIn) throws IOException {
+                try {
+                    final byte[] responseBytes = responses.poll(5, TimeUnit.SECONDS);
+                    System.arraycopy(responseBytes, 0, packetIn, 0, responseBytes.length);
+                    return responseBytes.length;
+                } catch (final InterruptedException exception) {
+                    throw new IOException(exception);
+                }
+            }
+        };
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final CompletableFuture<TestResponse> future1 = transport.callAsync(new TestRequestCall(), executor);
+            final CompletableFuture<TestResponse> future2 = transport.callAsync(new TestRequestCall(), executor);
+
+            assertEquals(2, requestCallIDs.size());
+            final int callID1 = requestCallIDs.poll();
+            final int callID2 = requestCallIDs.poll();
+            assertNotEquals(callID1, callID2);
+
+            // Answer the second call first.
+            responses.add(responseBytes(callID2, new byte[]{0x02, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00}));
+            responses.add(responseBytes(callID1, new byte[]{0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00}));
+
+            assertEquals(1, future1.get(5, TimeUnit.SECONDS).value);
+            assertEquals(2, future2.get(5, TimeUnit.SECONDS).value);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void callAsyncUnmarshalsOnExecutorOfCall() throws Exception {
+        final BlockingQueue<byte[]> responses = new LinkedBlockingQueue<>();
+        final Queue<Integer> requestCallIDs = new LinkedList<>();
+        final RPCTransport transport = new TestRPCTransport() {
+            @Override
+            public void write(final byte[] packetOut) {
+                requestCallIDs.add((packetOut[12] & 0xFF) | (packetOut[13] & 0xFF) << 8);
+            }
+
+            @Override
+            public int read(final byte[] packetIn) throws IOException {
+                try {
+                    final byte[] responseBytes = responses.poll(5, TimeUnit.SECONDS);
+                    System.arraycopy(responseBytes, 0, packetIn, 0, responseBytes.length);
+                    return responseBytes.length;
+                } catch (final InterruptedException exception) {
+                    throw new IOException(exception);
+                }
+            }
+        };
+        final ExecutorService executor1 = Executors.newSingleThreadExecutor();
+        final ExecutorService executor2 = Executors.newSingleThreadExecutor();
+        try {
+            final Thread thread1 = executor1.submit(Thread::currentThread).get();
+            final Thread thread2 = executor2.submit(Thread::currentThread).get();
+            final CompletableFuture<TestResponse> future1 = transport.callAsync(new TestRequestCall(), executor1);
+            final CompletableFuture<TestResponse> future2 = transport.callAsync(new TestRequestCall(), executor2);
+            for (final int callID : requestCallIDs) {
+                responses.add(responseBytes(callID, new byte[]{0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00}));
+            }
+
+            // Whichever executor receives, each response is unmarshalled on the executor of its own call.
+            assertSame(thread1, future1.get(5, TimeUnit.SECONDS).thread);
+            assertSame(thread2, future2.get(5, TimeUnit.SECONDS).thread);
+        } finally {
+            executor1.shutdownNow();
+            executor2.shutdownNow();
+        }
+    }
+
+    @Test
+    public void callQueuedBehindAsyncCall() throws Exception {
+        final BlockingQueue<byte[]> responses = new LinkedBlockingQueue<>();
+        final List<Integer> requestCallIDs = new ArrayList<>();
+        final List<Thread> readers = new ArrayList<>();
+        final RPCTransport transport = new TestRPCTransport() {
+            @Override
+            public void write(final byte[] packetOut) throws IOException {
+                requestCallIDs.add((packetOut[12] & 0xFF) | (packetOut[13] & 0xFF) << 8);
+                // Answer both calls only once the synchronous call has queued behind the asynchronous one.
+                if (requestCallIDs.size() == 2) {
+                    for (final int callID : requestCallIDs) {
+                        responses.add(responseBytes(callID, new byte[]{0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00}));
+                    }
+                }
+            }
+
+            @Override
+            public int read(final byte[] packetIn) throws IOException {
+                synchronized (readers) {
+                    readers.add(Thread.currentThread());
+                }
+                try {
+                    final byte[] responseBytes = responses.poll(5, TimeUnit.SECONDS);
+                    System.arraycopy(responseBytes, 0, packetIn, 0, responseBytes.length);
+                    return responseBytes.length;
+                } catch (final InterruptedException exception) {
+                    throw new IOException(exception);
+                }
+            }
+        };
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final CompletableFuture<TestResponse> future = transport.callAsync(new TestRequestCall(), executor);
+
+            assertEquals(1, transport.call(new TestRequestCall()).value);
+            assertEquals(1, future.get(5, TimeUnit.SECONDS).value);
+            // Every response was received by the executor of the asynchronous call, none by the synchronous caller.
+            synchronized (readers) {
+                assertFalse(readers.isEmpty());
+                assertFalse(readers.contains(Thread.currentThread()));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void callQueuedTimeoutCancelsRead() throws Exception {
+        final CountDownLatch cancelled = new CountDownLatch(1);
+        final RPCTransport transport = new TestRPCTransport() {
+            @Override
+            public int read(final byte[] packetIn) throws IOException {
+                try {
+                    cancelled.await(5, TimeUnit.SECONDS);
+                } catch (final InterruptedException exception) {
+                    throw new IOException(exception);
+                }
+                throw new InterruptedIOException("cancelled");
+            }
+
+            @Override
+            protected void cancel() {
+                cancelled.countDown();
+            }
+        };
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final CompletableFuture<TestResponse> future = transport.callAsync(new TestRequestCall(), executor);
+            try {
+                transport.call(new TestRequestCall(), 50, TimeUnit.MILLISECONDS);
+                fail("Expected InterruptedByTimeoutException");
+            } catch (final InterruptedByTimeoutException exception) {
+                // Expected
+            }
+            assertEquals(0, cancelled.getCount());
+            assertTrue(transport.isRetired());
+            // The cancelled read fails the asynchronous call which was awaiting its response on it.
+            thrown.expect(ExecutionException.class);
+            future.get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void callAsyncReadFailureRetiresTransport() throws Exception {
+        final RPCTransport transport = new TestRPCTransport() {
+            @Override
+            public int read(final byte[] packetIn) throws IOException {
+                throw new InterruptedByTimeoutException();
+            }
+        };
+
+        final CompletableFuture<TestResponse> future = transport.callAsync(new TestRequestCall(), Runnable::run);
+
+        assertTrue(future.isCompletedExceptionally());
+        // The rest of the response may still arrive, so the next call must not read it as its own.
+        assertTrue(transport.isRetired());
+        thrown.expect(IOException.class);
+        thrown.expectMessage("RPCTransport retired after a timed out or failed call.");
+        transport.call(new TestRequestCall());
+    }
+
+    @Test
+    public void callRejectsResponseOfAnotherCall() throws IOException {
+        final byte[] responseBytes = responseBytes(7, new byte[]{0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00});
+        final RPCTransport transport = new TestRPCTransport() {
+            @Override
+            public int transact(final byte[] packetOut, final byte[] packetIn) {
+                System.arraycopy(responseBytes, 0, packetIn, 0, responseBytes.length);
+                return responseBytes.length;
+            }
+        };
+
+        try {
+            transport.call(new TestRequestCall());
+            fail("Expected IOException");
+        } catch (final IOException exception) {
+            assertEquals("Received PDU for call ID 7, expected 0", exception.getMessage());
+        }
+        assertTrue(transport.isRetired());
+    }
+
+    @Test
+    public void callAsyncFragmented() throws Exception {
+        final Queue<byte[]> responses = new LinkedList<>();
+        final RPCTransport transport = new TestRPCTransport() {
+            @Override
+            public int read(final byte[] packetIn) {
+                final byte[] responseBytes = responses.poll();
+                System.arraycopy(responseBytes, 0, packetIn, 0, responseBytes.length);
+                return responseBytes.length;
+            }
+        };
+        final Response response1 = new Response();
+        final Response response2 = new Response();
+        response1.setPFCFlags(EnumSet.of(PFCFlag.FIRST_FRAGMENT));
+        response1.setStub(new byte[]{0x03, 0x00});
+        response2.setPFCFlags(EnumSet.of(PFCFlag.LAST_FRAGMENT));
+        response2.setStub(new byte[]{0x00, 0x00, 0x00, 0x00, 0x00, 0x00});
+        responses.add(Hex.decode(response1.toHexString()));
+        responses.add(Hex.decode(response2.toHexString()));
+
+        final CompletableFuture<TestResponse> future = transport.callAsync(new TestRequestCall(), Runnable::run);
+
+        assertEquals(3, future.get(5, TimeUnit.SECONDS).value);
+    }
+
+    private static byte[] responseBytes(final int callID, final byte[] stub) throws IOException {
+        final Response response = new Response();
+        response.setCallID(callID);
+        response.setPFCFlags(EnumSet.of(PFCFlag.FIRST_FRAGMENT, PFCFlag.LAST_FRAGMENT));
+        response.setStub(stub);
+        return Hex.decode(response.toHexString());
+    }
+
     @Test
     public void getCallID() {
         final RPCTransport transport = new TestRPCTransport();
@@ -306,6 +786,109 @@ public class Test_RPCTransport {
         assertEquals(2, transport.getCallID());
     }
 
+    @Test
+    public void callReusesReceiveBuffers() throws IOException {
+        final Response response = new Response();
+
+        response.setPFCFlags(EnumSet.of(PFCFlag.FIRST_FRAGMENT, PFCFlag.LAST_FRAGMENT));
+        response.setStub(new byte[]{0x67, 0x45, 0x23, 0x01, 0x00, 0x00, 0x00, 0x00});
+
+        final byte[] responseBytes = Hex.decode(response.toHexString());
+
+        final RPCTransport transport = new TestRPCTransport() {
+            @Override
+            public int transact(final byte[] packetOut, final byte[] packetIn) throws IOException {
+                assertEquals(getMaxRecvFrag(), packetIn.length);
+                System.arraycopy(responseBytes, 0, packetIn, 0, responseBytes.length);
+                // Answer with the call ID of the request.
+                System.arraycopy(packetOut, 12, packetIn, 12, 4);
+                return responseBytes.length;
+            }
+        };
+        transport.setMaxRecvFrag(1024);
+
+        for (int i = 0; i < 3; i++) {
+            final TestResponse callResponse = transport.call(new TestRequestCall());
+            assertEquals(0x01234567, callResponse.value);
+        }
+
+        assertEquals(3, transport.getReceiveBufferAcquisitions());
+        assertEquals(1, transport.getReceiveBufferMisses());
+    }
+
+    @Test
+    public void callTimeoutRetiresTransport() throws IOException {
+        final byte[] responseBytes = callResponse();
+        final List<Long> timeouts = new ArrayList<>();
+        final RPCTransport transport = new TestRPCTransport() {
+            @Override
+            protected int transact(final byte[] packetOut, final int offset, final int length, final byte[] packetIn,
+                    final long timeoutNanos) throws IOException {
+                timeouts.add(timeoutNanos);
+                if (timeouts.size() > 1) {
+                    throw new InterruptedByTimeoutException();
+                }
+                System.arraycopy(responseBytes, 0, packetIn, 0, responseBytes.length);
+                return responseBytes.length;
+            }
+        };
+
+        assertEquals(0x01234567, transport.call(new TestRequestCall(), 5, TimeUnit.SECONDS).value);
+        assertTrue(timeouts.get(0) > 0 && timeouts.get(0) <= TimeUnit.SECONDS.toNanos(5));
+        assertFalse(transport.isRetired());
+
+        try {
+            transport.call(new TestRequestCall(), 5, TimeUnit.SECONDS);
+            fail("Expected InterruptedByTimeoutException");
+        } catch (final InterruptedByTimeoutException exception) {
+            assertTrue(transport.isRetired());
+        }
+        try {
+            transport.call(new TestRequestCall());
+            fail("Expected IOException");
+        } catch (final IOException exception) {
+            assertEquals("RPCTransport retired after a timed out or failed call.", exception.getMessage());
+        }
+        assertEquals(2, timeouts.size());
+    }
+
+    @Test
+    public void callWithoutTimeout() throws IOException {
+        final byte[] responseBytes = callResponse();
+        final RPCTransport transport = new TestRPCTransport() {
+            @Override
+            protected int transact(final byte[] packetOut, final int offset, final int length, final byte[] packetIn,
+                    final long timeoutNanos) throws IOException {
+                assertEquals(0, timeoutNanos);
+                System.arraycopy(responseBytes, 0, packetIn, 0, responseBytes.length);
+                return responseBytes.length;
+            }
+        };
+
+        assertEquals(0x01234567, transport.call(new TestRequestCall()).value);
+    }
+
+    @Test
+    public void callReportsMetrics() throws IOException {
+        final Queue<byte[]> packets = new LinkedList<>();
+        final RPCTransport transport = new RespondingRPCTransport(packets,
+                bindResponse(PDUType.BIND_ACK, new int[]{0}), callResponse());
+        final RPCMetricsAggregator aggregator = new RPCMetricsAggregator();
+        transport.setMetricsListener(aggregator);
+        transport.bind(Interface.WINREG_V1_0, Interface.NDR_32BIT_V2);
+
+        assertEquals(0x01234567, transport.call(new TestRequestCall()).value);
+
+        assertEquals(1, aggregator.getBindStats(Interface.WINREG_V1_0).getLatency().getCount());
+        final RPCMetricsAggregator.CallStats stats = aggregator.getCallStats(Interface.WINREG_V1_0, 1);
+        assertEquals(1, stats.getLatency().getCount());
+        assertEquals(0, stats.getRequestStubBytes());
+        assertEquals(1, stats.getRequestFragments());
+        assertEquals(8, stats.getResponseStubBytes());
+        assertEquals(1, stats.getResponseFragments());
+        assertEquals(0, stats.getErrors());
+    }
+
     @Test
     public void getMaxXmitFrag() {
         final RPCTransport transport = new TestRPCTransport();
@@ -334,6 +917,55 @@ public class Test_RPCTransport {
         assertEquals(4280, transport.getMaxRecvFrag());
     }
 
+    private static byte[] bindResponse(final PDUType pduType, final int[] results) throws IOException {
+        final BindResponse response = new BindResponse();
+        response.setPDUType(pduType);
+        response.setPFCFlags(EnumSet.of(PFCFlag.FIRST_FRAGMENT, PFCFlag.LAST_FRAGMENT));
+        response.setMaxXmitFrag((short) 4280);
+        response.setMaxRecvFrag((short) 4280);
+        response.setResults(results);
+        return Hex.decode(response.toHexString());
+    }
+
+    private static byte[] callResponse() throws IOException {
+        final Response response = new Response();
+        response.setPFCFlags(EnumSet.of(PFCFlag.FIRST_FRAGMENT, PFCFlag.LAST_FRAGMENT));
+        response.setStub(new byte[]{0x67, 0x45, 0x23, 0x01, 0x00, 0x00, 0x00, 0x00});
+        return Hex.decode(response.toHexString());
+    }
+
+    /**
+     * Records each PDU sent and answers with the given PDUs in order, with the call ID of the request.
+     */
+    private static class RespondingRPCTransport extends RPCTransport {
+        private final Queue<byte[]> packets;
+        private final Queue<byte[]> responses;
+
+        RespondingRPCTransport(final Queue<byte[]> packets, final byte[]... responses) {
+            this.packets = packets;
+            this.responses = new LinkedList<>(Arrays.asList(responses));
+        }
+
+        @Override
+        public int transact(final byte[] packetOut, final byte[] packetIn) {
+            packets.add(packetOut);
+            final byte[] response = responses.remove();
+            System.arraycopy(response, 0, packetIn, 0, response.length);
+            System.arraycopy(packetOut, 12, packetIn, 12, 4);
+            return response.length;
+        }
+
+        @Override
+        public void write(final byte[] packetOut) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(final byte[] packetIn) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
     private class TestRPCTransport extends RPCTransport {
         @Override
         public int transact(final byte[] packetOut, final byte[] packetIn) throws IOException {
@@ -350,5 +982,31 @@ public class Test_RPCTransport {
         }
     }
 
+    private static class TestRequestCall extends RequestCall<TestResponse> {
+        TestRequestCall() {
+            super((short) 1);
+        }
+
+        @Override
+        public TestResponse getResponseObject() {
+            return new TestResponse();
+        }
+
+        @Override
+        public void marshal(final PacketOutput packetOut) throws IOException {
+        }
+    }
+
+    private static class TestResponse extends RequestResponse {
+        private int value;
+        private Thread thread;
+
+        @Override
+        public void unmarshalResponse(final PacketInput packetIn) throws IOException {
+            value = packetIn.readInt();
+            thread = Thread.currentThread();
+        }
+    }
+
     ;
 }
@@ -0,0 +1,68 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.transport;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import static org.junit.Assert.*;
+
+public class Test_RPCTransportConfig {
+    @Rule
+    public final ExpectedException thrown = ExpectedException.none();
+
+    @Test
+    public void defaults() {
+        assertEquals(RPCTransport.DEFAULT_MAX_XMIT_FRAG, RPCTransportConfig.DEFAULT.getMaxXmitFrag());
+        assertEquals(RPCTransport.DEFAULT_MAX_RECV_FRAG, RPCTransportConfig.DEFAULT.getMaxRecvFrag());
+    }
+
+    @Test
+    public void builder() {
+        final RPCTransportConfig config = RPCTransportConfig.builder().withMaxXmitFrag(4280).withMaxRecvFrag(65535).build();
+        assertEquals(4280, config.getMaxXmitFrag());
+        assertEquals(65535, config.getMaxRecvFrag());
+        assertEquals(config, config.toBuilder().build());
+        assertEquals(config.hashCode(), config.toBuilder().build().hashCode());
+        assertNotEquals(config, RPCTransportConfig.DEFAULT);
+        assertEquals("RPCTransportConfig{maxXmitFrag: 4280, maxRecvFrag: 65535}", config.toString());
+    }
+
+    @Test
+    public void withMaxFrag() {
+        final RPCTransportConfig config = RPCTransportConfig.builder().withMaxFrag(5840).build();
+        assertEquals(5840, config.getMaxXmitFrag());
+        assertEquals(5840, config.getMaxRecvFrag());
+    }
+
+    @Test
+    public void fragTooSmall() {
+        thrown.expect(IllegalArgumentException.class);
+        thrown.expectMessage("Invalid maxXmitFrag: 1431 not in [1432, 65535]");
+        RPCTransportConfig.builder().withMaxXmitFrag(1431);
+    }
+
+    @Test
+    public void fragTooLarge() {
+        thrown.expect(IllegalArgumentException.class);
+        thrown.expectMessage("Invalid maxRecvFrag: 65536 not in [1432, 65535]");
+        RPCTransportConfig.builder().withMaxRecvFrag(65536);
+    }
+}
@@ -0,0 +1,277 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.transport;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.session.Session;
+import com.rapid7.client.dcerpc.messages.RequestCall;
+import com.rapid7.client.dcerpc.mssrvs.messages.NetrShareGetInfoRequest;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class Test_RPCTransportPool {
+    private final AtomicLong now = new AtomicLong();
+    private final List<SMBTransport> opened = new ArrayList<>();
+
+    @Test
+    public void reusesReleasedTransport() throws IOException {
+        final RPCTransportPool pool = newPool(RPCTransportPool.builder());
+        final Session session = session("HOST", true);
+
+        final RPCTransportPool.Lease lease1 = pool.acquire(session, SMBTransportFactories.WINREG);
+        final RPCTransport transport = lease1.getTransport();
+        lease1.close();
+        assertEquals(1, pool.getIdleCount());
+
+        final RPCTransportPool.Lease lease2 = pool.acquire(session, SMBTransportFactories.WINREG);
+        assertSame(transport, lease2.getTransport());
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(1, pool.getCount("host"));
+
+        final RPCTransportPool.Lease lease3 = pool.acquire(session, SMBTransportFactories.SRVSVC);
+        assertNotSame(transport, lease3.getTransport());
+        assertEquals(2, opened.size());
+        assertEquals(2, pool.getCount("host"));
+    }
+
+    @Test
+    public void discardsInvalidatedTransport() throws IOException {
+        final RPCTransportPool pool = newPool(RPCTransportPool.builder());
+        final Session session = session("host", true);
+
+        final RPCTransportPool.Lease lease = pool.acquire(session, SMBTransportFactories.WINREG);
+        lease.invalidate();
+        lease.close();
+
+        verify(opened.get(0)).close();
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(0, pool.getCount("host"));
+    }
+
+    @Test
+    public void discardsRetiredTransport() throws IOException {
+        final RPCTransportPool pool = newPool(RPCTransportPool.builder());
+        final Session session = session("host", true);
+
+        final RPCTransportPool.Lease lease = pool.acquire(session, SMBTransportFactories.WINREG);
+        when(lease.getTransport().isRetired()).thenReturn(true);
+        lease.close();
+
+        verify(opened.get(0)).close();
+        assertEquals(0, pool.getCount("host"));
+    }
+
+    @Test
+    public void evictsIdleTransports() throws IOException {
+        final RPCTransportPool pool = newPool(RPCTransportPool.builder().withIdleTimeout(30, TimeUnit.SECONDS));
+        final Session session = session("host", true);
+
+        pool.acquire(session, SMBTransportFactories.WINREG).close();
+        now.addAndGet(TimeUnit.SECONDS.toNanos(29));
+        pool.evictIdle();
+        assertEquals(1, pool.getIdleCount());
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        pool.evictIdle();
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(0, pool.getCount("host"));
+        verify(opened.get(0)).close();
+    }
+
+    @Test
+    public void healthChecksBeforeReuse() throws IOException {
+        final RPCTransportPool pool = newPool(RPCTransportPool.builder().withHealthCheck(transport -> false));
+        final Session session = session("host", true);
+
+        pool.acquire(session, SMBTransportFactories.WINREG).close();
+        now.addAndGet(TimeUnit.SECONDS.toNanos(5));
+        final RPCTransportPool.Lease lease = pool.acquire(session, SMBTransportFactories.WINREG);
+
+        assertSame(opened.get(1), lease.getTransport());
+        verify(opened.get(0)).close();
+        assertEquals(1, pool.getCount("host"));
+    }
+
+    @Test
+    public void defaultHealthCheckProbesInterface() throws IOException {
+        final RPCTransportPool pool = newPool(RPCTransportPool.builder());
+        final Session session = session("host", true);
+
+        pool.acquire(session, SMBTransportFactories.SRVSVC).close();
+        when(opened.get(0).call(any(RequestCall.class))).thenThrow(new IOException("STATUS_PIPE_BROKEN"));
+        now.addAndGet(TimeUnit.SECONDS.toNanos(5));
+        final RPCTransportPool.Lease lease = pool.acquire(session, SMBTransportFactories.SRVSVC);
+
+        // NetrShareGetInfo of IPC$ failed, so the transport was replaced.
+        verify(opened.get(0)).call(any(NetrShareGetInfoRequest.NetrShareGetInfoRequest0.class));
+        verify(opened.get(0)).close();
+        assertSame(opened.get(1), lease.getTransport());
+        assertEquals(1, pool.getCount("host"));
+    }
+
+    @Test
+    public void skipsHealthCheckOfRecentlyUsedTransport() throws IOException {
+        final AtomicInteger checks = new AtomicInteger();
+        final RPCTransportPool pool = newPool(RPCTransportPool.builder()
+                .withHealthCheckIdleTime(10, TimeUnit.SECONDS)
+                .withHealthCheck(transport -> checks.incrementAndGet() < 0));
+        final Session session = session("host", true);
+
+        pool.acquire(session, SMBTransportFactories.WINREG).close();
+        now.addAndGet(TimeUnit.SECONDS.toNanos(9));
+        pool.acquire(session, SMBTransportFactories.WINREG).close();
+        assertEquals(0, checks.get());
+        assertEquals(1, opened.size());
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        pool.acquire(session, SMBTransportFactories.WINREG);
+        assertEquals(1, checks.get());
+        assertEquals(2, opened.size());
+    }
+
+    @Test
+    public void evictsIdleTransportsOnAcquire() throws IOException {
+        final RPCTransportPool pool = newPool(RPCTransportPool.builder().withIdleTimeout(30, TimeUnit.SECONDS));
+        final Session session = session("host", true);
+
+        pool.acquire(session, SMBTransportFactories.WINREG).close();
+        now.addAndGet(TimeUnit.SECONDS.toNanos(30));
+        pool.acquire(session, SMBTransportFactories.SRVSVC);
+
+        verify(opened.get(0)).close();
+        assertEquals(0, pool.getIdleCount());
+        assertEquals(1, pool.getCount("host"));
+    }
+
+    @Test
+    public void rejectsExpiredTransportNotYetEvicted() throws IOException {
+        final RPCTransportPool pool = newPool(RPCTransportPool.builder().withIdleTimeout(30, TimeUnit.SECONDS));
+        final Session session = session("host", true);
+
+        // Released at 5s, the transport survives the eviction at 30s; the next one is only due at 60s.
+        now.addAndGet(TimeUnit.SECONDS.toNanos(5));
+        pool.acquire(session, SMBTransportFactories.WINREG).close();
+        now.addAndGet(TimeUnit.SECONDS.toNanos(25));
+        pool.acquire(session, SMBTransportFactories.SRVSVC).close();
+        assertEquals(2, pool.getIdleCount());
+
+        now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        final RPCTransportPool.Lease lease = pool.acquire(session, SMBTransportFactories.WINREG);
+        assertSame(opened.get(2), lease.getTransport());
+        verify(opened.get(0)).close();
+    }
+
+    @Test
+    public void discardsTransportOfDisconnectedSession() throws IOException {
+        final RPCTransportPool pool = newPool(RPCTransportPool.builder());
+        final Session session = session("host", true);
+
+        pool.acquire(session, SMBTransportFactories.WINREG).close();
+        when(session.getConnection().isConnected()).thenReturn(false);
+        pool.acquire(session, SMBTransportFactories.WINREG);
+
+        assertEquals(2, opened.size());
+        verify(opened.get(0)).close();
+    }
+
+    @Test
+    public void evictsIdleTransportOfHostAtCap() throws IOException {
+        final RPCTransportPool pool = newPool(RPCTransportPool.builder().withMaxPerHost(1));
+        final Session session = session("host", true);
+
+        pool.acquire(session, SMBTransportFactories.WINREG).close();
+        pool.acquire(session, SMBTransportFactories.SRVSVC);
+
+        verify(opened.get(0)).close();
+        assertEquals(1, pool.getCount("host"));
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void capsTransportsPerHost() throws IOException {
+        final RPCTransportPool pool = newPool(RPCTransportPool.builder().withMaxPerHost(1)
+                .withAcquireTimeout(0, TimeUnit.SECONDS));
+        final Session session = session("host", true);
+
+        pool.acquire(session, SMBTransportFactories.WINREG);
+        pool.acquire(session("other", true), SMBTransportFactories.WINREG);
+        try {
+            pool.acquire(session, SMBTransportFactories.WINREG);
+            fail("Expected IOException");
+        } catch (final IOException exception) {
+            assertEquals("RPCTransportPool exhausted for host host: 1 transports in use.", exception.getMessage());
+        }
+    }
+
+    @Test
+    public void releasesSlotWhenOpenFails() throws IOException {
+        final RPCTransportPool pool = RPCTransportPool.builder().withMaxPerHost(1)
+                .withOpener((session, factory) -> {
+                    throw new IOException("STATUS_ACCESS_DENIED");
+                }).build();
+        try {
+            pool.acquire(session("host", true), SMBTransportFactories.WINREG);
+            fail("Expected IOException");
+        } catch (final IOException exception) {
+            assertEquals("STATUS_ACCESS_DENIED", exception.getMessage());
+        }
+        assertEquals(0, pool.getCount("host"));
+    }
+
+    @Test
+    public void closeClosesIdleTransports() throws IOException {
+        final RPCTransportPool pool = newPool(RPCTransportPool.builder());
+        final Session session = session("host", true);
+
+        pool.acquire(session, SMBTransportFactories.WINREG).close();
+        final RPCTransportPool.Lease lease = pool.acquire(session, SMBTransportFactories.SRVSVC);
+        pool.close();
+        verify(opened.get(0)).close();
+        verify(opened.get(1), never()).close();
+
+        lease.close();
+        verify(opened.get(1)).close();
+        assertEquals(0, pool.getCount("host"));
+    }
+
+    private RPCTransportPool newPool(final RPCTransportPool.Builder builder) {
+        return builder.withClock(now::get).withOpener((session, factory) -> {
+            final SMBTransport transport = mock(SMBTransport.class);
+            opened.add(transport);
+            return transport;
+        }).build();
+    }
+
+    private static Session session(final String host, final boolean connected) {
+        final Connection connection = mock(Connection.class);
+        when(connection.getRemoteHostname()).thenReturn(host);
+        when(connection.isConnected()).thenReturn(connected);
+        final Session session = mock(Session.class);
+        when(session.getConnection()).thenReturn(connection);
+        return session;
+    }
+}
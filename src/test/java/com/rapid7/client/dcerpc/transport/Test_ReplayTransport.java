@@ -0,0 +1,176 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.Test;
+import com.rapid7.client.dcerpc.Interface;
+import com.rapid7.client.dcerpc.PDUType;
+import com.rapid7.client.dcerpc.PFCFlag;
+import com.rapid7.client.dcerpc.io.PacketInput;
+import com.rapid7.client.dcerpc.io.PacketOutput;
+import com.rapid7.client.dcerpc.io.Transport;
+import com.rapid7.client.dcerpc.messages.BindResponse;
+import com.rapid7.client.dcerpc.messages.RequestCall;
+import com.rapid7.client.dcerpc.messages.RequestResponse;
+import com.rapid7.client.dcerpc.messages.Response;
+
+import static org.junit.Assert.*;
+
+public class Test_ReplayTransport {
+    @Test
+    public void captureAndReplay() throws IOException {
+        final byte[] capture = capture();
+
+        final List<PDUCapture.Record> records = PDUCapture.read(new ByteArrayInputStream(capture));
+        assertEquals(4, records.size());
+        assertEquals(PDUCapture.Direction.OUTBOUND, records.get(0).getDirection());
+        assertEquals(PDUCapture.Direction.INBOUND, records.get(1).getDirection());
+        assertNull(records.get(0).getInterface());
+        assertEquals(PDUCapture.Direction.OUTBOUND, records.get(2).getDirection());
+        assertEquals(1, records.get(2).getCallID());
+        assertEquals(Interface.WINREG_V1_0, records.get(2).getInterface());
+        assertEquals(PDUCapture.Direction.INBOUND, records.get(3).getDirection());
+        assertEquals(Interface.WINREG_V1_0, records.get(3).getInterface());
+
+        final ReplayTransport transport = ReplayTransport.open(new ByteArrayInputStream(capture), false);
+        transport.bind(Interface.WINREG_V1_0, Interface.NDR_32BIT_V2);
+        assertEquals(4280, transport.getMaxRecvFrag());
+        assertEquals(0x01234567, transport.call(new TestRequestCall((short) 1)).value);
+        assertTrue(transport.isComplete());
+    }
+
+    @Test
+    public void replayDiverges() throws IOException {
+        final ReplayTransport transport = ReplayTransport.open(new ByteArrayInputStream(capture()), false);
+        transport.bind(Interface.WINREG_V1_0, Interface.NDR_32BIT_V2);
+        try {
+            transport.call(new TestRequestCall((short) 2));
+            fail("Expected IOException");
+        } catch (final IOException exception) {
+            assertTrue(exception.getMessage().startsWith("Replay diverged at record 2:"));
+        }
+    }
+
+    @Test
+    public void replayRewritesCallID() throws IOException {
+        final List<Integer> callIDs = new LinkedList<>();
+        final ReplayTransport transport = new ReplayTransport(PDUCapture.read(new ByteArrayInputStream(capture())),
+                false) {
+            @Override
+            public int transact(final byte[] packetOut, final int offset, final int length, final byte[] packetIn)
+                    throws IOException {
+                final int packetInLength = super.transact(packetOut, offset, length, packetIn);
+                callIDs.add(CaptureTransport.readInt(packetIn, 12));
+                return packetInLength;
+            }
+        };
+        // Skip a call ID, so the live call IDs differ from the captured ones.
+        transport.getCallID();
+        transport.bind(Interface.WINREG_V1_0, Interface.NDR_32BIT_V2);
+        transport.call(new TestRequestCall((short) 1));
+
+        assertEquals(Arrays.asList(1, 2), callIDs);
+    }
+
+    private static byte[] capture() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (final CaptureTransport transport = new CaptureTransport(
+                new RespondingTransport(bindResponse(), callResponse(1)), new PDUCapture.Writer(out))) {
+            transport.bind(Interface.WINREG_V1_0, Interface.NDR_32BIT_V2);
+            assertEquals(0x01234567, transport.call(new TestRequestCall((short) 1)).value);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] bindResponse() throws IOException {
+        final BindResponse response = new BindResponse();
+        response.setPDUType(PDUType.BIND_ACK);
+        response.setPFCFlags(EnumSet.of(PFCFlag.FIRST_FRAGMENT, PFCFlag.LAST_FRAGMENT));
+        response.setMaxXmitFrag((short) 4280);
+        response.setMaxRecvFrag((short) 4280);
+        response.setResults(new int[]{0});
+        return Hex.decode(response.toHexString());
+    }
+
+    private static byte[] callResponse(final int callID) throws IOException {
+        final Response response = new Response();
+        response.setPFCFlags(EnumSet.of(PFCFlag.FIRST_FRAGMENT, PFCFlag.LAST_FRAGMENT));
+        response.setCallID(callID);
+        response.setStub(new byte[]{0x67, 0x45, 0x23, 0x01, 0x00, 0x00, 0x00, 0x00});
+        return Hex.decode(response.toHexString());
+    }
+
+    private static class RespondingTransport implements Transport {
+        private final Queue<byte[]> responses;
+
+        RespondingTransport(final byte[]... responses) {
+            this.responses = new LinkedList<>(Arrays.asList(responses));
+        }
+
+        @Override
+        public int transact(final byte[] packetOut, final byte[] packetIn) {
+            final byte[] response = responses.remove();
+            System.arraycopy(response, 0, packetIn, 0, response.length);
+            return response.length;
+        }
+
+        @Override
+        public void write(final byte[] packetOut) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(final byte[] packetIn) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class TestRequestCall extends RequestCall<TestResponse> {
+        TestRequestCall(final short opNum) {
+            super(opNum);
+        }
+
+        @Override
+        public TestResponse getResponseObject() {
+            return new TestResponse();
+        }
+
+        @Override
+        public void marshal(final PacketOutput packetOut) throws IOException {
+        }
+    }
+
+    private static class TestResponse extends RequestResponse {
+        private int value;
+
+        @Override
+        public void unmarshalResponse(final PacketInput packetIn) throws IOException {
+            value = packetIn.readInt();
+        }
+    }
+}
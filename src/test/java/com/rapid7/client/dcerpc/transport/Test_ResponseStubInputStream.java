@@ -0,0 +1,82 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.transport;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import com.rapid7.client.dcerpc.io.PacketInput;
+
+import static org.junit.Assert.*;
+
+public class Test_ResponseStubInputStream {
+    @Test
+    public void readEmpty() {
+        final ResponseStubInputStream inputStream = new ResponseStubInputStream();
+        assertEquals(-1, inputStream.read());
+        assertEquals(-1, inputStream.read(new byte[1], 0, 1));
+        assertEquals(0, inputStream.available());
+    }
+
+    @Test
+    public void readAcrossSlices() throws IOException {
+        final ResponseStubInputStream inputStream = new ResponseStubInputStream();
+        inputStream.add(ByteBuffer.wrap(new byte[]{0x7F, 0x7F, 0x67, 0x45}), 2, 2);
+        inputStream.add(ByteBuffer.allocate(0), 0, 0);
+        inputStream.add(ByteBuffer.wrap(new byte[]{0x23, 0x01, 0x08, 0x7F}), 0, 3);
+
+        assertEquals(5, inputStream.available());
+
+        final PacketInput packetIn = new PacketInput(inputStream);
+        assertEquals(0x01234567, packetIn.readInt());
+        assertEquals(0x08, packetIn.readByte());
+        assertEquals(0, inputStream.available());
+        try {
+            packetIn.readByte();
+            fail("Expected EOFException");
+        } catch (final EOFException exception) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void skipAcrossSlices() {
+        final ResponseStubInputStream inputStream = new ResponseStubInputStream();
+        inputStream.add(ByteBuffer.wrap(new byte[]{0x00, 0x01}), 0, 2);
+        inputStream.add(ByteBuffer.wrap(new byte[]{0x02, 0x03}), 0, 2);
+
+        assertEquals(3, inputStream.skip(3));
+        assertEquals(0x03, inputStream.read());
+        assertEquals(0, inputStream.skip(1));
+    }
+
+    @Test
+    public void release() {
+        final BufferPool pool = new BufferPool(2);
+        final ByteBuffer buffer = pool.acquire(4);
+        final ResponseStubInputStream inputStream = new ResponseStubInputStream();
+        inputStream.add(buffer, 0, 4);
+        inputStream.release(pool);
+
+        assertSame(buffer, pool.acquire(4));
+        assertEquals(1, pool.getMisses());
+        assertEquals(2, pool.getAcquisitions());
+    }
+}
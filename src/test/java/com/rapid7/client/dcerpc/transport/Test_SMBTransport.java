@@ -0,0 +1,49 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.transport;
+
+import java.io.IOException;
+import org.junit.Test;
+import com.rapid7.helper.smbj.share.NamedPipe;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class Test_SMBTransport {
+    @Test
+    public void transactReadsIntoPacketIn() throws IOException {
+        final NamedPipe namedPipe = mock(NamedPipe.class);
+        final byte[] packetOut = new byte[32];
+        final byte[] packetIn = new byte[4280];
+        when(namedPipe.transact(packetOut, 4, 16, packetIn, 0, packetIn.length)).thenReturn(100);
+
+        assertEquals(100, new SMBTransport(namedPipe).transact(packetOut, 4, 16, packetIn));
+        verify(namedPipe, never()).transact(any(byte[].class), anyInt(), anyInt());
+    }
+
+    @Test
+    public void readReadsIntoPacketIn() throws IOException {
+        final NamedPipe namedPipe = mock(NamedPipe.class);
+        final byte[] packetIn = new byte[4280];
+        when(namedPipe.read(packetIn, 0, packetIn.length)).thenReturn(200);
+
+        assertEquals(200, new SMBTransport(namedPipe).read(packetIn));
+        verify(namedPipe, never()).read();
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.session.Session;
+import com.rapid7.client.dcerpc.Interface;
+import com.rapid7.client.dcerpc.epm.EndpointCache;
+import com.rapid7.client.dcerpc.mserref.SystemErrorCode;
+import com.rapid7.client.dcerpc.msrrp.dto.RegistryHive;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+public class Test_SMBTransportFactories {
+    // The handle, then the return value.
+    private final static byte[] HANDLE_STUB = new byte[24];
+    private LoopbackRPCServer server;
+
+    @After
+    public void tearDown() throws IOException {
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void getTransportOverTCP() throws IOException {
+        server = registryServer(HANDLE_STUB);
+        final InetSocketAddress address = server.listen();
+        final EndpointCache endpoints = new EndpointCache(1, 1, TimeUnit.MINUTES,
+                (host, abstractSyntax, transferSyntax) -> address.getPort());
+        final Session session = session(address.getHostString());
+
+        final RPCTransport transport = SMBTransportFactories.WINREG.getTransport(session, endpoints);
+        try {
+            assertTrue(transport instanceof TCPTransport);
+            // The probe opened and closed HKLM.
+            assertEquals(2, server.getCallCount());
+        } finally {
+            ((TCPTransport) transport).close();
+        }
+        verify(session, never()).connectShare(anyString());
+    }
+
+    @Test
+    public void getTransportFallsBackWhenProbeDenied() throws IOException {
+        final byte[] denied = new byte[24];
+        denied[20] = (byte) SystemErrorCode.ERROR_ACCESS_DENIED.getValue();
+        server = registryServer(denied);
+        final InetSocketAddress address = server.listen();
+        final EndpointCache endpoints = new EndpointCache(1, 1, TimeUnit.MINUTES,
+                (host, abstractSyntax, transferSyntax) -> address.getPort());
+        final Session session = session(address.getHostString());
+        when(session.connectShare("IPC$")).thenThrow(new IllegalStateException("IPC$"));
+
+        try {
+            SMBTransportFactories.WINREG.getTransport(session, endpoints);
+            fail("Expected IllegalStateException");
+        } catch (final IllegalStateException exception) {
+            // The named pipe was tried after the TCP endpoint was denied.
+        }
+        assertEquals(-1, endpoints.getTCPPort(address.getHostString(), Interface.WINREG_V1_0,
+                Interface.NDR_32BIT_V2));
+    }
+
+    private static LoopbackRPCServer registryServer(final byte[] openStub) {
+        return LoopbackRPCServer.builder()
+                .withHandler(Interface.WINREG_V1_0, RegistryHive.HKEY_LOCAL_MACHINE.getOpNum(),
+                        LoopbackRPCServer.respond(openStub))
+                // BaseRegCloseKey
+                .withHandler(Interface.WINREG_V1_0, 5, LoopbackRPCServer.respond(HANDLE_STUB))
+                .build();
+    }
+
+    private static Session session(final String host) {
+        final Connection connection = mock(Connection.class);
+        when(connection.getRemoteHostname()).thenReturn(host);
+        final Session session = mock(Session.class);
+        when(session.getConnection()).thenReturn(connection);
+        return session;
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.transport;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class Test_ScheduledRetry {
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final PipeRetryPolicy policy = PipeRetryPolicy.builder().withInitialDelay(1, TimeUnit.MILLISECONDS)
+            .withJitter(1).withMaxRetries(3).build();
+    private final AtomicInteger attempts = new AtomicInteger();
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void runsAttemptsOnExecutor() throws Exception {
+        final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        final Thread schedulerThread = scheduler.submit(Thread::currentThread).get();
+        final CompletableFuture<String> future = ScheduledRetry.submit(scheduler, executor, policy, () -> {
+            threads.add(Thread.currentThread());
+            if (attempts.incrementAndGet() < 3) {
+                throw new IOException("busy");
+            }
+            return "done";
+        }, exception -> true, result -> fail());
+
+        assertEquals("done", future.get(5, TimeUnit.SECONDS));
+        assertFalse(threads.isEmpty());
+        assertFalse(threads.contains(schedulerThread));
+    }
+
+    @Test
+    public void retriesUntilSuccess() throws Exception {
+        final CompletableFuture<String> future = ScheduledRetry.submit(scheduler, executor, policy, () -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new IOException("busy");
+            }
+            return "done";
+        }, exception -> true, result -> fail());
+
+        assertEquals("done", future.get(5, TimeUnit.SECONDS));
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    public void exhaustsRetryBudget() throws Exception {
+        final CompletableFuture<String> future = ScheduledRetry.submit(scheduler, executor, policy, () -> {
+            throw new IOException("busy " + attempts.incrementAndGet());
+        }, exception -> true, result -> fail());
+
+        final IOException exception = getFailure(future);
+        assertEquals("busy 4", exception.getMessage());
+        assertEquals(3, exception.getSuppressed().length);
+        assertEquals("busy 1", exception.getSuppressed()[0].getMessage());
+        assertEquals(4, attempts.get());
+    }
+
+    @Test
+    public void doesNotRetryOtherFailures() throws Exception {
+        final CompletableFuture<String> future = ScheduledRetry.submit(scheduler, executor, policy, () -> {
+            attempts.incrementAndGet();
+            throw new IOException("denied");
+        }, exception -> false, result -> fail());
+
+        assertEquals("denied", getFailure(future).getMessage());
+        assertEquals(1, attempts.get());
+    }
+
+    private static IOException getFailure(final CompletableFuture<String> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Expected ExecutionException");
+            return null;
+        } catch (final ExecutionException exception) {
+            return (IOException) exception.getCause();
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.transport;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import com.rapid7.client.dcerpc.Interface;
+import com.rapid7.client.dcerpc.PDUType;
+import com.rapid7.client.dcerpc.PFCFlag;
+import com.rapid7.client.dcerpc.io.PacketInput;
+import com.rapid7.client.dcerpc.io.PacketOutput;
+import com.rapid7.client.dcerpc.messages.BindResponse;
+import com.rapid7.client.dcerpc.messages.RequestCall;
+import com.rapid7.client.dcerpc.messages.RequestResponse;
+import com.rapid7.client.dcerpc.messages.Response;
+
+import static org.junit.Assert.*;
+
+public class Test_TCPTransport {
+    @Rule
+    public final ExpectedException thrown = ExpectedException.none();
+    private ServerSocket serverSocket;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws IOException {
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        executor.shutdownNow();
+        serverSocket.close();
+    }
+
+    @Test
+    public void bindAndCall() throws Exception {
+        final Future<Integer> server = executor.submit(() -> {
+            try (final Socket socket = serverSocket.accept()) {
+                final InputStream in = socket.getInputStream();
+                final OutputStream out = socket.getOutputStream();
+
+                final byte[] bind = readPDU(in);
+                assertEquals(PDUType.BIND.getValue(), bind[2]);
+                out.write(bindACK(bind[12]));
+
+                final byte[] request = readPDU(in);
+                assertEquals(PDUType.REQUEST.getValue(), request[2]);
+                assertEquals(7, request[22]);
+                assertEquals(28, request.length);
+
+                // Two fragments, the first split across writes, the second coalesced with its tail.
+                final byte[] first = response(request[12], EnumSet.of(PFCFlag.FIRST_FRAGMENT), new byte[]{0x67, 0x45});
+                final byte[] last = response(request[12], EnumSet.of(PFCFlag.LAST_FRAGMENT),
+                        new byte[]{0x23, 0x01, 0x00, 0x00, 0x00, 0x00});
+                out.write(first, 0, 10);
+                out.flush();
+                final byte[] rest = new byte[first.length - 10 + last.length];
+                System.arraycopy(first, 10, rest, 0, first.length - 10);
+                System.arraycopy(last, 0, rest, first.length - 10, last.length);
+                out.write(rest);
+                out.flush();
+                return request.length;
+            }
+        });
+
+        try (final TCPTransport transport = TCPTransport.connect(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort()), 5000,
+                Interface.WINREG_V1_0, Interface.NDR_32BIT_V2, RPCTransportConfig.DEFAULT)) {
+            final TestResponse response = transport.call(new TestRequestCall());
+            assertEquals(0x01234567, response.value);
+        }
+        assertEquals(28, server.get(5, TimeUnit.SECONDS).intValue());
+    }
+
+    @Test
+    public void readClosed() throws Exception {
+        executor.submit(() -> {
+            try (final Socket socket = serverSocket.accept()) {
+                socket.getOutputStream().write(new byte[]{0x05, 0x00});
+            }
+            return null;
+        });
+
+        thrown.expect(EOFException.class);
+        thrown.expectMessage("Connection closed by the remote endpoint.");
+
+        try (final TCPTransport transport = connect()) {
+            transport.read(new byte[1024]);
+        }
+    }
+
+    @Test
+    public void readTooLarge() throws Exception {
+        executor.submit(() -> {
+            try (final Socket socket = serverSocket.accept()) {
+                socket.getOutputStream().write(response(0, EnumSet.of(PFCFlag.LAST_FRAGMENT), new byte[32]));
+                socket.getInputStream().read();
+            }
+            return null;
+        });
+
+        thrown.expect(IOException.class);
+        thrown.expectMessage("Fragment exceeds max_recv_frag: 56 > 48");
+
+        try (final TCPTransport transport = connect()) {
+            transport.read(new byte[48]);
+        }
+    }
+
+    @Test
+    public void callTimeout() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.submit(() -> {
+            try (final Socket socket = serverSocket.accept()) {
+                // Answer the first half of the response only.
+                readPDU(socket.getInputStream());
+                socket.getOutputStream().write(Arrays.copyOf(response(0, EnumSet.of(PFCFlag.LAST_FRAGMENT),
+                        new byte[8]), 20));
+                done.await(5, TimeUnit.SECONDS);
+            }
+            return null;
+        });
+
+        try (final TCPTransport transport = connect()) {
+            try {
+                transport.call(new TestRequestCall(), 200, TimeUnit.MILLISECONDS);
+                fail("Expected InterruptedByTimeoutException");
+            } catch (final InterruptedByTimeoutException exception) {
+                assertTrue(transport.isRetired());
+            }
+        } finally {
+            done.countDown();
+        }
+    }
+
+    @Test
+    public void readTimeout() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.submit(() -> {
+            try (final Socket socket = serverSocket.accept()) {
+                // Never answer.
+                done.await(5, TimeUnit.SECONDS);
+            }
+            return null;
+        });
+
+        final SocketChannel channel = SocketChannel.open(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort()));
+        try (final TCPTransport transport = new TCPTransport(channel, 200, TimeUnit.MILLISECONDS)) {
+            transport.read(new byte[1024]);
+            fail("Expected InterruptedByTimeoutException");
+        } catch (final InterruptedByTimeoutException exception) {
+            // Expected
+        } finally {
+            done.countDown();
+        }
+    }
+
+    @Test
+    public void callReadTimeoutRetiresTransport() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.submit(() -> {
+            try (final Socket socket = serverSocket.accept()) {
+                readPDU(socket.getInputStream());
+                done.await(5, TimeUnit.SECONDS);
+            }
+            return null;
+        });
+
+        final SocketChannel channel = SocketChannel.open(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort()));
+        try (final TCPTransport transport = new TCPTransport(channel, 200, TimeUnit.MILLISECONDS)) {
+            try {
+                transport.call(new TestRequestCall());
+                fail("Expected InterruptedByTimeoutException");
+            } catch (final InterruptedByTimeoutException exception) {
+                assertTrue(transport.isRetired());
+            }
+        } finally {
+            done.countDown();
+        }
+    }
+
+    @Test
+    public void writeWhileReading() throws Exception {
+        final byte[] pdu = response(1, EnumSet.of(PFCFlag.LAST_FRAGMENT), new byte[8]);
+        executor.submit(() -> {
+            try (final Socket socket = serverSocket.accept()) {
+                // Echo the PDU.
+                socket.getOutputStream().write(readPDU(socket.getInputStream()));
+                socket.getInputStream().read();
+            }
+            return null;
+        });
+
+        final ExecutorService reader = Executors.newSingleThreadExecutor();
+        try (final TCPTransport transport = connect()) {
+            // A timed read is pending while another thread writes.
+            final Future<Integer> read = reader.submit(() -> transport.read(new byte[1024], TimeUnit.SECONDS.toNanos(5)));
+            Thread.sleep(50);
+            transport.write(pdu);
+            assertEquals(pdu.length, read.get(5, TimeUnit.SECONDS).intValue());
+        } finally {
+            reader.shutdownNow();
+        }
+    }
+
+    @Test
+    public void closeFailsPendingRead() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.submit(() -> {
+            try (final Socket socket = serverSocket.accept()) {
+                done.await(5, TimeUnit.SECONDS);
+            }
+            return null;
+        });
+
+        final ExecutorService reader = Executors.newSingleThreadExecutor();
+        try {
+            final TCPTransport transport = connect();
+            final Future<Integer> read = reader.submit(() -> transport.read(new byte[1024]));
+            Thread.sleep(50);
+            transport.close();
+            try {
+                read.get(5, TimeUnit.SECONDS);
+                fail("Expected ExecutionException");
+            } catch (final ExecutionException exception) {
+                assertTrue(exception.getCause() instanceof IOException);
+            }
+        } finally {
+            done.countDown();
+            reader.shutdownNow();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidReadTimeout() throws IOException {
+        try (final SocketChannel channel = SocketChannel.open()) {
+            new TCPTransport(channel, -1, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private TCPTransport connect() throws IOException {
+        final SocketChannel channel = SocketChannel.open(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort()));
+        return new TCPTransport(channel);
+    }
+
+    private static byte[] readPDU(final InputStream in) throws IOException {
+        final DataInputStream dataIn = new DataInputStream(in);
+        final byte[] header = new byte[16];
+        dataIn.readFully(header);
+        final int fragLength = (header[8] & 0xFF) | (header[9] & 0xFF) << 8;
+        final byte[] pdu = new byte[fragLength];
+        System.arraycopy(header, 0, pdu, 0, 16);
+        dataIn.readFully(pdu, 16, fragLength - 16);
+        return pdu;
+    }
+
+    private static byte[] bindACK(final int callID) throws IOException {
+        final BindResponse response = new BindResponse();
+        response.setPDUType(PDUType.BIND_ACK);
+        response.setPFCFlags(EnumSet.of(PFCFlag.FIRST_FRAGMENT, PFCFlag.LAST_FRAGMENT));
+        response.setCallID(callID);
+        response.setMaxXmitFrag((short) 4280);
+        response.setMaxRecvFrag((short) 4280);
+        return Hex.decode(response.toHexString());
+    }
+
+    private static byte[] response(final int callID, final EnumSet<PFCFlag> pfcFlags, final byte[] stub) throws IOException {
+        final Response response = new Response();
+        response.setPFCFlags(pfcFlags);
+        response.setCallID(callID);
+        response.setStub(stub);
+        return Hex.decode(response.toHexString());
+    }
+
+    private static class TestRequestCall extends RequestCall<TestResponse> {
+        TestRequestCall() {
+            super((short) 7);
+        }
+
+        @Override
+        public TestResponse getResponseObject() {
+            return new TestResponse();
+        }
+
+        @Override
+        public void marshal(final PacketOutput packetOut) throws IOException {
+            packetOut.writeInt(1);
+        }
+    }
+
+    private static class TestResponse extends RequestResponse {
+        private int value;
+
+        @Override
+        public void unmarshalResponse(final PacketInput packetIn) throws IOException {
+            value = packetIn.readInt();
+        }
+    }
+}
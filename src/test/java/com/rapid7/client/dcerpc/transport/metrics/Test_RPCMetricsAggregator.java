@@ -0,0 +1,70 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.client.dcerpc.transport.metrics;
+
+import java.util.Collections;
+import org.junit.Test;
+import com.rapid7.client.dcerpc.Interface;
+import com.rapid7.client.dcerpc.transport.metrics.RPCMetricsListener.Outcome;
+
+import static org.junit.Assert.*;
+
+public class Test_RPCMetricsAggregator {
+    @Test
+    public void aggregatesCallsPerOperation() {
+        final RPCMetricsAggregator aggregator = new RPCMetricsAggregator();
+        aggregator.onCall(Interface.SAMSVC_V1_0, 36, 28, 1, 1024, 1, Outcome.RESPONSE, 0, 2000);
+        aggregator.onCall(Interface.SAMSVC_V1_0, 36, 28, 1, 20000, 5, Outcome.RESPONSE, 0xC0000022, 4000);
+        aggregator.onCall(Interface.SAMSVC_V1_0, 36, 28, 1, 0, 0, Outcome.ERROR, 0, 8000);
+        aggregator.onCall(Interface.SAMSVC_V1_0, 7, 40, 1, 24, 1, Outcome.FAULT, 0x1C010003, 1000);
+        aggregator.onCall(Interface.WINREG_V1_0, 36, 16, 1, 8, 1, Outcome.RESPONSE, 0, 1000);
+
+        final RPCMetricsAggregator.CallStats stats = aggregator.getCallStats(Interface.SAMSVC_V1_0, 36);
+        assertEquals(3, stats.getLatency().getCount());
+        assertEquals(84, stats.getRequestStubBytes());
+        assertEquals(21024, stats.getResponseStubBytes());
+        assertEquals(6, stats.getResponseFragments());
+        assertEquals(1, stats.getErrors());
+        assertEquals(0, stats.getFaults());
+        assertEquals(Collections.singletonMap(0xC0000022, 1L), stats.getStatusCounts());
+        assertEquals(8000, stats.getLatency().getMax());
+
+        final RPCMetricsAggregator.CallStats faults = aggregator.getCallStats(Interface.SAMSVC_V1_0, 7);
+        assertEquals(1, faults.getFaults());
+        assertEquals(Collections.singletonMap(0x1C010003, 1L), faults.getStatusCounts());
+
+        assertEquals(3, aggregator.getCallStats().size());
+        assertSame(stats, aggregator.getCallStats().get(0));
+        assertNull(aggregator.getCallStats(Interface.LSASVC_V0_0, 36));
+    }
+
+    @Test
+    public void aggregatesBinds() {
+        final RPCMetricsAggregator aggregator = new RPCMetricsAggregator();
+        aggregator.onBind(Interface.WINREG_V1_0, true, 1000);
+        aggregator.onBind(Interface.WINREG_V1_0, false, 3000);
+
+        final RPCMetricsAggregator.BindStats stats = aggregator.getBindStats(Interface.WINREG_V1_0);
+        assertEquals(2, stats.getLatency().getCount());
+        assertEquals(1, stats.getRejected());
+
+        aggregator.reset();
+        assertNull(aggregator.getBindStats(Interface.WINREG_V1_0));
+    }
+}
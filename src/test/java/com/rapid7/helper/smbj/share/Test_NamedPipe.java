@@ -0,0 +1,149 @@
+/**
+ * Copyright 2017, Rapid7, Inc.
+ *
+ * License: BSD-3-clause
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * * Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in the
+ * documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its contributors
+ * may be used to endorse or promote products derived from this software
+ * without specific prior written permission.
+ */
+package com.rapid7.helper.smbj.share;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import com.hierynomus.mserref.NtStatus;
+import com.hierynomus.mssmb2.SMB2Dialect;
+import com.hierynomus.mssmb2.SMB2FileId;
+import com.hierynomus.mssmb2.SMB2Packet;
+import com.hierynomus.mssmb2.messages.SMB2CreateRequest;
+import com.hierynomus.mssmb2.messages.SMB2CreateResponse;
+import com.hierynomus.mssmb2.messages.SMB2ReadRequest;
+import com.hierynomus.smbj.SmbConfig;
+import com.hierynomus.smbj.common.SmbPath;
+import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.connection.NegotiatedProtocol;
+import com.hierynomus.smbj.session.Session;
+import com.hierynomus.smbj.share.PipeShare;
+import com.hierynomus.smbj.share.TreeConnect;
+import com.rapid7.helper.smbj.io.SMB2Exception;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class Test_NamedPipe {
+    private Session session;
+    private PipeShare share;
+
+    @Before
+    public void setUp() {
+        final Connection connection = mock(Connection.class);
+        when(connection.getNegotiatedProtocol())
+                .thenReturn(new NegotiatedProtocol(SMB2Dialect.SMB_2_1, 65536, 65536, 65536, false));
+        session = mock(Session.class);
+        when(session.getConnection()).thenReturn(connection);
+        final TreeConnect treeConnect = mock(TreeConnect.class);
+        when(treeConnect.getConfig()).thenReturn(SmbConfig.createDefaultConfig());
+        share = mock(PipeShare.class);
+        when(share.getTreeConnect()).thenReturn(treeConnect);
+        when(share.getSmbPath()).thenReturn(new SmbPath("host", "IPC$"));
+    }
+
+    @Test
+    public void openSendsAllCreatesBeforeWaiting() throws Exception {
+        final CompletableFuture<SMB2Packet> winreg = new CompletableFuture<>();
+        final CompletableFuture<SMB2Packet> srvsvc = new CompletableFuture<>();
+        when(session.send(any(SMB2CreateRequest.class))).thenReturn(winreg, srvsvc);
+
+        final CompletableFuture<List<NamedPipe>> namedPipes = CompletableFuture.supplyAsync(() -> {
+            try {
+                return NamedPipe.open(session, share, "winreg", "srvsvc");
+            } catch (final IOException exception) {
+                throw new RuntimeException(exception);
+            }
+        });
+        verify(session, timeout(5000).times(2)).send(any(SMB2CreateRequest.class));
+        assertFalse(namedPipes.isDone());
+
+        winreg.complete(createResponse(NtStatus.STATUS_SUCCESS, 1));
+        srvsvc.complete(createResponse(NtStatus.STATUS_SUCCESS, 2));
+        assertEquals(2, namedPipes.get().size());
+    }
+
+    @Test
+    public void openClosesPipesOnFailure() throws Exception {
+        when(session.send(any(SMB2CreateRequest.class))).thenReturn(
+                CompletableFuture.completedFuture(createResponse(NtStatus.STATUS_SUCCESS, 1)),
+                CompletableFuture.completedFuture(createResponse(NtStatus.STATUS_OBJECT_NAME_NOT_FOUND, 0)),
+                CompletableFuture.completedFuture(createResponse(NtStatus.STATUS_PIPE_NOT_AVAILABLE, 0)));
+        try {
+            NamedPipe.open(session, share, "winreg", "foo", "srvsvc");
+            fail("Expected SMB2Exception");
+        } catch (final SMB2Exception exception) {
+            assertEquals(NtStatus.STATUS_OBJECT_NAME_NOT_FOUND, exception.getStatus());
+            assertEquals(1, exception.getSuppressed().length);
+        }
+        final InOrder inOrder = inOrder(session, share);
+        inOrder.verify(session, times(3)).send(any(SMB2CreateRequest.class));
+        inOrder.verify(share).closeFileId(any(SMB2FileId.class));
+    }
+
+    @Test
+    public void cancelFailsOutstandingRead() throws Exception {
+        when(session.send(any(SMB2CreateRequest.class))).thenReturn(
+                CompletableFuture.completedFuture(createResponse(NtStatus.STATUS_SUCCESS, 1)));
+        final NamedPipe namedPipe = new NamedPipe(session, share, "winreg");
+        final CompletableFuture<SMB2Packet> read = new CompletableFuture<>();
+        when(session.send(any(SMB2ReadRequest.class))).thenReturn(read);
+        // Nothing is outstanding yet.
+        namedPipe.cancel();
+
+        final CompletableFuture<Integer> length = CompletableFuture.supplyAsync(() -> {
+            try {
+                return namedPipe.read(new byte[16], 0, 16);
+            } catch (final IOException exception) {
+                throw new CompletionException(exception);
+            }
+        });
+        // The create and the read.
+        verify(session, timeout(5000).times(2)).send(any(SMB2Packet.class));
+        // The read becomes outstanding once send returns.
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!read.isCancelled() && System.nanoTime() < deadline) {
+            namedPipe.cancel();
+            Thread.sleep(1);
+        }
+
+        try {
+            length.get(5, TimeUnit.SECONDS);
+            fail("Expected InterruptedIOException");
+        } catch (final ExecutionException exception) {
+            assertTrue(exception.getCause() instanceof InterruptedIOException);
+        }
+        assertTrue(read.isCancelled());
+    }
+
+    private static SMB2CreateResponse createResponse(final NtStatus status, final int fileID) {
+        final SMB2CreateResponse response = new SMB2CreateResponse();
+        response.getHeader().setStatusCode(status.getValue());
+        response.setFileId(new SMB2FileId(new byte[]{(byte) fileID}, new byte[]{(byte) fileID}));
+        return response;
+    }
+}